@@ -427,6 +427,8 @@ containing a value of this type.
         public static final int direction_label=0x7f070026;
         public static final int direction_value=0x7f070027;
         public static final int disable_checkBox=0x7f07002f;
+        public static final int emptyClientTab=0x7f070035;
+        public static final int emptyServerTab=0x7f070036;
         public static final int enable_button=0x7f070032;
         public static final int grayscale=0x7f070012;
         public static final int holo_dark=0x7f070005;
@@ -435,6 +437,8 @@ containing a value of this type.
         public static final int ip=0x7f07001c;
         public static final int ipLabel=0x7f07001b;
         public static final int ip_info=0x7f07001a;
+        public static final int listClientTab=0x7f070016;
+        public static final int listServerTab=0x7f070018;
         public static final int location_label=0x7f070029;
         public static final int location_value=0x7f07002a;
         public static final int logsTabhost=0x7f070014;
@@ -463,9 +467,7 @@ containing a value of this type.
         public static final int surface=0x7f070020;
         public static final int tab1=0x7f070015;
         public static final int tab2=0x7f070017;
-        public static final int tableClientTab=0x7f070016;
         public static final int tableLayout=0x7f070025;
-        public static final int tableServerTab=0x7f070018;
         public static final int terrain=0x7f070003;
         public static final int wrap_content=0x7f07000d;
     }
@@ -594,6 +596,7 @@ containing a value of this type.
         public static final int degrees_label=0x7f050037;
         public static final int delete_label=0x7f05003a;
         public static final int direction_label=0x7f050033;
+        public static final int empty_log_label=0x7f05003b;
         public static final int disable_val_label=0x7f050036;
         public static final int ip=0x7f050025;
         public static final int ip_label=0x7f050024;
@@ -1,19 +1,17 @@
 package com.tfm.soas.context;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.http.conn.util.InetAddressUtils;
 
-import com.tfm.soas.logic.SOASMessage;
+import com.tfm.soas.logic.SOASMessageCodec;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
@@ -39,12 +37,16 @@ import android.widget.Toast;
 	/*--------------------------------------------------------*/
 	public static final int RECEIVE_SERVER_PORT = 7777; // Puerto recepciones S.
 	public static final int RECEIVE_CLIENT_PORT = 8888; // Puerto recepciones C.
+	private static final int ADDRESS_CACHE_SIZE = 256; // Max IPs cacheadas.
 	private static final String TAG = "SOASContext";
 
 	/*--------------------------------------------------------*/
 	/* ///////////////////// ATRIBUTOS ////////////////////// */
 	/*--------------------------------------------------------*/
 	public static Toast toast = null; // Mensajes para usuario.
+	private static volatile String localIP = null; // IP local (cache).
+	private static volatile long localAddress = -1; // IP local como entero.
+	private static final ConcurrentHashMap<String, InetAddress> addresses = new ConcurrentHashMap<String, InetAddress>(); // IPs resueltas.
 
 	/*--------------------------------------------------------*/
 	/* /////////////////////// METODOS ////////////////////// */
@@ -89,6 +91,71 @@ import android.widget.Toast;
 		return "";
 	}
 
+	/**
+	 * Devuelve la direccion IPv4 local. A diferencia de getIPAddress() no
+	 * recorre las interfaces en cada llamada, sino que reutiliza la ultima IP
+	 * obtenida hasta que se invalida por un cambio de red.
+	 * 
+	 * @return Direccion IP o string vacio.
+	 */
+	public static String getLocalIPAddress() {
+		String ip = localIP;
+		if (ip == null) {
+			ip = getIPAddress(true);
+			if (ip.length() > 0) { // Solo se cachean IPs validas.
+				localAddress = SOASMessageCodec.parseIPv4(ip);
+				localIP = ip;
+			}
+		}
+		return ip;
+	}
+
+	/**
+	 * Devuelve la direccion IPv4 local como entero sin signo, en el mismo
+	 * formato que SOASMessageCodec.peekAddress().
+	 * 
+	 * @return Direccion IP o -1 si no esta disponible.
+	 */
+	public static long getLocalAddress() {
+		if (localIP == null) {
+			getLocalIPAddress();
+		}
+		return localAddress;
+	}
+
+	/**
+	 * Invalida la direccion IP local cacheada. Se debe invocar cada vez que
+	 * cambia el estado de la red.
+	 */
+	public static void invalidateLocalIPAddress() {
+		localIP = null;
+		localAddress = -1;
+	}
+
+	/**
+	 * Devuelve la direccion de red correspondiente a una IP en formato texto.
+	 * Las direcciones ya resueltas se guardan en una cache para no repetir la
+	 * resolucion en cada envio.
+	 * 
+	 * @param ip
+	 *            Direccion IP
+	 * @return Direccion de red
+	 * @throws UnknownHostException
+	 *             Si la IP no es valida
+	 */
+	public static InetAddress getInetAddress(String ip)
+			throws UnknownHostException {
+		InetAddress address = addresses.get(ip);
+		if (address == null) {
+			address = InetAddress.getByName(ip);
+			if (addresses.size() >= ADDRESS_CACHE_SIZE) {
+				addresses.clear();
+			}
+			addresses.put(ip, address);
+		}
+		return address;
+	}
+
 	/**
 	 * Devuelve las dimensiones (Width-Height) de la pantalla del dispositivo.
 	 * 
@@ -132,50 +199,6 @@ import android.widget.Toast;
 		return dimens;
 	}
 
-	/**
-	 * Permite serializar un mensaje SOAS convirtiendolo en un conjunto de bytes
-	 * capaces de ser enviados a traves de la red.
-	 * 
-	 * @param message
-	 *            Mensaje a serializar
-	 * @return Mensaje serializado
-	 */
-	public static byte[] serializeMessage(SOASMessage message) {
-		try {
-			ByteArrayOutputStream bs = new ByteArrayOutputStream();
-			ObjectOutputStream os = new ObjectOutputStream(bs);
-			os.writeObject(message);
-			os.close();
-			return bs.toByteArray();
-		} catch (Exception e) {
-			Log.d(TAG, "Error serializing the message: " + e.getMessage());
-			e.printStackTrace();
-		}
-		return null;
-	}
-
-	/**
-	 * Permite reconstruir un mensaje SOAS previamente serializado y convertido
-	 * en un conjunto de bytes.
-	 * 
-	 * @param bytes
-	 *            Mensaje serializado
-	 * @return Mensaje reconstruido
-	 */
-	public static SOASMessage deserializeMessage(byte[] bytes) {
-		try {
-			ByteArrayInputStream bs = new ByteArrayInputStream(bytes);
-			ObjectInputStream is = new ObjectInputStream(bs);
-			SOASMessage message = (SOASMessage) is.readObject();
-			is.close();
-			return message;
-		} catch (Exception e) {
-			Log.d(TAG, "Error deserializing the message: " + e.getMessage());
-			e.printStackTrace();
-		}
-		return null;
-	}
-
 	/**
 	 * Devuelve el estado del sonido del dispositivo.
 	 * 
@@ -229,69 +252,4 @@ import android.widget.Toast;
 		}
 	}
 
-	/**
-	 * Permite mover un vector 2D a una determinada posicion dentro del plano
-	 * cartesiano.
-	 * 
-	 * @param vector
-	 *            Vector a desplazar. Punto A: Elementos 0,1 / Punto B:
-	 *            Elementos 2,3
-	 * @param position
-	 *            Posicion donde colocar el vector
-	 */
-	public static double[] moveVector(double[] vector, double[] position) {
-		// Se calculan los desplazamientos que deben sufrir los puntos del
-		// vector.
-		double xMovement = position[0] - vector[0];
-		double yMovement = position[1] - vector[1];
-
-		// Se obtiene el vector desplazado.
-		double[] vd = { 0, 0, 0, 0 };
-		vd[0] = vector[0] + xMovement;
-		vd[1] = vector[1] + yMovement;
-		vd[2] = vector[2] + xMovement;
-		vd[3] = vector[3] + yMovement;
-
-		return vd;
-	}
-
-	/**
-	 * Permite obtener el angulo formado por dos vectores 2D.
-	 * 
-	 * @param u
-	 *            Vector 1 Punto A: Elementos 0,1 / Punto B: Elementos 2,3
-	 * @param v
-	 *            Vector 2 Punto A: Elementos 0,1 / Punto B: Elementos 2,3
-	 * @return Angulo entre vectores
-	 */
-	public static double getDegrees(double[] u, double[] v) {
-		// Se mueven los vectores al origen de coordenadas.
-		double[] origin = { 0, 0 };
-		u = moveVector(u, origin);
-		v = moveVector(v, origin);
-
-		// Se calculan por separado el numerador y el denominador de la formula
-		// para el calculo del angulo entre dos vectores.
-		double numerator = (u[2] * v[2]) + (u[3] * v[3]);
-		double denominator = Math.hypot(u[2], u[3]) * Math.hypot(v[2], v[3]);
-
-		// Se calcula el cociente. Si es necesario se ajustará para que no se
-		// produzcan valores no numericos.
-		double quotient = (numerator / denominator);
-		if (quotient > 1) {
-			quotient = 1;
-		} else if (quotient < -1) {
-			quotient = -1;
-		}
-
-		// Se calcula el angulo final.
-		double radians = Math.acos(quotient);
-		double degrees = Math.toDegrees(radians);
-		if (degrees < 0) { // Angulo en positivo.
-			degrees *= -1;
-		}
-
-		return degrees;
-	}
-
 } // Fin clase 'AppContext'
@@ -0,0 +1,206 @@
+package com.tfm.soas.context;
+
+/**
+ * Operaciones geometricas sobre vectores 2D sin reserva de memoria. Trabajan
+ * directamente sobre tipos primitivos o sobre los vectores de localizacion de
+ * la aplicacion (Punto A: Elementos 0,1 / Punto B: Elementos 2,3, con la
+ * longitud como coordenada X y la latitud como coordenada Y).
+ *
+ * Las validaciones comparan el coseno del angulo entre dos vectores con el
+ * coseno del angulo umbral, calculado una sola vez, en lugar de obtener el
+ * angulo en grados. Para angulos entre 0 y 180 grados ambas comparaciones
+ * son equivalentes: angulo <= umbral si y solo si cos(angulo) >= cos(umbral).
+ * Si alguno de los vectores tiene modulo nulo el coseno es NaN y cualquier
+ * comparacion es falsa, igual que ocurria con el angulo en grados.
+ */
+public final class GeoKernel {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	public static final double EARTH_RADIUS = 6371009; // Radio medio (m).
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Constructor privado, clase de utilidades.
+	 */
+	private GeoKernel() {
+	}
+
+	/**
+	 * Devuelve el coseno de un angulo umbral expresado en grados. El valor se
+	 * ajusta al menor coseno cuyo angulo no supera el umbral, de modo que la
+	 * comparacion de cosenos decide lo mismo que la comparacion en grados
+	 * incluso en el propio umbral (p.ej. vectores perpendiculares con umbral
+	 * de 90 grados).
+	 *
+	 * @param degrees
+	 *            Angulo umbral (grados)
+	 * @return Coseno del angulo
+	 */
+	public static double cosThreshold(double degrees) {
+		if (toDegrees(-1) <= degrees) {
+			return -1;
+		}
+		if (toDegrees(1) > degrees) {
+			return Double.NaN; // Ningun angulo lo cumple.
+		}
+		// Biseccion: toDegrees(lo) > degrees y toDegrees(hi) <= degrees.
+		double lo = -1;
+		double hi = 1;
+		while (true) {
+			double mid = lo + ((hi - lo) / 2);
+			if ((mid == lo) || (mid == hi)) {
+				return hi;
+			}
+			if (toDegrees(mid) <= degrees) {
+				hi = mid;
+			} else {
+				lo = mid;
+			}
+		}
+	}
+
+	/**
+	 * Devuelve el coseno del angulo que forman dos vectores dados por sus
+	 * componentes.
+	 *
+	 * @param ux
+	 *            Componente X del vector u
+	 * @param uy
+	 *            Componente Y del vector u
+	 * @param vx
+	 *            Componente X del vector v
+	 * @param vy
+	 *            Componente Y del vector v
+	 * @return Coseno en [-1, 1] o NaN si algun vector tiene modulo nulo
+	 */
+	public static double cosBetween(double ux, double uy, double vx, double vy) {
+		double quotient = ((ux * vx) + (uy * vy))
+				/ (Math.hypot(ux, uy) * Math.hypot(vx, vy));
+		if (quotient > 1) {
+			quotient = 1;
+		} else if (quotient < -1) {
+			quotient = -1;
+		}
+		return quotient;
+	}
+
+	/**
+	 * Devuelve el coseno del angulo que forman dos vectores de localizacion.
+	 *
+	 * @param u
+	 *            Vector u. Punto A: Elementos 0,1 / Punto B: Elementos 2,3
+	 * @param v
+	 *            Vector v. Punto A: Elementos 0,1 / Punto B: Elementos 2,3
+	 * @return Coseno en [-1, 1] o NaN si algun vector tiene modulo nulo
+	 */
+	public static double cosBetween(double[] u, double[] v) {
+		return cosBetween(u[2] - u[0], u[3] - u[1], v[2] - v[0], v[3] - v[1]);
+	}
+
+	/**
+	 * Indica si el angulo cuyo coseno se indica no supera el umbral.
+	 *
+	 * @param cos
+	 *            Coseno del angulo
+	 * @param cosThreshold
+	 *            Coseno del angulo umbral
+	 * @return True-Dentro del umbral / False-Fuera del umbral o NaN
+	 */
+	public static boolean isWithin(double cos, double cosThreshold) {
+		return cos >= cosThreshold;
+	}
+
+	/**
+	 * Convierte un coseno en el angulo correspondiente en grados. Solo se
+	 * emplea para mostrar informacion.
+	 *
+	 * @param cos
+	 *            Coseno del angulo
+	 * @return Angulo (grados)
+	 */
+	public static double toDegrees(double cos) {
+		return Math.toDegrees(Math.acos(cos));
+	}
+
+	/*--------------------------------------------------------*/
+	/* /////////////////// CLASES INTERNAS ////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Plano local sobre el que se proyectan coordenadas geograficas para
+	 * trabajar en metros. Emplea una proyeccion equirectangular centrada en un
+	 * origen, suficientemente precisa para las distancias de alcance WiFi.
+	 */
+	public static final class LocalPlane {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private double originLon = 0; // Longitud del origen.
+		private double originLat = 0; // Latitud del origen.
+		private double lonScale = 0; // Metros por grado de longitud.
+		private double latScale = Math.toRadians(EARTH_RADIUS); // Metros por grado de latitud.
+		private boolean hasOrigin = false; // Origen fijado.
+
+		/*---------*/
+		/* METODOS */
+		/*---------*/
+		/**
+		 * Fija el origen del plano.
+		 *
+		 * @param lon
+		 *            Longitud del origen
+		 * @param lat
+		 *            Latitud del origen
+		 */
+		public void setOrigin(double lon, double lat) {
+			originLon = lon;
+			originLat = lat;
+			lonScale = latScale * Math.cos(Math.toRadians(lat));
+			hasOrigin = true;
+		}
+
+		/**
+		 * Libera el origen del plano.
+		 */
+		public void reset() {
+			hasOrigin = false;
+		}
+
+		/**
+		 * Indica si se ha fijado el origen del plano.
+		 *
+		 * @return True-Fijado / False-Sin fijar
+		 */
+		public boolean hasOrigin() {
+			return hasOrigin;
+		}
+
+		/**
+		 * Proyecta una longitud sobre el plano.
+		 *
+		 * @param lon
+		 *            Longitud
+		 * @return Coordenada X (m)
+		 */
+		public double x(double lon) {
+			return (lon - originLon) * lonScale;
+		}
+
+		/**
+		 * Proyecta una latitud sobre el plano.
+		 *
+		 * @param lat
+		 *            Latitud
+		 * @return Coordenada Y (m)
+		 */
+		public double y(double lat) {
+			return (lat - originLat) * latScale;
+		}
+
+	} // Fin clase interna 'LocalPlane'
+
+} // Fin clase 'GeoKernel'
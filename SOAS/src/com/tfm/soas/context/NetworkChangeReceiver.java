@@ -0,0 +1,40 @@
+package com.tfm.soas.context;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.wifi.WifiManager;
+
+/**
+ * BroadcastReceiver que invalida la direccion IP local cacheada en AppContext
+ * cada vez que cambia el estado de la red.
+ */
+public class NetworkChangeReceiver extends BroadcastReceiver {
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Devuelve el filtro con los eventos de cambio de red que debe atender el
+	 * receptor.
+	 *
+	 * @return Filtro de eventos
+	 */
+	public static IntentFilter getIntentFilter() {
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+		filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+		return filter;
+	}
+
+	/**
+	 * Recepcion de un cambio de red.
+	 */
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		AppContext.invalidateLocalIPAddress();
+	}
+
+} // Fin clase 'NetworkChangeReceiver'
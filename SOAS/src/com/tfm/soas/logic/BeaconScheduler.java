@@ -0,0 +1,137 @@
+package com.tfm.soas.logic;
+
+import java.util.Random;
+
+/**
+ * Planificador de anuncios HELLO. Calcula el intervalo hasta el siguiente
+ * anuncio en lugar de emplear un periodo fijo:
+ *
+ * 1- Velocidad: A mayor velocidad los vehiculos cambian antes de posicion
+ * relativa, por lo que se anuncia con mas frecuencia. Parado se anuncia con el
+ * intervalo maximo.
+ *
+ * 2- Estado: Durante una sesion de streaming sin plazas libres el servidor no
+ * acepta clientes, por lo que no se difunden anuncios.
+ *
+ * 3- Densidad: Cuantos mas servidores se escuchan en el canal mas se alarga el
+ * intervalo, para no saturarlo.
+ *
+ * 4- Jitter: Se añade una variacion aleatoria para evitar que servidores
+ * arrancados a la vez colisionen en cada anuncio.
+ *
+ * La densidad del canal se observa en la parte cliente, que es la que recibe
+ * los anuncios del resto de servidores, y se comparte a traves de metodos
+ * estaticos.
+ */
+public class BeaconScheduler {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	public static final long MIN_INTERVAL = 300; // Intervalo minimo (ms).
+	public static final long MAX_INTERVAL = 1500; // Intervalo maximo (ms).
+	public static final long SUPPRESSED_INTERVAL = 1000; // Recomprobacion (ms).
+	private static final float FAST_SPEED = 120; // Velocidad con MIN (Km/h).
+	private static final int DENSITY_STEP = 4; // Vecinos por intervalo extra.
+	private static final int MAX_DENSITY_FACTOR = 3; // Factor densidad max.
+	private static final double JITTER = 0.1; // Variacion aleatoria (+-10%).
+	private static final long DENSITY_WINDOW = 3000; // Ventana vecinos (ms).
+	private static final int DENSITY_TABLE_SIZE = 64; // Vecinos registrados.
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private static final long[] beaconIPs = new long[DENSITY_TABLE_SIZE]; // IPs.
+	private static final long[] beaconTimes = new long[DENSITY_TABLE_SIZE]; // Ultimo anuncio.
+	private static int beaconCount = 0; // Vecinos registrados.
+
+	private final Random random = new Random(); // Generador del jitter.
+	private volatile long currentInterval = MAX_INTERVAL; // Ultimo intervalo.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Registra un anuncio HELLO recibido de otro servidor.
+	 *
+	 * @param sender
+	 *            IP del servidor como entero o -1 si no indico una IPv4
+	 */
+	public static synchronized void observeBeacon(long sender) {
+		if (sender == -1) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		int oldest = 0;
+		for (int i = 0; i < beaconCount; i++) {
+			if (beaconIPs[i] == sender) {
+				beaconTimes[i] = now;
+				return;
+			}
+			if (beaconTimes[i] < beaconTimes[oldest]) {
+				oldest = i;
+			}
+		}
+		int slot = (beaconCount < DENSITY_TABLE_SIZE) ? beaconCount++ : oldest;
+		beaconIPs[slot] = sender;
+		beaconTimes[slot] = now;
+	}
+
+	/**
+	 * Devuelve el numero de servidores escuchados recientemente en el canal.
+	 *
+	 * @return Servidores vecinos
+	 */
+	public static synchronized int getChannelDensity() {
+		long limit = System.currentTimeMillis() - DENSITY_WINDOW;
+		int density = 0;
+		for (int i = 0; i < beaconCount; i++) {
+			if (beaconTimes[i] >= limit) {
+				density++;
+			}
+		}
+		return density;
+	}
+
+	/**
+	 * Calcula el intervalo hasta el siguiente anuncio.
+	 *
+	 * @param speed
+	 *            Velocidad actual en Km/h
+	 * @param streaming
+	 *            True si el servidor esta en una sesion de streaming y no
+	 *            admite mas clientes
+	 * @return Intervalo en ms
+	 */
+	public long nextInterval(float speed, boolean streaming) {
+		if (streaming) {
+			// Se suprimen los anuncios y se vuelve a comprobar mas tarde.
+			currentInterval = SUPPRESSED_INTERVAL;
+			return SUPPRESSED_INTERVAL;
+		}
+
+		// Intervalo segun la velocidad: lineal entre MAX (parado) y MIN.
+		double ratio = (speed > 0) ? Math.min(speed / FAST_SPEED, 1) : 0;
+		double interval = MAX_INTERVAL - ((MAX_INTERVAL - MIN_INTERVAL) * ratio);
+
+		// Se alarga segun la densidad del canal.
+		int factor = 1 + (getChannelDensity() / DENSITY_STEP);
+		interval *= Math.min(factor, MAX_DENSITY_FACTOR);
+
+		// Se aplica el jitter.
+		interval *= 1 + (JITTER * ((2 * random.nextDouble()) - 1));
+
+		currentInterval = Math.round(interval);
+		return currentInterval;
+	}
+
+	/**
+	 * Devuelve el ultimo intervalo calculado (metrica del planificador).
+	 *
+	 * @return Intervalo en ms
+	 */
+	public long getCurrentInterval() {
+		return currentInterval;
+	}
+
+} // Fin clase 'BeaconScheduler'
@@ -0,0 +1,129 @@
+package com.tfm.soas.logic;
+
+/**
+ * Filtro de mensajes duplicados. Para cada emisor recuerda el mayor numero de
+ * secuencia recibido y una ventana de WINDOW bits con los numeros anteriores
+ * ya vistos (como la ventana anti-replay de IPsec), de modo que las copias
+ * repetidas de un mensaje (p.ej. READY enviado por triplicado) se descartan
+ * antes de reconstruirlas, sin impedir que lleguen mensajes desordenados.
+ *
+ * Si un emisor deja de enviar durante mas de ENTRY_TTL ms, o envia un numero
+ * muy anterior a la ventana (reinicio de la aplicacion), se olvida su
+ * historial. Los mensajes sin numero de secuencia (0) o sin IPv4 del emisor no
+ * se filtran.
+ */
+public class DuplicateFilter {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	private static final int WINDOW = 64; // Numeros recordados por emisor.
+	private static final long ENTRY_TTL = 10000; // Vida de un emisor (ms).
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private final long[] senders; // IP de cada emisor.
+	private final int[] highest; // Mayor numero recibido.
+	private final long[] seen; // Bit i = numero (highest - i) recibido.
+	private final long[] lastSeen; // Ultimo mensaje (ms).
+	private int count = 0; // Emisores registrados.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Constructor para instancias de la clase DuplicateFilter.
+	 *
+	 * @param capacity
+	 *            Numero maximo de emisores recordados
+	 */
+	public DuplicateFilter(int capacity) {
+		senders = new long[capacity];
+		highest = new int[capacity];
+		seen = new long[capacity];
+		lastSeen = new long[capacity];
+	}
+
+	/**
+	 * Indica si un mensaje ya se habia recibido y, si no, lo anota.
+	 *
+	 * @param sender
+	 *            IP del emisor como entero o -1 si no indico una IPv4
+	 * @param sequence
+	 *            Numero de secuencia del mensaje
+	 * @param now
+	 *            Instante actual (ms)
+	 * @return True-Duplicado / False-Mensaje nuevo
+	 */
+	public synchronized boolean isDuplicate(long sender, int sequence, long now) {
+		if ((sender == -1) || (sequence == 0)) {
+			return false;
+		}
+
+		// Se busca el emisor. Si no esta se ocupa el hueco del mas antiguo.
+		int slot = -1;
+		int oldest = 0;
+		for (int i = 0; i < count; i++) {
+			if (senders[i] == sender) {
+				slot = i;
+				break;
+			}
+			if (lastSeen[i] < lastSeen[oldest]) {
+				oldest = i;
+			}
+		}
+		if ((slot == -1) || ((now - lastSeen[slot]) > ENTRY_TTL)) {
+			if (slot == -1) {
+				slot = (count < senders.length) ? count++ : oldest;
+			}
+			reset(slot, sender, sequence, now);
+			return false;
+		}
+		lastSeen[slot] = now;
+
+		int delta = sequence - highest[slot];
+		if (delta > 0) { // Mas reciente: se desplaza la ventana.
+			seen[slot] = (delta >= WINDOW) ? 1 : (seen[slot] << delta) | 1;
+			highest[slot] = sequence;
+			return false;
+		}
+		if (-delta >= WINDOW) { // Fuera de la ventana: reinicio del emisor.
+			reset(slot, sender, sequence, now);
+			return false;
+		}
+		long bit = 1L << -delta;
+		if ((seen[slot] & bit) != 0) {
+			return true;
+		}
+		seen[slot] |= bit;
+		return false;
+	}
+
+	/**
+	 * Olvida todos los emisores.
+	 */
+	public synchronized void clear() {
+		count = 0;
+	}
+
+	/**
+	 * Inicia el historial de un emisor.
+	 *
+	 * @param slot
+	 *            Posicion del emisor
+	 * @param sender
+	 *            IP del emisor
+	 * @param sequence
+	 *            Numero de secuencia recibido
+	 * @param now
+	 *            Instante actual (ms)
+	 */
+	private void reset(int slot, long sender, int sequence, long now) {
+		senders[slot] = sender;
+		highest[slot] = sequence;
+		seen[slot] = 1;
+		lastSeen[slot] = now;
+	}
+
+} // Fin clase 'DuplicateFilter'
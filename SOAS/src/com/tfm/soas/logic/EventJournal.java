@@ -0,0 +1,291 @@
+package com.tfm.soas.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Diario binario de eventos de una sesion SOAS. Cada evento se guarda como un
+ * registro de tamaño fijo, sin convertirlo a texto, en un fichero proyectado
+ * en memoria (MappedByteBuffer), de modo que registrar un evento no reserva
+ * memoria ni realiza llamadas al sistema. El diario solo admite añadir
+ * registros al final. Cuando un fichero se llena se pasa al siguiente y se
+ * borran los mas antiguos, conservando como maximo MAX_FILES ficheros por
+ * rol.
+ *
+ * Formato del fichero (big-endian):
+ *
+ * Cabecera (HEADER_SIZE bytes): magic (int), version (short), tamaño de
+ * registro (short), rol (byte), 3 bytes de relleno, secuencia del fichero
+ * (int), hora del sistema al abrirlo en ms (long) y System.nanoTime() en ese
+ * mismo instante (long).
+ *
+ * Registro (RECORD_SIZE bytes): tipo de evento (byte, 0 = hueco libre),
+ * estado (byte, -1 = no aplica), contador (short), IP del otro extremo (int, 0
+ * = no aplica), instante en ns (long), angulo en grados (float, NaN = no
+ * aplica), distancia en m (float, NaN = no aplica) y valor numerico libre
+ * (long). En los eventos VALIDATION_FAIL el valor indica el motivo (FAIL_*),
+ * en STATE_CHANGE el estado anterior, en DATA y DATA_ACK el numero de
+ * secuencia y en TIMEOUT el nivel de sospecha phi multiplicado por 1000.
+ */
+public class EventJournal {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	// Tipos de evento. En el fichero se guarda el ordinal + 1, por lo que solo
+	// se deben añadir tipos nuevos al final.
+	public static enum EventType {
+		SESSION_START, SESSION_END, STATE_CHANGE, HELLO_RX, SERVER_SELECTED,
+		REQUEST_TX, REQUEST_RX, VALIDATION_OK, VALIDATION_FAIL, READY_TX,
+		READY_RX, REJECT_TX, REJECT_RX, DATA_TX, DATA_RX, DATA_ACK_TX,
+		DATA_ACK_RX, END_TX, END_RX, TIMEOUT
+	}
+
+	public static final String DIRECTORY = "journal"; // Directorio del diario.
+	public static final String EXTENSION = ".bin"; // Extension de los ficheros.
+	public static final int MAGIC = 0x534F454A; // "SOEJ".
+	public static final short VERSION = 1; // Version del formato.
+	public static final int HEADER_SIZE = 32; // Tamaño de la cabecera.
+	public static final int RECORD_SIZE = 32; // Tamaño de un registro.
+	public static final byte ROLE_SERVER = 0; // Diario del servidor.
+	public static final byte ROLE_CLIENT = 1; // Diario del cliente.
+	public static final byte NO_STATE = -1; // Evento sin estado.
+	public static final int FAIL_LOCATION = 1; // Validacion: sin localizacion.
+	public static final int FAIL_ONE_POINT = 2; // Validacion: vector nulo.
+	public static final int FAIL_DIRECTION = 3; // Validacion: otra direccion.
+	public static final int FAIL_POSITION = 4; // Validacion: posicion relativa.
+	private static final int RECORDS_PER_FILE = 16384; // Registros por fichero.
+	private static final int FILE_SIZE = HEADER_SIZE
+			+ (RECORD_SIZE * RECORDS_PER_FILE); // Tamaño de un fichero (512 KB).
+	private static final int MAX_FILES = 4; // Ficheros conservados por rol.
+	private static final String TAG = "EventJournal";
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private final File directory; // Directorio de los ficheros.
+	private final String prefix; // Prefijo de los ficheros (rol).
+	private final byte role; // Rol del dispositivo.
+	private MappedByteBuffer buffer = null; // Fichero actual proyectado.
+	private int sequence = -1; // Secuencia del fichero actual.
+	private int position = 0; // Siguiente registro libre.
+	private int dropped = 0; // Eventos perdidos por error de E/S.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Constructor para instancias de la clase EventJournal. Abre un fichero
+	 * nuevo a continuacion de los existentes para el rol indicado.
+	 *
+	 * @param context
+	 *            Contexto de la aplicacion
+	 * @param prefix
+	 *            Prefijo de los ficheros (server / client)
+	 * @param role
+	 *            Rol del dispositivo (ROLE_SERVER / ROLE_CLIENT)
+	 */
+	public EventJournal(Context context, String prefix, byte role) {
+		this.directory = new File(context.getFilesDir(), DIRECTORY);
+		this.prefix = prefix;
+		this.role = role;
+		synchronized (this) {
+			sequence = lastSequence(directory, prefix);
+			rotate();
+		}
+	}
+
+	/**
+	 * Registra un evento sin datos numericos.
+	 *
+	 * @param type
+	 *            Tipo de evento
+	 * @param state
+	 *            Estado actual (ordinal) o NO_STATE
+	 * @param peer
+	 *            IP del otro extremo en formato a.b.c.d o null
+	 */
+	public void record(EventType type, int state, String peer) {
+		record(type, state, peer, 0, Float.NaN, Float.NaN, 0);
+	}
+
+	/**
+	 * Registra un evento. No reserva memoria: la IP se convierte a entero y
+	 * los campos se escriben directamente en el fichero proyectado. El tipo de
+	 * evento se escribe el ultimo, de modo que un registro a medio escribir se
+	 * lee como hueco libre.
+	 *
+	 * @param type
+	 *            Tipo de evento
+	 * @param state
+	 *            Estado actual (ordinal) o NO_STATE
+	 * @param peer
+	 *            IP del otro extremo en formato a.b.c.d o null
+	 * @param count
+	 *            Contador (p.ej. intentos)
+	 * @param angle
+	 *            Angulo en grados o NaN
+	 * @param distance
+	 *            Distancia en m o NaN
+	 * @param value
+	 *            Valor numerico libre (p.ej. intervalo en ms)
+	 */
+	public void record(EventType type, int state, String peer, int count,
+			float angle, float distance, long value) {
+		long nanos = System.nanoTime();
+		long address = SOASMessageCodec.parseIPv4(peer);
+		synchronized (this) {
+			if (buffer == null) {
+				dropped++;
+				return;
+			}
+			if (position == FILE_SIZE) {
+				rotate();
+				if (buffer == null) {
+					dropped++;
+					return;
+				}
+			}
+			int p = position;
+			buffer.put(p + 1, (byte) state);
+			buffer.putShort(p + 2, (short) Math.min(count, Short.MAX_VALUE));
+			buffer.putInt(p + 4, (address == -1) ? 0 : (int) address);
+			buffer.putLong(p + 8, nanos);
+			buffer.putFloat(p + 16, angle);
+			buffer.putFloat(p + 20, distance);
+			buffer.putLong(p + 24, value);
+			buffer.put(p, (byte) (type.ordinal() + 1));
+			position += RECORD_SIZE;
+		}
+	}
+
+	/**
+	 * Cierra el diario, forzando la escritura de los registros pendientes en
+	 * el almacenamiento.
+	 */
+	public synchronized void close() {
+		if (buffer != null) {
+			buffer.force();
+			buffer = null;
+		}
+		if (dropped > 0) {
+			Log.d(TAG, dropped + " journal events dropped");
+		}
+	}
+
+	/**
+	 * Devuelve el fichero que se esta escribiendo.
+	 *
+	 * @return Fichero actual o null si el diario no esta disponible
+	 */
+	public synchronized File getCurrentFile() {
+		return (buffer != null) ? fileFor(directory, prefix, sequence) : null;
+	}
+
+	/**
+	 * Pasa al siguiente fichero del diario: cierra el actual, crea y proyecta
+	 * el nuevo, escribe su cabecera y borra el fichero que queda fuera del
+	 * limite de ficheros conservados. Si se produce un error de E/S el diario
+	 * queda deshabilitado y los eventos se descartan.
+	 */
+	private void rotate() {
+		if (buffer != null) {
+			buffer.force();
+			buffer = null;
+		}
+		sequence++;
+		position = HEADER_SIZE;
+		File stale = fileFor(directory, prefix, sequence - MAX_FILES);
+		if (stale.exists()) {
+			stale.delete();
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create " + directory);
+			}
+			File file = fileFor(directory, prefix, sequence);
+			if (file.exists()) {
+				file.delete();
+			}
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(FILE_SIZE);
+			MappedByteBuffer map = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+			map.order(ByteOrder.BIG_ENDIAN);
+			map.putInt(0, MAGIC);
+			map.putShort(4, VERSION);
+			map.putShort(6, (short) RECORD_SIZE);
+			map.put(8, role);
+			map.putInt(12, sequence);
+			map.putLong(16, System.currentTimeMillis());
+			map.putLong(24, System.nanoTime());
+			buffer = map;
+		} catch (IOException e) {
+			Log.d(TAG, "Error opening event journal: " + e.getMessage());
+		} finally {
+			// La proyeccion sigue siendo valida tras cerrar el fichero.
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					Log.d(TAG, "Error closing journal file: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Devuelve el fichero del diario con la secuencia indicada.
+	 *
+	 * @param directory
+	 *            Directorio del diario
+	 * @param prefix
+	 *            Prefijo de los ficheros
+	 * @param sequence
+	 *            Secuencia del fichero
+	 * @return Fichero del diario
+	 */
+	static File fileFor(File directory, String prefix, int sequence) {
+		return new File(directory, prefix + "-" + sequence + EXTENSION);
+	}
+
+	/**
+	 * Devuelve la secuencia del ultimo fichero existente para un prefijo.
+	 *
+	 * @param directory
+	 *            Directorio del diario
+	 * @param prefix
+	 *            Prefijo de los ficheros
+	 * @return Ultima secuencia o -1 si no hay ficheros
+	 */
+	static int lastSequence(File directory, String prefix) {
+		int last = -1;
+		String[] names = directory.list();
+		if (names == null) {
+			return last;
+		}
+		String start = prefix + "-";
+		for (String name : names) {
+			if (name.startsWith(start) && name.endsWith(EXTENSION)) {
+				try {
+					int seq = Integer.parseInt(name.substring(start.length(),
+							name.length() - EXTENSION.length()));
+					last = Math.max(last, seq);
+				} catch (NumberFormatException e) {
+					// No es un fichero del diario.
+				}
+			}
+		}
+		return last;
+	}
+
+} // Fin clase 'EventJournal'
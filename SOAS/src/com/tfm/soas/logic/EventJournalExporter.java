@@ -0,0 +1,267 @@
+package com.tfm.soas.logic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+import com.tfm.soas.logic.EventJournal.EventType;
+
+/**
+ * Exportador del diario binario de eventos a formato CSV o JSON. Recorre los
+ * registros de los ficheros del diario y convierte el instante de cada evento
+ * (System.nanoTime()) a hora del sistema a partir de la referencia guardada en
+ * la cabecera del fichero.
+ *
+ * CSV: una linea por evento con las columnas time_ms, nanos, role, event,
+ * state, peer, count, angle, distance y value. Los campos que no aplican se
+ * dejan vacios.
+ *
+ * JSON: un array con un objeto por evento con los mismos campos. Los campos
+ * que no aplican valen null.
+ */
+public final class EventJournalExporter {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	public static final int FORMAT_CSV = 0; // Formato CSV.
+	public static final int FORMAT_JSON = 1; // Formato JSON.
+	private static final String CSV_HEADER = "time_ms,nanos,role,event,state,"
+			+ "peer,count,angle,distance,value";
+	private static final EventType[] EVENTS = EventType.values();
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Constructor privado, clase de utilidades.
+	 */
+	private EventJournalExporter() {
+	}
+
+	/**
+	 * Exporta todos los ficheros del diario de un rol, del mas antiguo al mas
+	 * reciente.
+	 *
+	 * @param directory
+	 *            Directorio del diario
+	 * @param prefix
+	 *            Prefijo de los ficheros (server / client)
+	 * @param format
+	 *            Formato de salida (FORMAT_CSV / FORMAT_JSON)
+	 * @param out
+	 *            Destino de la exportacion
+	 * @return Numero de eventos exportados
+	 * @throws IOException
+	 *             Error de lectura del diario o de escritura del destino
+	 */
+	public static int export(File directory, String prefix, int format,
+			Writer out) throws IOException {
+		int last = EventJournal.lastSequence(directory, prefix);
+		int events = 0;
+		begin(format, out);
+		for (int seq = 0; seq <= last; seq++) {
+			File file = EventJournal.fileFor(directory, prefix, seq);
+			if (file.exists()) {
+				events = exportFile(file, format, out, events);
+			}
+		}
+		end(format, out);
+		out.flush();
+		return events;
+	}
+
+	/**
+	 * Exporta un unico fichero del diario.
+	 *
+	 * @param file
+	 *            Fichero del diario
+	 * @param format
+	 *            Formato de salida (FORMAT_CSV / FORMAT_JSON)
+	 * @param out
+	 *            Destino de la exportacion
+	 * @return Numero de eventos exportados
+	 * @throws IOException
+	 *             Error de lectura del diario o de escritura del destino
+	 */
+	public static int export(File file, int format, Writer out)
+			throws IOException {
+		begin(format, out);
+		int events = exportFile(file, format, out, 0);
+		end(format, out);
+		out.flush();
+		return events;
+	}
+
+	/**
+	 * Escribe el inicio de la exportacion.
+	 *
+	 * @param format
+	 *            Formato de salida
+	 * @param out
+	 *            Destino de la exportacion
+	 * @throws IOException
+	 *             Error de escritura
+	 */
+	private static void begin(int format, Writer out) throws IOException {
+		out.write((format == FORMAT_JSON) ? "[" : CSV_HEADER + "\n");
+	}
+
+	/**
+	 * Escribe el final de la exportacion.
+	 *
+	 * @param format
+	 *            Formato de salida
+	 * @param out
+	 *            Destino de la exportacion
+	 * @throws IOException
+	 *             Error de escritura
+	 */
+	private static void end(int format, Writer out) throws IOException {
+		if (format == FORMAT_JSON) {
+			out.write("\n]\n");
+		}
+	}
+
+	/**
+	 * Exporta los registros de un fichero del diario. La lectura termina en el
+	 * primer hueco libre.
+	 *
+	 * @param file
+	 *            Fichero del diario
+	 * @param format
+	 *            Formato de salida
+	 * @param out
+	 *            Destino de la exportacion
+	 * @param events
+	 *            Eventos exportados hasta el momento
+	 * @return Eventos exportados tras procesar el fichero
+	 * @throws IOException
+	 *             Fichero no valido o error de E/S
+	 */
+	private static int exportFile(File file, int format, Writer out, int events)
+			throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+			map.order(ByteOrder.BIG_ENDIAN);
+			if ((map.limit() < EventJournal.HEADER_SIZE)
+					|| (map.getInt(0) != EventJournal.MAGIC)) {
+				throw new IOException("Not an event journal: " + file);
+			}
+			if (map.getShort(4) != EventJournal.VERSION) {
+				throw new IOException("Unsupported journal version: "
+						+ map.getShort(4));
+			}
+			int recordSize = map.getShort(6);
+			byte role = map.get(8);
+			long baseMillis = map.getLong(16);
+			long baseNanos = map.getLong(24);
+
+			for (int p = EventJournal.HEADER_SIZE; p + recordSize <= map
+					.limit(); p += recordSize) {
+				int type = map.get(p);
+				if ((type <= 0) || (type > EVENTS.length)) {
+					break; // Hueco libre: fin de los registros.
+				}
+				long nanos = map.getLong(p + 8);
+				long millis = baseMillis + ((nanos - baseNanos) / 1000000);
+				String event = EVENTS[type - 1].name();
+				String state = stateName(role, map.get(p + 1));
+				int peer = map.getInt(p + 4);
+				String peerIp = (peer != 0) ? SOASMessageCodec
+						.formatIPv4(peer & 0xFFFFFFFFL) : null;
+				int count = map.getShort(p + 2);
+				float angle = map.getFloat(p + 16);
+				float distance = map.getFloat(p + 20);
+				long value = map.getLong(p + 24);
+
+				if (format == FORMAT_JSON) {
+					out.write((events == 0) ? "\n" : ",\n");
+					out.write("{\"time_ms\":" + millis + ",\"nanos\":" + nanos
+							+ ",\"role\":" + quote(roleName(role))
+							+ ",\"event\":" + quote(event) + ",\"state\":"
+							+ quote(state) + ",\"peer\":" + quote(peerIp)
+							+ ",\"count\":" + count + ",\"angle\":"
+							+ number(angle, "null") + ",\"distance\":"
+							+ number(distance, "null") + ",\"value\":" + value
+							+ "}");
+				} else {
+					out.write(millis + "," + nanos + "," + roleName(role) + ","
+							+ event + "," + ((state != null) ? state : "")
+							+ "," + ((peerIp != null) ? peerIp : "") + ","
+							+ count + "," + number(angle, "") + ","
+							+ number(distance, "") + "," + value + "\n");
+				}
+				events++;
+			}
+		} finally {
+			in.close();
+		}
+		return events;
+	}
+
+	/**
+	 * Devuelve el nombre del rol de un fichero del diario.
+	 *
+	 * @param role
+	 *            Rol guardado en la cabecera
+	 * @return server / client
+	 */
+	private static String roleName(byte role) {
+		return (role == EventJournal.ROLE_SERVER) ? "server" : "client";
+	}
+
+	/**
+	 * Devuelve el nombre de un estado segun el rol del dispositivo.
+	 *
+	 * @param role
+	 *            Rol guardado en la cabecera
+	 * @param ordinal
+	 *            Ordinal del estado o NO_STATE
+	 * @return Nombre del estado o null si no aplica
+	 */
+	private static String stateName(byte role, int ordinal) {
+		if (ordinal < 0) {
+			return null;
+		}
+		Enum<?>[] states = (role == EventJournal.ROLE_SERVER) ? SOASServer.ServerState
+				.values() : SOASClient.ClientState.values();
+		return (ordinal < states.length) ? states[ordinal].name() : Integer
+				.toString(ordinal);
+	}
+
+	/**
+	 * Da formato a un campo numerico opcional.
+	 *
+	 * @param number
+	 *            Valor o NaN si no aplica
+	 * @param empty
+	 *            Texto a emplear si no aplica
+	 * @return Valor con 3 decimales o texto vacio
+	 */
+	private static String number(float number, String empty) {
+		return Float.isNaN(number) ? empty : String.format(Locale.US, "%.3f",
+				number);
+	}
+
+	/**
+	 * Da formato JSON a un texto opcional. Los textos exportados (nombres de
+	 * eventos y estados, IPs) no contienen caracteres a escapar.
+	 *
+	 * @param text
+	 *            Texto o null
+	 * @return Texto entre comillas o null
+	 */
+	private static String quote(String text) {
+		return (text != null) ? "\"" + text + "\"" : "null";
+	}
+
+} // Fin clase 'EventJournalExporter'
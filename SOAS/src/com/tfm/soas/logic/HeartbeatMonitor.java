@@ -0,0 +1,307 @@
+package com.tfm.soas.logic;
+
+/**
+ * Monitor de los mensajes de control de conexion (DATA / DATA_ACK) de una
+ * sesion de streaming. Sustituye a los tiempos de espera fijos y al limite
+ * de tres intentos por valores derivados de la propia conexion:
+ *
+ * 1- RTT: Cada DATA lleva un numero de secuencia y el DATA_ACK devuelve el
+ * numero del DATA al que responde, de modo que cada respuesta da una muestra
+ * de ida y vuelta.
+ * El RTT suavizado y su variacion (RFC 6298) fijan el tiempo de espera del
+ * DATA_ACK antes de reenviar un DATA.
+ *
+ * 2- Llegadas: Se guarda una ventana con los intervalos entre llegadas de los
+ * mensajes del otro extremo (DATA_ACK en el servidor, DATA en el cliente).
+ * Su media y desviacion fijan el tiempo de espera del cliente.
+ *
+ * 3- Sospecha (phi accrual): En lugar de cortar la sesion tras un numero fijo
+ * de esperas, se calcula el nivel de sospecha phi = -log10(P), siendo P la
+ * probabilidad de que el siguiente mensaje llegue aun mas tarde segun la
+ * distribucion de los intervalos observados. La sesion se da por perdida
+ * cuando phi supera PHI_THRESHOLD. Con una conexion estable la caida se
+ * detecta antes; con una conexion irregular la desviacion crece y se toleran
+ * perdidas puntuales.
+ *
+ * Cada instancia la emplea un unico hilo (el del diagrama de estados).
+ */
+public class HeartbeatMonitor {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	public static final long INTERVAL = 800; // Periodo de los DATA (ms).
+	public static final double PHI_THRESHOLD = 8; // Sospecha de caida.
+	private static final long INITIAL_RTO = 1000; // Espera sin muestras (ms).
+	private static final long MIN_TIMEOUT = 200; // Espera minima (ms).
+	private static final long MAX_TIMEOUT = 3000; // Espera maxima (ms).
+	private static final long MIN_STD_DEV = 200; // Desviacion minima (ms).
+	private static final long ACCEPTABLE_PAUSE = 1000; // Pausa tolerada (ms).
+	private static final int WINDOW = 32; // Intervalos recordados.
+	private static final int PENDING = 16; // DATA pendientes (potencia de 2).
+	private static final double ALPHA = 0.125; // Peso muestra RTT (RFC 6298).
+	private static final double BETA = 0.25; // Peso muestra RTTVAR.
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private final int[] pendingSeq = new int[PENDING]; // DATA sin respuesta.
+	private final long[] pendingSent = new long[PENDING]; // Envio (ns, 0=libre).
+	private int lastSequence = 0; // Ultimo numero recibido.
+	private double srtt = -1; // RTT suavizado (ms, -1=sin muestras).
+	private double rttvar = 0; // Variacion del RTT (ms).
+	private double lastRtt = 0; // Ultima muestra de RTT (ms).
+	private int backoff = 1; // Multiplicador tras esperas vencidas.
+
+	private final double[] intervals = new double[WINDOW]; // Entre llegadas.
+	private int intervalCount = 0; // Intervalos guardados.
+	private int intervalHead = 0; // Siguiente posicion.
+	private double intervalSum = 0; // Suma de intervalos.
+	private double intervalSquares = 0; // Suma de cuadrados.
+	private long lastArrival = 0; // Ultima llegada (ns).
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Inicia el seguimiento de una nueva sesion. Se parte de un intervalo
+	 * esperado de INTERVAL ms entre llegadas.
+	 *
+	 * @param now
+	 *            Instante actual (ns)
+	 */
+	public void reset(long now) {
+		for (int i = 0; i < PENDING; i++) {
+			pendingSent[i] = 0;
+		}
+		lastSequence = 0;
+		srtt = -1;
+		rttvar = 0;
+		lastRtt = 0;
+		backoff = 1;
+		intervalCount = 0;
+		intervalHead = 0;
+		intervalSum = 0;
+		intervalSquares = 0;
+		addInterval(INTERVAL);
+		lastArrival = now;
+	}
+
+	/**
+	 * Anota el envio de un DATA.
+	 *
+	 * @param seq
+	 *            Numero de secuencia asignado al DATA
+	 * @param now
+	 *            Instante de envio (ns)
+	 */
+	public void onSent(int seq, long now) {
+		if (seq == 0) {
+			return; // No se llego a enviar.
+		}
+		int slot = seq & (PENDING - 1);
+		pendingSeq[slot] = seq;
+		pendingSent[slot] = now;
+	}
+
+	/**
+	 * Procesa un DATA_ACK recibido. Si responde a un DATA pendiente se anota
+	 * la muestra de RTT y la llegada.
+	 *
+	 * @param seq
+	 *            Numero de secuencia devuelto
+	 * @param now
+	 *            Instante de llegada (ns)
+	 * @return True-Respuesta valida / False-Duplicada o desconocida
+	 */
+	public boolean onAck(int seq, long now) {
+		int slot = seq & (PENDING - 1);
+		if ((seq == 0) || (pendingSeq[slot] != seq) || (pendingSent[slot] == 0)) {
+			return false;
+		}
+		double rtt = (now - pendingSent[slot]) / 1e6;
+		pendingSent[slot] = 0;
+		lastRtt = rtt;
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar = ((1 - BETA) * rttvar) + (BETA * Math.abs(srtt - rtt));
+			srtt = ((1 - ALPHA) * srtt) + (ALPHA * rtt);
+		}
+		onArrival(now);
+		return true;
+	}
+
+	/**
+	 * Procesa un DATA recibido. Se descartan los duplicados y los DATA
+	 * anteriores al ultimo recibido.
+	 *
+	 * @param seq
+	 *            Numero de secuencia del DATA
+	 * @param now
+	 *            Instante de llegada (ns)
+	 * @return True-DATA nuevo / False-Duplicado o desordenado
+	 */
+	public boolean onData(int seq, long now) {
+		if ((lastSequence != 0) && ((seq - lastSequence) <= 0)) {
+			return false;
+		}
+		lastSequence = seq;
+		onArrival(now);
+		return true;
+	}
+
+	/**
+	 * Anota que ha vencido un tiempo de espera. Cada espera vencida duplica la
+	 * siguiente, hasta MAX_TIMEOUT, hasta que vuelva a llegar un mensaje.
+	 */
+	public void onTimeout() {
+		if (backoff < (MAX_TIMEOUT / MIN_TIMEOUT)) {
+			backoff *= 2;
+		}
+	}
+
+	/**
+	 * Devuelve el tiempo de espera de un DATA_ACK antes de reenviar el DATA:
+	 * SRTT + 4 * RTTVAR.
+	 *
+	 * @return Tiempo de espera (ms)
+	 */
+	public long getRetransmitTimeout() {
+		double rto = (srtt < 0) ? INITIAL_RTO : srtt + (4 * rttvar);
+		return clamp(rto * backoff);
+	}
+
+	/**
+	 * Devuelve el tiempo de espera del siguiente DATA antes de reenviar el
+	 * DATA_ACK: media + 4 * desviacion de los intervalos entre llegadas.
+	 *
+	 * @return Tiempo de espera (ms)
+	 */
+	public long getArrivalTimeout() {
+		return clamp((getMeanInterval() + (4 * getStdDevInterval())) * backoff);
+	}
+
+	/**
+	 * Devuelve el nivel de sospecha de caida del otro extremo.
+	 *
+	 * @param now
+	 *            Instante actual (ns)
+	 * @return Nivel phi (0 = sin sospecha)
+	 */
+	public double phi(long now) {
+		double elapsed = (now - lastArrival) / 1e6;
+		double mean = getMeanInterval() + ACCEPTABLE_PAUSE;
+		double y = (elapsed - mean) / getStdDevInterval();
+		// Aproximacion logistica de la funcion de distribucion normal.
+		double e = Math.exp(-y * (1.5976 + (0.070566 * y * y)));
+		if (elapsed > mean) {
+			return -Math.log10(e / (1 + e));
+		}
+		return -Math.log10(1 - (1 / (1 + e)));
+	}
+
+	/**
+	 * Indica si el otro extremo se da por perdido.
+	 *
+	 * @param now
+	 *            Instante actual (ns)
+	 * @return True-Nivel phi >= PHI_THRESHOLD
+	 */
+	public boolean isSuspected(long now) {
+		return phi(now) >= PHI_THRESHOLD;
+	}
+
+	/**
+	 * Devuelve el ultimo numero de secuencia de DATA recibido.
+	 *
+	 * @return Numero de secuencia o 0 si no se ha recibido ninguno
+	 */
+	public int getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Devuelve la ultima muestra de RTT.
+	 *
+	 * @return RTT (ms)
+	 */
+	public double getLastRtt() {
+		return lastRtt;
+	}
+
+	/**
+	 * Devuelve el RTT suavizado.
+	 *
+	 * @return SRTT (ms) o -1 si no hay muestras
+	 */
+	public double getSmoothedRtt() {
+		return srtt;
+	}
+
+	/**
+	 * Anota la llegada de un mensaje del otro extremo.
+	 *
+	 * @param now
+	 *            Instante de llegada (ns)
+	 */
+	private void onArrival(long now) {
+		addInterval((now - lastArrival) / 1e6);
+		lastArrival = now;
+		backoff = 1;
+	}
+
+	/**
+	 * Añade un intervalo entre llegadas a la ventana.
+	 *
+	 * @param interval
+	 *            Intervalo (ms)
+	 */
+	private void addInterval(double interval) {
+		if (intervalCount == WINDOW) {
+			double old = intervals[intervalHead];
+			intervalSum -= old;
+			intervalSquares -= old * old;
+		} else {
+			intervalCount++;
+		}
+		intervals[intervalHead] = interval;
+		intervalSum += interval;
+		intervalSquares += interval * interval;
+		intervalHead = (intervalHead + 1) % WINDOW;
+	}
+
+	/**
+	 * Devuelve la media de los intervalos entre llegadas.
+	 *
+	 * @return Media (ms)
+	 */
+	private double getMeanInterval() {
+		return intervalSum / intervalCount;
+	}
+
+	/**
+	 * Devuelve la desviacion tipica de los intervalos entre llegadas, con un
+	 * minimo de MIN_STD_DEV.
+	 *
+	 * @return Desviacion (ms)
+	 */
+	private double getStdDevInterval() {
+		double mean = getMeanInterval();
+		double variance = (intervalSquares / intervalCount) - (mean * mean);
+		return Math.max(Math.sqrt(Math.max(variance, 0)), MIN_STD_DEV);
+	}
+
+	/**
+	 * Acota un tiempo de espera entre MIN_TIMEOUT y MAX_TIMEOUT.
+	 *
+	 * @param timeout
+	 *            Tiempo de espera (ms)
+	 * @return Tiempo de espera acotado (ms)
+	 */
+	private static long clamp(double timeout) {
+		return Math.round(Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout)));
+	}
+
+} // Fin clase 'HeartbeatMonitor'
@@ -0,0 +1,586 @@
+package com.tfm.soas.logic;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+/**
+ * Registro de metricas de la aplicacion: contadores, indicadores (gauges) e
+ * histogramas de latencia. Las metricas se obtienen por nombre una sola vez
+ * (p.ej. al arrancar un hilo) y se guarda la referencia, de modo que anotar un
+ * valor no requiere buscar en el registro ni tomar cerrojos: los contadores e
+ * histogramas emplean unicamente operaciones atomicas.
+ *
+ * Los histogramas siguen el esquema de HdrHistogram: los valores (en
+ * microsegundos) se agrupan en intervalos logaritmicos divididos en
+ * SUB_BUCKETS partes iguales, con un error relativo maximo del 6,25% y un
+ * tamaño fijo independiente del numero de muestras.
+ *
+ * El registro ofrece una foto (Snapshot) de todas las metricas y puede
+ * volcarla periodicamente al log de Android.
+ */
+public class MetricsRegistry {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	public static final long DUMP_PERIOD = 10000; // Periodo del volcado (ms).
+	private static final int SUB_BITS = 4; // Bits de precision.
+	private static final int SUB_BUCKETS = 1 << SUB_BITS; // Partes/intervalo.
+	private static final int MAX_EXPONENT = 40; // Valor max. 2^41 us (~25 dias).
+	private static final int BUCKETS = ((MAX_EXPONENT - SUB_BITS + 2) << SUB_BITS); // Total.
+	private static final String TAG = "SOASMetrics";
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private static final MetricsRegistry instance = new MetricsRegistry(); // Registro comun.
+
+	private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>(); // Contadores.
+	private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>(); // Indicadores.
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>(); // Histogramas.
+	private DumpThread dumpThread = null; // Hilo del volcado periodico.
+	private int dumpUsers = 0; // Servicios que solicitan el volcado.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Devuelve el registro de metricas comun a toda la aplicacion.
+	 *
+	 * @return Registro de metricas
+	 */
+	public static MetricsRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Devuelve el contador con el nombre indicado, creandolo si no existe.
+	 *
+	 * @param name
+	 *            Nombre de la metrica
+	 * @return Contador
+	 */
+	public Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			Counter created = new Counter();
+			counter = counters.putIfAbsent(name, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Devuelve el histograma con el nombre indicado, creandolo si no existe.
+	 *
+	 * @param name
+	 *            Nombre de la metrica
+	 * @return Histograma
+	 */
+	public Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Registra un indicador, sustituyendo al que tuviera el mismo nombre.
+	 *
+	 * @param name
+	 *            Nombre de la metrica
+	 * @param gauge
+	 *            Indicador
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Elimina un indicador, p.ej. al detenerse el servicio que lo registro.
+	 *
+	 * @param name
+	 *            Nombre de la metrica
+	 */
+	public void removeGauge(String name) {
+		gauges.remove(name);
+	}
+
+	/**
+	 * Toma una foto del valor actual de todas las metricas.
+	 *
+	 * @return Foto de las metricas
+	 */
+	public Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot(System.currentTimeMillis());
+		for (Map.Entry<String, Counter> e : counters.entrySet()) {
+			snapshot.counters.put(e.getKey(), e.getValue().get());
+		}
+		for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+			snapshot.gauges.put(e.getKey(), e.getValue().getValue());
+		}
+		for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			snapshot.histograms.put(e.getKey(), e.getValue().snapshot());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Solicita el volcado periodico de las metricas al log de Android. El
+	 * volcado se mantiene mientras quede algun servicio que lo haya
+	 * solicitado.
+	 */
+	public synchronized void startDump() {
+		dumpUsers++;
+		if (dumpThread == null) {
+			dumpThread = new DumpThread();
+			dumpThread.start();
+		}
+	}
+
+	/**
+	 * Retira una solicitud de volcado periodico. Al retirar la ultima se
+	 * vuelca una foto final y se detiene el hilo de volcado.
+	 */
+	public synchronized void stopDump() {
+		if (dumpUsers > 0) {
+			dumpUsers--;
+		}
+		if ((dumpUsers == 0) && (dumpThread != null)) {
+			dumpThread.interrupt();
+			dumpThread = null;
+			dump();
+		}
+	}
+
+	/**
+	 * Vuelca una foto de las metricas al log de Android, una linea por
+	 * metrica.
+	 */
+	public void dump() {
+		for (String line : snapshot().toString().split("\n")) {
+			Log.d(TAG, line);
+		}
+	}
+
+	/**
+	 * Devuelve el intervalo del histograma en el que se agrupa un valor.
+	 *
+	 * @param value
+	 *            Valor (us)
+	 * @return Intervalo
+	 */
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (value < 0) ? 0 : (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int shift = exponent - SUB_BITS;
+		return ((shift + 1) << SUB_BITS)
+				+ (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * Devuelve el mayor valor que se agrupa en un intervalo del histograma.
+	 *
+	 * @param bucket
+	 *            Intervalo
+	 * @return Valor maximo del intervalo (us)
+	 */
+	static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket >>> SUB_BITS) - 1;
+		long mantissa = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/*--------------------------------------------------------*/
+	/* /////////////////// CLASES INTERNAS ////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Indicador: metrica cuyo valor se consulta en el momento de tomar la
+	 * foto (p.ej. el intervalo de anuncios o los mensajes descartados por una
+	 * cola).
+	 */
+	public interface Gauge {
+
+		/**
+		 * Devuelve el valor actual del indicador.
+		 *
+		 * @return Valor actual
+		 */
+		long getValue();
+
+	} // Fin interfaz interna 'Gauge'
+
+	/**
+	 * Contador monotono.
+	 */
+	public static final class Counter {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private final AtomicLong value = new AtomicLong(0); // Valor.
+
+		/*---------*/
+		/* METODOS */
+		/*---------*/
+		/**
+		 * Incrementa el contador en una unidad.
+		 */
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		/**
+		 * Incrementa el contador en la cantidad indicada.
+		 *
+		 * @param delta
+		 *            Incremento
+		 */
+		public void add(long delta) {
+			value.addAndGet(delta);
+		}
+
+		/**
+		 * Devuelve el valor del contador.
+		 *
+		 * @return Valor
+		 */
+		public long get() {
+			return value.get();
+		}
+
+	} // Fin clase interna 'Counter'
+
+	/**
+	 * Histograma de latencias en microsegundos.
+	 */
+	public static final class Histogram {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS); // Muestras/intervalo.
+		private final AtomicLong count = new AtomicLong(0); // Muestras.
+		private final AtomicLong sum = new AtomicLong(0); // Suma (us).
+		private final AtomicLong max = new AtomicLong(0); // Maximo (us).
+
+		/*---------*/
+		/* METODOS */
+		/*---------*/
+		/**
+		 * Anota una muestra.
+		 *
+		 * @param micros
+		 *            Valor de la muestra (us)
+		 */
+		public void record(long micros) {
+			if (micros < 0) {
+				micros = 0;
+			}
+			buckets.incrementAndGet(bucketOf(micros));
+			count.incrementAndGet();
+			sum.addAndGet(micros);
+			long current;
+			while (micros > (current = max.get())) {
+				if (max.compareAndSet(current, micros)) {
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Anota el tiempo transcurrido desde un instante obtenido con
+		 * System.nanoTime().
+		 *
+		 * @param startNanos
+		 *            Instante inicial (ns)
+		 */
+		public void recordSince(long startNanos) {
+			record((System.nanoTime() - startNanos) / 1000);
+		}
+
+		/**
+		 * Toma una foto del histograma. Las muestras anotadas durante la foto
+		 * pueden quedar incluidas solo en parte.
+		 *
+		 * @return Foto del histograma
+		 */
+		public HistogramSnapshot snapshot() {
+			long[] copy = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				copy[i] = buckets.get(i);
+			}
+			return new HistogramSnapshot(copy, count.get(), sum.get(),
+					max.get());
+		}
+
+	} // Fin clase interna 'Histogram'
+
+	/**
+	 * Foto inmutable de un histograma.
+	 */
+	public static final class HistogramSnapshot {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private final long[] buckets; // Muestras/intervalo.
+		private final long count; // Muestras.
+		private final long sum; // Suma (us).
+		private final long max; // Maximo (us).
+
+		/*---------*/
+		/* METODOS */
+		/*---------*/
+		/**
+		 * Constructor para instancias de la clase HistogramSnapshot.
+		 *
+		 * @param buckets
+		 *            Muestras por intervalo
+		 * @param count
+		 *            Numero de muestras
+		 * @param sum
+		 *            Suma de las muestras (us)
+		 * @param max
+		 *            Maximo (us)
+		 */
+		HistogramSnapshot(long[] buckets, long count, long sum, long max) {
+			this.buckets = buckets;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * Devuelve el numero de muestras.
+		 *
+		 * @return Numero de muestras
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Devuelve la media de las muestras.
+		 *
+		 * @return Media (us)
+		 */
+		public double getMean() {
+			return (count > 0) ? (double) sum / count : 0;
+		}
+
+		/**
+		 * Devuelve el maximo de las muestras.
+		 *
+		 * @return Maximo (us)
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Devuelve el percentil indicado. El valor es el limite superior del
+		 * intervalo en el que cae el percentil, acotado por el maximo.
+		 *
+		 * @param percentile
+		 *            Percentil (0-100)
+		 * @return Valor del percentil (us)
+		 */
+		public long getPercentile(double percentile) {
+			long total = 0;
+			for (long n : buckets) {
+				total += n;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1,
+					(long) Math.ceil((percentile / 100) * total));
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank) {
+					return Math.min(highestValueOf(i), max);
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * Devuelve el resumen del histograma en milisegundos.
+		 *
+		 * @return count, mean, p50, p90, p99 y max
+		 */
+		@Override
+		public String toString() {
+			return "count=" + count + " mean=" + ms((long) getMean())
+					+ " p50=" + ms(getPercentile(50)) + " p90="
+					+ ms(getPercentile(90)) + " p99=" + ms(getPercentile(99))
+					+ " max=" + ms(max) + " ms";
+		}
+
+		/**
+		 * Da formato de milisegundos a un valor en microsegundos.
+		 *
+		 * @param micros
+		 *            Valor (us)
+		 * @return Valor (ms) con 3 decimales
+		 */
+		private static String ms(long micros) {
+			long frac = micros % 1000;
+			return (micros / 1000) + "." + ((frac < 100) ? "0" : "")
+					+ ((frac < 10) ? "0" : "") + frac;
+		}
+
+	} // Fin clase interna 'HistogramSnapshot'
+
+	/**
+	 * Foto inmutable de todas las metricas del registro, ordenadas por nombre.
+	 */
+	public static final class Snapshot {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private final long time; // Instante de la foto (ms).
+		private final TreeMap<String, Long> counters = new TreeMap<String, Long>(); // Contadores.
+		private final TreeMap<String, Long> gauges = new TreeMap<String, Long>(); // Indicadores.
+		private final TreeMap<String, HistogramSnapshot> histograms = new TreeMap<String, HistogramSnapshot>(); // Histogramas.
+
+		/*---------*/
+		/* METODOS */
+		/*---------*/
+		/**
+		 * Constructor para instancias de la clase Snapshot.
+		 *
+		 * @param time
+		 *            Instante de la foto (ms)
+		 */
+		Snapshot(long time) {
+			this.time = time;
+		}
+
+		/**
+		 * Devuelve el instante de la foto.
+		 *
+		 * @return Instante (ms)
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Devuelve el valor de un contador.
+		 *
+		 * @param name
+		 *            Nombre de la metrica
+		 * @return Valor o 0 si no existe
+		 */
+		public long getCounter(String name) {
+			Long value = counters.get(name);
+			return (value != null) ? value : 0;
+		}
+
+		/**
+		 * Devuelve el valor de un indicador.
+		 *
+		 * @param name
+		 *            Nombre de la metrica
+		 * @return Valor o 0 si no existe
+		 */
+		public long getGauge(String name) {
+			Long value = gauges.get(name);
+			return (value != null) ? value : 0;
+		}
+
+		/**
+		 * Devuelve la foto de un histograma.
+		 *
+		 * @param name
+		 *            Nombre de la metrica
+		 * @return Foto del histograma o null si no existe
+		 */
+		public HistogramSnapshot getHistogram(String name) {
+			return histograms.get(name);
+		}
+
+		/**
+		 * Devuelve las metricas en formato texto, una por linea.
+		 *
+		 * @return Metricas
+		 */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, Long> e : counters.entrySet()) {
+				sb.append("counter ").append(e.getKey()).append(' ')
+						.append(e.getValue()).append('\n');
+			}
+			for (Map.Entry<String, Long> e : gauges.entrySet()) {
+				sb.append("gauge ").append(e.getKey()).append(' ')
+						.append(e.getValue()).append('\n');
+			}
+			for (Map.Entry<String, HistogramSnapshot> e : histograms
+					.entrySet()) {
+				sb.append("histogram ").append(e.getKey()).append(' ')
+						.append(e.getValue()).append('\n');
+			}
+			return sb.toString();
+		}
+
+	} // Fin clase interna 'Snapshot'
+
+	/**
+	 * Hilo que vuelca periodicamente las metricas al log de Android.
+	 */
+	private class DumpThread extends Thread {
+
+		/*---------*/
+		/* METODOS */
+		/*---------*/
+		/**
+		 * Constructor para instancias de la clase DumpThread.
+		 */
+		DumpThread() {
+			super("SOASMetricsDump");
+			setDaemon(true);
+		}
+
+		/**
+		 * Vuelca las metricas cada DUMP_PERIOD ms hasta ser interrumpido.
+		 */
+		@Override
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					Thread.sleep(DUMP_PERIOD);
+					dump();
+				}
+			} catch (InterruptedException e) {
+				// Volcado detenido.
+			}
+		}
+
+	} // Fin clase interna 'DumpThread'
+
+} // Fin clase 'MetricsRegistry'
@@ -0,0 +1,456 @@
+package com.tfm.soas.logic;
+
+import com.tfm.soas.context.GeoKernel;
+
+/**
+ * Tabla de servidores vecinos descubiertos por el cliente. Se mantiene entre
+ * ciclos de descubrimiento y se actualiza con cada anuncio HELLO:
+ *
+ * 1- Cada entrada guarda la IP del servidor, su ultima posicion y direccion
+ * anunciadas y el instante en que se recibio el ultimo anuncio.
+ *
+ * 2- Las entradas que no se renuevan en el tiempo de vida indicado caducan.
+ *
+ * 3- Las posiciones se proyectan en metros sobre un plano local (longitud
+ * como eje X y latitud como eje Y, en el orden de los vectores de
+ * localizacion: Punto A: Elementos 0,1 / Punto B: Elementos 2,3) y se indexan
+ * en una rejilla de celdas cuadradas, que se actualiza de forma incremental
+ * con cada anuncio. La busqueda del servidor valido mas cercano por delante
+ * del cliente recorre las celdas en anillos alrededor del cliente y se
+ * detiene en cuanto ninguna celda restante puede mejorar el resultado, por lo
+ * que su coste no depende del numero de servidores lejanos. Solo se buscan
+ * servidores a menos de MAX_RINGS celdas del cliente.
+ *
+ * No es segura para hilos: solo la usa el hilo del diagrama de estados.
+ */
+public class NeighbourTable {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	private static final double CELL_SIZE = 50; // Lado de celda (m).
+	private static final int BUCKETS = 64; // Cubetas rejilla (potencia de 2).
+	private static final int MAX_RINGS = 20; // Alcance busqueda (celdas).
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private final String[] ips; // IPs de los servidores.
+	private final double[] posX; // Posicion proyectada, este (m).
+	private final double[] posY; // Posicion proyectada, norte (m).
+	private final double[] dirX; // Direccion unitaria, este.
+	private final double[] dirY; // Direccion unitaria, norte.
+	private final long[] lastSeen; // Instante del ultimo anuncio (ms).
+	private final int[] cellX; // Celda de la rejilla, columna.
+	private final int[] cellY; // Celda de la rejilla, fila.
+	private final int[] next; // Siguiente entrada de la misma cubeta.
+	private final int[] buckets = new int[BUCKETS]; // Primera entrada.
+	private final long ttl; // Tiempo de vida de las entradas (ms).
+	private int count = 0; // Entradas en uso.
+
+	// Plano local de proyeccion. El origen se fija con la primera entrada.
+	private final GeoKernel.LocalPlane plane = new GeoKernel.LocalPlane();
+
+	// Extension de la rejilla ocupada, limita el numero de anillos.
+	private int minCellX, maxCellX, minCellY, maxCellY;
+
+	// Resultado de la ultima busqueda.
+	private int best = -1; // Indice del mejor candidato.
+	private double bestDistance = Double.MAX_VALUE; // Distancia (m).
+	private double runnerUpDistance = Double.MAX_VALUE; // Siguiente (m).
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Constructor para instancias de la clase NeighbourTable.
+	 *
+	 * @param capacity
+	 *            Numero maximo de servidores
+	 * @param ttl
+	 *            Tiempo de vida de las entradas (ms)
+	 */
+	public NeighbourTable(int capacity, long ttl) {
+		this.ips = new String[capacity];
+		this.posX = new double[capacity];
+		this.posY = new double[capacity];
+		this.dirX = new double[capacity];
+		this.dirY = new double[capacity];
+		this.lastSeen = new long[capacity];
+		this.cellX = new int[capacity];
+		this.cellY = new int[capacity];
+		this.next = new int[capacity];
+		this.ttl = ttl;
+		clear();
+	}
+
+	/**
+	 * Añade o actualiza un servidor. Si la tabla esta llena se sustituye la
+	 * entrada mas antigua.
+	 *
+	 * @param ip
+	 *            IP del servidor
+	 * @param location
+	 *            Ubicacion anunciada (Vector 2D)
+	 * @param now
+	 *            Instante actual (ms)
+	 */
+	public void update(String ip, double[] location, long now) {
+		if (!plane.hasOrigin()) {
+			plane.setOrigin(location[2], location[3]);
+		}
+
+		int i = indexOf(ip);
+		if (i == -1) { // Servidor nuevo.
+			if (count < ips.length) {
+				i = count++;
+			} else {
+				i = 0;
+				for (int j = 1; j < count; j++) {
+					if (lastSeen[j] < lastSeen[i]) {
+						i = j;
+					}
+				}
+				unlink(i);
+			}
+			ips[i] = ip;
+		} else {
+			unlink(i);
+		}
+
+		// Posicion (punto B) y direccion (AB) proyectadas.
+		posX[i] = plane.x(location[2]);
+		posY[i] = plane.y(location[3]);
+		double dx = posX[i] - plane.x(location[0]);
+		double dy = posY[i] - plane.y(location[1]);
+		double norm = Math.hypot(dx, dy);
+		dirX[i] = (norm > 0) ? (dx / norm) : 0;
+		dirY[i] = (norm > 0) ? (dy / norm) : 0;
+		lastSeen[i] = now;
+		link(i);
+	}
+
+	/**
+	 * Elimina un servidor de la tabla.
+	 *
+	 * @param ip
+	 *            IP del servidor
+	 * @return True-Eliminado / False-No estaba en la tabla
+	 */
+	public boolean remove(String ip) {
+		int i = indexOf(ip);
+		if (i == -1) {
+			return false;
+		}
+		removeAt(i);
+		return true;
+	}
+
+	/**
+	 * Elimina las entradas caducadas.
+	 *
+	 * @param now
+	 *            Instante actual (ms)
+	 * @return Numero de entradas eliminadas
+	 */
+	public int evict(long now) {
+		int evicted = 0;
+		for (int i = count - 1; i >= 0; i--) {
+			if (now - lastSeen[i] > ttl) {
+				removeAt(i);
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Vacia la tabla.
+	 */
+	public void clear() {
+		for (int i = 0; i < count; i++) {
+			ips[i] = null;
+		}
+		for (int b = 0; b < BUCKETS; b++) {
+			buckets[b] = -1;
+		}
+		count = 0;
+		plane.reset();
+		best = -1;
+		bestDistance = Double.MAX_VALUE;
+		runnerUpDistance = Double.MAX_VALUE;
+	}
+
+	/**
+	 * Indica si la tabla esta vacia.
+	 *
+	 * @return True-Vacia / False-Con servidores
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Devuelve el numero de servidores de la tabla.
+	 *
+	 * @return Servidores
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Busca el servidor valido mas cercano por delante del cliente. Un
+	 * servidor es valido si circula en la misma direccion que el cliente y se
+	 * encuentra delante de el, dentro de los angulos indicados. Tambien se
+	 * localiza el siguiente candidato valido si esta a menos del margen
+	 * indicado del mejor.
+	 *
+	 * @param clientLoc
+	 *            Localizacion cliente (Vector 2D)
+	 * @param cosDirection
+	 *            Coseno del angulo maximo entre ambas direcciones
+	 * @param cosAhead
+	 *            Coseno del angulo maximo entre la direccion del cliente y el
+	 *            vector cliente-servidor
+	 * @param margin
+	 *            Margen de busqueda del siguiente candidato (m)
+	 * @param validate
+	 *            False para aceptar cualquier servidor (validacion
+	 *            desactivada)
+	 * @return IP del mejor servidor o null si no hay ninguno valido
+	 */
+	public String findNearestAhead(double[] clientLoc, double cosDirection,
+			double cosAhead, double margin, boolean validate) {
+		best = -1;
+		bestDistance = Double.MAX_VALUE;
+		runnerUpDistance = Double.MAX_VALUE;
+		if (count == 0) {
+			return null;
+		}
+
+		// Posicion y direccion proyectadas del cliente.
+		double cx = plane.x(clientLoc[2]);
+		double cy = plane.y(clientLoc[3]);
+		double hx = cx - plane.x(clientLoc[0]);
+		double hy = cy - plane.y(clientLoc[1]);
+		double norm = Math.hypot(hx, hy);
+		if (validate && (norm == 0)) { // Vector de un punto.
+			return null;
+		}
+		if (norm > 0) {
+			hx /= norm;
+			hy /= norm;
+		}
+
+		// Se recorren las celdas en anillos alrededor del cliente.
+		int ccx = cell(cx);
+		int ccy = cell(cy);
+		long extent = Math.max(
+				Math.max((long) ccx - minCellX, (long) maxCellX - ccx),
+				Math.max((long) ccy - minCellY, (long) maxCellY - ccy));
+		int maxRing = (int) Math.min(extent, MAX_RINGS);
+		for (int ring = 0; ring <= maxRing; ring++) {
+			for (int gx = ccx - ring; gx <= ccx + ring; gx++) {
+				boolean edge = (gx == ccx - ring) || (gx == ccx + ring);
+				int step = edge ? 1 : (2 * ring);
+				for (int gy = ccy - ring; gy <= ccy + ring; gy += step) {
+					scanCell(gx, gy, cx, cy, hx, hy, cosDirection, cosAhead,
+							validate);
+				}
+			}
+			// Las celdas de los anillos siguientes estan al menos a esta
+			// distancia del cliente.
+			if (bestDistance + margin <= ring * CELL_SIZE) {
+				break;
+			}
+		}
+
+		// Sin validacion se acepta cualquier servidor aunque este fuera del
+		// alcance de la busqueda (p.ej. sin localizacion disponible).
+		if ((best == -1) && !validate) {
+			for (int i = 0; i < count; i++) {
+				double distance = Math.hypot(posX[i] - cx, posY[i] - cy);
+				if ((best == -1) || (distance < bestDistance)) {
+					bestDistance = distance;
+					best = i;
+				}
+			}
+		}
+		return (best == -1) ? null : ips[best];
+	}
+
+	/**
+	 * Devuelve la IP del mejor candidato de la ultima busqueda.
+	 *
+	 * @return IP o null si no se encontro ninguno
+	 */
+	public String getBestIp() {
+		return (best == -1) ? null : ips[best];
+	}
+
+	/**
+	 * Devuelve la distancia al mejor candidato de la ultima busqueda.
+	 *
+	 * @return Distancia (m) o Double.MAX_VALUE si no se encontro ninguno
+	 */
+	public double getBestDistance() {
+		return bestDistance;
+	}
+
+	/**
+	 * Indica si el mejor candidato de la ultima busqueda es claramente el
+	 * mejor: esta a menos de la distancia indicada y ningun otro servidor
+	 * valido se le acerca dentro del margen.
+	 *
+	 * @param maxDistance
+	 *            Distancia maxima al cliente (m)
+	 * @param margin
+	 *            Ventaja minima sobre el siguiente candidato (m). No debe
+	 *            superar el margen de la busqueda
+	 * @return True-Claramente el mejor / False-En otro caso
+	 */
+	public boolean isBestClear(double maxDistance, double margin) {
+		return (best != -1) && (bestDistance <= maxDistance)
+				&& (runnerUpDistance - bestDistance >= margin);
+	}
+
+	/**
+	 * Evalua los servidores de una celda de la rejilla.
+	 */
+	private void scanCell(int gx, int gy, double cx, double cy, double hx,
+			double hy, double cosDirection, double cosAhead, boolean validate) {
+		for (int i = buckets[bucket(gx, gy)]; i != -1; i = next[i]) {
+			if ((cellX[i] != gx) || (cellY[i] != gy)) {
+				continue;
+			}
+			double dx = posX[i] - cx;
+			double dy = posY[i] - cy;
+			double distance = Math.hypot(dx, dy);
+			if (validate) {
+				// Misma direccion-sentido.
+				if ((dirX[i] == 0) && (dirY[i] == 0)) {
+					continue;
+				}
+				if ((dirX[i] * hx) + (dirY[i] * hy) < cosDirection) {
+					continue;
+				}
+				// Servidor delante del cliente.
+				if ((distance == 0)
+						|| (((dx * hx) + (dy * hy)) < (cosAhead * distance))) {
+					continue;
+				}
+			}
+			if (distance < bestDistance) {
+				runnerUpDistance = bestDistance;
+				bestDistance = distance;
+				best = i;
+			} else if (distance < runnerUpDistance) {
+				runnerUpDistance = distance;
+			}
+		}
+	}
+
+	/**
+	 * Devuelve la posicion de un servidor en la tabla.
+	 *
+	 * @param ip
+	 *            IP del servidor
+	 * @return Indice o -1 si no esta en la tabla
+	 */
+	private int indexOf(String ip) {
+		for (int i = 0; i < count; i++) {
+			if (ips[i].equals(ip)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Elimina una entrada moviendo la ultima a su posicion.
+	 *
+	 * @param i
+	 *            Indice de la entrada
+	 */
+	private void removeAt(int i) {
+		int last = count - 1;
+		unlink(i);
+		if (i != last) {
+			unlink(last);
+			ips[i] = ips[last];
+			posX[i] = posX[last];
+			posY[i] = posY[last];
+			dirX[i] = dirX[last];
+			dirY[i] = dirY[last];
+			lastSeen[i] = lastSeen[last];
+			link(i);
+		}
+		ips[last] = null;
+		count = last;
+		best = -1; // El resultado de la busqueda ya no es valido.
+		if (count == 0) {
+			plane.reset();
+		}
+	}
+
+	/**
+	 * Inserta una entrada en la cubeta de su celda.
+	 *
+	 * @param i
+	 *            Indice de la entrada
+	 */
+	private void link(int i) {
+		cellX[i] = cell(posX[i]);
+		cellY[i] = cell(posY[i]);
+		int b = bucket(cellX[i], cellY[i]);
+		next[i] = buckets[b];
+		buckets[b] = i;
+
+		// Se amplia la extension ocupada de la rejilla.
+		if (count == 1) {
+			minCellX = maxCellX = cellX[i];
+			minCellY = maxCellY = cellY[i];
+		} else {
+			minCellX = Math.min(minCellX, cellX[i]);
+			maxCellX = Math.max(maxCellX, cellX[i]);
+			minCellY = Math.min(minCellY, cellY[i]);
+			maxCellY = Math.max(maxCellY, cellY[i]);
+		}
+	}
+
+	/**
+	 * Extrae una entrada de la cubeta de su celda.
+	 *
+	 * @param i
+	 *            Indice de la entrada
+	 */
+	private void unlink(int i) {
+		int b = bucket(cellX[i], cellY[i]);
+		if (buckets[b] == i) {
+			buckets[b] = next[i];
+			return;
+		}
+		for (int j = buckets[b]; j != -1; j = next[j]) {
+			if (next[j] == i) {
+				next[j] = next[i];
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Devuelve la celda que contiene una coordenada proyectada.
+	 */
+	private static int cell(double coordinate) {
+		return (int) Math.floor(coordinate / CELL_SIZE);
+	}
+
+	/**
+	 * Devuelve la cubeta que corresponde a una celda.
+	 */
+	private static int bucket(int gx, int gy) {
+		return ((gx * 31) + gy) & (BUCKETS - 1);
+	}
+
+} // Fin clase 'NeighbourTable'
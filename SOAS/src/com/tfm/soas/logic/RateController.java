@@ -0,0 +1,348 @@
+package com.tfm.soas.logic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import net.majorkernelpanic.streaming.Session;
+import net.majorkernelpanic.streaming.rtcp.LinkStatistics;
+import net.majorkernelpanic.streaming.video.VideoQuality;
+
+import android.util.Log;
+
+import com.tfm.soas.logic.MetricsRegistry.Counter;
+
+/**
+ * Controlador de la calidad del video del servidor. Recorre una escalera de
+ * calidades (VideoQuality), de la negociada con el primer cliente a la mas
+ * baja, segun el estado del enlace con los clientes:
+ *
+ * 1- Entradas: Los informes RTCP de los clientes (perdidas, jitter y RTT) y
+ * las muestras de RTT de los mensajes DATA / DATA_ACK. Como todos los
+ * clientes reciben el mismo flujo, manda el cliente con peor enlace.
+ *
+ * 2- Bajada: Si se pierde mas de LOSS_THRESHOLD de los paquetes, el jitter
+ * supera JITTER_THRESHOLD o el RTT crece por encima de RTT_FACTOR veces el
+ * minimo observado con ese mismo cliente, se baja un escalon. Cada cliente
+ * tiene su propio RTT minimo, ya que uno lejano no indica congestion por
+ * tener un RTT mayor que el de otro cercano. Entre dos cambios pasan al menos
+ * MIN_HOLD ms, de modo que el siguiente informe ya describe la nueva calidad.
+ *
+ * 3- Subida: Tras probeDelay ms sin muestras malas se sube un escalon. Si la
+ * subida provoca una bajada, se duplica probeDelay (hasta MAX_PROBE_DELAY)
+ * para no oscilar entre dos escalones.
+ *
+ * MediaRecorder no permite cambiar la tasa de bits en marcha, por lo que cada
+ * cambio reinicia el codificador (ver Session.setVideoQuality). El cambio se
+ * aplica en un hilo propio para no retener el hilo de los informes RTCP ni el
+ * del diagrama de estados.
+ */
+public class RateController {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	private static final int[][] LADDER = { { 0, 0, 30, 2000000 },
+			{ 0, 0, 30, 1200000 }, { 0, 0, 20, 800000 },
+			{ 640, 480, 20, 600000 }, { 320, 240, 20, 400000 },
+			{ 320, 240, 15, 250000 }, { 176, 144, 15, 120000 } }; // Escalones (0 = resolucion negociada).
+	private static final long MIN_HOLD = 5000; // Espera entre cambios (ms).
+	private static final long PROBE_DELAY = 15000; // Espera para subir (ms).
+	private static final long MAX_PROBE_DELAY = 120000; // Espera maxima (ms).
+	private static final float LOSS_THRESHOLD = 0.10f; // Perdidas para bajar.
+	private static final float LOSS_TOLERATED = 0.02f; // Perdidas para subir.
+	private static final double JITTER_THRESHOLD = 40; // Jitter para bajar (ms).
+	private static final double RTT_FACTOR = 2; // Crecimiento del RTT.
+	private static final double RTT_MARGIN = 50; // Crecimiento minimo (ms).
+	private static final String TAG = "RateController";
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private VideoQuality[] ladder; // Calidades, de mayor a menor.
+	private int level = 0; // Escalon actual.
+	private Session session = null; // Sesion del flujo de video.
+	private boolean applying = false; // Cambio en curso.
+	private long lastChange = 0; // Ultimo cambio (ms).
+	private long lastRaise = 0; // Ultima subida (ms).
+	private long goodSince = 0; // Inicio de las muestras buenas (ms).
+	private long probeDelay = PROBE_DELAY; // Espera actual para subir (ms).
+	private final HashMap<String, Baseline> baselines = new HashMap<String, Baseline>(); // RTT minimo por IP de cliente.
+	private final Counter lowered = MetricsRegistry.getInstance().counter(
+			"server.rate_down"); // Bajadas de calidad.
+	private final Counter raised = MetricsRegistry.getInstance().counter(
+			"server.rate_up"); // Subidas de calidad.
+	private final Counter failed = MetricsRegistry.getInstance().counter(
+			"server.rate_failed"); // Cambios fallidos.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Constructor para instancias de la clase RateController.
+	 *
+	 * @param resX
+	 *            Resolucion horizontal negociada (px)
+	 * @param resY
+	 *            Resolucion vertical negociada (px)
+	 */
+	public RateController(int resX, int resY) {
+		reset(resX, resY);
+	}
+
+	/**
+	 * Reinicia el controlador para un nuevo flujo de video: se parte del
+	 * escalon mas alto de la escalera de la resolucion negociada.
+	 *
+	 * @param resX
+	 *            Resolucion horizontal negociada (px)
+	 * @param resY
+	 *            Resolucion vertical negociada (px)
+	 */
+	public synchronized void reset(int resX, int resY) {
+		ladder = buildLadder(resX, resY);
+		level = 0;
+		session = null;
+		lastChange = System.currentTimeMillis();
+		lastRaise = 0;
+		goodSince = lastChange;
+		probeDelay = PROBE_DELAY;
+		baselines.clear();
+	}
+
+	/**
+	 * Olvida el RTT minimo de un cliente cuya sesion de streaming ha
+	 * terminado.
+	 *
+	 * @param ip
+	 *            IP del cliente
+	 */
+	public synchronized void removeClient(String ip) {
+		baselines.remove(ip);
+	}
+
+	/**
+	 * Olvida el RTT minimo de todos los clientes.
+	 */
+	public synchronized void clearClients() {
+		baselines.clear();
+	}
+
+	/**
+	 * Devuelve la calidad del escalon actual.
+	 *
+	 * @return Calidad del video
+	 */
+	public synchronized VideoQuality getQuality() {
+		return ladder[level].clone();
+	}
+
+	/**
+	 * Devuelve el escalon actual.
+	 *
+	 * @return Escalon (0 = calidad negociada)
+	 */
+	public synchronized int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Procesa un informe RTCP de un cliente.
+	 *
+	 * @param session
+	 *            Sesion del flujo al que se refiere el informe
+	 * @param statistics
+	 *            Estado del enlace con el cliente
+	 */
+	public synchronized void onLinkStatistics(Session session,
+			LinkStatistics statistics) {
+		this.session = session;
+		boolean rising = false;
+		if (statistics.rtt >= 0) {
+			Baseline base = baseline(statistics.address.getHostAddress());
+			base.rtcp = baseline(base.rtcp, statistics.rtt);
+			rising = isRising(statistics.rtt, base.rtcp);
+		}
+		boolean bad = (statistics.fractionLost > LOSS_THRESHOLD)
+				|| (statistics.jitter > JITTER_THRESHOLD) || rising;
+		boolean good = (statistics.fractionLost <= LOSS_TOLERATED)
+				&& (statistics.jitter <= (JITTER_THRESHOLD / 2)) && !rising;
+		evaluate(bad, good, System.currentTimeMillis());
+	}
+
+	/**
+	 * Procesa una muestra de RTT de los mensajes DATA / DATA_ACK. Solo indica
+	 * si el RTT crece; las perdidas las dan los informes RTCP.
+	 *
+	 * @param ip
+	 *            IP del cliente
+	 * @param rtt
+	 *            RTT (ms)
+	 */
+	public synchronized void onRtt(String ip, double rtt) {
+		if (rtt <= 0) {
+			return;
+		}
+		Baseline base = baseline(ip);
+		base.ack = baseline(base.ack, rtt);
+		boolean rising = isRising(rtt, base.ack);
+		evaluate(rising, !rising, System.currentTimeMillis());
+	}
+
+	/**
+	 * Decide si se cambia de escalon a partir de una muestra del enlace.
+	 *
+	 * @param bad
+	 *            True-La muestra indica congestion
+	 * @param good
+	 *            True-La muestra permite subir
+	 * @param now
+	 *            Instante actual (ms)
+	 */
+	private void evaluate(boolean bad, boolean good, long now) {
+		if (!good) {
+			goodSince = now;
+		}
+		if (applying || (session == null) || ((now - lastChange) < MIN_HOLD)) {
+			return;
+		}
+		if (bad && (level < (ladder.length - 1))) {
+			// La subida anterior no se sostuvo: se espera mas a la siguiente.
+			if ((now - lastRaise) < probeDelay) {
+				probeDelay = Math.min(probeDelay * 2, MAX_PROBE_DELAY);
+			}
+			level++;
+			lowered.increment();
+			change(now);
+		} else if (good && (level > 0) && ((now - goodSince) >= probeDelay)) {
+			level--;
+			lastRaise = now;
+			raised.increment();
+			change(now);
+		} else if (good && ((now - lastRaise) >= MAX_PROBE_DELAY)) {
+			// Enlace estable: se vuelve a la espera inicial.
+			probeDelay = PROBE_DELAY;
+		}
+	}
+
+	/**
+	 * Aplica la calidad del escalon actual en un hilo propio.
+	 *
+	 * @param now
+	 *            Instante actual (ms)
+	 */
+	private void change(long now) {
+		final Session target = session;
+		final VideoQuality quality = ladder[level].clone();
+		lastChange = now;
+		goodSince = now;
+		applying = true;
+		Log.d(TAG, "Video quality level " + level + ": " + quality.resX + "x"
+				+ quality.resY + " px - " + quality.framerate + " fps - "
+				+ (quality.bitrate / 1000) + " kbps");
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					target.setVideoQuality(quality);
+				} catch (Exception e) {
+					failed.increment();
+					Log.d(TAG, "Error changing video quality: " + e.getMessage());
+				} finally {
+					synchronized (RateController.this) {
+						applying = false;
+						lastChange = System.currentTimeMillis();
+					}
+				}
+			}
+		}, "RateController").start();
+	}
+
+	/**
+	 * Devuelve el RTT minimo de un cliente, creandolo si es su primera
+	 * muestra.
+	 *
+	 * @param ip
+	 *            IP del cliente
+	 * @return RTT minimo del cliente
+	 */
+	private Baseline baseline(String ip) {
+		Baseline base = baselines.get(ip);
+		if (base == null) {
+			base = new Baseline();
+			baselines.put(ip, base);
+		}
+		return base;
+	}
+
+	/**
+	 * Actualiza el RTT minimo observado. Crece lentamente hacia las muestras
+	 * mayores para seguir los cambios de ruta.
+	 *
+	 * @param base
+	 *            RTT minimo actual (ms, -1=sin muestras)
+	 * @param rtt
+	 *            Muestra de RTT (ms)
+	 * @return Nuevo RTT minimo (ms)
+	 */
+	private static double baseline(double base, double rtt) {
+		if ((base < 0) || (rtt < base)) {
+			return rtt;
+		}
+		return base + ((rtt - base) / 64);
+	}
+
+	/**
+	 * Indica si una muestra de RTT revela colas en el enlace.
+	 *
+	 * @param rtt
+	 *            Muestra de RTT (ms)
+	 * @param base
+	 *            RTT minimo observado (ms)
+	 * @return True-RTT muy por encima del minimo
+	 */
+	private static boolean isRising(double rtt, double base) {
+		return rtt > Math.max(base * RTT_FACTOR, base + RTT_MARGIN);
+	}
+
+	/**
+	 * Construye la escalera de calidades de una resolucion negociada. Los
+	 * escalones con una resolucion fija solo se incluyen si es menor que la
+	 * negociada.
+	 *
+	 * @param resX
+	 *            Resolucion horizontal negociada (px)
+	 * @param resY
+	 *            Resolucion vertical negociada (px)
+	 * @return Calidades, de mayor a menor
+	 */
+	static VideoQuality[] buildLadder(int resX, int resY) {
+		ArrayList<VideoQuality> qualities = new ArrayList<VideoQuality>();
+		for (int[] step : LADDER) {
+			if (step[0] == 0) {
+				qualities.add(new VideoQuality(resX, resY, step[2], step[3]));
+			} else if ((step[0] * step[1]) < (resX * resY)) {
+				qualities.add(new VideoQuality(step[0], step[1], step[2],
+						step[3]));
+			}
+		}
+		return qualities.toArray(new VideoQuality[qualities.size()]);
+	}
+
+	/*--------------------------------------------------------*/
+	/* /////////////////// CLASES INTERNAS ////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * RTT minimo observado con un cliente. Los informes RTCP y los DATA_ACK
+	 * miden tiempos distintos, por lo que cada fuente tiene su propio minimo.
+	 */
+	private static final class Baseline {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private double rtcp = -1; // RTT minimo RTCP (ms, -1=sin muestras).
+		private double ack = -1; // RTT minimo DATA_ACK (ms, -1=sin muestras).
+
+	} // Fin clase interna 'Baseline'
+
+} // Fin clase 'RateController'
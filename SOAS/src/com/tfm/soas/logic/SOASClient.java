@@ -5,13 +5,18 @@ import java.lang.ref.WeakReference;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
 
 import com.tfm.soas.context.AppContext;
+import com.tfm.soas.context.GeoKernel;
+import com.tfm.soas.context.NetworkChangeReceiver;
 import com.tfm.soas.logic.LocationService.LocalBinder;
+import com.tfm.soas.logic.EventJournal.EventType;
+import com.tfm.soas.logic.MetricsRegistry.Counter;
+import com.tfm.soas.logic.MetricsRegistry.Histogram;
 import com.tfm.soas.logic.SOASMessage.MessageType;
 import com.tfm.soas.view_controller.RTSPPlayerActivity;
 
@@ -23,8 +28,9 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
-import android.database.sqlite.SQLiteDatabase;
 import android.location.Location;
+import android.net.wifi.WifiManager;
+import android.net.wifi.WifiManager.MulticastLock;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -59,12 +65,17 @@ public class SOASClient extends Service {
 	/*--------------------------------------------------------*/
 	/* ///////////////////// CONSTANTES ///////////////////// */
 	/*--------------------------------------------------------*/
-	private static enum ClientState {
+	static enum ClientState {
 		INI, LISTEN, REQUEST, PLAY, END
 	}
 
 	private static final int StartStreaming = 1;
 	private static final int StopStreaming = 2;
+	private static final int HELLO_TABLE_SIZE = 32; // Servidores recordados.
+	private static final long LISTEN_WINDOW = 2000; // Espera candidatos (ms).
+	private static final long NEIGHBOUR_TTL = 5000; // Vida vecinos (ms).
+	private static final double CLEAR_DISTANCE = 50; // Candidato claro (m).
+	private static final double CLEAR_MARGIN = 25; // Ventaja candidato (m).
 	private static final String TAG = "SOASClient";
 	private static final String TAG_2 = "Client Validation";
 
@@ -73,8 +84,10 @@ public class SOASClient extends Service {
 	/*--------------------------------------------------------*/
 	private ClientState state = ClientState.INI; // Estado Cliente.
 	private volatile ClientDiagramThread dThread = null; // Hilo diagrama de estados.
-	private volatile ClientSendThread sThread = null; // Hilo emisor de mensajes.
+	private volatile SOASSendThread sThread = null; // Hilo emisor de mensajes.
 	private volatile ClientReceiveThread rThread = null; // Hilo receptor de mensajes.
+	private volatile SOASTransport transport = null; // Transporte NIO (opcional).
+	private final Object transportLock = new Object(); // Cambio de transporte.
 	private SOASMessageQueue messageQueue = null; // Cola de mensajes.
 	private LocationService lService = null; // Acceso localizacion.
 	private LocationServiceConn lServiceConnection = null; // Gestor conexion.
@@ -84,6 +97,20 @@ public class SOASClient extends Service {
 	private StopPlayReceiver stopReceiver = null; // Receptor fin reproduccion.
 	private Boolean isPlaying = false; // Flag reproduccion streaming RTSP.
 	private WakeLock wl = null; // WaveLock CPU ON.
+	private MulticastLock multicastLock = null; // Recepcion video multicast.
+	private NetworkChangeReceiver netReceiver = null; // Cambios de red.
+
+	// Tabla que almacena las IPs de los servidores de los que se ha recibido
+	// un mensaje HELLO durante el estado LISTEN, y el instante en que se
+	// recibieron. Se empleara para descartar los mensajes HELLO repetidos en
+	// un periodo breve de tiempo (2,5 sg). Solo la usa el hilo receptor.
+	private final long[] helloIPs = new long[HELLO_TABLE_SIZE];
+	private final long[] helloTimes = new long[HELLO_TABLE_SIZE];
+	private int helloCount = 0;
+	private final DuplicateFilter duplicates = new DuplicateFilter(
+			HELLO_TABLE_SIZE); // Copias recibidas.
+	private final Counter rxDuplicate = MetricsRegistry.getInstance()
+			.counter("client.rx_duplicate"); // Copias descartadas.
 
 	/*--------------------------------------------------------*/
 	/* /////////////////////// METODOS ////////////////////// */
@@ -106,6 +133,14 @@ public class SOASClient extends Service {
 				"Client WaveLock");
 		wl.acquire();
 
+		// Se crea el MulticastLock que permite recibir el video cuando el
+		// servidor lo envia a un grupo multicast. Sin el, la interfaz WiFi
+		// descarta los paquetes multicast para ahorrar bateria.
+		WifiManager wifi = (WifiManager) getApplicationContext()
+				.getSystemService(Context.WIFI_SERVICE);
+		multicastLock = wifi.createMulticastLock("SOASClient");
+		multicastLock.setReferenceCounted(false);
+
 		// Se crea el gestor de mensajes que permite la comunicacion entre los
 		// hilos secundarios y el hilo principal del servicio.
 		handler = new ClientHandler(this);
@@ -121,8 +156,19 @@ public class SOASClient extends Service {
 		lServiceConnection = new LocationServiceConn();
 		bindService(intent, lServiceConnection, Context.BIND_AUTO_CREATE);
 
+		// Se registra el BroadcastReceiver que invalida la IP local cacheada
+		// cuando cambia el estado de la red.
+		AppContext.invalidateLocalIPAddress();
+		netReceiver = new NetworkChangeReceiver();
+		registerReceiver(netReceiver, NetworkChangeReceiver.getIntentFilter());
+
 		// Se arrancan los hilos que definen el comportamiento del cliente.
 		launchThreads();
+
+		// Se registran los indicadores del cliente y se inicia el volcado
+		// periodico de las metricas.
+		registerGauges();
+		MetricsRegistry.getInstance().startDump();
 	}
 
 	/**
@@ -136,6 +182,12 @@ public class SOASClient extends Service {
 		// Se detiene los hilos que definen el comportamiento del cliente.
 		stopThreads();
 
+		// Se eliminan los indicadores del cliente y se detiene el volcado de
+		// las metricas.
+		MetricsRegistry.getInstance().removeGauge("client.channel_density");
+		MetricsRegistry.getInstance().removeGauge("client.queue_dropped");
+		MetricsRegistry.getInstance().stopDump();
+
 		// Se cierra la conexion con el servicio de localizacion.
 		if (boundLService) {
 			unbindService(lServiceConnection);
@@ -146,6 +198,9 @@ public class SOASClient extends Service {
 		// cierre del reproductor RTSP.
 		unregisterReceiver(stopReceiver);
 
+		// Se elimina el BroadcastReceiver de cambios de red.
+		unregisterReceiver(netReceiver);
+
 		// Se liberan el WaveLock.
 		wl.release();
 	}
@@ -158,44 +213,155 @@ public class SOASClient extends Service {
 		// Se actualiza el estado antes de arrancar los hilos.
 		state = ClientState.LISTEN;
 
-		// Se arranca el hilo receptor de mensajes, y se crea la cola de
-		// mensajes donde los almacenara.
+		// Se crea la cola de mensajes donde se almacenaran los mensajes
+		// recibidos. Los anuncios HELLO van en un carril propio, por lo que no
+		// retrasan ni desplazan a los mensajes de sesion.
 		messageQueue = new SOASMessageQueue();
-		rThread = new ClientReceiveThread();
-		rThread.start();
+		helloCount = 0;
+
+		// Si esta habilitado el transporte NIO, un unico hilo se encarga de
+		// emitir y recibir mensajes. Si no se pudo arrancar se recurre a los
+		// hilos convencionales.
+		SharedPreferences prefs = getSharedPreferences("SOAS_prefs",
+				Context.MODE_PRIVATE);
+		if (prefs.getInt("nio_transport", 0) == 1) {
+			transport = new SOASTransport(AppContext.RECEIVE_CLIENT_PORT,
+					new ClientTransportListener(), "SOASClientTransport");
+			try {
+				transport.start();
+			} catch (IOException e) {
+				Log.d(TAG, "(C) Error opening NIO transport: " + e.getMessage());
+				e.printStackTrace();
+				transport = null;
+			}
+		}
 
-		// Se arranca el hilo emisor de mensajes.
-		sThread = new ClientSendThread();
-		sThread.start();
+		if (transport == null) {
+			startMessageThreads();
+		}
 
 		// Se arranca el hilo que implementa el diagrama de estados.
 		dThread = new ClientDiagramThread();
 		dThread.start();
 	}
 
+	/**
+	 * Lanza a ejecucion el hilo receptor de mensajes y el hilo emisor de
+	 * mensajes.
+	 */
+	private void startMessageThreads() {
+		// Se arranca el hilo receptor de mensajes.
+		rThread = new ClientReceiveThread();
+		rThread.start();
+
+		// Se arranca el hilo emisor de mensajes.
+		try {
+			sThread = new SOASSendThread("SOASClientSend");
+			sThread.start();
+		} catch (SocketException e) {
+			Log.d(TAG, "(C) Error opening Send Socket: " + e.getMessage());
+			e.printStackTrace();
+
+			// Se detiene el sistema.
+			startService(new Intent(SOASClient.this, StopSOASService.class));
+		}
+	}
+
+	/**
+	 * Sustituye el transporte NIO, detenido por un error, por los hilos
+	 * convencionales de mensajes. Los hilos se arrancan antes de descartar el
+	 * transporte para que los envios en curso encuentren siempre uno de los
+	 * dos.
+	 * 
+	 * @param failed
+	 *            Transporte detenido
+	 */
+	private void fallBackToThreads(SOASTransport failed) {
+		synchronized (transportLock) {
+			if (transport != failed) { // Ya detenido o sustituido.
+				return;
+			}
+			startMessageThreads();
+			transport = null;
+		}
+	}
+
 	/**
 	 * Interrumpe el hilo receptor de mensajes, el hilo emisor de mensajes y el
 	 * hilo que implementa el diagrama de estados.
 	 */
 	private void stopThreads() {
-		// Se interrumpe el hilo receptor de mensajes.
-		rThread.stopThread();
-
-		// Se interrumpe el hilo emisor de mensajes.
-		sThread.stopThread();
+		synchronized (transportLock) {
+			if (transport != null) {
+				// Se detiene el transporte NIO y se vacia la cola de mensajes.
+				transport.stop();
+				transport = null;
+				messageQueue.clearQueue();
+			} else {
+				// Se interrumpe el hilo receptor de mensajes.
+				rThread.stopThread();
+
+				// Se interrumpe el hilo emisor de mensajes.
+				if (sThread != null) {
+					sThread.stopThread();
+				}
+			}
+		}
 
 		// Se interrumpe el hilo que implementa el diagrama de estados.
 		dThread.stopThread();
 	}
 
+	/**
+	 * Registra los indicadores del cliente: servidores escuchados en el canal
+	 * y mensajes descartados por la cola de recepcion.
+	 */
+	private void registerGauges() {
+		MetricsRegistry metrics = MetricsRegistry.getInstance();
+		metrics.gauge("client.channel_density", new MetricsRegistry.Gauge() {
+			@Override
+			public long getValue() {
+				return BeaconScheduler.getChannelDensity();
+			}
+		});
+		metrics.gauge("client.queue_dropped", new MetricsRegistry.Gauge() {
+			@Override
+			public long getValue() {
+				SOASMessageQueue queue = messageQueue;
+				return (queue != null) ? queue.getDroppedCount() : 0;
+			}
+		});
+	}
+
 	/**
 	 * Permite iniciar la sesion de streaming conectandose al servidor RTSP.
+	 * 
+	 * @param ip
+	 *            IP del servidor
+	 * @param port
+	 *            Puerto RTSP del servidor
+	 * @param group
+	 *            Grupo multicast del video o "" si se recibe por unicast
+	 * @param readyNanos
+	 *            Instante de llegada del READY (ns)
 	 */
-	private void startStreaming(String ip, String port) {
-		// Se arranca la actividad de reproduccion de video RTSP.
+	private void startStreaming(String ip, String port, String group,
+			long readyNanos) {
+		// Si el servidor envia el video a un grupo multicast, se solicita
+		// unirse a el (con TTL 1, el video no sale de la red local) y se
+		// habilita la recepcion de paquetes multicast.
 		String rtsp_url = "rtsp://" + ip + ":" + port;
+		if (group.length() > 0) {
+			rtsp_url += "?multicast=" + group + "&ttl=1";
+			multicastLock.acquire();
+		}
+
+		// Se arranca la actividad de reproduccion de video RTSP. Se le pasa el
+		// instante de llegada de READY para medir el tiempo hasta que arranca
+		// la reproduccion.
 		Intent intent = new Intent(SOASClient.this, RTSPPlayerActivity.class);
 		intent.putExtra("rtsp_server_url", rtsp_url);
+		intent.putExtra("ready_nanos", readyNanos);
 		intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
 				| Intent.FLAG_ACTIVITY_MULTIPLE_TASK);
 		startActivity(intent);
@@ -208,6 +374,16 @@ public class SOASClient extends Service {
 	private void stopStreaming() {
 		// Se detiene la reproduccion del video RTSP.
 		sendBroadcast(new Intent("player_Receiver"));
+		releaseMulticastLock();
+	}
+
+	/**
+	 * Deshabilita la recepcion de paquetes multicast, si estaba habilitada.
+	 */
+	private void releaseMulticastLock() {
+		if ((multicastLock != null) && multicastLock.isHeld()) {
+			multicastLock.release();
+		}
 	}
 
 	/**
@@ -272,6 +448,103 @@ public class SOASClient extends Service {
 		return cLocation;
 	}
 
+	/**
+	 * FILTRADO ESTADO-TIPO MENSAJE. Decide, sin reconstruir el mensaje
+	 * recibido, si es de interes para el estado actual del cliente. Solo debe
+	 * invocarse desde el hilo que recibe los mensajes.
+	 * 
+	 * @param type
+	 *            Tipo de mensaje
+	 * @param sender
+	 *            IP del emisor como entero o -1 si no indico una IPv4
+	 * @param flags
+	 *            Flags del mensaje
+	 * @param sequence
+	 *            Numero de secuencia del mensaje
+	 * @return True-Encolar / False-Descartar
+	 */
+	private boolean acceptMessage(MessageType type, long sender, int flags,
+			int sequence) {
+		// Se comprueba que el emisor no sea el propio dispositivo.
+		// Mensajes Broadcast.
+		if ((sender != -1) && (sender == AppContext.getLocalAddress())) {
+			return false;
+		}
+
+		// Los anuncios del resto de servidores miden la densidad del canal.
+		if (type == MessageType.HELLO) {
+			BeaconScheduler.observeBeacon(sender);
+		}
+
+		// Variable que guarda el estado actual accediendo de manera
+		// sincronizada a la variable compartida que guarda el estado del
+		// cliente.
+		ClientState tmp_state;
+		synchronized (state) {
+			tmp_state = state;
+		}
+
+		boolean enqueue = false;
+		switch (tmp_state) {
+		case LISTEN:
+			if (type == MessageType.HELLO) {
+				// Si no es un HELLO de un servidor ocupado y si no se han
+				// recibido mas anuncios del mismo servidor se marca para
+				// encolar.
+				if ((flags & SOASMessageCodec.FLAG_BUSY) == 0) {
+					long now = System.currentTimeMillis();
+					int slot = -1;
+					int oldest = 0;
+					for (int i = 0; i < helloCount; i++) {
+						if (helloIPs[i] == sender) {
+							slot = i;
+							break;
+						}
+						if (helloTimes[i] < helloTimes[oldest]) {
+							oldest = i;
+						}
+					}
+					if (slot == -1) { // Servidor nuevo.
+						enqueue = true;
+						slot = (helloCount < HELLO_TABLE_SIZE) ? helloCount++
+								: oldest;
+						helloIPs[slot] = sender;
+						helloTimes[slot] = now;
+					} else if (now - helloTimes[slot] >= 2500) {
+						enqueue = true;
+						helloTimes[slot] = now;
+					}
+				}
+			}
+			break;
+		case REQUEST:
+			// Se limpia la lista de servidores de los que se ha recibido un
+			// mensaje HELLO.
+			helloCount = 0;
+
+			if (type == MessageType.READY) {
+				enqueue = true;
+			} else if (type == MessageType.REJECT) {
+				enqueue = true;
+			}
+			break;
+		case PLAY:
+			if (type == MessageType.DATA) {
+				enqueue = true;
+			}
+			break;
+		}
+
+		// Se descartan las copias de mensajes ya recibidos.
+		if (enqueue
+				&& duplicates.isDuplicate(sender, sequence,
+						System.currentTimeMillis())) {
+			rxDuplicate.increment();
+			enqueue = false;
+		}
+		return enqueue;
+	}
+
 	/**
 	 * Devuelve el canal de comunicacion al servicio.
 	 * 
@@ -351,6 +624,7 @@ public class SOASClient extends Service {
 			synchronized (isPlaying) {
 				isPlaying = false;
 			}
+			releaseMulticastLock();
 		}
 
 	} // Fin clase interna 'StopPlayReceiver'
@@ -400,7 +674,8 @@ public class SOASClient extends Service {
 			if (msg.what == StartStreaming) { // Arrancar el streaming.
 				Bundle bundle = msg.getData();
 				clientService.startStreaming(bundle.getString("ip"),
-						bundle.getString("port"));
+						bundle.getString("port"), bundle.getString("group"),
+						bundle.getLong("ready"));
 				return;
 			} else if (msg.what == StopStreaming) { // Parar el streaming.
 				clientService.stopStreaming();
@@ -409,82 +684,6 @@ public class SOASClient extends Service {
 
 	} // Fin clase interna 'ClientHandler'
 
-	/**
-	 * Hilo emisor de mensajes.
-	 * 
-	 * @author Javier Herrero Arnanz
-	 * @version 1.0
-	 * @since 08-06-2014
-	 */
-	private class ClientSendThread extends Thread {
-
-		/*-----------*/
-		/* ATRIBUTOS */
-		/*-----------*/
-		private DatagramSocket sendSocket = null; // Socket para envios.
-		private DatagramPacket packet = null; // Paquete a enviar.
-
-		/*---------*/
-		/* METODOS */
-		/*---------*/
-		/**
-		 * Constructor para instancias de la clase SendThread.
-		 */
-		public ClientSendThread() {
-			try {
-				// Se arranca el socket UDP de envio de mensajes.
-				sendSocket = new DatagramSocket();
-			} catch (SocketException e) {
-				Log.d(TAG, "(C) Error opening Send Socket: " + e.getMessage());
-				e.printStackTrace();
-
-				// Se interrumpe el hilo.
-				Thread.currentThread().interrupt();
-
-				// Se detiene el sistema.
-				startService(new Intent(SOASClient.this, StopSOASService.class));
-			}
-		}
-
-		/**
-		 * Permite establecer el paquete UDP que se desea enviar.
-		 * 
-		 * @param packet
-		 *            Paquete UDP
-		 */
-		public void setPacket(DatagramPacket packet) {
-			this.packet = packet;
-		}
-
-		/**
-		 * Permite detener la ejecucion del hilo emisor de mensajes.
-		 */
-		public void stopThread() {
-			sThread.interrupt();
-			sendSocket.close();
-		}
-
-		/**
-		 * Implementa el comportamiento del hilo emisor de mensajes.
-		 */
-		@Override
-		public void run() {
-			Thread thisThread = Thread.currentThread();
-			if (!thisThread.isInterrupted()) {
-				try {
-					if (packet != null) {
-						sendSocket.send(packet);
-						packet = null;
-					}
-				} catch (IOException e) {
-					Log.d(TAG, "(C) Error sending message: " + e.getMessage());
-					e.printStackTrace();
-				}
-			}
-		}
-
-	} // Fin clase interna 'ClientSendThread'
-
 	/**
 	 * Hilo receptor de mensajes, encargado de escuchar, filtrar y encolar los
 	 * mensajes enviados por los dispositivos servidor.
@@ -499,6 +698,8 @@ public class SOASClient extends Service {
 		/* ATRIBUTOS */
 		/*-----------*/
 		private DatagramSocket receiveSocket = null; // Socket para recepciones.
+		private final Counter rxInvalid = MetricsRegistry.getInstance()
+				.counter("client.rx_invalid"); // Datagramas no SOAS.
 
 		/*---------*/
 		/* METODOS */
@@ -541,92 +742,43 @@ public class SOASClient extends Service {
 			// Se crea el Datagrama UDP donde se almacenaran temporalmente los
 			// mensajes recibidos.
 			byte[] recvBuf = new byte[1000];
+			ByteBuffer recvBuffer = ByteBuffer.wrap(recvBuf);
 			DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
 
-			// Variable que guarda el estado actual accediendo de manera
-			// sincronizada a la variable compartida que guarda el estado del
-			// cliente.
-			ClientState tmp_state;
-
-			// Lista que almacena las IPs de los servidores de los que se ha
-			// recibido un mensaje HELLO durante el estado LISTEN, y en el
-			// instante en que se recibieron. Se empleara para descartar los
-			// mensajes HELLO repetidos en un periodo breve de tiempo (2,5 sg).
-			HashMap<String, Long> serversHELLO = new HashMap<String, Long>();
-
 			// Mientras no se interrumpa el hilo se escuchan mensajes.
 			Thread thisThread = Thread.currentThread();
 			while ((!thisThread.isInterrupted()) && (thisThread == rThread)) {
 				try {
 					// Se espera la recepcion de un mensaje.
+					packet.setLength(recvBuf.length);
 					receiveSocket.receive(packet);
 
-					// Se reconstruye el mensaje recibido.
-					SOASMessage message = AppContext
-							.deserializeMessage(recvBuf);
-
-					// Se comprueba que el emisor no sea el propio dispositivo.
-					// Mensajes Broadcast.
-					String localIP = AppContext.getIPAddress(true);
-					if (!localIP.equalsIgnoreCase(message.getIp())) {
-						// FILTRADO ESTADO-TIPO MENSAJE.
-						// Se encolara el mensaje si es de interes para el
-						// estado actual.
-						boolean enqueue = false;
-						synchronized (state) {
-							tmp_state = state;
-						}
-						switch (tmp_state) {
-						case LISTEN:
-							if (message.getType() == MessageType.HELLO) {
-								// Si no es un HELLO de un servidor ocupado y si
-								// no se han recibido mas anuncios del mismo
-								// servidor se marca para encolar.
-								if (!message.getIp()
-										.equalsIgnoreCase("X.X.X.X")) {
-									String ip = message.getIp();
-									boolean repeated = false;
-									long now = System.currentTimeMillis();
-									if (serversHELLO.containsKey(ip)) {
-										long timeDiff = now
-												- serversHELLO.get(ip);
-										if (timeDiff < 2500) {
-											repeated = true;
-										}
-									}
-									if (!repeated) {
-										enqueue = true;
-										serversHELLO.put(ip,
-												System.currentTimeMillis());
-									}
-								}
-							}
-							break;
-						case REQUEST:
-							// Se limpia la lista de servidores de los que se ha
-							// recibido un mensaje HELLO.
-							if (!serversHELLO.isEmpty()) {
-								serversHELLO.clear();
-							}
-
-							if (message.getType() == MessageType.READY) {
-								enqueue = true;
-							} else if (message.getType() == MessageType.REJECT) {
-								enqueue = true;
-							}
-							break;
-						case PLAY:
-							if (message.getType() == MessageType.DATA) {
-								enqueue = true;
-							}
-							break;
-						}
+					// Se lee el tipo de mensaje sin reconstruirlo. Se
+					// descartan los datagramas que no son mensajes SOAS.
+					MessageType type = SOASMessageCodec.peekType(recvBuffer, 0,
+							packet.getLength());
+					if (type == null) {
+						rxInvalid.increment();
+						continue;
+					}
 
-						// Se encola el mensaje si fue marcado.
-						if (enqueue) {
-							messageQueue.insertMessage(message);
-						}
+					// FILTRADO ESTADO-TIPO MENSAJE.
+					// Solo se reconstruira el mensaje si es de interes para el
+					// estado actual y no lo envio el propio dispositivo.
+					long sender = SOASMessageCodec.peekAddress(recvBuffer, 0);
+					int flags = SOASMessageCodec.peekFlags(recvBuffer, 0);
+					int sequence = SOASMessageCodec.peekSequence(recvBuffer, 0);
+					if (!acceptMessage(type, sender, flags, sequence)) {
+						continue;
 					}
+
+					// Se reconstruye el mensaje sobre una instancia reciclada
+					// y se encola.
+					SOASMessage message = SOASMessage.obtain();
+					recvBuffer.limit(packet.getLength()).position(0);
+					SOASMessageCodec.decode(recvBuffer, message);
+					recvBuffer.clear();
+					messageQueue.insertMessage(message);
 				} catch (IOException e) {
 					Log.d(TAG, "(C) Error receiving message: " + e.getMessage());
 					e.printStackTrace();
@@ -638,6 +790,41 @@ public class SOASClient extends Service {
 
 	} // Fin clase interna 'ClientReceiveThread'
 
+	/**
+	 * Oyente del transporte NIO. Filtra y encola los mensajes enviados por los
+	 * dispositivos servidor, igual que el hilo receptor de mensajes.
+	 */
+	private class ClientTransportListener implements SOASTransport.Listener {
+
+		/**
+		 * Decide si un mensaje recibido es de interes para el estado actual.
+		 */
+		@Override
+		public boolean accept(MessageType type, long sender, int flags,
+				int sequence) {
+			return acceptMessage(type, sender, flags, sequence);
+		}
+
+		/**
+		 * Encola un mensaje aceptado.
+		 */
+		@Override
+		public void onMessage(SOASMessage message) {
+			messageQueue.insertMessage(message);
+		}
+
+		/**
+		 * Recurre a los hilos convencionales si el transporte se detiene por
+		 * un error.
+		 */
+		@Override
+		public void onTransportError(SOASTransport failed, Exception error) {
+			Log.d(TAG, "(C) NIO transport stopped: " + error.getMessage());
+			fallBackToThreads(failed);
+		}
+
+	} // Fin clase interna 'ClientTransportListener'
+
 	/**
 	 * Implementa el diagrama de estados que define el comportamiento del
 	 * cliente. LISTEN <-> REQUEST > PLAY > END > LISTEN.
@@ -656,8 +843,35 @@ public class SOASClient extends Service {
 		private SOASMessage sMessage = null; // Mensaje a enviar.
 		private String serverIP = ""; // IP servidor.
 		private String rtspPort = ""; // Puerto RTSP.
+		private String multicastGroup = ""; // Grupo multicast del video.
 		private int[] valParams = { 20, 5, 90, 0 }; // Parametros validacion.
-		private SQLiteDatabase db = null; // Acceso a BD.
+		private final NeighbourTable neighbours = new NeighbourTable(
+				HELLO_TABLE_SIZE, NEIGHBOUR_TTL); // Servidores descubiertos.
+		private double cosDirection = 0; // Coseno umbral direccion.
+		private double cosAhead = 0; // Coseno umbral servidor delante.
+		private double cosOvertaking = 0; // Coseno umbral adelantamiento.
+		private SessionLogWriter logWriter = null; // Escritor del log.
+		private EventJournal journal = null; // Diario binario de eventos.
+		private int journalState = EventJournal.NO_STATE; // Ultimo estado registrado.
+		private final Counter[] stateEntries = new Counter[ClientState.values().length]; // Entradas/estado.
+		private final Histogram[] stateTimes = new Histogram[ClientState.values().length]; // Tiempo/estado.
+		private long stateSince = 0; // Entrada en el estado actual (ns).
+		private long readyNanos = 0; // Llegada del ultimo READY (ns).
+		private final MetricsRegistry metrics = MetricsRegistry.getInstance(); // Metricas.
+		private final Histogram discoveryTime = metrics
+				.histogram("client.discovery"); // LISTEN hasta elegir servidor.
+		private final Histogram requestReadyTime = metrics
+				.histogram("client.request_ready"); // Primer REQUEST hasta READY.
+		private final Histogram heartbeatTime = metrics
+				.histogram("client.heartbeat"); // DATA_ACK hasta siguiente DATA.
+		private final Histogram requestRtt = metrics
+				.histogram("client.request_rtt"); // REQUEST hasta su respuesta.
+		private final Histogram oneWay = metrics.histogram("client.one_way"); // Latencia servidor-cliente.
+		private final Counter requestTimeouts = metrics
+				.counter("client.timeout.request"); // Timeouts en REQUEST.
+		private final Counter playTimeouts = metrics
+				.counter("client.timeout.play"); // Timeouts en PLAY.
+		private final HeartbeatMonitor heartbeat = new HeartbeatMonitor(); // Llegadas y sospecha.
 
 		/*---------*/
 		/* METODOS */
@@ -683,20 +897,41 @@ public class SOASClient extends Service {
 			valParams[1] = prefs.getInt("location", valParams[1]);
 			valParams[2] = prefs.getInt("overtaking", valParams[2]);
 			valParams[3] = prefs.getInt("disable_val", valParams[3]);
-
-			// Se vacia el log de la sesion.
-			db = getApplicationContext().openOrCreateDatabase("sessionLogs",
-					MODE_PRIVATE, null);
-			db.execSQL("DROP TABLE IF EXISTS clientLog");
-			db.close();
+			cosDirection = GeoKernel.cosThreshold(valParams[0]);
+			cosAhead = GeoKernel.cosThreshold(valParams[1]);
+			cosOvertaking = GeoKernel.cosThreshold(valParams[2]);
+
+			// Se arranca el escritor del log, que vacia el log de la sesion
+			// anterior.
+			logWriter = new SessionLogWriter(getApplicationContext(),
+					"clientLog", "SOASClientLog");
+			logWriter.start();
+			journal = new EventJournal(getApplicationContext(), "client",
+					EventJournal.ROLE_CLIENT);
+
+			// Se preparan las metricas de cada estado.
+			for (ClientState s : ClientState.values()) {
+				stateEntries[s.ordinal()] = metrics.counter("client.state."
+						+ s.name());
+				stateTimes[s.ordinal()] = metrics.histogram("client.state_time."
+						+ s.name());
+			}
 
 			// Mientras el sistema no sea detenido el cliente ejecuta el
 			// diagrama de estados que define su comportamiento.
 			addInfoToLog("Session starts");
+			addEventToJournal(EventType.SESSION_START, null);
 			while ((!thisThread.isInterrupted()) && (thisThread == dThread)) {
 				synchronized (state) {
 					tmp_state = state;
 				}
+				if (tmp_state.ordinal() != journalState) {
+					int previous = journalState;
+					journalState = tmp_state.ordinal();
+					addEventToJournal(EventType.STATE_CHANGE, serverIP, 0,
+							Float.NaN, Float.NaN, previous);
+					recordTransition(previous, journalState);
+				}
 				switch (tmp_state) {
 				case LISTEN:
 					doListen();
@@ -713,6 +948,25 @@ public class SOASClient extends Service {
 				}
 			}
 			addInfoToLog("Session ends");
+			logWriter.close();
+			addEventToJournal(EventType.SESSION_END, null);
+			journal.close();
+		}
+
+		/**
+		 * Devuelve al pool el ultimo mensaje recibido, que ya no se va a
+		 * utilizar, y espera la llegada del siguiente mensaje.
+		 * 
+		 * @param timeout
+		 *            Tiempo de espera si la cola esta vacia
+		 * @return Mensaje recibido o null si vencio el timeout
+		 */
+		private SOASMessage nextMessage(long timeout) {
+			if (rMessage != null) {
+				rMessage.recycle();
+				rMessage = null;
+			}
+			return messageQueue.takeMessage(timeout);
 		}
 
 		/**
@@ -725,30 +979,49 @@ public class SOASClient extends Service {
 		}
 
 		/**
-		 * Implementa el comportamiento del Cliente en el estado LISTEN.
+		 * Implementa el comportamiento del Cliente en el estado LISTEN. Los
+		 * anuncios HELLO actualizan la tabla de vecinos, que se conserva entre
+		 * ciclos, y tras cada anuncio se busca en ella el servidor valido mas
+		 * cercano por delante del cliente. Se solicita la conexion en cuanto
+		 * aparece un candidato claramente mejor que el resto o, en otro caso,
+		 * al vencer la ventana de espera de candidatos.
 		 */
 		private void doListen() {
 			// Variables locales.
-			HashMap<String, double[]> candidates = new HashMap<String, double[]>();
-			long timeout = 0;
-			long timeDiff = 0;
+			long now = 0;
+			long deadline = 0;
+			long listenStart = System.nanoTime();
+			boolean firstCheck = true;
 			boolean serverFound = false;
 
 			// Se busca un servidor optimo al que solicitar el inicio de una
 			// sesion de streaming RTSP.
 			do {
-				// Se espera la llegada de un mensaje HELLO.
-				Log.d(TAG, "(C) Waiting <HELLO>");
-				timeDiff = System.currentTimeMillis();
-				rMessage = messageQueue.takeMessage(timeout);
-				timeDiff = System.currentTimeMillis() - timeDiff;
-
-				if (rMessage == null) { // TIMEOUT.
-					if (!candidates.isEmpty()) {
+				now = System.currentTimeMillis();
+				neighbours.evict(now);
+				String bestIP = findBestServer();
+				if (bestIP == null) { // Sin candidatos validos.
+					deadline = 0;
+				} else {
+					// Se abre la ventana de espera de otros candidatos. Si
+					// quedan candidatos validos de ciclos anteriores se elige
+					// sin esperar.
+					if (deadline == 0) {
+						deadline = firstCheck ? now : (now + LISTEN_WINDOW);
+					}
+					if ((now >= deadline)
+							|| neighbours.isBestClear(CLEAR_DISTANCE,
+									CLEAR_MARGIN)) {
 						// Se guarda la IP del servidor mas optimo.
-						serverIP = bestValidServer(candidates);
+						serverIP = bestIP;
 						serverFound = true;
 						Log.d(TAG, "(C) Selected the best server: " + serverIP);
+						addInfoToLog("Selected server: " + serverIP);
+						discoveryTime.recordSince(listenStart);
+						addEventToJournal(EventType.SERVER_SELECTED, serverIP,
+								0, Float.NaN,
+								(float) neighbours.getBestDistance(),
+								neighbours.size());
 
 						// Se limpia la cola de mensajes.
 						messageQueue.clearQueue();
@@ -757,32 +1030,24 @@ public class SOASClient extends Service {
 						synchronized (state) {
 							state = ClientState.REQUEST;
 						}
+						break;
 					}
-				} else if (rMessage.getType() == MessageType.HELLO) { // HELLO.
+				}
+				firstCheck = false;
+
+				// Se espera la llegada de un mensaje HELLO.
+				Log.d(TAG, "(C) Waiting <HELLO>");
+				rMessage = nextMessage((deadline == 0) ? 0 : Math.max(1,
+						deadline - now));
+				if ((rMessage != null)
+						&& (rMessage.getType() == MessageType.HELLO)) { // HELLO.
 					Log.d(TAG, "(C) <HELLO> received from " + rMessage.getIp());
 					addInfoToLog("<HELLO> received from " + rMessage.getIp());
+					addEventToJournal(EventType.HELLO_RX, rMessage.getIp());
 
-					// Se valida el mensaje.
-					boolean serverOK = isValidServer(rMessage.getLocation());
-					if (serverOK) { // Servidor VALIDO.
-						Log.d(TAG, "(C) Valid server: " + rMessage.getIp());
-						addInfoToLog("Valid server: " + rMessage.getIp());
-
-						// Se añade a la lista de candidatos.
-						candidates
-								.put(rMessage.getIp(), rMessage.getLocation());
-
-						// Se actualiza el timeout para esperar a otros
-						// candidatos.
-						if (timeout == 0) {
-							timeout = 2000; // 2 sg.
-						} else {
-							timeout = 2000 - timeDiff;
-						}
-					} else { // Servidor INVALIDO.
-						Log.d(TAG, "(C) Invalid server: " + rMessage.getIp());
-						addInfoToLog("Invalid server: " + rMessage.getIp());
-					}
+					// Se añade o actualiza en la tabla de vecinos.
+					neighbours.update(rMessage.getIp(), rMessage.getLocation(),
+							System.currentTimeMillis());
 				}
 			} while ((!serverFound) && (!thisThread.isInterrupted())
 					&& (thisThread == dThread));
@@ -794,6 +1059,7 @@ public class SOASClient extends Service {
 		private void doRequest() {
 			// Variables locales.
 			int attempts = 1;
+			long requestStart = System.nanoTime();
 
 			// Se solicita la conexion al servidor. Se realizaran un maximo de 3
 			// intentos.
@@ -801,38 +1067,57 @@ public class SOASClient extends Service {
 				// Se envia la solicitud de conexion al servidor.
 				sMessage = new SOASMessage();
 				sMessage.setType(SOASMessage.MessageType.REQUEST);
-				sMessage.setIp(AppContext.getIPAddress(true));
+				sMessage.setIp(AppContext.getLocalIPAddress());
 				sMessage.setLocation(getLocation());
 				sMessage.setMaxResolution(getMaxResolution());
 				sendMessage(serverIP, AppContext.RECEIVE_SERVER_PORT, sMessage);
 				Log.d(TAG, "(C) <REQUEST> sent to " + serverIP);
 				addInfoToLog("<REQUEST> sent to " + serverIP);
+				addEventToJournal(EventType.REQUEST_TX, serverIP, attempts,
+						Float.NaN, Float.NaN, 0);
 
 				// Se espera la respuesta del servidor durante 3 sg.
-				rMessage = messageQueue.takeMessage(3000);
+				rMessage = nextMessage(3000);
 				if (rMessage == null) { // TIMEOUT.
 					Log.d(TAG, "(C) TIMEOUT waiting <READY> or <REJECT> from "
 							+ serverIP);
 					addInfoToLog("TIMEOUT waiting <READY> or <REJECT>");
+					addEventToJournal(EventType.TIMEOUT, serverIP, attempts,
+							Float.NaN, Float.NaN, 0);
+					requestTimeouts.increment();
 
 					attempts++;
 					if (attempts > 3) {
-						// El servidor no respondio a tiempo.
+						// El servidor no respondio a tiempo. Se descarta como
+						// candidato.
+						neighbours.remove(serverIP);
+
 						// Se cambia de estado.
 						synchronized (state) {
 							state = ClientState.LISTEN;
 						}
 					}
 				} else if (rMessage.getIp().equalsIgnoreCase(serverIP)) {
+					// La respuesta devuelve el instante de envio del REQUEST
+					// al que responde: RTT medido con el reloj del cliente.
+					if (rMessage.getEchoTimestamp() != 0) {
+						requestRtt.record(SOASMessageCodec.currentTimeMicros()
+								- rMessage.getEchoTimestamp());
+					}
 					if (rMessage.getType() == MessageType.READY) { // READY.
 						Log.d(TAG, "(C) <READY> received from " + serverIP);
 						addInfoToLog("<READY> received from " + serverIP);
+						readyNanos = System.nanoTime();
+						requestReadyTime.recordSince(requestStart);
+						addEventToJournal(EventType.READY_RX, serverIP, 0,
+								Float.NaN, Float.NaN, rMessage.getRTSPPort());
 
 						// Se limpia la cola de mensajes.
 						messageQueue.clearQueue();
 
 						// Se guarda el puerto RTSP.
 						rtspPort = String.valueOf(rMessage.getRTSPPort());
+						multicastGroup = rMessage.getMulticastGroup();
 
 						// Se cambia de estado.
 						synchronized (state) {
@@ -842,6 +1127,10 @@ public class SOASClient extends Service {
 					} else if (rMessage.getType() == MessageType.REJECT) { // REJECT.
 						Log.d(TAG, "(C) <REJECT> received from " + serverIP);
 						addInfoToLog("<REJECT> received from " + serverIP);
+						addEventToJournal(EventType.REJECT_RX, serverIP);
+
+						// Se descarta como candidato.
+						neighbours.remove(serverIP);
 
 						// Se limpia la cola de mensajes.
 						messageQueue.clearQueue();
@@ -866,7 +1155,10 @@ public class SOASClient extends Service {
 		 */
 		private void doPlay() {
 			// Variables locales.
-			int attempts = 1;
+			int retries = 0;
+			boolean playing = true;
+			long ackSent = 0;
+			long dataTimestamp = 0;
 
 			// Se anuncia al hilo principal del servicio que arranque la
 			// reproduccion del streaming.
@@ -874,6 +1166,8 @@ public class SOASClient extends Service {
 			Bundle bundle = new Bundle();
 			bundle.putString("ip", serverIP);
 			bundle.putString("port", rtspPort);
+			bundle.putString("group", multicastGroup);
+			bundle.putLong("ready", readyNanos);
 			msg.setData(bundle);
 			msg.sendToTarget();
 
@@ -883,70 +1177,108 @@ public class SOASClient extends Service {
 			}
 
 			// Se inicia la recepcion (DATA) y envio (DATA_ACK) de mensajes de
-			// control de conexion. Se permite un maximo de 3 reenvios DATA_ACK
-			// ante la falta de un mensaje DATA.
+			// control de conexion. El tiempo de espera de cada DATA se deriva
+			// de los intervalos entre llegadas observados. Si vence se reenvia
+			// el ultimo DATA_ACK; la sesion termina cuando el nivel de
+			// sospecha sobre el servidor supera el umbral.
 			addInfoToLog("Receiving video stream from " + serverIP);
+			heartbeat.reset(System.nanoTime());
 			do {
 				// Se espera la llegada de un mensaje DATA emitido por el
-				// servidor durante 3 sg.
-				rMessage = messageQueue.takeMessage(3000);
+				// servidor.
+				rMessage = nextMessage(heartbeat.getArrivalTimeout());
 				if (rMessage == null) { // TIMEOUT.
-					Log.d(TAG, "(C) TIMEOUT waiting <DATA> from " + serverIP);
-
-					attempts++;
-					if (attempts > 3) { // Se alcanzo el maximo de intentos.
-						// Se cambia de estado.
+					long now = System.nanoTime();
+					double phi = heartbeat.phi(now);
+					retries++;
+					heartbeat.onTimeout();
+					Log.d(TAG, "(C) TIMEOUT waiting <DATA> from " + serverIP
+							+ " (phi " + phi + ")");
+					addEventToJournal(EventType.TIMEOUT, serverIP, retries,
+							Float.NaN, Float.NaN, Math.round(phi * 1000));
+					playTimeouts.increment();
+
+					if (phi >= HeartbeatMonitor.PHI_THRESHOLD) {
+						// El servidor se da por perdido. Se cambia de estado.
+						Log.d(TAG, "(C) Server lost: " + serverIP);
+						addInfoToLog("Server lost: " + serverIP);
 						synchronized (state) {
 							state = ClientState.END;
 						}
+						playing = false;
 					} else {
 						// Se intenta recuperar la conexion reeviando el mensaje
-						// DATA_ACK.
+						// DATA_ACK del ultimo DATA recibido.
 						sMessage = new SOASMessage();
-						sMessage.setIp(AppContext.getIPAddress(true));
+						sMessage.setIp(AppContext.getLocalIPAddress());
 						sMessage.setType(SOASMessage.MessageType.DATA_ACK);
+						sMessage.setEcho(heartbeat.getLastSequence(),
+								dataTimestamp);
 						sendMessage(serverIP, AppContext.RECEIVE_SERVER_PORT,
 								sMessage);
 						Log.d(TAG, "(C) <DATA_ACK> forwarded to " + serverIP);
+						addEventToJournal(EventType.DATA_ACK_TX, serverIP,
+								retries, Float.NaN, Float.NaN,
+								heartbeat.getLastSequence());
 					}
 				} else if ((rMessage.getIp().equalsIgnoreCase(serverIP))
 						&& (rMessage.getType() == MessageType.DATA)) {
-					Log.d(TAG, "(C) <DATA> received from " + serverIP);
+					int seq = rMessage.getSequence();
+					if (!heartbeat.onData(seq, System.nanoTime())) {
+						// DATA duplicado o anterior al ultimo recibido.
+						Log.d(TAG, "(C) Old <DATA> " + seq + " from " + serverIP);
+						continue;
+					}
+					Log.d(TAG, "(C) <DATA> " + seq + " received from "
+							+ serverIP);
+					dataTimestamp = rMessage.getTimestamp();
+					recordOneWay(rMessage);
+					addEventToJournal(EventType.DATA_RX, serverIP, 0,
+							Float.NaN, Float.NaN, seq);
+					if (ackSent != 0) {
+						heartbeatTime.recordSince(ackSent);
+					}
 
 					// Se actualiza la velocidad en el video.
 					updateServerSpeed(rMessage.getSpeed());
 
-					// Se reinicia el numero de intentos.
-					attempts = 1;
+					// Se reinicia el numero de reintentos.
+					retries = 0;
 
 					// Se responde al servidor con un DATA_ACK o con un END, en
 					// funcion de si la visualizacion del video continua siendo
 					// util o no.
 					sMessage = new SOASMessage();
-					sMessage.setIp(AppContext.getIPAddress(true));
+					sMessage.setIp(AppContext.getLocalIPAddress());
 					if (isStreamingUseful(rMessage.getLocation())) { // DATA_ACK.
-						// Se envia un mensaje DATA_ACK.
+						// Se envia un mensaje DATA_ACK con el numero de
+						// secuencia y el instante de envio del DATA.
 						sMessage.setType(SOASMessage.MessageType.DATA_ACK);
-						Log.d(TAG, "(C) <DATA_ACK> sent to " + serverIP);
+						sMessage.setEcho(rMessage);
+						Log.d(TAG, "(C) <DATA_ACK> " + seq + " sent to "
+								+ serverIP);
+						addEventToJournal(EventType.DATA_ACK_TX, serverIP, 0,
+								Float.NaN, Float.NaN, seq);
 					} else { // END.
 						// Se envia un mensaje END.
 						sMessage.setType(SOASMessage.MessageType.END);
 						Log.d(TAG, "(C) <END> sent to " + serverIP);
+						addEventToJournal(EventType.END_TX, serverIP);
 
 						// Se cambia de estado.
 						synchronized (state) {
 							state = ClientState.END;
 						}
-						attempts = 4;
+						playing = false;
 					}
 					sendMessage(serverIP, AppContext.RECEIVE_SERVER_PORT,
 							sMessage);
+					ackSent = System.nanoTime();
 				} else { // El mensaje no es del servidor. Posible ataque.
-					attempts++;
 					Log.d(TAG, "(C) Message from an unknown server: "
 							+ rMessage.getIp());
 				}
-			} while ((attempts <= 3) && (!thisThread.isInterrupted())
+			} while (playing && (!thisThread.isInterrupted())
 					&& (thisThread == dThread));
 		}
 
@@ -969,6 +1301,9 @@ public class SOASClient extends Service {
 			}
 
 			// Se limpian las variables globales del hilo.
+			if (rMessage != null) {
+				rMessage.recycle();
+			}
 			rMessage = null;
 			sMessage = null;
 			serverIP = "";
@@ -981,98 +1316,33 @@ public class SOASClient extends Service {
 		}
 
 		/**
-		 * Indica si un servidor es valido o no para proporcionar el servicio de
-		 * streaming, evaluando su localizacion respecto a la del dispositivo
-		 * cliente.
+		 * Busca en la tabla de vecinos el servidor valido mas cercano. Para
+		 * que sea un servidor valido debe ir en la misma direccion que el
+		 * cliente y delante de el.
 		 * 
-		 * @param serverLocation
-		 *            Localizacion servidor (Vector 2D)
-		 * @return Servidor valido-True / Servidor no valido-False
+		 * @return IP del servidor o null si no hay ninguno valido
 		 */
-		private boolean isValidServer(double[] serverLoc) {
-			// Se comprueba si la validacion esta desactivada.
-			if (valParams[3] == 1) {
-				// Se acepta por defecto.
-				return true;
+		private String findBestServer() {
+			if (neighbours.isEmpty()) {
+				return null;
 			}
-			// Para que sea un servidor valido debe ir en la misma direccion que
-			// el cliente y delante de el.
-			double[] serverL = serverLoc;
+
+			// Se comprueba si la validacion esta desactivada.
+			boolean validate = (valParams[3] != 1);
 			double[] clientL = getLocation();
-			if ((lastLocation[0] != null) && (lastLocation[1] != null)) { // LOCALIZACION-DISPONIBLE.
-				// Se valida que ambos vectores cuenten con 2 puntos distintos,
-				// es decir que no tengan modulo nulo.
-				if (AppContext.isOnePointVector(serverL)
-						|| AppContext.isOnePointVector(clientL)) {
-					// No se puede continuar con la validacion.
-					Log.d(TAG_2, "(C) One point vector");
-					addInfoToLog("(VAL) One point vector");
-					return false;
-				} else {
-					// Validacion misma direccion-sentido. Se evalua el angulo
-					// que forman los dos vectores.
-					double degrees = AppContext.getDegrees(serverL, clientL);
-					if (degrees <= valParams[0]) { // Misma direccion-sentido.
-						// Validacion servidor delante de cliente. Se compara el
-						// angulo formado por el vector de direccion del cliente
-						// y el vector que une la posicion actual del cliente
-						// con la del servidor.
-						double[] clientToServer = { clientL[2], clientL[3],
-								serverL[2], serverL[3] };
-						degrees = AppContext
-								.getDegrees(clientL, clientToServer);
-						if (degrees <= valParams[1]) { // Delante.
-							return true;
-						} else { // No delante.
-							Log.d(TAG_2,
-									"(C) Server isn't in front of the client - "
-											+ Double.toString(degrees)
-											+ " degrees");
-							addInfoToLog("(VAL) Server isn't in front of the client");
-							return false;
-						}
-					} else { // Diferente direccion-sentido.
-						Log.d(TAG_2,
-								"(C) Different directions - "
-										+ Double.toString(degrees) + " degrees");
-						addInfoToLog("(VAL) Different directions");
-						return false;
-					}
-				}
-			} else { // LOCALIZACION-NO-DISPONIBLE.
+			if (validate
+					&& ((lastLocation[0] == null) || (lastLocation[1] == null))) {
 				// No se puede efectuar la validacion.
 				Log.d(TAG_2, "(C) Location not available");
-				addInfoToLog("(VAL) Location not available");
-				return false;
+				return null;
 			}
-		}
-
-		/**
-		 * Devuelve el servidor de streaming mas optimo de entre un conjunto de
-		 * servidores validos.
-		 */
-		private String bestValidServer(HashMap<String, double[]> candidates) {
-			// Variables locales
-			String nearbyCandidate = "";
-			float minDistance = Float.MAX_VALUE;
-
-			// Se selecciona el candidato mas cercano.
-			Iterator<String> iterator = candidates.keySet().iterator();
-			while (iterator.hasNext()) {
-				String cadidateIP = iterator.next();
-				double[] candidateL = candidates.get(cadidateIP);
-				double[] clientL = getLocation();
-				float[] distance = { 9999 };
-				Location.distanceBetween(clientL[2], clientL[3], candidateL[2],
-						candidateL[3], distance);
-				if (distance[0] < minDistance) { // Actualizar candidato.
-					minDistance = distance[0];
-					nearbyCandidate = cadidateIP;
-				}
+			String bestIP = neighbours.findNearestAhead(clientL, cosDirection,
+					cosAhead, CLEAR_MARGIN, validate);
+			if (bestIP != null) {
+				Log.d(TAG_2, "(C) Best candidate: " + bestIP + " - "
+						+ (int) neighbours.getBestDistance() + " m");
 			}
-
-			Log.d(TAG_2, "(C) Best candidate: " + nearbyCandidate);
-			return nearbyCandidate;
+			return bestIP;
 		}
 
 		/**
@@ -1135,13 +1405,16 @@ public class SOASClient extends Service {
 				// el vector que une la posicion actual del cliente con la
 				// posicion actual del servidor.
 				double[] clientL = getLocation();
-				double[] clientToServer = { clientL[2], clientL[3],
-						serverLoc[2], serverLoc[3] };
-				double degrees = AppContext.getDegrees(clientL, clientToServer);
-				if (degrees <= valParams[2]) { // Detras.
+				double cos = GeoKernel.cosBetween(clientL[2] - clientL[0],
+						clientL[3] - clientL[1], serverLoc[2] - clientL[2],
+						serverLoc[3] - clientL[3]);
+				if (GeoKernel.isWithin(cos, cosOvertaking)) { // Detras.
 					return true;
 				} else { // Delante.
 					Log.d(TAG_2, "(C) Client overtook the server");
+					addEventToJournal(EventType.VALIDATION_FAIL, serverIP, 0,
+							(float) GeoKernel.toDegrees(cos), Float.NaN,
+							EventJournal.FAIL_POSITION);
 					return false;
 				}
 			} else { // Reproductor RTSP OFF.
@@ -1175,18 +1448,43 @@ public class SOASClient extends Service {
 		 *            Mensaje
 		 */
 		private void sendMessage(String ip, int port, SOASMessage message) {
+			sendMessage(ip, port, message, 1, null);
+		}
+
+		/**
+		 * Permite enviar varias copias de un mensaje a un dispositivo servidor
+		 * indicando su direccion IP y el puerto de escucha. El envio es
+		 * asincrono: el mensaje se entrega al hilo emisor (o al transporte
+		 * NIO) y el resultado se notifica al oyente indicado.
+		 * 
+		 * @param ip
+		 *            Direccion IP destino
+		 * @param port
+		 *            Puerto destino
+		 * @param message
+		 *            Mensaje
+		 * @param repeat
+		 *            Numero de copias a enviar
+		 * @param callback
+		 *            Oyente del resultado del envio o null
+		 */
+		private void sendMessage(String ip, int port, SOASMessage message,
+				int repeat, SOASSendCallback callback) {
 			try {
-				// Se empaqueta el mensaje en un datagrama UDP.
-				byte[] sendBuf = AppContext.serializeMessage(message);
-				InetAddress IP;
-				IP = InetAddress.getByName(ip);
-				DatagramPacket packet = new DatagramPacket(sendBuf,
-						sendBuf.length, IP, port);
-
-				// Se pasa el datagrama al hilo de emision de mensajes y se
-				// arranca el hilo para que lo envie.
-				sThread.setPacket(packet);
-				sThread.run();
+				// Se obtiene la direccion destino, ya resuelta si se envio
+				// algun mensaje previo a la misma IP.
+				InetAddress address = AppContext.getInetAddress(ip);
+
+				// Se pasa el mensaje al transporte NIO o al hilo emisor de
+				// mensajes.
+				SOASTransport t = transport;
+				SOASSendThread st = sThread;
+				if (t != null) {
+					t.send(message, new InetSocketAddress(address, port),
+							repeat, callback);
+				} else if (st != null) {
+					st.send(message, address, port, repeat, callback);
+				}
 			} catch (UnknownHostException e) {
 				Log.d(TAG, "Error packaging message: " + e.getMessage());
 				e.printStackTrace();
@@ -1194,17 +1492,83 @@ public class SOASClient extends Service {
 		}
 
 		/**
-		 * Añade la informacion indicada al log de eventos de la sesion. Para
-		 * ello almacena la informacion en una BD SQLite.
+		 * Anota la latencia de un mensaje del servidor: diferencia entre el
+		 * instante de llegada y el de envio. Depende de que los relojes de
+		 * ambos dispositivos esten sincronizados, por lo que se descartan las
+		 * diferencias negativas.
+		 * 
+		 * @param message
+		 *            Mensaje recibido
+		 */
+		private void recordOneWay(SOASMessage message) {
+			long latency = SOASMessageCodec.currentTimeMicros()
+					- message.getTimestamp();
+			if ((message.getTimestamp() != 0) && (latency >= 0)) {
+				oneWay.record(latency);
+			}
+		}
+
+		/**
+		 * Anota en las metricas un cambio de estado del diagrama: el tiempo
+		 * que se ha permanecido en el estado anterior y la entrada en el
+		 * nuevo.
+		 * 
+		 * @param previous
+		 *            Estado anterior (ordinal) o NO_STATE
+		 * @param current
+		 *            Estado nuevo (ordinal)
+		 */
+		private void recordTransition(int previous, int current) {
+			if (previous != EventJournal.NO_STATE) {
+				stateTimes[previous].recordSince(stateSince);
+			}
+			stateEntries[current].increment();
+			stateSince = System.nanoTime();
+		}
+
+		/**
+		 * Añade la informacion indicada al log de eventos de la sesion. El
+		 * evento se entrega al escritor del log, que lo almacena en una BD
+		 * SQLite sin bloquear al hilo del diagrama de estados.
 		 */
 		private void addInfoToLog(String info) {
-			// Se almacena la informacion en la base de datos.
-			db = getApplicationContext().openOrCreateDatabase("sessionLogs",
-					MODE_PRIVATE, null);
-			db.execSQL("CREATE TABLE IF NOT EXISTS clientLog (id INTEGER PRIMARY KEY autoincrement, time TEXT NOT NULL, info TEXT NOT NULL)");
-			db.execSQL("INSERT INTO clientLog VALUES(null,'[ "
-					+ AppContext.getSystemTime() + " ]','" + info + "')");
-			db.close();
+			logWriter.log(info);
+		}
+
+		/**
+		 * Registra un evento sin datos numericos en el diario binario de la
+		 * sesion.
+		 * 
+		 * @param type
+		 *            Tipo de evento
+		 * @param peer
+		 *            IP del servidor o null
+		 */
+		private void addEventToJournal(EventType type, String peer) {
+			addEventToJournal(type, peer, 0, Float.NaN, Float.NaN, 0);
+		}
+
+		/**
+		 * Registra un evento en el diario binario de la sesion junto con el
+		 * ultimo estado registrado del diagrama.
+		 * 
+		 * @param type
+		 *            Tipo de evento
+		 * @param peer
+		 *            IP del servidor o null
+		 * @param count
+		 *            Contador (intentos)
+		 * @param angle
+		 *            Angulo en grados o NaN
+		 * @param distance
+		 *            Distancia en m o NaN
+		 * @param value
+		 *            Valor numerico libre
+		 */
+		private void addEventToJournal(EventType type, String peer, int count,
+				float angle, float distance, long value) {
+			journal.record(type, journalState, peer, count, angle, distance,
+					value);
 		}
 
 	} // Fin clase interna 'ClientDiagramThread'
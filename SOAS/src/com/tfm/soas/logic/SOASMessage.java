@@ -1,7 +1,5 @@
 package com.tfm.soas.logic;
 
-import java.io.Serializable;
-
 /**
  * Clase que implementa los mensajes utilizados por el sistema en su protocolo
  * de comunicacion C-S. Existen 7 tipos de mensajes diferentes:
@@ -35,7 +33,7 @@ import java.io.Serializable;
  * @version 1.0
  * @since 27-05-2014
  */
-public class SOASMessage implements Serializable {
+public class SOASMessage {
 
 	/*--------------------------------------------------------*/
 	/* ///////////////////// CONSTANTES ///////////////////// */
@@ -44,7 +42,7 @@ public class SOASMessage implements Serializable {
 		HELLO, REQUEST, READY, REJECT, DATA, DATA_ACK, END
 	}
 
-	private static final long serialVersionUID = 1L;
+	private static final int MAX_POOL_SIZE = 50; // Mensajes reciclables.
 
 	/*--------------------------------------------------------*/
 	/* ///////////////////// ATRIBUTOS ////////////////////// */
@@ -55,10 +53,75 @@ public class SOASMessage implements Serializable {
 	private float speed = 0; // Velocidad.
 	private int maxResolution[] = new int[2]; // Resolucion max soportada.
 	private int rtspPort = 0; // Puerto de escucha servidor RTSP.
+	private int sequence = 0; // Numero de secuencia.
+	private int echoSequence = 0; // Secuencia del mensaje respondido.
+	private long timestamp = 0; // Instante de envio (us).
+	private long echoTimestamp = 0; // Instante de envio del respondido (us).
+	private String multicastGroup = ""; // Grupo multicast del video.
+
+	private transient SOASMessage next = null; // Siguiente en el pool.
+	private static final Object poolSync = new Object(); // Acceso al pool.
+	private static SOASMessage pool = null; // Mensajes libres.
+	private static int poolSize = 0; // Numero de mensajes libres.
 
 	/*--------------------------------------------------------*/
 	/* /////////////////////// METODOS ////////////////////// */
 	/*--------------------------------------------------------*/
+	/**
+	 * Devuelve un mensaje vacio tomado del pool de mensajes reciclados, o uno
+	 * nuevo si el pool esta vacio. Evita crear un objeto (y sus arrays) por
+	 * cada datagrama recibido.
+	 * 
+	 * @return Mensaje vacio
+	 */
+	public static SOASMessage obtain() {
+		synchronized (poolSync) {
+			if (pool != null) {
+				SOASMessage message = pool;
+				pool = message.next;
+				message.next = null;
+				poolSize--;
+				return message;
+			}
+		}
+		return new SOASMessage();
+	}
+
+	/**
+	 * Devuelve el mensaje al pool para que pueda ser reutilizado. Tras
+	 * llamar a este metodo el mensaje, y los arrays devueltos por
+	 * getLocation() y getMaxResolution(), no deben seguir utilizandose.
+	 */
+	public void recycle() {
+		type = null;
+		ip = "";
+		if (location != null && location.length == 4) {
+			location[0] = location[1] = location[2] = location[3] = 0;
+		} else {
+			location = new double[4];
+		}
+		speed = 0;
+		if (maxResolution != null && maxResolution.length == 2) {
+			maxResolution[0] = maxResolution[1] = 0;
+		} else {
+			maxResolution = new int[2];
+		}
+		rtspPort = 0;
+		sequence = 0;
+		echoSequence = 0;
+		timestamp = 0;
+		echoTimestamp = 0;
+		multicastGroup = "";
+
+		synchronized (poolSync) {
+			if (poolSize < MAX_POOL_SIZE) {
+				next = pool;
+				pool = this;
+				poolSize++;
+			}
+		}
+	}
+
 	/**
 	 * Devuelve el tipo de mensaje.
 	 * 
@@ -117,6 +180,56 @@ public class SOASMessage implements Serializable {
 		return rtspPort;
 	}
 
+	/**
+	 * Devuelve el grupo multicast al que el servidor envia el video (READY).
+	 * 
+	 * @return Grupo en formato a.b.c.d o "" si el video se envia por unicast
+	 */
+	public String getMulticastGroup() {
+		return multicastGroup;
+	}
+
+	/**
+	 * Devuelve el numero de secuencia del mensaje. Lo asigna el codificador
+	 * al enviar el mensaje; las copias de un mismo envio comparten numero.
+	 * 
+	 * @return Numero de secuencia o 0 si no se ha enviado
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Devuelve el numero de secuencia del mensaje al que responde este (p.ej.
+	 * el DATA respondido por un DATA_ACK o el REQUEST respondido por un
+	 * READY).
+	 * 
+	 * @return Numero de secuencia o 0 si no responde a ningun mensaje
+	 */
+	public int getEchoSequence() {
+		return echoSequence;
+	}
+
+	/**
+	 * Devuelve el instante de envio del mensaje segun el reloj del emisor.
+	 * 
+	 * @return Instante (us, ver SOASMessageCodec.currentTimeMicros())
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Devuelve el instante de envio del mensaje al que responde este, segun
+	 * el reloj de quien lo envio, de modo que este puede calcular el tiempo
+	 * de ida y vuelta con su propio reloj.
+	 * 
+	 * @return Instante (us) o 0 si no responde a ningun mensaje
+	 */
+	public long getEchoTimestamp() {
+		return echoTimestamp;
+	}
+
 	/**
 	 * Permite definir el tipo de mensaje.
 	 * 
@@ -181,4 +294,60 @@ public class SOASMessage implements Serializable {
 		this.rtspPort = portRTSP;
 	}
 
+	/**
+	 * Permite definir el grupo multicast al que el servidor envia el video.
+	 * 
+	 * @param multicastGroup
+	 *            Grupo en formato a.b.c.d o "" para unicast
+	 */
+	public void setMulticastGroup(String multicastGroup) {
+		this.multicastGroup = (multicastGroup != null) ? multicastGroup : "";
+	}
+
+	/**
+	 * Permite definir el numero de secuencia del mensaje.
+	 * 
+	 * @param sequence
+	 *            Numero de secuencia
+	 */
+	public void setSequence(int sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Permite definir el instante de envio del mensaje.
+	 * 
+	 * @param timestamp
+	 *            Instante (us)
+	 */
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Permite indicar el mensaje al que responde este, devolviendo su numero
+	 * de secuencia y su instante de envio.
+	 * 
+	 * @param request
+	 *            Mensaje respondido
+	 */
+	public void setEcho(SOASMessage request) {
+		this.echoSequence = request.getSequence();
+		this.echoTimestamp = request.getTimestamp();
+	}
+
+	/**
+	 * Permite definir el numero de secuencia y el instante de envio del
+	 * mensaje al que responde este.
+	 * 
+	 * @param echoSequence
+	 *            Numero de secuencia del mensaje respondido
+	 * @param echoTimestamp
+	 *            Instante de envio del mensaje respondido (us)
+	 */
+	public void setEcho(int echoSequence, long echoTimestamp) {
+		this.echoSequence = echoSequence;
+		this.echoTimestamp = echoTimestamp;
+	}
+
 } // Fin clase 'SOASMessage'
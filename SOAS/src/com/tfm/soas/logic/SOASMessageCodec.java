@@ -0,0 +1,389 @@
+package com.tfm.soas.logic;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.tfm.soas.logic.SOASMessage.MessageType;
+
+/**
+ * Codificador binario de los mensajes SOAS. Sustituye a la serializacion Java
+ * por un formato de longitud fija y versionado que se escribe directamente
+ * sobre un ByteBuffer proporcionado por el llamante, sin crear objetos
+ * intermedios.
+ *
+ * Formato (orden de red, big-endian):
+ *
+ * [0] Marca 'S' | [1] Version | [2] Tipo | [3] Flags | [4-7] IPv4 |
+ * [8-39] Ubicacion (4 x double) | [40-43] Velocidad (float) |
+ * [44-51] Resolucion maxima (2 x int) | [52-53] Puerto RTSP (short) |
+ * [54-57] Numero de secuencia (int) | [58-61] Secuencia respondida (int) |
+ * [62-69] Instante de envio (long, us) | [70-77] Instante respondido (long) |
+ * [78-81] Grupo multicast del video (IPv4, 0 = unicast)
+ *
+ * Version 2: Añade el numero de secuencia de DATA / DATA_ACK.
+ * Version 3: Todos los mensajes se numeran y llevan su instante de envio. Las
+ * respuestas devuelven el numero y el instante del mensaje respondido.
+ * Version 4: El READY indica el grupo multicast al que se envia el video.
+ */
+public final class SOASMessageCodec {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	public static final byte MAGIC = 'S'; // Marca de mensaje SOAS.
+	public static final byte VERSION = 4; // Version del formato.
+	public static final int MESSAGE_SIZE = 82; // Bytes por mensaje.
+
+	public static final int OFFSET_TYPE = 2; // Posicion del tipo.
+	public static final int OFFSET_FLAGS = 3; // Posicion de los flags.
+	public static final int OFFSET_IP = 4; // Posicion de la IP.
+	public static final int OFFSET_SEQUENCE = 54; // Posicion de la secuencia.
+
+	public static final String BUSY_IP = "X.X.X.X"; // IP servidor ocupado.
+	public static final int FLAG_BUSY = 0x01; // IP = BUSY_IP.
+	public static final int FLAG_NO_IP = 0x02; // IP vacia o no IPv4.
+
+	private static final MessageType[] TYPES = MessageType.values();
+	private static final int IP_CACHE_SIZE = 64; // Potencia de 2.
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	// Cache de IPs ya convertidas a texto, indexada por el ultimo octeto.
+	// Evita crear un String por cada mensaje recibido del mismo emisor.
+	private static final IPEntry[] ipCache = new IPEntry[IP_CACHE_SIZE];
+
+	// Numero de secuencia del siguiente mensaje. Comienza en un valor
+	// aleatorio para que, tras reiniciar la aplicacion, los receptores no
+	// confundan los mensajes nuevos con duplicados de los anteriores.
+	private static final AtomicInteger nextSequence = new AtomicInteger(
+			1 + new Random().nextInt(Integer.MAX_VALUE));
+
+	// Referencia del reloj de los mensajes: hora del sistema y nanoTime() en
+	// el mismo instante.
+	private static final long baseMicros = System.currentTimeMillis() * 1000;
+	private static final long baseNanos = System.nanoTime();
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Constructor privado. Clase de utilidades.
+	 */
+	private SOASMessageCodec() {
+	}
+
+	/**
+	 * Devuelve la hora actual en microsegundos. Sigue a la hora del sistema
+	 * del arranque pero avanza con System.nanoTime(), por lo que no retrocede
+	 * y tiene resolucion por debajo del milisegundo.
+	 *
+	 * @return Hora actual (us)
+	 */
+	public static long currentTimeMicros() {
+		return baseMicros + ((System.nanoTime() - baseNanos) / 1000);
+	}
+
+	/**
+	 * Codifica el mensaje en la posicion actual del buffer, avanzandola
+	 * MESSAGE_SIZE bytes. Se asigna al mensaje un nuevo numero de secuencia y
+	 * su instante de envio, que quedan guardados en el propio mensaje para
+	 * que el emisor pueda consultarlos.
+	 *
+	 * @param message
+	 *            Mensaje a codificar
+	 * @param buffer
+	 *            Buffer destino
+	 * @throws BufferOverflowException
+	 *             Si no hay espacio suficiente en el buffer
+	 */
+	public static void encode(SOASMessage message, ByteBuffer buffer) {
+		if (buffer.remaining() < MESSAGE_SIZE) {
+			throw new BufferOverflowException();
+		}
+
+		// Cabecera.
+		MessageType type = message.getType();
+		buffer.put(MAGIC);
+		buffer.put(VERSION);
+		buffer.put((byte) (type == null ? -1 : type.ordinal()));
+
+		// IP del emisor. Se admite la IP de servidor ocupado y la IP vacia.
+		String ip = message.getIp();
+		int flags = 0;
+		long address = 0;
+		if (BUSY_IP.equals(ip)) {
+			flags |= FLAG_BUSY;
+		} else {
+			address = parseIPv4(ip);
+			if (address < 0) {
+				flags |= FLAG_NO_IP;
+				address = 0;
+			}
+		}
+		buffer.put((byte) flags);
+		buffer.putInt((int) address);
+
+		// Contenido.
+		double[] location = message.getLocation();
+		for (int i = 0; i < 4; i++) {
+			buffer.putDouble(location != null && location.length > i ? location[i]
+					: 0);
+		}
+		buffer.putFloat(message.getSpeed());
+		int[] resolution = message.getMaxResolution();
+		for (int i = 0; i < 2; i++) {
+			buffer.putInt(resolution != null && resolution.length > i ? resolution[i]
+					: 0);
+		}
+		buffer.putShort((short) message.getRTSPPort());
+
+		// Numeracion e instantes de envio.
+		int sequence = nextSequence.getAndIncrement();
+		if (sequence == 0) {
+			sequence = nextSequence.getAndIncrement(); // 0 = sin numerar.
+		}
+		message.setSequence(sequence);
+		message.setTimestamp(currentTimeMicros());
+		buffer.putInt(sequence);
+		buffer.putInt(message.getEchoSequence());
+		buffer.putLong(message.getTimestamp());
+		buffer.putLong(message.getEchoTimestamp());
+
+		// Grupo multicast.
+		long group = parseIPv4(message.getMulticastGroup());
+		buffer.putInt((int) Math.max(group, 0));
+	}
+
+	/**
+	 * Decodifica el mensaje que comienza en la posicion actual del buffer
+	 * sobre una instancia existente, reutilizando sus arrays de ubicacion y
+	 * resolucion. Si el contenido no es un mensaje SOAS valido el buffer no se
+	 * modifica.
+	 *
+	 * @param buffer
+	 *            Buffer origen
+	 * @param message
+	 *            Mensaje donde volcar el contenido
+	 * @return True-Mensaje decodificado / False-Datos no validos
+	 */
+	public static boolean decode(ByteBuffer buffer, SOASMessage message) {
+		int start = buffer.position();
+		if (!isValid(buffer, start, buffer.remaining())) {
+			return false;
+		}
+
+		buffer.position(start + OFFSET_TYPE);
+		message.setType(TYPES[buffer.get()]);
+		int flags = buffer.get();
+		long address = buffer.getInt() & 0xFFFFFFFFL;
+		if ((flags & FLAG_BUSY) != 0) {
+			message.setIp(BUSY_IP);
+		} else if ((flags & FLAG_NO_IP) != 0) {
+			message.setIp("");
+		} else {
+			message.setIp(toIPv4String(address));
+		}
+
+		double[] location = message.getLocation();
+		if (location == null || location.length != 4) {
+			location = new double[4];
+			message.setLocation(location);
+		}
+		for (int i = 0; i < 4; i++) {
+			location[i] = buffer.getDouble();
+		}
+		message.setSpeed(buffer.getFloat());
+		int[] resolution = message.getMaxResolution();
+		if (resolution == null || resolution.length != 2) {
+			resolution = new int[2];
+			message.setMaxResolution(resolution);
+		}
+		resolution[0] = buffer.getInt();
+		resolution[1] = buffer.getInt();
+		message.setRTSPPort(buffer.getShort() & 0xFFFF);
+		message.setSequence(buffer.getInt());
+		int echoSequence = buffer.getInt();
+		message.setTimestamp(buffer.getLong());
+		message.setEcho(echoSequence, buffer.getLong());
+		long group = buffer.getInt() & 0xFFFFFFFFL;
+		message.setMulticastGroup((group != 0) ? toIPv4String(group) : "");
+		return true;
+	}
+
+	/**
+	 * Devuelve el tipo del mensaje contenido en los bytes indicados sin
+	 * decodificarlo.
+	 *
+	 * @param buffer
+	 *            Buffer origen
+	 * @param offset
+	 *            Inicio del mensaje
+	 * @param length
+	 *            Bytes disponibles
+	 * @return Tipo de mensaje o null si no es un mensaje SOAS valido
+	 */
+	public static MessageType peekType(ByteBuffer buffer, int offset,
+			int length) {
+		if (!isValid(buffer, offset, length)) {
+			return null;
+		}
+		return TYPES[buffer.get(offset + OFFSET_TYPE)];
+	}
+
+	/**
+	 * Devuelve los flags del mensaje contenido en los bytes indicados sin
+	 * decodificarlo. El mensaje debe haber sido validado previamente.
+	 *
+	 * @param buffer
+	 *            Buffer origen
+	 * @param offset
+	 *            Inicio del mensaje
+	 * @return Flags (FLAG_BUSY, FLAG_NO_IP)
+	 */
+	public static int peekFlags(ByteBuffer buffer, int offset) {
+		return buffer.get(offset + OFFSET_FLAGS);
+	}
+
+	/**
+	 * Devuelve la IP del emisor del mensaje contenido en los bytes indicados
+	 * sin decodificarlo. El mensaje debe haber sido validado previamente.
+	 *
+	 * @param buffer
+	 *            Buffer origen
+	 * @param offset
+	 *            Inicio del mensaje
+	 * @return IP como entero sin signo o -1 si el emisor no indico una IPv4
+	 */
+	public static long peekAddress(ByteBuffer buffer, int offset) {
+		if ((peekFlags(buffer, offset) & (FLAG_BUSY | FLAG_NO_IP)) != 0) {
+			return -1;
+		}
+		return buffer.getInt(offset + OFFSET_IP) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Devuelve el numero de secuencia del mensaje contenido en los bytes
+	 * indicados sin decodificarlo. El mensaje debe haber sido validado
+	 * previamente.
+	 *
+	 * @param buffer
+	 *            Buffer origen
+	 * @param offset
+	 *            Inicio del mensaje
+	 * @return Numero de secuencia
+	 */
+	public static int peekSequence(ByteBuffer buffer, int offset) {
+		return buffer.getInt(offset + OFFSET_SEQUENCE);
+	}
+
+	/**
+	 * Comprueba si los bytes indicados contienen un mensaje SOAS valido para
+	 * esta version del formato.
+	 *
+	 * @param buffer
+	 *            Buffer origen
+	 * @param offset
+	 *            Inicio del mensaje
+	 * @param length
+	 *            Bytes disponibles
+	 * @return True-Valido / False-No valido
+	 */
+	public static boolean isValid(ByteBuffer buffer, int offset, int length) {
+		if (length < MESSAGE_SIZE) {
+			return false;
+		}
+		if (buffer.get(offset) != MAGIC || buffer.get(offset + 1) != VERSION) {
+			return false;
+		}
+		int type = buffer.get(offset + OFFSET_TYPE);
+		return type >= 0 && type < TYPES.length;
+	}
+
+	/**
+	 * Convierte una direccion IPv4 en formato texto a su valor entero sin
+	 * crear objetos intermedios.
+	 *
+	 * @param ip
+	 *            IP en formato a.b.c.d
+	 * @return IP como entero sin signo o -1 si no es una IPv4 valida
+	 */
+	public static long parseIPv4(String ip) {
+		if (ip == null) {
+			return -1;
+		}
+		int length = ip.length();
+		long address = 0;
+		int octet = -1;
+		int dots = 0;
+		for (int i = 0; i < length; i++) {
+			char c = ip.charAt(i);
+			if (c >= '0' && c <= '9') {
+				octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+				if (octet > 255) {
+					return -1;
+				}
+			} else if (c == '.' && octet >= 0 && dots < 3) {
+				address = (address << 8) | octet;
+				octet = -1;
+				dots++;
+			} else {
+				return -1;
+			}
+		}
+		if (dots != 3 || octet < 0) {
+			return -1;
+		}
+		return (address << 8) | octet;
+	}
+
+	/**
+	 * Devuelve la IP en formato texto reutilizando, si es posible, el String
+	 * creado para la misma IP en un mensaje anterior.
+	 *
+	 * @param address
+	 *            IP como entero sin signo
+	 * @return IP en formato a.b.c.d
+	 */
+	private static String toIPv4String(long address) {
+		int slot = (int) (address & (IP_CACHE_SIZE - 1));
+		IPEntry entry = ipCache[slot];
+		if (entry == null || entry.address != address) {
+			entry = new IPEntry(address, formatIPv4(address));
+			ipCache[slot] = entry;
+		}
+		return entry.ip;
+	}
+
+	/**
+	 * Convierte una direccion IPv4 en formato entero a formato texto.
+	 *
+	 * @param address
+	 *            IP como entero sin signo
+	 * @return IP en formato a.b.c.d
+	 */
+	public static String formatIPv4(long address) {
+		StringBuilder sb = new StringBuilder(15);
+		sb.append((address >>> 24) & 0xFF).append('.');
+		sb.append((address >>> 16) & 0xFF).append('.');
+		sb.append((address >>> 8) & 0xFF).append('.');
+		sb.append(address & 0xFF);
+		return sb.toString();
+	}
+
+	/**
+	 * Entrada inmutable de la cache de IPs.
+	 */
+	private static final class IPEntry {
+		final long address; // IP como entero.
+		final String ip; // IP como texto.
+
+		IPEntry(long address, String ip) {
+			this.address = address;
+			this.ip = ip;
+		}
+	} // Fin clase interna 'IPEntry'
+
+} // Fin clase 'SOASMessageCodec'
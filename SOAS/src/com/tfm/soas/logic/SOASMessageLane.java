@@ -0,0 +1,150 @@
+package com.tfm.soas.logic;
+
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.tfm.soas.logic.SOASMessage.MessageType;
+import com.tfm.soas.logic.SOASMessageQueue.OverflowPolicy;
+
+/**
+ * Carril de la cola de mensajes SOAS. Buffer circular de tamaño fijo sin
+ * bloqueos para un unico productor. La extraccion de mensajes es segura desde
+ * cualquier hilo, lo que permite al productor descartar el mensaje mas
+ * antiguo cuando el carril esta lleno.
+ */
+final class SOASMessageLane {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private final SOASMessage[] slots; // Buffer circular de mensajes.
+	private final int mask; // Capacidad - 1 (potencia de 2).
+	private final AtomicLong head = new AtomicLong(0); // Siguiente a leer.
+	private final AtomicLong tail = new AtomicLong(0); // Siguiente a escribir.
+	private final AtomicLong dropped = new AtomicLong(0); // Descartados.
+	private final OverflowPolicy policy; // Politica de desbordamiento.
+	private final EnumSet<MessageType> droppableTypes; // Tipos descartables.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Constructor para instancias de la clase SOASMessageLane.
+	 *
+	 * @param capacity
+	 *            Capacidad minima. Se redondea a la siguiente potencia de 2
+	 * @param policy
+	 *            Politica de desbordamiento
+	 * @param droppableTypes
+	 *            Tipos que se descartan al desbordar con DROP_BY_TYPE
+	 */
+	SOASMessageLane(int capacity, OverflowPolicy policy,
+			EnumSet<MessageType> droppableTypes) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.slots = new SOASMessage[size];
+		this.mask = size - 1;
+		this.policy = policy;
+		this.droppableTypes = droppableTypes;
+	}
+
+	/**
+	 * Devuelve y elimina el mensaje mas antiguo del carril sin esperar.
+	 *
+	 * @return Mensaje o null si el carril esta vacio
+	 */
+	SOASMessage poll() {
+		while (true) {
+			long h = head.get();
+			if (h >= tail.get()) {
+				return null;
+			}
+			SOASMessage message = slots[(int) h & mask];
+			// Solo uno de los hilos que compiten por la cabeza se queda con
+			// el mensaje (consumidor o productor descartando).
+			if (head.compareAndSet(h, h + 1)) {
+				return message;
+			}
+		}
+	}
+
+	/**
+	 * Inserta un mensaje al final del carril. Solo debe ser invocado por el
+	 * hilo productor. Si el carril esta lleno se aplica la politica de
+	 * desbordamiento.
+	 *
+	 * @param message
+	 *            Mensaje a insertar
+	 * @return True-Mensaje encolado / False-Mensaje descartado
+	 */
+	boolean offer(SOASMessage message) {
+		long t = tail.get();
+		if (t - head.get() > mask) { // Carril lleno.
+			if ((policy == OverflowPolicy.DROP_BY_TYPE)
+					&& droppableTypes.contains(message.getType())) {
+				dropped.incrementAndGet();
+				message.recycle();
+				return false;
+			}
+			SOASMessage oldest = poll();
+			if (oldest != null) {
+				dropped.incrementAndGet();
+				oldest.recycle();
+			}
+		}
+
+		// Se inserta el mensaje y se publica la nueva cola.
+		slots[(int) t & mask] = message;
+		tail.set(t + 1);
+		return true;
+	}
+
+	/**
+	 * Vacia el carril devolviendo los mensajes al pool.
+	 */
+	void clear() {
+		SOASMessage message;
+		while ((message = poll()) != null) {
+			message.recycle();
+		}
+	}
+
+	/**
+	 * Indica si el carril esta vacio.
+	 *
+	 * @return True-Vacio / False-Con mensajes
+	 */
+	boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+
+	/**
+	 * Devuelve el numero de mensajes en el carril.
+	 *
+	 * @return Mensajes encolados
+	 */
+	int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	/**
+	 * Devuelve la capacidad del carril.
+	 *
+	 * @return Capacidad
+	 */
+	int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Devuelve el numero de mensajes descartados por desbordamiento.
+	 *
+	 * @return Mensajes descartados
+	 */
+	long getDroppedCount() {
+		return dropped.get();
+	}
+
+} // Fin clase 'SOASMessageLane'
@@ -1,14 +1,32 @@
 package com.tfm.soas.logic;
 
-import java.util.LinkedList;
+import java.util.EnumSet;
+import java.util.concurrent.locks.LockSupport;
 
+import com.tfm.soas.logic.SOASMessage.MessageType;
 
 import android.util.Log;
 
 /**
- * Cola de mensajes SOAS que garantiza la exclusion mutua en la lectura y
- * escritura de mensajes por parte de los threads consumidor y productor.
- * 
+ * Cola de mensajes SOAS sin bloqueos dividida en carriles con prioridad. Esta
+ * pensada para un unico productor (hilo receptor) y un consumidor (hilo del
+ * diagrama de estados), aunque la extraccion de mensajes es segura desde
+ * cualquier hilo.
+ *
+ * Los mensajes se reparten segun su tipo en tres carriles, cada uno con su
+ * propia capacidad. El consumidor siempre vacia primero el carril de mayor
+ * prioridad, de modo que los mensajes de sesion no esperan detras de una
+ * rafaga de anuncios:
+ *
+ * 1- CONTROL: REQUEST, READY, REJECT, END.
+ *
+ * 2- HEARTBEAT: DATA, DATA_ACK.
+ *
+ * 3- DISCOVERY: HELLO.
+ *
+ * El productor nunca se bloquea: si un carril esta lleno se descarta un
+ * mensaje segun la politica de desbordamiento configurada.
+ *
  * @author Javier Herrero Arnanz
  * @version 1.0
  * @since 16-06-2014
@@ -18,116 +36,264 @@ public class SOASMessageQueue {
 	/*--------------------------------------------------------*/
 	/* ///////////////////// CONSTANTES ///////////////////// */
 	/*--------------------------------------------------------*/
-	private static final int MAX_SIZE = 30; // Tamanyo maximo.
+	/**
+	 * Politicas de desbordamiento de los carriles.
+	 *
+	 * DROP_OLDEST: Se descarta el mensaje mas antiguo para hacer hueco.
+	 *
+	 * DROP_BY_TYPE: Se descarta el mensaje entrante si su tipo es descartable.
+	 * En otro caso se descarta el mensaje mas antiguo.
+	 */
+	public static enum OverflowPolicy {
+		DROP_OLDEST, DROP_BY_TYPE
+	}
+
+	/**
+	 * Carriles de la cola, ordenados de mayor a menor prioridad.
+	 */
+	public static enum Lane {
+		CONTROL, HEARTBEAT, DISCOVERY;
+
+		/**
+		 * Devuelve el carril al que pertenece un tipo de mensaje.
+		 *
+		 * @param type
+		 *            Tipo de mensaje
+		 * @return Carril
+		 */
+		public static Lane of(MessageType type) {
+			if (type == null) {
+				return CONTROL;
+			}
+			switch (type) {
+			case HELLO:
+				return DISCOVERY;
+			case DATA:
+			case DATA_ACK:
+				return HEARTBEAT;
+			default:
+				return CONTROL;
+			}
+		}
+	}
+
+	private static final int CONTROL_CAPACITY = 16; // Capacidad CONTROL.
+	private static final int HEARTBEAT_CAPACITY = 8; // Capacidad HEARTBEAT.
+	private static final int DISCOVERY_CAPACITY = 32; // Capacidad DISCOVERY.
+	private static final Lane[] LANES = Lane.values();
 	private static final String TAG = "SOASMessageQueue";
 
 	/*--------------------------------------------------------*/
 	/* ///////////////////// ATRIBUTOS ////////////////////// */
 	/*--------------------------------------------------------*/
-	private LinkedList<SOASMessage> messageQueue = null; // Buffer de mensajes.
-	private boolean isEmpty = true; // Esta vacia.
-	private boolean isFull = false; // Esta llena.
+	private final SOASMessageLane[] lanes; // Carriles por prioridad.
+	private volatile Thread consumer = null; // Consumidor en espera.
 
 	/*--------------------------------------------------------*/
 	/* /////////////////////// METODOS ////////////////////// */
 	/*--------------------------------------------------------*/
 	/**
-	 * Constructor para instancias de la clase SOASMessageQueue.
+	 * Constructor para instancias de la clase SOASMessageQueue con las
+	 * capacidades por defecto y politica DROP_OLDEST.
 	 */
 	public SOASMessageQueue() {
-		// Se inicializa la cola de mensajes.
-		messageQueue = new LinkedList<SOASMessage>();
-		isEmpty = true;
-		isFull = false;
+		this(CONTROL_CAPACITY, HEARTBEAT_CAPACITY, DISCOVERY_CAPACITY,
+				OverflowPolicy.DROP_OLDEST);
 	}
 
 	/**
-	 * Devuelve y elimina el mensaje situado en la primera posicion de la cola.
-	 * 
-	 * @param timeout
-	 *            Tiempo de espera si la cola esta vacia
-	 * @return Mensaje situado en la cabeza de la cola
-	 * @throws InterruptedException
+	 * Constructor para instancias de la clase SOASMessageQueue.
+	 *
+	 * @param controlCapacity
+	 *            Capacidad del carril CONTROL
+	 * @param heartbeatCapacity
+	 *            Capacidad del carril HEARTBEAT
+	 * @param discoveryCapacity
+	 *            Capacidad del carril DISCOVERY
+	 * @param policy
+	 *            Politica de desbordamiento de los carriles
+	 * @param droppableTypes
+	 *            Tipos que se descartan al desbordar con DROP_BY_TYPE
 	 */
-	public synchronized SOASMessage takeMessage(long timeout) {
-		// No se puede consumir si la cola esta vacia.
-		while (isEmpty) {
-			// Se espera a que la cola deje de estar vacia o a que se
-			// consuma el timeout.
-			try {
-				wait(timeout);
-				if ((isEmpty) && (timeout > 0)) { // Vencio el timeout.
-					return null;
-				}
-			} catch (InterruptedException e) {
-				Log.d(TAG, "Error waiting for a message: " + e.getMessage());
-				e.printStackTrace();
+	public SOASMessageQueue(int controlCapacity, int heartbeatCapacity,
+			int discoveryCapacity, OverflowPolicy policy,
+			MessageType... droppableTypes) {
+		EnumSet<MessageType> droppable = EnumSet.noneOf(MessageType.class);
+		for (MessageType type : droppableTypes) {
+			droppable.add(type);
+		}
+		lanes = new SOASMessageLane[LANES.length];
+		lanes[Lane.CONTROL.ordinal()] = new SOASMessageLane(controlCapacity,
+				policy, droppable);
+		lanes[Lane.HEARTBEAT.ordinal()] = new SOASMessageLane(
+				heartbeatCapacity, policy, droppable);
+		lanes[Lane.DISCOVERY.ordinal()] = new SOASMessageLane(
+				discoveryCapacity, policy, droppable);
+	}
 
-				// Se retransmite la interrupcion.
-				Thread.currentThread().interrupt();
+	/**
+	 * Devuelve y elimina el mensaje de mayor prioridad de la cola. Si la cola
+	 * esta vacia espera hasta que llegue un mensaje o venza el timeout, sin
+	 * retornar antes de tiempo por despertares espurios.
+	 *
+	 * @param timeout
+	 *            Tiempo de espera (ms) si la cola esta vacia. 0 = Sin limite
+	 * @return Mensaje de mayor prioridad, null si vencio el timeout o un
+	 *         mensaje vacio si se interrumpio el hilo
+	 */
+	public SOASMessage takeMessage(long timeout) {
+		SOASMessage message = poll();
+		if (message != null) {
+			return message;
+		}
 
-				// Se interrumpio el hilo, se devuelve un mensaje
-				// vacio.
-				return new SOASMessage();
+		// No se puede consumir si la cola esta vacia. El consumidor se
+		// registra antes de volver a comprobar la cola para que el productor
+		// pueda despertarlo.
+		long deadline = System.nanoTime() + (timeout * 1000000L);
+		Thread current = Thread.currentThread();
+		consumer = current;
+		try {
+			while (true) {
+				message = poll();
+				if (message != null) {
+					return message;
+				}
+				if (current.isInterrupted()) {
+					// Se interrumpio el hilo, se devuelve un mensaje vacio. Se
+					// mantiene el flag de interrupcion.
+					Log.d(TAG, "Interrupted while waiting for a message");
+					return SOASMessage.obtain();
+				}
+				if (timeout > 0) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) { // Vencio el timeout.
+						return null;
+					}
+					LockSupport.parkNanos(this, remaining);
+				} else {
+					LockSupport.park(this);
+				}
 			}
+		} finally {
+			consumer = null;
 		}
-		// Se extrae el mensaje.
-		SOASMessage message = messageQueue.poll();
-
-		// Se actualiza el estado de la cola.
-		isEmpty = messageQueue.isEmpty();
-		isFull = false;
-
-		// Despierta al productor si se encuentra bloqueado.
-		notify();
+	}
 
-		// Devuelve el mensaje al thread consumidor.
-		return (message);
+	/**
+	 * Devuelve y elimina el mensaje de mayor prioridad de la cola sin
+	 * esperar.
+	 *
+	 * @return Mensaje o null si la cola esta vacia
+	 */
+	public SOASMessage poll() {
+		for (int i = 0; i < lanes.length; i++) {
+			SOASMessage message = lanes[i].poll();
+			if (message != null) {
+				return message;
+			}
+		}
+		return null;
 	}
 
 	/**
-	 * Inserta un mensaje al final de la cola.
-	 * 
+	 * Inserta un mensaje al final del carril que le corresponde por su tipo.
+	 * Solo debe ser invocado por el hilo productor. Nunca bloquea: si el
+	 * carril esta lleno se aplica la politica de desbordamiento.
+	 *
 	 * @param message
 	 *            Mensaje a insertar
-	 * @throws InterruptedException
+	 * @return True-Mensaje encolado / False-Mensaje descartado
 	 */
-	public synchronized void insertMessage(SOASMessage message) {
-		// No se puede introducir si la cola esta llena.
-		while (isFull) {
-			// Se espera a que la cola deje de estar llena.
-			try {
-				wait(0);
-			} catch (InterruptedException e) {
-				Log.d(TAG, "Error waiting for a gap: " + e.getMessage());
-				e.printStackTrace();
-
-				// Se retransmite la interrupcion.
-				Thread.currentThread().interrupt();
-
-				return;
-			}
+	public boolean insertMessage(SOASMessage message) {
+		boolean inserted = lanes[Lane.of(message.getType()).ordinal()]
+				.offer(message);
+
+		// Despierta al consumidor si se encuentra bloqueado.
+		Thread waiter = consumer;
+		if (inserted && (waiter != null)) {
+			LockSupport.unpark(waiter);
 		}
-		// Se inserta el mensaje al final de la cola.
-		messageQueue.addLast(message);
+		return inserted;
+	}
 
-		// Se actualiza el estado de la cola.
-		isEmpty = false;
-		if (messageQueue.size() == MAX_SIZE) {
-			isFull = true;
+	/**
+	 * Vacia la cola de mensajes.
+	 */
+	public void clearQueue() {
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i].clear();
 		}
+	}
 
-		// Despierta al consumidor si se encuentra bloqueado.
-		notify();
+	/**
+	 * Vacia un carril de la cola de mensajes.
+	 *
+	 * @param lane
+	 *            Carril a vaciar
+	 */
+	public void clearLane(Lane lane) {
+		lanes[lane.ordinal()].clear();
 	}
 
 	/**
-	 * Vacia la cola de mensajes.
+	 * Devuelve el numero de mensajes en la cola.
+	 *
+	 * @return Mensajes encolados
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < lanes.length; i++) {
+			size += lanes[i].size();
+		}
+		return size;
+	}
+
+	/**
+	 * Devuelve el numero de mensajes en un carril.
+	 *
+	 * @param lane
+	 *            Carril
+	 * @return Mensajes encolados
+	 */
+	public int size(Lane lane) {
+		return lanes[lane.ordinal()].size();
+	}
+
+	/**
+	 * Devuelve la capacidad de un carril.
+	 *
+	 * @param lane
+	 *            Carril
+	 * @return Capacidad
+	 */
+	public int capacity(Lane lane) {
+		return lanes[lane.ordinal()].capacity();
+	}
+
+	/**
+	 * Devuelve el numero de mensajes descartados por desbordamiento.
+	 *
+	 * @return Mensajes descartados
+	 */
+	public long getDroppedCount() {
+		long dropped = 0;
+		for (int i = 0; i < lanes.length; i++) {
+			dropped += lanes[i].getDroppedCount();
+		}
+		return dropped;
+	}
+
+	/**
+	 * Devuelve el numero de mensajes de un carril descartados por
+	 * desbordamiento.
+	 *
+	 * @param lane
+	 *            Carril
+	 * @return Mensajes descartados
 	 */
-	public synchronized void clearQueue() {
-		messageQueue.clear();
-		isEmpty = true;
-		isFull = false;
+	public long getDroppedCount(Lane lane) {
+		return lanes[lane.ordinal()].getDroppedCount();
 	}
 
 } // Fin clase 'SOASMessageQueue'
@@ -0,0 +1,24 @@
+package com.tfm.soas.logic;
+
+/**
+ * Oyente que recibe el resultado de un envio asincrono de mensajes SOAS. Se
+ * ejecuta en el hilo que realiza el envio, por lo que no debe bloquearse.
+ */
+public interface SOASSendCallback {
+
+	/**
+	 * Se ejecuta cuando se han completado todas las repeticiones de un envio.
+	 *
+	 * @param type
+	 *            Tipo del mensaje enviado
+	 * @param ip
+	 *            IP destino
+	 * @param sent
+	 *            Numero de copias enviadas correctamente
+	 * @param error
+	 *            Ultimo error producido o null si no hubo errores
+	 */
+	void onSendComplete(SOASMessage.MessageType type, String ip, int sent,
+			Exception error);
+
+} // Fin interfaz 'SOASSendCallback'
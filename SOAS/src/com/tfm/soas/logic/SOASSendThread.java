@@ -0,0 +1,167 @@
+package com.tfm.soas.logic;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.util.Log;
+
+/**
+ * Hilo emisor de mensajes. Los hilos que envian mensajes solo codifican el
+ * mensaje y lo depositan en una cola de salida, de modo que nunca se bloquean
+ * esperando al socket. El hilo emisor vacia la cola enviando cada mensaje el
+ * numero de veces indicado y notifica el resultado al oyente del envio.
+ *
+ * @author Javier Herrero Arnanz
+ * @version 1.0
+ * @since 08-06-2014
+ */
+public class SOASSendThread extends Thread {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	private static final int MAX_PENDING = 64; // Envios pendientes max.
+	private static final String TAG = "SOASSendThread";
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private final DatagramSocket sendSocket; // Socket para envios.
+	private final LinkedBlockingQueue<SendRequest> pending = new LinkedBlockingQueue<SendRequest>(
+			MAX_PENDING); // Cola de salida.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Constructor para instancias de la clase SOASSendThread.
+	 *
+	 * @param name
+	 *            Nombre del hilo
+	 * @throws SocketException
+	 *             Si no se pudo abrir el socket de envio
+	 */
+	public SOASSendThread(String name) throws SocketException {
+		super(name);
+		// Se arranca el socket UDP de envio de mensajes.
+		sendSocket = new DatagramSocket();
+	}
+
+	/**
+	 * Encola un mensaje para que sea enviado por el hilo emisor. El mensaje se
+	 * codifica en el momento de la llamada, por lo que puede modificarse o
+	 * reutilizarse a continuacion.
+	 *
+	 * @param message
+	 *            Mensaje a enviar
+	 * @param address
+	 *            Direccion destino
+	 * @param port
+	 *            Puerto destino
+	 * @param repeat
+	 *            Numero de copias a enviar
+	 * @param callback
+	 *            Oyente del resultado del envio o null
+	 * @return True-Encolado / False-Cola de salida llena
+	 */
+	public boolean send(SOASMessage message, InetAddress address, int port,
+			int repeat, SOASSendCallback callback) {
+		byte[] data = new byte[SOASMessageCodec.MESSAGE_SIZE];
+		SOASMessageCodec.encode(message, ByteBuffer.wrap(data));
+		SendRequest request = new SendRequest(data, message.getType(),
+				address, port, Math.max(1, repeat), callback);
+		if (!pending.offer(request)) {
+			Log.d(TAG, "Send queue full, message dropped");
+			if (callback != null) {
+				callback.onSendComplete(request.type,
+						address.getHostAddress(), 0, null);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Permite detener la ejecucion del hilo emisor de mensajes.
+	 */
+	public void stopThread() {
+		interrupt();
+		sendSocket.close();
+	}
+
+	/**
+	 * Implementa el comportamiento del hilo emisor de mensajes.
+	 */
+	@Override
+	public void run() {
+		DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+		while (!isInterrupted()) {
+			SendRequest request;
+			try {
+				request = pending.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			// Se envian todas las copias del mensaje.
+			packet.setData(request.data);
+			packet.setAddress(request.address);
+			packet.setPort(request.port);
+			int sent = 0;
+			Exception error = null;
+			for (int i = 0; i < request.repeat; i++) {
+				try {
+					sendSocket.send(packet);
+					sent++;
+				} catch (IOException e) {
+					Log.d(TAG, "Error sending message: " + e.getMessage());
+					error = e;
+				}
+			}
+
+			// Se notifica el resultado.
+			if (request.callback != null) {
+				try {
+					request.callback.onSendComplete(request.type,
+							request.address.getHostAddress(), sent, error);
+				} catch (RuntimeException e) {
+					Log.d(TAG, "Error in send callback: " + e.getMessage());
+					e.printStackTrace();
+				}
+			}
+		}
+		pending.clear();
+	}
+
+	/*--------------------------------------------------------*/
+	/* /////////////////// CLASES INTERNAS ////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Mensaje codificado pendiente de envio.
+	 */
+	private static final class SendRequest {
+		final byte[] data; // Mensaje codificado.
+		final SOASMessage.MessageType type; // Tipo de mensaje.
+		final InetAddress address; // Direccion destino.
+		final int port; // Puerto destino.
+		final int repeat; // Copias a enviar.
+		final SOASSendCallback callback; // Oyente del resultado.
+
+		SendRequest(byte[] data, SOASMessage.MessageType type,
+				InetAddress address, int port, int repeat,
+				SOASSendCallback callback) {
+			this.data = data;
+			this.type = type;
+			this.address = address;
+			this.port = port;
+			this.repeat = repeat;
+			this.callback = callback;
+		}
+	} // Fin clase interna 'SendRequest'
+
+} // Fin clase 'SOASSendThread'
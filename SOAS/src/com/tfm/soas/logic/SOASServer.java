@@ -4,15 +4,25 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
 
+import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.rtcp.LinkStatistics;
 import net.majorkernelpanic.streaming.rtsp.RtspServer;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 
 import com.tfm.soas.R;
 import com.tfm.soas.context.AppContext;
+import com.tfm.soas.context.GeoKernel;
+import com.tfm.soas.context.NetworkChangeReceiver;
+import com.tfm.soas.logic.EventJournal.EventType;
+import com.tfm.soas.logic.MetricsRegistry.Counter;
+import com.tfm.soas.logic.MetricsRegistry.Histogram;
 import com.tfm.soas.logic.LocationService.LocalBinder;
 import com.tfm.soas.logic.SOASMessage.MessageType;
 
@@ -26,7 +36,6 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
-import android.database.sqlite.SQLiteDatabase;
 import android.graphics.PixelFormat;
 import android.location.Location;
 import android.media.AudioManager;
@@ -54,8 +63,14 @@ import android.view.WindowManager.LayoutParams;
  * 2- Evaluar la ubicacion de el/los interesado/s y responder acordemente a cada
  * uno.
  * 
- * 3- Servir el video RTSP a aquel dispositivo cliente situado justo detras del
- * dispositivo servidor.
+ * 3- Servir el video RTSP a los dispositivos cliente situados justo detras del
+ * dispositivo servidor. Por defecto se atiende a un unico cliente; la
+ * preferencia "max_clients" permite atender a varios a la vez (p.ej. todos los
+ * vehiculos de un convoy), enviando a todos ellos el mismo flujo RTP. Con la
+ * preferencia "multicast" el flujo se envia una unica vez a un grupo
+ * multicast al que se unen todos los clientes. Con la preferencia
+ * "rate_control" la calidad del video se adapta al estado del enlace con los
+ * clientes (ver RateController).
  * 
  * 4- Cerrar correctamente la sesion de streaming una vez que no sea necesaria.
  * 
@@ -68,10 +83,11 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 	/*--------------------------------------------------------*/
 	/* ///////////////////// CONSTANTES ///////////////////// */
 	/*--------------------------------------------------------*/
-	private static enum ServerState {
+	static enum ServerState {
 		INI, NOTIFY, REPLY, STREAM, END
 	}
 
+	private static final int MAX_CLIENTS = 8; // Limite de clientes a la vez.
 	private static final int FPS = 30;
 	private static final int BPS = 2000000;
 	private static final int ChangeVideoQuality = 1;
@@ -84,8 +100,10 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 	private ServerState state = ServerState.INI; // Estado Servidor.
 	private volatile ServerDiagramThread dThread = null; // Hilo diagrama de estados.
 	private volatile ServerAdvertiseThread aThread = null; // Hilo emisor de anuncios.
-	private volatile ServerSendThread sThread = null; // Hilo emisor de mensajes.
+	private volatile SOASSendThread sThread = null; // Hilo emisor de mensajes.
 	private volatile ServerReceiveThread rThread = null; // Hilo receptor de mensajes.
+	private volatile SOASTransport transport = null; // Transporte NIO (opcional).
+	private final Object transportLock = new Object(); // Cambio de transporte.
 	private SOASMessageQueue messageQueue = null; // Cola de mensajes.
 	private LocationService lService = null; // Acceso localizacion.
 	private LocationServiceConn lServiceConnection = null; // Gestor conexion.
@@ -96,7 +114,16 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 	private SurfaceView mSurfaceView = null; // Superficie de visualizacion 1x1.
 	private Handler handler = null; // Comunicacion con el hilo principal.
 	private WakeLock wl = null; // WaveLock CPU ON.
+	private NetworkChangeReceiver netReceiver = null; // Cambios de red.
+	private final BeaconScheduler beaconScheduler = new BeaconScheduler(); // Planificador anuncios.
+	private final DuplicateFilter duplicates = new DuplicateFilter(8); // Copias recibidas.
+	private final Counter rxDuplicate = MetricsRegistry.getInstance()
+			.counter("server.rx_duplicate"); // Copias descartadas.
 	private int soundState = -1; // Estado sonido dispositivo.
+	private final ConcurrentHashMap<String, StreamSession> sessions = new ConcurrentHashMap<String, StreamSession>(); // Sesiones de streaming.
+	private volatile int maxClients = 1; // Clientes atendidos a la vez.
+	private volatile boolean multicast = false; // Video a grupo multicast.
+	private volatile RateController rateController = null; // Control de calidad (opcional).
 
 	/*--------------------------------------------------------*/
 	/* /////////////////////// METODOS ////////////////////// */
@@ -129,9 +156,20 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 		lServiceConnection = new LocationServiceConn();
 		bindService(intent, lServiceConnection, Context.BIND_AUTO_CREATE);
 
+		// Se registra el BroadcastReceiver que invalida la IP local cacheada
+		// cuando cambia el estado de la red.
+		AppContext.invalidateLocalIPAddress();
+		netReceiver = new NetworkChangeReceiver();
+		registerReceiver(netReceiver, NetworkChangeReceiver.getIntentFilter());
+
 		// Se arrancan los hilos que definen el comportamiento del servidor.
 		launchThreads();
 
+		// Se registran los indicadores del servidor y se inicia el volcado
+		// periodico de las metricas.
+		registerGauges();
+		MetricsRegistry.getInstance().startDump();
+
 		// Se arranca el servidor RTSP.
 		rtspPort = getAvailablePort();
 		int[] defaultRes = { 480, 320 };
@@ -153,12 +191,21 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 		// Se detienen los hilos que definen el comportamiento del servidor.
 		stopThreads();
 
+		// Se eliminan los indicadores del servidor y se detiene el volcado de
+		// las metricas.
+		MetricsRegistry.getInstance().removeGauge("server.advert_interval");
+		MetricsRegistry.getInstance().removeGauge("server.queue_dropped");
+		MetricsRegistry.getInstance().stopDump();
+
 		// Se cierra la conexion con el servicio de localizacion.
 		if (boundLService) {
 			unbindService(lServiceConnection);
 			boundLService = false;
 		}
 
+		// Se elimina el BroadcastReceiver de cambios de red.
+		unregisterReceiver(netReceiver);
+
 		// Se libera el WaveLock.
 		wl.release();
 
@@ -177,9 +224,49 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 		// Se actualiza el estado antes de arrancar los hilos.
 		state = ServerState.NOTIFY;
 
-		// Se arranca el hilo receptor de mensajes, y se crea la cola de
-		// mensajes donde los almacenara.
+		// Se crea la cola de mensajes donde se almacenaran los mensajes
+		// recibidos.
 		messageQueue = new SOASMessageQueue();
+
+		// Se recupera el numero de clientes que se pueden atender a la vez.
+		SharedPreferences prefs = getSharedPreferences("SOAS_prefs",
+				Context.MODE_PRIVATE);
+		maxClients = Math.max(1,
+				Math.min(MAX_CLIENTS, prefs.getInt("max_clients", 1)));
+		multicast = (prefs.getInt("multicast", 0) == 1);
+		sessions.clear();
+
+		// Si esta habilitado el transporte NIO, un unico hilo se encarga de
+		// difundir los anuncios, emitir y recibir mensajes. Si no se pudo
+		// arrancar se recurre a los hilos convencionales.
+		if (prefs.getInt("nio_transport", 0) == 1) {
+			transport = new SOASTransport(AppContext.RECEIVE_SERVER_PORT,
+					new ServerTransportListener(), "SOASServerTransport");
+			try {
+				transport.start();
+				transport.schedule(new ServerAdvertiseTask(), 0, 0);
+			} catch (IOException e) {
+				Log.d(TAG, "(S) Error opening NIO transport: " + e.getMessage());
+				e.printStackTrace();
+				transport = null;
+			}
+		}
+
+		if (transport == null) {
+			startMessageThreads();
+		}
+
+		// Se arranca el hilo que implementa el diagrama de estados.
+		dThread = new ServerDiagramThread();
+		dThread.start();
+	}
+
+	/**
+	 * Lanza a ejecucion el hilo receptor de mensajes, el hilo que difunde los
+	 * anuncios y el hilo emisor de mensajes.
+	 */
+	private void startMessageThreads() {
+		// Se arranca el hilo receptor de mensajes.
 		rThread = new ServerReceiveThread();
 		rThread.start();
 
@@ -188,12 +275,35 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 		aThread.start();
 
 		// Se arranca el hilo emisor de mensajes.
-		sThread = new ServerSendThread();
-		sThread.start();
+		try {
+			sThread = new SOASSendThread("SOASServerSend");
+			sThread.start();
+		} catch (SocketException e) {
+			Log.d(TAG, "(S) Error opening Send Socket: " + e.getMessage());
+			e.printStackTrace();
+
+			// Se detiene el sistema.
+			startService(new Intent(SOASServer.this, StopSOASService.class));
+		}
+	}
 
-		// Se arranca el hilo que implementa el diagrama de estados.
-		dThread = new ServerDiagramThread();
-		dThread.start();
+	/**
+	 * Sustituye el transporte NIO, detenido por un error, por los hilos
+	 * convencionales de mensajes. Los hilos se arrancan antes de descartar el
+	 * transporte para que los envios en curso encuentren siempre uno de los
+	 * dos.
+	 * 
+	 * @param failed
+	 *            Transporte detenido
+	 */
+	private void fallBackToThreads(SOASTransport failed) {
+		synchronized (transportLock) {
+			if (transport != failed) { // Ya detenido o sustituido.
+				return;
+			}
+			startMessageThreads();
+			transport = null;
+		}
 	}
 
 	/**
@@ -201,14 +311,25 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 	 * hilo emisor de mensajes y el hilo que implementa el diagrama de estados.
 	 */
 	private void stopThreads() {
-		// Se interrumpe el hilo receptor de mensajes.
-		rThread.stopThread();
+		synchronized (transportLock) {
+			if (transport != null) {
+				// Se detiene el transporte NIO y se vacia la cola de mensajes.
+				transport.stop();
+				transport = null;
+				messageQueue.clearQueue();
+			} else {
+				// Se interrumpe el hilo receptor de mensajes.
+				rThread.stopThread();
 
-		// Se interrumpe el hilo que difunde los anuncios.
-		aThread.stopThread();
+				// Se interrumpe el hilo que difunde los anuncios.
+				aThread.stopThread();
 
-		// Se interrumpe el hilo emisor de mensajes.
-		sThread.stopThread();
+				// Se interrumpe el hilo emisor de mensajes.
+				if (sThread != null) {
+					sThread.stopThread();
+				}
+			}
+		}
 
 		// Se interrumpe el hilo que implementa el diagrama de estados.
 		dThread.stopThread();
@@ -322,15 +443,25 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 
 		// Se establecen las caracteristicas de la sesion de Streaming para que
 		// cuando la Surface se haya creado el servidor pueda arrancar
-		// correctamente.
+		// correctamente. Con la preferencia "pacing" los paquetes RTP de cada
+		// fotograma se reparten en el tiempo en lugar de enviarse en rafaga. Con
+		// la preferencia "mediacodec" el video se codifica con MediaCodec si el
+		// dispositivo lo permite (Android 4.1 o posterior).
+		SharedPreferences prefs = getSharedPreferences("SOAS_prefs",
+				Context.MODE_PRIVATE);
 		SessionBuilder
 				.getInstance()
 				.setContext(getApplicationContext())
 				.setAudioEncoder(SessionBuilder.AUDIO_NONE)
 				.setVideoEncoder(SessionBuilder.VIDEO_H264)
+				.setPacingEnabled(prefs.getInt("pacing", 0) == 1)
+				.setMediaCodecEnabled(prefs.getInt("mediacodec", 0) == 1)
+				.setLinkStatisticsListener(new ServerLinkListener())
 				.setSurfaceHolder(mSurfaceView.getHolder())
 				.setVideoQuality(
 						new VideoQuality(resolution[0], resolution[1], FPS, BPS));
+		rateController = (prefs.getInt("rate_control", 0) == 1) ? new RateController(
+				resolution[0], resolution[1]) : null;
 		Log.d(TAG, "(S) RTSP Server started in port " + port + ": "
 				+ resolution[0] + "x" + resolution[1] + " px - " + FPS
 				+ " fps - " + (BPS / 1000) + " kbps");
@@ -443,6 +574,174 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 		return speed;
 	}
 
+	/**
+	 * Indica si el servidor no puede atender a mas clientes: se encuentra en
+	 * una sesion de streaming y no le quedan plazas libres.
+	 * 
+	 * @return True-STREAM sin plazas / False-Admite clientes
+	 */
+	private boolean isBusy() {
+		synchronized (state) {
+			return (state == ServerState.STREAM) && !hasFreeSlot();
+		}
+	}
+
+	/**
+	 * Devuelve el grupo multicast al que se envia el video: 239.X.Y.Z, siendo
+	 * X.Y.Z los tres ultimos octetos de la IP del servidor. El rango 239/8 es
+	 * de ambito local (RFC 2365) y cada servidor de la red emplea un grupo
+	 * distinto.
+	 * 
+	 * @return Grupo en formato a.b.c.d o "" si el video se envia por unicast
+	 */
+	private String getMulticastGroup() {
+		if (!multicast) {
+			return "";
+		}
+		long address = SOASMessageCodec.parseIPv4(AppContext
+				.getLocalIPAddress());
+		if (address < 0) {
+			return "";
+		}
+		return SOASMessageCodec.formatIPv4((239L << 24) | (address & 0xFFFFFF));
+	}
+
+	/**
+	 * Indica si quedan plazas libres en la tabla de sesiones de streaming.
+	 * 
+	 * @return True-Admite mas clientes / False-Tabla llena
+	 */
+	private boolean hasFreeSlot() {
+		return sessions.size() < maxClients;
+	}
+
+	/**
+	 * Calcula el intervalo hasta el siguiente anuncio HELLO segun la
+	 * velocidad, el estado del servidor y la densidad del canal.
+	 * 
+	 * @param streaming
+	 *            True si se ha suprimido el anuncio por estar en STREAM sin
+	 *            plazas libres
+	 * @return Intervalo en ms
+	 */
+	private long nextAdvertInterval(boolean streaming) {
+		return beaconScheduler.nextInterval(getSpeed(), streaming);
+	}
+
+	/**
+	 * Devuelve el intervalo entre anuncios HELLO calculado por ultima vez.
+	 * 
+	 * @return Intervalo en ms
+	 */
+	public long getAdvertInterval() {
+		return beaconScheduler.getCurrentInterval();
+	}
+
+	/**
+	 * Registra los indicadores del servidor: intervalo actual entre anuncios
+	 * HELLO y mensajes descartados por la cola de recepcion.
+	 */
+	private void registerGauges() {
+		MetricsRegistry metrics = MetricsRegistry.getInstance();
+		metrics.gauge("server.advert_interval", new MetricsRegistry.Gauge() {
+			@Override
+			public long getValue() {
+				return getAdvertInterval();
+			}
+		});
+		metrics.gauge("server.queue_dropped", new MetricsRegistry.Gauge() {
+			@Override
+			public long getValue() {
+				SOASMessageQueue queue = messageQueue;
+				return (queue != null) ? queue.getDroppedCount() : 0;
+			}
+		});
+	}
+
+	/**
+	 * Establece el contenido de un anuncio HELLO: ubicacion actual e IP del
+	 * servidor, o IP de servidor ocupado si esta en una sesion de streaming.
+	 * 
+	 * @param message
+	 *            Mensaje HELLO a rellenar
+	 */
+	private void fillAdvert(SOASMessage message) {
+		message.setType(SOASMessage.MessageType.HELLO);
+		message.setLocation(getLocation());
+		synchronized (state) { // IP servidor.
+			if ((state == ServerState.STREAM) && !hasFreeSlot()) {
+				// Indica servidor ocupado.
+				message.setIp(SOASMessageCodec.BUSY_IP);
+			} else {
+				message.setIp(AppContext.getLocalIPAddress());
+			}
+		}
+	}
+
+	/**
+	 * FILTRADO ESTADO-TIPO MENSAJE. Decide, sin reconstruir el mensaje
+	 * recibido, si es de interes para el estado actual del servidor.
+	 * 
+	 * @param type
+	 *            Tipo de mensaje
+	 * @param sender
+	 *            IP del emisor como entero o -1 si no indico una IPv4
+	 * @param sequence
+	 *            Numero de secuencia del mensaje
+	 * @return True-Encolar / False-Descartar
+	 */
+	private boolean acceptMessage(MessageType type, long sender, int sequence) {
+		// Variable que guarda el estado actual accediendo de manera
+		// sincronizada a la variable compartida que guarda el estado del
+		// servidor.
+		ServerState tmp_state;
+		synchronized (state) {
+			tmp_state = state;
+		}
+
+		boolean enqueue = false;
+		switch (tmp_state) {
+		case NOTIFY:
+			if (type == MessageType.REQUEST) {
+				enqueue = true;
+			}
+			break;
+		case REPLY:
+			// Los clientes ya atendidos siguen respondiendo mientras se
+			// contesta a un nuevo cliente.
+			if (!sessions.isEmpty()
+					&& ((type == MessageType.DATA_ACK) || (type == MessageType.END))) {
+				enqueue = true;
+			}
+			break;
+		case STREAM:
+			if (type == MessageType.DATA_ACK) {
+				enqueue = true;
+			} else if (type == MessageType.END) {
+				enqueue = true;
+			} else if ((type == MessageType.REQUEST) && hasFreeSlot()) {
+				enqueue = true;
+			}
+			break;
+		}
+
+		// Se comprueba que el emisor no sea el propio dispositivo.
+		// Mensajes Broadcast.
+		if (enqueue && (sender != -1)
+				&& (sender == AppContext.getLocalAddress())) {
+			enqueue = false;
+		}
+
+		// Se descartan las copias de mensajes ya recibidos.
+		if (enqueue
+				&& duplicates.isDuplicate(sender, sequence,
+						System.currentTimeMillis())) {
+			rxDuplicate.increment();
+			enqueue = false;
+		}
+		return enqueue;
+	}
+
 	/**
 	 * Devuelve el canal de comunicacion al servicio.
 	 * 
@@ -582,6 +881,11 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 						.setVideoQuality(
 								new VideoQuality(resolution[0], resolution[1],
 										FPS, BPS));
+				// La adaptacion parte de la calidad negociada.
+				RateController controller = rateController;
+				if (controller != null) {
+					controller.reset(resolution[0], resolution[1]);
+				}
 				Log.d(TAG, "(S) RTSP Video quality changed: " + resolution[0]
 						+ "x" + resolution[1] + " px - " + FPS + " fps - "
 						+ (BPS / 1000) + " kbps");
@@ -645,35 +949,38 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 		 */
 		@Override
 		public void run() {
+			// El mensaje, el buffer y el datagrama se reutilizan en todos los
+			// anuncios.
+			SOASMessage message = new SOASMessage();
+			byte[] sendBuf = new byte[SOASMessageCodec.MESSAGE_SIZE];
+			ByteBuffer buffer = ByteBuffer.wrap(sendBuf);
+			DatagramPacket packet = new DatagramPacket(sendBuf, sendBuf.length);
+			packet.setPort(AppContext.RECEIVE_CLIENT_PORT);
+
 			// Mientras no se interrupa el hilo se envian anuncios.
 			Thread thisThread = Thread.currentThread();
 			while ((!thisThread.isInterrupted()) && (thisThread == aThread)) {
 				try {
-					// Se crea el mensaje y se establece su contenido.
-					SOASMessage message = new SOASMessage();
-					message.setType(SOASMessage.MessageType.HELLO);
-					message.setLocation(getLocation());
-					synchronized (state) { // IP servidor.
-						if (state == ServerState.STREAM) {
-							// Indica servidor ocupado.
-							message.setIp("X.X.X.X");
-						} else {
-							message.setIp(AppContext.getIPAddress(true));
-						}
+					// Durante una sesion de streaming sin plazas libres no
+					// se anuncia el servicio.
+					boolean streaming = isBusy();
+					if (!streaming) {
+						// Se establece el contenido del mensaje.
+						fillAdvert(message);
+
+						// Se empaqueta el mensaje en un datagrama UDP
+						// broadcast.
+						buffer.clear();
+						SOASMessageCodec.encode(message, buffer);
+						packet.setAddress(InetAddress
+								.getByName("255.255.255.255"));
+
+						// Se envia el mensaje.
+						advertiseSocket.send(packet);
 					}
 
-					// Se empaqueta el mensaje en un datagrama UDP broadcast.
-					byte[] sendBuf = AppContext.serializeMessage(message);
-					DatagramPacket packet = new DatagramPacket(sendBuf,
-							sendBuf.length,
-							InetAddress.getByName("255.255.255.255"),
-							AppContext.RECEIVE_CLIENT_PORT);
-
-					// Se envia el mensaje.
-					advertiseSocket.send(packet);
-
-					// Se espera 1 segundo hasta el envio del siguiente anuncio.
-					Thread.sleep(1000);
+					// Se espera hasta el envio del siguiente anuncio.
+					Thread.sleep(nextAdvertInterval(streaming));
 
 				} catch (InterruptedException e1) {
 					Log.d(TAG, "(S) AThread Interrupted: " + e1.getMessage());
@@ -688,82 +995,6 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 
 	} // Fin clase interna 'ServerAdvertiseThread'
 
-	/**
-	 * Hilo emisor de mensajes.
-	 * 
-	 * @author Javier Herrero Arnanz
-	 * @version 1.0
-	 * @since 08-06-2014
-	 */
-	private class ServerSendThread extends Thread {
-
-		/*-----------*/
-		/* ATRIBUTOS */
-		/*-----------*/
-		private DatagramSocket sendSocket = null; // Socket para envios.
-		private DatagramPacket packet = null; // Paquete a enviar.
-
-		/*---------*/
-		/* METODOS */
-		/*---------*/
-		/**
-		 * Constructor para instancias de la clase SendThread.
-		 */
-		public ServerSendThread() {
-			try {
-				// Se arranca el socket UDP de envio de mensajes.
-				sendSocket = new DatagramSocket();
-			} catch (SocketException e) {
-				Log.d(TAG, "(S) Error opening Send Socket: " + e.getMessage());
-				e.printStackTrace();
-
-				// Se interrumpe el hilo.
-				Thread.currentThread().interrupt();
-
-				// Se detiene el sistema.
-				startService(new Intent(SOASServer.this, StopSOASService.class));
-			}
-		}
-
-		/**
-		 * Permite establecer el paquete UDP que se desea enviar.
-		 * 
-		 * @param packet
-		 *            Paquete UDP
-		 */
-		public void setPacket(DatagramPacket packet) {
-			this.packet = packet;
-		}
-
-		/**
-		 * Permite detener la ejecucion del hilo emisor de mensajes.
-		 */
-		public void stopThread() {
-			sThread.interrupt();
-			sendSocket.close();
-		}
-
-		/**
-		 * Implementa el comportamiento del hilo emisor de mensajes.
-		 */
-		@Override
-		public void run() {
-			Thread thisThread = Thread.currentThread();
-			if (!thisThread.isInterrupted()) {
-				try {
-					if (packet != null) {
-						sendSocket.send(packet);
-						packet = null;
-					}
-				} catch (IOException e) {
-					Log.d(TAG, "(S) Error sending message: " + e.getMessage());
-					e.printStackTrace();
-				}
-			}
-		}
-
-	} // Fin clase interna 'ServerSendThread'
-
 	/**
 	 * Hilo receptor de mensajes, encargado de escuchar, filtrar y encolar los
 	 * mensajes enviados por los dispositivos cliente.
@@ -778,6 +1009,8 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 		/* ATRIBUTOS */
 		/*-----------*/
 		private DatagramSocket receiveSocket = null; // Socket para recepciones.
+		private final Counter rxInvalid = MetricsRegistry.getInstance()
+				.counter("server.rx_invalid"); // Datagramas no SOAS.
 
 		/*---------*/
 		/* METODOS */
@@ -820,55 +1053,42 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 			// Se crea el Datagrama UDP donde se almacenaran temporalmente los
 			// mensajes recibidos.
 			byte[] recvBuf = new byte[1000];
+			ByteBuffer recvBuffer = ByteBuffer.wrap(recvBuf);
 			DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
 
-			// Variable que guarda el estado actual accediendo de manera
-			// sincronizada a la variable compartida que guarda el estado del
-			// servidor.
-			ServerState tmp_state;
-
 			// Mientras no se interrumpa el hilo se escuchan mensajes.
 			Thread thisThread = Thread.currentThread();
 			while ((!thisThread.isInterrupted()) && (thisThread == rThread)) {
 				try {
 					// Se espera la recepcion de un mensaje.
+					packet.setLength(recvBuf.length);
 					receiveSocket.receive(packet);
 
-					// Se reconstruye el mensaje recibido.
-					SOASMessage message = AppContext
-							.deserializeMessage(recvBuf);
-
-					// Se comprueba que el emisor no sea el propio dispositivo.
-					// Mensajes Broadcast.
-					String localIP = AppContext.getIPAddress(true);
-					if (!localIP.equalsIgnoreCase(message.getIp())) {
-						// FILTRADO ESTADO-TIPO MENSAJE.
-						// Se encolara el mensaje si es de interes para el
-						// estado actual.
-						boolean enqueue = false;
-						synchronized (state) {
-							tmp_state = state;
-						}
-						switch (tmp_state) {
-						case NOTIFY:
-							if (message.getType() == MessageType.REQUEST) {
-								enqueue = true;
-							}
-							break;
-						case STREAM:
-							if (message.getType() == MessageType.DATA_ACK) {
-								enqueue = true;
-							} else if (message.getType() == MessageType.END) {
-								enqueue = true;
-							}
-							break;
-						}
+					// Se lee el tipo de mensaje sin reconstruirlo. Se
+					// descartan los datagramas que no son mensajes SOAS.
+					MessageType type = SOASMessageCodec.peekType(recvBuffer, 0,
+							packet.getLength());
+					if (type == null) {
+						rxInvalid.increment();
+						continue;
+					}
 
-						// Se encola el mensaje si fue marcado.
-						if (enqueue) {
-							messageQueue.insertMessage(message);
-						}
+					// FILTRADO ESTADO-TIPO MENSAJE.
+					// Solo se reconstruira el mensaje si es de interes para el
+					// estado actual y no lo envio el propio dispositivo.
+					long sender = SOASMessageCodec.peekAddress(recvBuffer, 0);
+					int sequence = SOASMessageCodec.peekSequence(recvBuffer, 0);
+					if (!acceptMessage(type, sender, sequence)) {
+						continue;
 					}
+
+					// Se reconstruye el mensaje sobre una instancia reciclada
+					// y se encola.
+					SOASMessage message = SOASMessage.obtain();
+					recvBuffer.limit(packet.getLength()).position(0);
+					SOASMessageCodec.decode(recvBuffer, message);
+					recvBuffer.clear();
+					messageQueue.insertMessage(message);
 				} catch (IOException e) {
 					Log.d(TAG, "(S) Error receiving message: " + e.getMessage());
 					e.printStackTrace();
@@ -880,9 +1100,122 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 
 	} // Fin clase interna 'ServerSendThread'
 
+	/**
+	 * Oyente del transporte NIO. Filtra y encola los mensajes enviados por los
+	 * dispositivos cliente, igual que el hilo receptor de mensajes.
+	 */
+	private class ServerTransportListener implements SOASTransport.Listener {
+
+		/**
+		 * Decide si un mensaje recibido es de interes para el estado actual.
+		 */
+		@Override
+		public boolean accept(MessageType type, long sender, int flags,
+				int sequence) {
+			return acceptMessage(type, sender, sequence);
+		}
+
+		/**
+		 * Encola un mensaje aceptado.
+		 */
+		@Override
+		public void onMessage(SOASMessage message) {
+			messageQueue.insertMessage(message);
+		}
+
+		/**
+		 * Recurre a los hilos convencionales si el transporte se detiene por
+		 * un error.
+		 */
+		@Override
+		public void onTransportError(SOASTransport failed, Exception error) {
+			Log.d(TAG, "(S) NIO transport stopped: " + error.getMessage());
+			fallBackToThreads(failed);
+		}
+
+	} // Fin clase interna 'ServerTransportListener'
+
+	/**
+	 * Oyente de los informes RTCP de los clientes (receiver reports). Registra
+	 * en las metricas el RTT, el jitter y las perdidas del enlace de cada
+	 * cliente con el flujo de video, y los entrega al control de calidad.
+	 */
+	private class ServerLinkListener implements Session.LinkListener {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private final Counter reports = MetricsRegistry.getInstance().counter(
+				"server.rtcp_reports"); // Informes recibidos.
+		private final Counter lossy = MetricsRegistry.getInstance().counter(
+				"server.rtcp_lossy"); // Informes con perdidas.
+		private final Histogram rtt = MetricsRegistry.getInstance().histogram(
+				"server.rtcp_rtt"); // RTT del enlace.
+		private final Histogram jitter = MetricsRegistry.getInstance()
+				.histogram("server.rtcp_jitter"); // Jitter entre llegadas.
+
+		/**
+		 * Registra el estado del enlace con un cliente. Se invoca desde el
+		 * hilo de informes RTCP del flujo.
+		 */
+		@Override
+		public void onLinkStatistics(Session session,
+				LinkStatistics statistics) {
+			reports.increment();
+			if (statistics.rtt >= 0) {
+				rtt.record((long) (statistics.rtt * 1000));
+			}
+			jitter.record((long) (statistics.jitter * 1000));
+			if (statistics.fractionLost > 0) {
+				lossy.increment();
+				Log.d(TAG, "(S) RTCP " + statistics);
+			}
+			RateController controller = rateController;
+			if (controller != null) {
+				controller.onLinkStatistics(session, statistics);
+			}
+		}
+
+	} // Fin clase interna 'ServerLinkListener'
+
+	/**
+	 * Tarea del transporte NIO que anuncia el servicio RTSP. Tras cada anuncio
+	 * se vuelve a planificar con el intervalo calculado.
+	 */
+	private class ServerAdvertiseTask implements Runnable {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private final SOASMessage message = new SOASMessage(); // Anuncio.
+		private final InetSocketAddress broadcast = new InetSocketAddress(
+				"255.255.255.255", AppContext.RECEIVE_CLIENT_PORT); // Destino.
+
+		/*---------*/
+		/* METODOS */
+		/*---------*/
+		/**
+		 * Difunde un anuncio HELLO, salvo en STREAM sin plazas libres, y
+		 * planifica el siguiente.
+		 */
+		@Override
+		public void run() {
+			SOASTransport t = transport;
+			if (t != null) {
+				boolean streaming = isBusy();
+				if (!streaming) {
+					fillAdvert(message);
+					t.send(message, broadcast);
+				}
+				t.schedule(this, nextAdvertInterval(streaming), 0);
+			}
+		}
+
+	} // Fin clase interna 'ServerAdvertiseTask'
+
 	/**
 	 * Implementa el diagrama de estados que define el comportamiento del
-	 * servidor. NOTIFY <-> REPLY > STREAM > END > NOTIFY.
+	 * servidor. NOTIFY <-> REPLY <-> STREAM > END > NOTIFY.
 	 * 
 	 * @author Javier Herrero Arnanz
 	 * @version 1.0
@@ -899,7 +1232,29 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 		private boolean clientOK = false; // Cliente Valido/Invalido.
 		private String clientIP = ""; // IP cliente.
 		private int[] valParams = { 20, 5, 0 }; // Parametros validacion.
-		private SQLiteDatabase db = null; // Acceso a BD.
+		private double cosDirection = 0; // Coseno umbral direccion.
+		private double cosBehind = 0; // Coseno umbral cliente detras.
+		private SessionLogWriter logWriter = null; // Escritor del log.
+		private EventJournal journal = null; // Diario binario de eventos.
+		private int journalState = EventJournal.NO_STATE; // Ultimo estado registrado.
+		private final Counter[] stateEntries = new Counter[ServerState.values().length]; // Entradas/estado.
+		private final Histogram[] stateTimes = new Histogram[ServerState.values().length]; // Tiempo/estado.
+		private long stateSince = 0; // Entrada en el estado actual (ns).
+		private final Histogram heartbeatRtt = MetricsRegistry.getInstance()
+				.histogram("server.heartbeat_rtt"); // Ida y vuelta DATA-DATA_ACK.
+		private final Counter streamTimeouts = MetricsRegistry.getInstance()
+				.counter("server.timeout.stream"); // Timeouts en STREAM.
+		private final Histogram oneWay = MetricsRegistry.getInstance()
+				.histogram("server.one_way"); // Latencia cliente-servidor.
+		private final SOASSendCallback replyCallback = new SOASSendCallback() {
+			@Override
+			public void onSendComplete(MessageType type, String ip, int sent,
+					Exception error) {
+				if (sent == 0) {
+					Log.d(TAG, "(S) Error sending <" + type + "> to " + ip);
+				}
+			}
+		}; // Resultado del envio de READY/REJECT.
 
 		/*---------*/
 		/* METODOS */
@@ -924,20 +1279,41 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 			valParams[0] = prefs.getInt("direction", valParams[0]);
 			valParams[1] = prefs.getInt("location", valParams[1]);
 			valParams[2] = prefs.getInt("disable_val", valParams[2]);
-
-			// Se vacia el log de la sesion.
-			db = getApplicationContext().openOrCreateDatabase("sessionLogs",
-					MODE_PRIVATE, null);
-			db.execSQL("DROP TABLE IF EXISTS serverLog");
-			db.close();
+			cosDirection = GeoKernel.cosThreshold(valParams[0]);
+			cosBehind = GeoKernel.cosThreshold(valParams[1]);
+
+			// Se arranca el escritor del log, que vacia el log de la sesion
+			// anterior.
+			logWriter = new SessionLogWriter(getApplicationContext(),
+					"serverLog", "SOASServerLog");
+			logWriter.start();
+			journal = new EventJournal(getApplicationContext(), "server",
+					EventJournal.ROLE_SERVER);
+
+			// Se preparan las metricas de cada estado.
+			MetricsRegistry metrics = MetricsRegistry.getInstance();
+			for (ServerState s : ServerState.values()) {
+				stateEntries[s.ordinal()] = metrics.counter("server.state."
+						+ s.name());
+				stateTimes[s.ordinal()] = metrics.histogram("server.state_time."
+						+ s.name());
+			}
 
 			// Mientras el sistema no sea detenido el servidor ejecuta el
 			// diagrama de estados que define su comportamiento.
 			addInfoToLog("Session starts");
+			addEventToJournal(EventType.SESSION_START, null);
 			while ((!thisThread.isInterrupted()) && (thisThread == dThread)) {
 				synchronized (state) {
 					tmp_state = state;
 				}
+				if (tmp_state.ordinal() != journalState) {
+					int previous = journalState;
+					journalState = tmp_state.ordinal();
+					addEventToJournal(EventType.STATE_CHANGE, clientIP, 0,
+							Float.NaN, previous);
+					recordTransition(previous, journalState);
+				}
 				switch (tmp_state) {
 				case NOTIFY:
 					doNotify();
@@ -954,6 +1330,25 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 				}
 			}
 			addInfoToLog("Session ends");
+			logWriter.close();
+			addEventToJournal(EventType.SESSION_END, null);
+			journal.close();
+		}
+
+		/**
+		 * Devuelve al pool el ultimo mensaje recibido, que ya no se va a
+		 * utilizar, y espera la llegada del siguiente mensaje.
+		 * 
+		 * @param timeout
+		 *            Tiempo de espera si la cola esta vacia
+		 * @return Mensaje recibido o null si vencio el timeout
+		 */
+		private SOASMessage nextMessage(long timeout) {
+			if (rMessage != null) {
+				rMessage.recycle();
+				rMessage = null;
+			}
+			return messageQueue.takeMessage(timeout);
 		}
 
 		/**
@@ -975,33 +1370,52 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 			// Se espera la llegada de un mensaje REQUEST.
 			do {
 				Log.d(TAG, "(S) Waiting <REQUEST>");
-				rMessage = messageQueue.takeMessage(0);
+				rMessage = nextMessage(0);
 				if (rMessage.getType() == MessageType.REQUEST) {
-					// Se guarda la IP del cliente.
-					clientIP = rMessage.getIp();
-					Log.d(TAG, "(S) <REQUEST> received from " + clientIP);
-					addInfoToLog("<REQUEST> received from " + clientIP);
-
-					// Se valida el mensaje.
-					clientOK = isValidClient(rMessage.getLocation());
-
-					// Se cambia de estado.
-					synchronized (state) {
-						state = ServerState.REPLY;
-					}
+					onRequest();
 					requestReceived = true;
 				}
 			} while ((!requestReceived) && (!thisThread.isInterrupted())
 					&& (thisThread == dThread));
 		}
 
+		/**
+		 * Procesa el mensaje REQUEST recibido: guarda la IP del cliente, lo
+		 * valida y pasa al estado REPLY.
+		 */
+		private void onRequest() {
+			// Se guarda la IP del cliente.
+			clientIP = rMessage.getIp();
+			Log.d(TAG, "(S) <REQUEST> received from " + clientIP);
+			recordOneWay(rMessage);
+			addInfoToLog("<REQUEST> received from " + clientIP);
+			addEventToJournal(EventType.REQUEST_RX, clientIP);
+
+			// Se valida el mensaje.
+			clientOK = isValidClient(rMessage.getLocation());
+
+			// Se cambia de estado.
+			synchronized (state) {
+				state = ServerState.REPLY;
+			}
+		}
+
 		/**
 		 * Implementa el comportamiento del Servidor en el estado REPLY.
 		 */
 		private void doReply() {
 			// Se crea el mensaje de respuesta a la solicitud.
-			sMessage = new SOASMessage();
-			sMessage.setIp(AppContext.getIPAddress(true));
+			sMessage = SOASMessage.obtain();
+			sMessage.setIp(AppContext.getLocalIPAddress());
+
+			// La tabla de sesiones pudo llenarse mientras la solicitud
+			// esperaba en la cola. Un cliente que ya tiene sesion (repite el
+			// REQUEST porque no recibio el READY) no ocupa otra plaza.
+			if (clientOK && !sessions.containsKey(clientIP) && !hasFreeSlot()) {
+				Log.d(TAG, "(S) No free slot for client: " + clientIP);
+				addInfoToLog("No free slot for client: " + clientIP);
+				clientOK = false;
+			}
 
 			if (clientOK) { // VALIDO.
 				Log.d(TAG, "(S) Valid client: " + clientIP);
@@ -1009,20 +1423,34 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 
 				// Se rellena el mensaje de aceptacion.
 				sMessage.setType(SOASMessage.MessageType.READY);
+				sMessage.setEcho(rMessage);
+				addEventToJournal(EventType.READY_TX, clientIP, 0, Float.NaN,
+						rtspPort);
 				sMessage.setLocation(getLocation());
 				sMessage.setRTSPPort(rtspPort);
 				sMessage.setSpeed(getSpeed());
-
-				// Se limpia la cola de mensajes.
-				messageQueue.clearQueue();
-
-				// Se anuncia al hilo principal del servicio que adapte la
-				// calidad del video a la del cliente.
-				Message msg = Message.obtain(handler, ChangeVideoQuality);
-				Bundle bundle = new Bundle();
-				bundle.putIntArray("maxRes", rMessage.getMaxResolution());
-				msg.setData(bundle);
-				msg.sendToTarget();
+				sMessage.setMulticastGroup(getMulticastGroup());
+
+				// Se registra la sesion del cliente. Los siguientes clientes
+				// reciben el mismo flujo de video, por lo que solo el primero
+				// fija su calidad.
+				boolean first = sessions.isEmpty();
+				sessions.put(clientIP, new StreamSession(clientIP,
+						System.nanoTime()));
+				addInfoToLog("Sending video stream to " + clientIP);
+				if (first) {
+					// Se limpia la cola de mensajes.
+					messageQueue.clearQueue();
+
+					// Se anuncia al hilo principal del servicio que adapte la
+					// calidad del video a la del cliente.
+					Message msg = Message.obtain(handler, ChangeVideoQuality);
+					Bundle bundle = new Bundle();
+					bundle.putIntArray("maxRes", rMessage.getMaxResolution()
+							.clone());
+					msg.setData(bundle);
+					msg.sendToTarget();
+				}
 
 				// Se cambia de estado.
 				synchronized (state) {
@@ -1034,18 +1462,25 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 
 				// Se rellena el mensaje de rechazo.
 				sMessage.setType(SOASMessage.MessageType.REJECT);
+				sMessage.setEcho(rMessage);
+				addEventToJournal(EventType.REJECT_TX, clientIP);
 
-				// Se cambia de estado.
+				// Se cambia de estado. Si hay otros clientes se sigue
+				// atendiendo sus sesiones.
 				synchronized (state) {
-					state = ServerState.NOTIFY;
+					state = sessions.isEmpty() ? ServerState.NOTIFY
+							: ServerState.STREAM;
 				}
 			}
 
 			// Se envia la respuesta por triplicado para asegurar que es
-			// recibida por el cliente.
-			for (int i = 1; i <= 3; i++) {
-				sendMessage(clientIP, AppContext.RECEIVE_CLIENT_PORT, sMessage);
-			}
+			// recibida por el cliente. Las tres copias se entregan de una vez
+			// al hilo emisor, sin bloquear el diagrama de estados.
+			sendMessage(clientIP, AppContext.RECEIVE_CLIENT_PORT, sMessage, 3,
+					replyCallback);
+			// El mensaje ya se ha codificado: se devuelve al pool.
+			sMessage.recycle();
+			sMessage = null;
 			Log.d(TAG, "(S) Reply sent to " + clientIP);
 			addInfoToLog("Reply sent to " + clientIP);
 		}
@@ -1055,82 +1490,162 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 		 */
 		private void doStream() {
 			// Variables locales.
-			int attempts = 1;
-
-			// Se inicia el envio (DATA) y recepcion (DATA_ACK) de mensajes de
-			// control de conexion. Se permite un maximo de 3 reenvios DATA
-			// ante la falta de un mensaje DATA_ACK.
-			addInfoToLog("Sending video stream to " + clientIP);
+			boolean streaming = true;
+
+			// Se atienden a la vez todas las sesiones de la tabla. A cada
+			// cliente se le envia un DATA numerado y se espera su DATA_ACK
+			// durante el tiempo de espera derivado de su RTT. Si vence se
+			// reenvia el DATA; la sesion termina cuando el nivel de sospecha
+			// sobre el cliente supera el umbral. Mientras queden plazas libres
+			// se atienden las solicitudes de nuevos clientes.
 			do {
-				// Se envia un mensaje DATA.
-				sMessage = new SOASMessage();
-				sMessage.setType(SOASMessage.MessageType.DATA);
-				sMessage.setIp(AppContext.getIPAddress(true));
-				sMessage.setLocation(getLocation());
-				sMessage.setSpeed(getSpeed());
-				sendMessage(clientIP, AppContext.RECEIVE_CLIENT_PORT, sMessage);
-				Log.d(TAG, "(S) <DATA> sent to " + clientIP);
-
-				// Se espera a la llegada de un mensaje DATA_ACK o un mensaje
-				// END emitido por el cliente, durante 3 sg.
-				rMessage = messageQueue.takeMessage(3000);
-				if (rMessage == null) { // TIMEOUT.
-					Log.d(TAG, "(S) TIMEOUT waiting <DATA_ACK> or <END> from "
-							+ clientIP);
-
-					attempts++;
-					if (attempts > 3) { // Se alcanzo el maximo de intentos.
-						// Fin streaming. Se cambia de estado.
-						synchronized (state) {
-							state = ServerState.END;
+				// Se atienden las sesiones cuyo plazo ha vencido y se calcula
+				// el plazo mas proximo.
+				long now = System.nanoTime();
+				long until = Long.MAX_VALUE;
+				for (StreamSession session : sessions.values()) {
+					if (now >= session.getDeadline()) {
+						if (!session.isAcked() && !checkTimeout(session, now)) {
+							continue; // Cliente perdido.
 						}
+						sendData(session);
 					}
-				} else if (rMessage.getIp().equalsIgnoreCase(clientIP)) {
-					if (rMessage.getType() == MessageType.DATA_ACK) { // DATA_ACK.
-						Log.d(TAG, "(S) <DATA_ACK> received from " + clientIP);
-
-						// Se reinicia el numero de intentos.
-						attempts = 1;
-
-						// Se realiza una espera de 0.8 sg hasta el envio del
-						// siguiente mensaje DATA.
-						try {
-							Thread.sleep(800);
-						} catch (InterruptedException e) {
-							Log.d(TAG,
-									"(S) mThread interrupted: "
-											+ e.getMessage());
-							e.printStackTrace();
-						}
-					} else { // END.
-						Log.d(TAG, "(S) <END> received from " + clientIP);
-
-						// Fin streaming. Se cambia de estado.
-						synchronized (state) {
-							state = ServerState.END;
-						}
-						attempts = 4;
+					until = Math.min(until, session.getDeadline());
+				}
+				if (sessions.isEmpty()) {
+					// No quedan clientes. Fin streaming. Se cambia de estado.
+					synchronized (state) {
+						state = ServerState.END;
 					}
-				} else { // El mensaje no es del cliente. Posible ataque.
-					attempts++;
+					break;
+				}
+
+				// Se espera un mensaje hasta el plazo mas proximo.
+				rMessage = nextMessage(Math.max(1, (until - now) / 1000000L));
+				if (rMessage == null) {
+					continue;
+				}
+				StreamSession session = sessions.get(rMessage.getIp());
+				if (rMessage.getType() == MessageType.REQUEST) { // REQUEST.
+					// Solicitud de un nuevo cliente (o repetida por un
+					// cliente que no recibio el READY).
+					onRequest();
+					streaming = false;
+				} else if (session == null) {
+					// El mensaje no es de ningun cliente. Posible ataque.
 					Log.d(TAG, "(S) Message from an unknown client: "
 							+ rMessage.getIp());
+				} else if (rMessage.getType() == MessageType.DATA_ACK) { // DATA_ACK.
+					int ackSeq = rMessage.getEchoSequence();
+					recordOneWay(rMessage);
+					if (session.onAck(ackSeq, System.nanoTime())) {
+						Log.d(TAG, "(S) <DATA_ACK> " + ackSeq
+								+ " received from " + session.getIp());
+						heartbeatRtt.record((long) (session.getLastRtt() * 1000));
+						RateController controller = rateController;
+						if (controller != null) {
+							controller.onRtt(session.getIp(),
+									session.getLastRtt());
+						}
+						addEventToJournal(EventType.DATA_ACK_RX,
+								session.getIp(), 0, Float.NaN, ackSeq);
+					} else {
+						Log.d(TAG, "(S) Duplicated <DATA_ACK> " + ackSeq
+								+ " from " + session.getIp());
+					}
+				} else { // END.
+					Log.d(TAG, "(S) <END> received from " + session.getIp());
+					addEventToJournal(EventType.END_RX, session.getIp());
+
+					// Fin streaming con el cliente.
+					endSession(session);
 				}
-			} while ((attempts <= 3) && (!thisThread.isInterrupted())
+			} while (streaming && (!thisThread.isInterrupted())
 					&& (thisThread == dThread));
 		}
 
+		/**
+		 * Envia un mensaje DATA al cliente de una sesion.
+		 * 
+		 * @param session
+		 *            Sesion de streaming
+		 */
+		private void sendData(StreamSession session) {
+			sMessage = new SOASMessage();
+			sMessage.setType(SOASMessage.MessageType.DATA);
+			sMessage.setIp(AppContext.getLocalIPAddress());
+			sMessage.setLocation(getLocation());
+			sMessage.setSpeed(getSpeed());
+			long dataSent = System.nanoTime();
+			sendMessage(session.getIp(), AppContext.RECEIVE_CLIENT_PORT,
+					sMessage);
+			int seq = sMessage.getSequence();
+			session.onDataSent(seq, dataSent);
+			Log.d(TAG, "(S) <DATA> " + seq + " sent to " + session.getIp());
+			addEventToJournal(EventType.DATA_TX, session.getIp(),
+					session.getRetries(), Float.NaN, seq);
+		}
+
+		/**
+		 * Procesa el vencimiento de la espera del DATA_ACK de una sesion. Si
+		 * el nivel de sospecha supera el umbral el cliente se da por perdido.
+		 * 
+		 * @param session
+		 *            Sesion de streaming
+		 * @param now
+		 *            Instante actual (ns)
+		 * @return True-Sesion activa / False-Cliente perdido
+		 */
+		private boolean checkTimeout(StreamSession session, long now) {
+			double phi = session.onTimeout(now);
+			Log.d(TAG, "(S) TIMEOUT waiting <DATA_ACK> or <END> from "
+					+ session.getIp() + " (phi " + phi + ")");
+			addEventToJournal(EventType.TIMEOUT, session.getIp(),
+					session.getRetries(), Float.NaN, Math.round(phi * 1000));
+			streamTimeouts.increment();
+
+			if (phi >= HeartbeatMonitor.PHI_THRESHOLD) {
+				// El cliente se da por perdido. Fin streaming con el cliente.
+				Log.d(TAG, "(S) Client lost: " + session.getIp());
+				addInfoToLog("Client lost: " + session.getIp());
+				endSession(session);
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Elimina una sesion de la tabla de sesiones de streaming.
+		 * 
+		 * @param session
+		 *            Sesion de streaming
+		 */
+		private void endSession(StreamSession session) {
+			sessions.remove(session.getIp());
+			RateController controller = rateController;
+			if (controller != null) {
+				controller.removeClient(session.getIp());
+			}
+			Log.d(TAG, "(S) Streaming session ended with: " + session.getIp());
+			addInfoToLog("Streaming session ended with: " + session.getIp());
+		}
+
 		/**
 		 * Implementa el comportamiento del Servidor en el estado END.
 		 */
 		private void doEnd() {
-			Log.d(TAG, "(S) Streaming session ended with: " + clientIP);
-			addInfoToLog("Streaming session ended with: " + clientIP);
-
-			// Se limpia la cola de mensajes.
+			// Se limpian la tabla de sesiones y la cola de mensajes.
+			sessions.clear();
 			messageQueue.clearQueue();
+			RateController controller = rateController;
+			if (controller != null) {
+				controller.clearClients();
+			}
 
 			// Se limpian las variables globales del hilo.
+			if (rMessage != null) {
+				rMessage.recycle();
+			}
 			rMessage = null;
 			sMessage = null;
 			clientOK = false;
@@ -1161,6 +1676,7 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 			// Se comprueba si la validacion esta desactivada.
 			if (valParams[2] == 1) {
 				// Se acepta por defecto.
+				addEventToJournal(EventType.VALIDATION_OK, clientIP);
 				return true;
 			}
 			// Para que sea un cliente valido debe ir en la misma direccion que
@@ -1175,39 +1691,49 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 					// No se puede continuar con la validacion.
 					Log.d(TAG_2, "(S) One point vector");
 					addInfoToLog("(VAL) One point vector");
+					addEventToJournal(EventType.VALIDATION_FAIL, clientIP, 0,
+							Float.NaN, EventJournal.FAIL_ONE_POINT);
 					return false;
 				} else {
 					// Validacion misma direccion-sentido. Se evalua el angulo
-					// que forman los dos vectores.
-					double degrees = AppContext.getDegrees(serverL, clientL);
-					if (degrees <= valParams[0]) { // Misma direccion-sentido.
+					// que forman los dos vectores comparando su coseno con el
+					// del angulo umbral.
+					double cos = GeoKernel.cosBetween(serverL, clientL);
+					if (GeoKernel.isWithin(cos, cosDirection)) { // Misma direccion-sentido.
 						// Validacion cliente detras de servidor. Se compara el
 						// angulo formado por el vector de direccion del
 						// servidor en sentido contrario y el vector que une la
 						// posicion actual del servidor con la del cliente.
-						serverL[0] = lastLocation[1].getLongitude();
-						serverL[1] = lastLocation[1].getLatitude();
-						serverL[2] = lastLocation[0].getLongitude();
-						serverL[3] = lastLocation[0].getLatitude();
-						double[] serverToClient = { serverL[0], serverL[1],
-								clientLoc[2], clientLoc[3] };
-						degrees = AppContext
-								.getDegrees(serverL, serverToClient);
-						if (degrees <= valParams[1]) { // Detras.
+						cos = GeoKernel.cosBetween(serverL[0] - serverL[2],
+								serverL[1] - serverL[3], clientLoc[2]
+										- serverL[2], clientLoc[3]
+										- serverL[3]);
+						if (GeoKernel.isWithin(cos, cosBehind)) { // Detras.
+							addEventToJournal(EventType.VALIDATION_OK, clientIP,
+									0, (float) GeoKernel.toDegrees(cos), 0);
 							return true;
 						} else { // No detras.
 							Log.d(TAG_2,
 									"(S) Client isn't behind of the server - "
-											+ Double.toString(degrees)
+											+ Double.toString(GeoKernel
+													.toDegrees(cos))
 											+ " degrees");
 							addInfoToLog("(VAL) Client isn't behind of the server");
+							addEventToJournal(EventType.VALIDATION_FAIL,
+									clientIP, 0,
+									(float) GeoKernel.toDegrees(cos),
+									EventJournal.FAIL_POSITION);
 							return false;
 						}
 					} else { // Diferente direccion-sentido.
 						Log.d(TAG_2,
 								"(S) Different direction - "
-										+ Double.toString(degrees) + " degrees");
+										+ Double.toString(GeoKernel
+												.toDegrees(cos)) + " degrees");
 						addInfoToLog("(VAL) Different directions");
+						addEventToJournal(EventType.VALIDATION_FAIL, clientIP,
+								0, (float) GeoKernel.toDegrees(cos),
+								EventJournal.FAIL_DIRECTION);
 						return false;
 					}
 				}
@@ -1215,6 +1741,8 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 				// No se puede efectuar la validacion.
 				Log.d(TAG_2, "(S) Location not available");
 				addInfoToLog("(VAL) Location not available");
+				addEventToJournal(EventType.VALIDATION_FAIL, clientIP, 0,
+						Float.NaN, EventJournal.FAIL_LOCATION);
 				return false;
 			}
 		}
@@ -1231,18 +1759,43 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 		 *            Mensaje
 		 */
 		private void sendMessage(String ip, int port, SOASMessage message) {
+			sendMessage(ip, port, message, 1, null);
+		}
+
+		/**
+		 * Permite enviar varias copias de un mensaje a un dispositivo cliente
+		 * indicando su direccion IP y el puerto de escucha. El envio es
+		 * asincrono: el mensaje se entrega al hilo emisor (o al transporte
+		 * NIO) y el resultado se notifica al oyente indicado.
+		 * 
+		 * @param ip
+		 *            Direccion IP destino
+		 * @param port
+		 *            Puerto destino
+		 * @param message
+		 *            Mensaje
+		 * @param repeat
+		 *            Numero de copias a enviar
+		 * @param callback
+		 *            Oyente del resultado del envio o null
+		 */
+		private void sendMessage(String ip, int port, SOASMessage message,
+				int repeat, SOASSendCallback callback) {
 			try {
-				// Se empaqueta el mensaje en un datagrama UDP.
-				byte[] sendBuf = AppContext.serializeMessage(message);
-				InetAddress IP;
-				IP = InetAddress.getByName(ip);
-				DatagramPacket packet = new DatagramPacket(sendBuf,
-						sendBuf.length, IP, port);
-
-				// Se pasa el datagrama al hilo de emision de mensajes y se
-				// arranca el hilo para que lo envie.
-				sThread.setPacket(packet);
-				sThread.run();
+				// Se obtiene la direccion destino, ya resuelta si se envio
+				// algun mensaje previo a la misma IP.
+				InetAddress address = AppContext.getInetAddress(ip);
+
+				// Se pasa el mensaje al transporte NIO o al hilo emisor de
+				// mensajes.
+				SOASTransport t = transport;
+				SOASSendThread st = sThread;
+				if (t != null) {
+					t.send(message, new InetSocketAddress(address, port),
+							repeat, callback);
+				} else if (st != null) {
+					st.send(message, address, port, repeat, callback);
+				}
 			} catch (UnknownHostException e) {
 				Log.d(TAG, "(S) Error packaging message: " + e.getMessage());
 				e.printStackTrace();
@@ -1250,17 +1803,81 @@ public class SOASServer extends Service implements SurfaceHolder.Callback {
 		}
 
 		/**
-		 * Añade la informacion indicada al log de eventos de la sesion. Para
-		 * ello almacena la informacion en una BD SQLite.
+		 * Anota la latencia de un mensaje del cliente: diferencia entre el
+		 * instante de llegada y el de envio. Depende de que los relojes de
+		 * ambos dispositivos esten sincronizados (p.ej. por red o GPS), por lo
+		 * que se descartan las diferencias negativas.
+		 * 
+		 * @param message
+		 *            Mensaje recibido
+		 */
+		private void recordOneWay(SOASMessage message) {
+			long latency = SOASMessageCodec.currentTimeMicros()
+					- message.getTimestamp();
+			if ((message.getTimestamp() != 0) && (latency >= 0)) {
+				oneWay.record(latency);
+			}
+		}
+
+		/**
+		 * Anota en las metricas un cambio de estado del diagrama: el tiempo
+		 * que se ha permanecido en el estado anterior y la entrada en el
+		 * nuevo.
+		 * 
+		 * @param previous
+		 *            Estado anterior (ordinal) o NO_STATE
+		 * @param current
+		 *            Estado nuevo (ordinal)
+		 */
+		private void recordTransition(int previous, int current) {
+			if (previous != EventJournal.NO_STATE) {
+				stateTimes[previous].recordSince(stateSince);
+			}
+			stateEntries[current].increment();
+			stateSince = System.nanoTime();
+		}
+
+		/**
+		 * Añade la informacion indicada al log de eventos de la sesion. El
+		 * evento se entrega al escritor del log, que lo almacena en una BD
+		 * SQLite sin bloquear al hilo del diagrama de estados.
 		 */
 		private void addInfoToLog(String info) {
-			// Se almacena la informacion en la base de datos.
-			db = getApplicationContext().openOrCreateDatabase("sessionLogs",
-					MODE_PRIVATE, null);
-			db.execSQL("CREATE TABLE IF NOT EXISTS serverLog (id INTEGER PRIMARY KEY autoincrement, time TEXT NOT NULL, info TEXT NOT NULL)");
-			db.execSQL("INSERT INTO serverLog VALUES(null,'[ "
-					+ AppContext.getSystemTime() + " ]','" + info + "')");
-			db.close();
+			logWriter.log(info);
+		}
+
+		/**
+		 * Registra un evento sin datos numericos en el diario binario de la
+		 * sesion.
+		 * 
+		 * @param type
+		 *            Tipo de evento
+		 * @param peer
+		 *            IP del cliente o null
+		 */
+		private void addEventToJournal(EventType type, String peer) {
+			addEventToJournal(type, peer, 0, Float.NaN, 0);
+		}
+
+		/**
+		 * Registra un evento en el diario binario de la sesion junto con el
+		 * ultimo estado registrado del diagrama.
+		 * 
+		 * @param type
+		 *            Tipo de evento
+		 * @param peer
+		 *            IP del cliente o null
+		 * @param count
+		 *            Contador (intentos)
+		 * @param angle
+		 *            Angulo en grados o NaN
+		 * @param value
+		 *            Valor numerico libre
+		 */
+		private void addEventToJournal(EventType type, String peer, int count,
+				float angle, long value) {
+			journal.record(type, journalState, peer, count, angle, Float.NaN,
+					value);
 		}
 
 	} // Fin clase interna 'ServerDiagramThread'
@@ -0,0 +1,512 @@
+package com.tfm.soas.logic;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.tfm.soas.logic.SOASMessage.MessageType;
+
+import android.util.Log;
+
+/**
+ * Transporte de mensajes SOAS basado en un unico hilo que atiende un
+ * DatagramChannel no bloqueante a traves de un Selector. Sustituye a los hilos
+ * de anuncios, emision y recepcion de mensajes:
+ *
+ * 1- Recepcion: Los datagramas se leen sobre un ByteBuffer directo y se
+ * filtran por tipo y emisor antes de reconstruirlos.
+ *
+ * 2- Emision: Los mensajes enviados desde otros hilos se encolan y se emiten
+ * desde el bucle de eventos.
+ *
+ * 3- Temporizadores: Las tareas periodicas (anuncios HELLO) se ejecutan en el
+ * mismo bucle de eventos.
+ *
+ * Si el bucle se detiene por un error, se cierra el canal, se descartan los
+ * envios pendientes y se avisa al oyente para que recurra a otro transporte.
+ */
+public class SOASTransport implements Runnable {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	private static final int RECEIVE_BUFFER_SIZE = 1000; // Bytes recepcion.
+	private static final String TAG = "SOASTransport";
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private final int port; // Puerto de escucha.
+	private final Listener listener; // Destinatario de los mensajes.
+	private final String name; // Nombre del hilo.
+	private Selector selector = null; // Selector de eventos.
+	private DatagramChannel channel = null; // Canal UDP.
+	private final ByteBuffer recvBuffer = ByteBuffer
+			.allocateDirect(RECEIVE_BUFFER_SIZE); // Buffer recepcion.
+	private final ByteBuffer sendBuffer = ByteBuffer
+			.allocateDirect(SOASMessageCodec.MESSAGE_SIZE); // Buffer emision.
+	private final ConcurrentLinkedQueue<Outbound> outbound = new ConcurrentLinkedQueue<Outbound>(); // Envios.
+	private final ConcurrentLinkedQueue<Timer> newTimers = new ConcurrentLinkedQueue<Timer>(); // Altas.
+	private final ArrayList<Timer> timers = new ArrayList<Timer>(); // Activos.
+	private volatile Thread loopThread = null; // Hilo del bucle.
+	private final MetricsRegistry.Counter rxInvalid = MetricsRegistry
+			.getInstance().counter("transport.rx_invalid"); // Datagramas no SOAS.
+	private final MetricsRegistry.Counter txDropped = MetricsRegistry
+			.getInstance().counter("transport.tx_dropped"); // Envios descartados.
+	private volatile boolean running = false; // Bucle en ejecucion.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Constructor para instancias de la clase SOASTransport.
+	 *
+	 * @param port
+	 *            Puerto UDP de escucha
+	 * @param listener
+	 *            Destinatario de los mensajes recibidos
+	 * @param name
+	 *            Nombre del hilo del bucle de eventos
+	 */
+	public SOASTransport(int port, Listener listener, String name) {
+		this.port = port;
+		this.listener = listener;
+		this.name = name;
+	}
+
+	/**
+	 * Abre el canal UDP y arranca el bucle de eventos.
+	 *
+	 * @throws IOException
+	 *             Si no se pudo abrir el canal
+	 */
+	public void start() throws IOException {
+		selector = Selector.open();
+		try {
+			channel = DatagramChannel.open();
+			channel.socket().setBroadcast(true);
+			channel.socket().bind(new InetSocketAddress(port));
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		running = true;
+		loopThread = new Thread(this, name);
+		loopThread.start();
+	}
+
+	/**
+	 * Detiene el bucle de eventos. El canal se cierra al salir del bucle.
+	 */
+	public void stop() {
+		running = false;
+		Selector s = selector;
+		if (s != null) {
+			s.wakeup();
+		}
+		loopThread = null;
+	}
+
+	/**
+	 * Envia un mensaje al destino indicado. Si se invoca desde el bucle de
+	 * eventos se envia inmediatamente, en otro caso se codifica y se encola
+	 * para que lo envie el bucle.
+	 *
+	 * @param message
+	 *            Mensaje a enviar
+	 * @param target
+	 *            Destino
+	 */
+	public void send(SOASMessage message, InetSocketAddress target) {
+		send(message, target, 1, null);
+	}
+
+	/**
+	 * Envia varias copias de un mensaje al destino indicado y notifica el
+	 * resultado. Si se invoca desde el bucle de eventos se envia
+	 * inmediatamente, en otro caso se codifica y se encola para que lo envie
+	 * el bucle.
+	 *
+	 * @param message
+	 *            Mensaje a enviar
+	 * @param target
+	 *            Destino
+	 * @param repeat
+	 *            Numero de copias a enviar
+	 * @param callback
+	 *            Oyente del resultado del envio o null
+	 */
+	public void send(SOASMessage message, InetSocketAddress target,
+			int repeat, SOASSendCallback callback) {
+		if (Thread.currentThread() == loopThread) {
+			sendBuffer.clear();
+			SOASMessageCodec.encode(message, sendBuffer);
+			sendBuffer.flip();
+			transmit(message.getType(), target, repeat, callback);
+		} else {
+			byte[] data = new byte[SOASMessageCodec.MESSAGE_SIZE];
+			SOASMessageCodec.encode(message, ByteBuffer.wrap(data));
+			outbound.offer(new Outbound(data, message.getType(), target,
+					repeat, callback));
+			Selector s = selector;
+			if (s != null) {
+				s.wakeup();
+			}
+		}
+	}
+
+	/**
+	 * Programa una tarea en el bucle de eventos.
+	 *
+	 * @param task
+	 *            Tarea
+	 * @param delay
+	 *            Retardo (ms) hasta la primera ejecucion
+	 * @param period
+	 *            Periodo (ms) entre ejecuciones. 0 = Una sola ejecucion
+	 * @return Temporizador, que permite cancelar la tarea
+	 */
+	public Timer schedule(Runnable task, long delay, long period) {
+		// Reloj monotono: un ajuste de la hora del sistema no adelanta ni
+		// retrasa las tareas.
+		Timer timer = new Timer(task, System.nanoTime() + (delay * 1000000),
+				period * 1000000);
+		newTimers.offer(timer);
+		Selector s = selector;
+		if (s != null) {
+			s.wakeup();
+		}
+		return timer;
+	}
+
+	/**
+	 * Implementa el bucle de eventos.
+	 */
+	@Override
+	public void run() {
+		Exception error = null;
+		try {
+			while (running) {
+				// Se ejecutan las tareas vencidas y se calcula el tiempo hasta
+				// la siguiente.
+				long wait = runTimers();
+
+				// Se emiten los mensajes pendientes.
+				flushOutbound();
+
+				// Se espera a la llegada de datagramas, a un nuevo envio o al
+				// siguiente temporizador.
+				int ready = (wait > 0) ? selector.select(wait) : selector
+						.select();
+				if (ready > 0) {
+					Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (key.isValid() && key.isReadable()) {
+							receive();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "Error in event loop: " + e.getMessage());
+			e.printStackTrace();
+			error = e;
+		} catch (RuntimeException e) {
+			Log.d(TAG, "Error in event loop: " + e.getMessage());
+			e.printStackTrace();
+			error = e;
+		} finally {
+			close();
+		}
+
+		// Si el bucle no se detuvo con stop(), se avisa al oyente una vez
+		// cerrado el canal, de modo que pueda volver a abrir el puerto.
+		if (error != null) {
+			running = false;
+			discardOutbound(error);
+			listener.onTransportError(this, error);
+		}
+	}
+
+	/**
+	 * Lee todos los datagramas disponibles en el canal.
+	 *
+	 * @throws IOException
+	 */
+	private void receive() throws IOException {
+		recvBuffer.clear();
+		while (channel.receive(recvBuffer) != null) {
+			recvBuffer.flip();
+			dispatch(recvBuffer);
+			recvBuffer.clear();
+		}
+	}
+
+	/**
+	 * Filtra un datagrama recibido y, si es de interes, lo reconstruye y lo
+	 * entrega al oyente.
+	 *
+	 * @param buffer
+	 *            Datagrama recibido
+	 */
+	private void dispatch(ByteBuffer buffer) {
+		MessageType type = SOASMessageCodec.peekType(buffer, 0,
+				buffer.remaining());
+		if (type == null) {
+			rxInvalid.increment();
+			return;
+		}
+		long sender = SOASMessageCodec.peekAddress(buffer, 0);
+		int flags = SOASMessageCodec.peekFlags(buffer, 0);
+		int sequence = SOASMessageCodec.peekSequence(buffer, 0);
+		if (listener.accept(type, sender, flags, sequence)) {
+			SOASMessage message = SOASMessage.obtain();
+			SOASMessageCodec.decode(buffer, message);
+			listener.onMessage(message);
+		}
+	}
+
+	/**
+	 * Emite los mensajes encolados por otros hilos.
+	 */
+	private void flushOutbound() {
+		Outbound request;
+		while ((request = outbound.poll()) != null) {
+			sendBuffer.clear();
+			sendBuffer.put(request.data);
+			sendBuffer.flip();
+			transmit(request.type, request.target, request.repeat,
+					request.callback);
+		}
+	}
+
+	/**
+	 * Descarta los mensajes encolados por otros hilos tras detenerse el bucle
+	 * por un error y notifica el fallo a sus oyentes.
+	 *
+	 * @param error
+	 *            Error que detuvo el bucle
+	 */
+	private void discardOutbound(Exception error) {
+		Outbound request;
+		while ((request = outbound.poll()) != null) {
+			txDropped.increment();
+			if (request.callback != null) {
+				try {
+					request.callback.onSendComplete(request.type,
+							request.target.getAddress().getHostAddress(), 0,
+							error);
+				} catch (RuntimeException e) {
+					Log.d(TAG, "Error in send callback: " + e.getMessage());
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Envia el contenido del buffer de emision tantas veces como se indique y
+	 * notifica el resultado.
+	 *
+	 * @param type
+	 *            Tipo del mensaje
+	 * @param target
+	 *            Destino
+	 * @param repeat
+	 *            Numero de copias a enviar
+	 * @param callback
+	 *            Oyente del resultado del envio o null
+	 */
+	private void transmit(MessageType type, InetSocketAddress target,
+			int repeat, SOASSendCallback callback) {
+		int sent = 0;
+		Exception error = null;
+		for (int i = 0; i < Math.max(1, repeat); i++) {
+			try {
+				sendBuffer.rewind();
+				if (channel.send(sendBuffer, target) == 0) {
+					Log.d(TAG, "Send buffer full, message dropped");
+					txDropped.increment();
+				} else {
+					sent++;
+				}
+			} catch (IOException e) {
+				Log.d(TAG, "Error sending message: " + e.getMessage());
+				error = e;
+			}
+		}
+		if (callback != null) {
+			try {
+				callback.onSendComplete(type, target.getAddress()
+						.getHostAddress(), sent, error);
+			} catch (RuntimeException e) {
+				Log.d(TAG, "Error in send callback: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Ejecuta los temporizadores vencidos.
+	 *
+	 * @return Tiempo (ms) hasta el siguiente temporizador o 0 si no hay
+	 */
+	private long runTimers() {
+		Timer timer;
+		while ((timer = newTimers.poll()) != null) {
+			timers.add(timer);
+		}
+
+		// Los instantes de System.nanoTime solo se comparan por diferencia.
+		long now = System.nanoTime();
+		long next = 0;
+		boolean pending = false;
+		for (int i = timers.size() - 1; i >= 0; i--) {
+			timer = timers.get(i);
+			if (timer.cancelled) {
+				timers.remove(i);
+				continue;
+			}
+			if ((timer.nextRun - now) <= 0) {
+				try {
+					timer.task.run();
+				} catch (RuntimeException e) {
+					Log.d(TAG, "Error running task: " + e.getMessage());
+					e.printStackTrace();
+				}
+				if (timer.period > 0) {
+					timer.nextRun = now + timer.period;
+				} else {
+					timers.remove(i);
+					continue;
+				}
+			}
+			if (!pending || ((timer.nextRun - next) < 0)) {
+				next = timer.nextRun;
+				pending = true;
+			}
+		}
+		if (!pending) {
+			return 0;
+		}
+		// Se redondea hacia arriba para no despertar antes de tiempo.
+		return Math.max(1, (next - System.nanoTime() + 999999) / 1000000);
+	}
+
+	/**
+	 * Cierra el canal y el selector.
+	 */
+	private void close() {
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+			if (selector != null) {
+				selector.close();
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "Error closing channel: " + e.getMessage());
+		}
+	}
+
+	/*--------------------------------------------------------*/
+	/* /////////////////// CLASES INTERNAS ////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Oyente de los mensajes recibidos por el transporte. Todos los metodos se
+	 * ejecutan en el hilo del bucle de eventos.
+	 */
+	public interface Listener {
+
+		/**
+		 * Decide si un mensaje es de interes antes de reconstruirlo.
+		 *
+		 * @param type
+		 *            Tipo de mensaje
+		 * @param sender
+		 *            IP del emisor como entero o -1 si no indico una IPv4
+		 * @param flags
+		 *            Flags del mensaje
+		 * @param sequence
+		 *            Numero de secuencia del mensaje
+		 * @return True-Reconstruir y entregar / False-Descartar
+		 */
+		boolean accept(MessageType type, long sender, int flags, int sequence);
+
+		/**
+		 * Recibe un mensaje aceptado. El mensaje procede del pool de mensajes.
+		 *
+		 * @param message
+		 *            Mensaje recibido
+		 */
+		void onMessage(SOASMessage message);
+
+		/**
+		 * Recibe el error que ha detenido el bucle de eventos. El canal ya
+		 * esta cerrado y el transporte no se puede volver a utilizar. No se
+		 * invoca si el bucle se detiene con stop().
+		 *
+		 * @param transport
+		 *            Transporte detenido
+		 * @param error
+		 *            Error que detuvo el bucle
+		 */
+		void onTransportError(SOASTransport transport, Exception error);
+
+	} // Fin interfaz interna 'Listener'
+
+	/**
+	 * Tarea programada en el bucle de eventos.
+	 */
+	public static final class Timer {
+		private final Runnable task; // Tarea.
+		private final long period; // Periodo (ns).
+		private long nextRun; // Siguiente ejecucion (System.nanoTime).
+		private volatile boolean cancelled = false; // Cancelada.
+
+		private Timer(Runnable task, long nextRun, long period) {
+			this.task = task;
+			this.nextRun = nextRun;
+			this.period = period;
+		}
+
+		/**
+		 * Cancela la tarea.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+	} // Fin clase interna 'Timer'
+
+	/**
+	 * Mensaje codificado pendiente de envio.
+	 */
+	private static final class Outbound {
+		final byte[] data; // Mensaje codificado.
+		final MessageType type; // Tipo de mensaje.
+		final InetSocketAddress target; // Destino.
+		final int repeat; // Copias a enviar.
+		final SOASSendCallback callback; // Oyente del resultado.
+
+		Outbound(byte[] data, MessageType type, InetSocketAddress target,
+				int repeat, SOASSendCallback callback) {
+			this.data = data;
+			this.type = type;
+			this.target = target;
+			this.repeat = repeat;
+			this.callback = callback;
+		}
+	} // Fin clase interna 'Outbound'
+
+} // Fin clase 'SOASTransport'
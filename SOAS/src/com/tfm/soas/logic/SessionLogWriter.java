@@ -0,0 +1,279 @@
+package com.tfm.soas.logic;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import android.content.Context;
+import android.content.Intent;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Hilo escritor del log de eventos de una sesion SOAS. Los hilos que generan
+ * eventos solo depositan la informacion en un buffer circular en memoria, de
+ * modo que nunca esperan a la base de datos. El hilo escritor mantiene abierta
+ * la BD durante toda la sesion y vuelca los eventos pendientes por lotes, en
+ * una unica transaccion con una sentencia precompilada, cuando se acumulan
+ * suficientes eventos o cuando vence el tiempo maximo de espera. Tras cada
+ * volcado se difunde un Intent ACTION_LOG_UPDATE para que los visores del log
+ * carguen las nuevas lineas.
+ */
+public class SessionLogWriter extends Thread {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	public static final String DATABASE = "sessionLogs"; // Nombre de la BD.
+	public static final String ACTION_LOG_UPDATE = "log_Update"; // Aviso volcado.
+	private static final int CAPACITY = 256; // Eventos pendientes max.
+	private static final int BATCH_SIZE = 32; // Eventos por volcado.
+	private static final long FLUSH_INTERVAL = 500; // Espera max. volcado (ms).
+	private static final String TAG = "SessionLogWriter";
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private final Context context; // Contexto para abrir la BD.
+	private final String table; // Tabla del log.
+	private final long[] times = new long[CAPACITY]; // Instante de cada evento.
+	private final String[] infos = new String[CAPACITY]; // Informacion.
+	private int head = 0; // Siguiente evento a volcar.
+	private int count = 0; // Eventos pendientes.
+	private int dropped = 0; // Eventos descartados por buffer lleno.
+	private boolean closed = false; // Sesion finalizada.
+	private final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss.SSS",
+			Locale.getDefault()); // Formato de la hora (solo hilo escritor).
+	private final Date date = new Date(); // Fecha reutilizable.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Constructor para instancias de la clase SessionLogWriter.
+	 *
+	 * @param context
+	 *            Contexto de la aplicacion
+	 * @param table
+	 *            Tabla del log (serverLog / clientLog)
+	 * @param name
+	 *            Nombre del hilo
+	 */
+	public SessionLogWriter(Context context, String table, String name) {
+		super(name);
+		this.context = context;
+		this.table = table;
+	}
+
+	/**
+	 * Añade un evento al log. No bloquea: si el buffer esta lleno el evento
+	 * se descarta y se anota en el siguiente volcado.
+	 *
+	 * @param info
+	 *            Informacion del evento
+	 */
+	public void log(String info) {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			if (count == CAPACITY) {
+				dropped++;
+				return;
+			}
+			int tail = (head + count) % CAPACITY;
+			times[tail] = now;
+			infos[tail] = info;
+			count++;
+			if (count >= BATCH_SIZE) {
+				notify();
+			}
+		}
+	}
+
+	/**
+	 * Finaliza la sesion. El hilo escritor vuelca los eventos pendientes,
+	 * cierra la BD y termina. No espera a que termine el volcado.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notify();
+		}
+	}
+
+	/**
+	 * Implementa el comportamiento del hilo escritor: vacia el log de la
+	 * sesion anterior y vuelca los eventos pendientes por lotes.
+	 */
+	@Override
+	public void run() {
+		SQLiteDatabase db = null;
+		SQLiteStatement insert = null;
+		long[] batchTimes = new long[CAPACITY];
+		String[] batchInfos = new String[CAPACITY];
+		try {
+			// Se abre la BD una unica vez para toda la sesion y se vacia el
+			// log de la sesion anterior.
+			db = context.openOrCreateDatabase(DATABASE, Context.MODE_PRIVATE,
+					null);
+			db.execSQL("DROP TABLE IF EXISTS " + table);
+			insert = prepare(db);
+			Intent reset = new Intent(ACTION_LOG_UPDATE);
+			reset.putExtra("table", table);
+			reset.putExtra("reset", true);
+			context.sendBroadcast(reset);
+
+			boolean finished = false;
+			while (!finished) {
+				// Se espera a que haya un lote completo, venza el tiempo de
+				// espera o finalice la sesion.
+				int n;
+				int lost;
+				synchronized (this) {
+					long deadline = System.currentTimeMillis() + FLUSH_INTERVAL;
+					while (!closed && (count < BATCH_SIZE)) {
+						long remaining = deadline - System.currentTimeMillis();
+						if ((remaining <= 0) && (count > 0)) {
+							break;
+						}
+						wait((remaining > 0) ? remaining : FLUSH_INTERVAL);
+					}
+					finished = closed;
+
+					// Se extraen los eventos pendientes.
+					n = count;
+					for (int i = 0; i < n; i++) {
+						int slot = (head + i) % CAPACITY;
+						batchTimes[i] = times[slot];
+						batchInfos[i] = infos[slot];
+						infos[slot] = null;
+					}
+					head = (head + n) % CAPACITY;
+					count = 0;
+					lost = dropped;
+					dropped = 0;
+				}
+
+				// Se vuelca el lote en una unica transaccion. Si falla (p.ej.
+				// se borraron los logs desde la interfaz) se descarta el lote y
+				// se vuelve a crear la tabla.
+				if ((n > 0) || (lost > 0)) {
+					try {
+						flush(db, insert, batchTimes, batchInfos, n, lost);
+						Intent update = new Intent(ACTION_LOG_UPDATE);
+						update.putExtra("table", table);
+						context.sendBroadcast(update);
+					} catch (RuntimeException e) {
+						Log.d(TAG, "Error flushing session log: "
+								+ e.getMessage());
+						try {
+							insert.close();
+							insert = null;
+							insert = prepare(db);
+						} catch (RuntimeException e2) {
+							// La tabla no se puede volver a crear: se cierra el
+							// log y se descartan los eventos siguientes.
+							Log.d(TAG, "Session log closed: " + e2.getMessage());
+							abandon();
+							finished = true;
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.d(TAG, "Log writer interrupted: " + e.getMessage());
+			abandon();
+		} catch (RuntimeException e) {
+			Log.d(TAG, "Error writing session log: " + e.getMessage());
+			abandon();
+		} finally {
+			if (insert != null) {
+				insert.close();
+			}
+			if (db != null) {
+				db.close();
+			}
+		}
+	}
+
+	/**
+	 * Cierra el log cuando el hilo escritor no puede continuar: los eventos
+	 * pendientes y los siguientes se descartan en lugar de acumularse.
+	 */
+	private synchronized void abandon() {
+		closed = true;
+		for (int i = 0; i < count; i++) {
+			infos[(head + i) % CAPACITY] = null;
+		}
+		count = 0;
+	}
+
+	/**
+	 * Crea la tabla del log si no existe y precompila la sentencia de
+	 * insercion.
+	 *
+	 * @param db
+	 *            BD del log
+	 * @return Sentencia de insercion
+	 */
+	private SQLiteStatement prepare(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + table
+				+ " (id INTEGER PRIMARY KEY autoincrement,"
+				+ " time TEXT NOT NULL, info TEXT NOT NULL)");
+		return db.compileStatement("INSERT INTO " + table
+				+ " (time, info) VALUES (?, ?)");
+	}
+
+	/**
+	 * Vuelca un lote de eventos en una unica transaccion.
+	 *
+	 * @param db
+	 *            BD del log
+	 * @param insert
+	 *            Sentencia de insercion
+	 * @param batchTimes
+	 *            Instante de cada evento
+	 * @param batchInfos
+	 *            Informacion de cada evento
+	 * @param n
+	 *            Numero de eventos
+	 * @param lost
+	 *            Eventos descartados por buffer lleno
+	 */
+	private void flush(SQLiteDatabase db, SQLiteStatement insert,
+			long[] batchTimes, String[] batchInfos, int n, int lost) {
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < n; i++) {
+				insert.bindString(1, format(batchTimes[i]));
+				insert.bindString(2, batchInfos[i]);
+				insert.executeInsert();
+				batchInfos[i] = null;
+			}
+			if (lost > 0) {
+				insert.bindString(1, format(System.currentTimeMillis()));
+				insert.bindString(2, lost + " log entries dropped (buffer full)");
+				insert.executeInsert();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Da formato a la hora de un evento: [ HH:mm:ss.SSS ]
+	 *
+	 * @param time
+	 *            Instante del evento (ms)
+	 * @return Hora del evento
+	 */
+	private String format(long time) {
+		date.setTime(time);
+		return "[ " + sdf.format(date) + " ]";
+	}
+
+} // Fin clase 'SessionLogWriter'
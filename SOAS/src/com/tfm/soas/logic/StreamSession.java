@@ -0,0 +1,146 @@
+package com.tfm.soas.logic;
+
+/**
+ * Sesion de streaming del servidor con un cliente. Guarda el estado de los
+ * mensajes de control de conexion (DATA / DATA_ACK) de ese cliente: el ultimo
+ * DATA enviado, si ya se ha recibido su DATA_ACK, los reintentos y el monitor
+ * que mide el RTT y la sospecha de caida.
+ *
+ * Cada sesion tiene un plazo: si el ultimo DATA ya tiene respuesta, el
+ * instante de envio del siguiente DATA; si no, el instante en que vence la
+ * espera de su DATA_ACK. El hilo del diagrama de estados atiende las sesiones
+ * cuyo plazo ha vencido y espera mensajes hasta el plazo mas proximo.
+ *
+ * Solo la modifica el hilo del diagrama de estados; el resto de hilos solo
+ * consultan la tabla de sesiones que las contiene.
+ */
+public class StreamSession {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private final String ip; // IP del cliente.
+	private final HeartbeatMonitor heartbeat = new HeartbeatMonitor(); // RTT y sospecha.
+	private int dataSequence = 0; // Numero del ultimo DATA enviado.
+	private long dataSent = 0; // Envio del ultimo DATA (ns).
+	private boolean acked = true; // Ultimo DATA respondido.
+	private int retries = 0; // Esperas vencidas seguidas.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Constructor para instancias de la clase StreamSession. El primer DATA
+	 * se debe enviar de inmediato.
+	 *
+	 * @param ip
+	 *            IP del cliente
+	 * @param now
+	 *            Instante actual (ns)
+	 */
+	public StreamSession(String ip, long now) {
+		this.ip = ip;
+		heartbeat.reset(now);
+		dataSent = now - (HeartbeatMonitor.INTERVAL * 1000000L);
+	}
+
+	/**
+	 * Devuelve la IP del cliente.
+	 *
+	 * @return IP en formato a.b.c.d
+	 */
+	public String getIp() {
+		return ip;
+	}
+
+	/**
+	 * Devuelve el instante en que la sesion requiere atencion: envio del
+	 * siguiente DATA o fin de la espera del DATA_ACK.
+	 *
+	 * @return Plazo (ns)
+	 */
+	public long getDeadline() {
+		long wait = acked ? HeartbeatMonitor.INTERVAL : heartbeat
+				.getRetransmitTimeout();
+		return dataSent + (wait * 1000000L);
+	}
+
+	/**
+	 * Indica si el ultimo DATA enviado ya tiene respuesta.
+	 *
+	 * @return True-DATA_ACK recibido / False-Pendiente
+	 */
+	public boolean isAcked() {
+		return acked;
+	}
+
+	/**
+	 * Devuelve el numero de esperas vencidas seguidas.
+	 *
+	 * @return Reintentos
+	 */
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * Devuelve la ultima muestra de RTT.
+	 *
+	 * @return RTT (ms)
+	 */
+	public double getLastRtt() {
+		return heartbeat.getLastRtt();
+	}
+
+	/**
+	 * Anota el envio de un DATA.
+	 *
+	 * @param seq
+	 *            Numero de secuencia asignado al DATA
+	 * @param now
+	 *            Instante de envio (ns)
+	 */
+	public void onDataSent(int seq, long now) {
+		heartbeat.onSent(seq, now);
+		dataSequence = seq;
+		dataSent = now;
+		acked = false;
+	}
+
+	/**
+	 * Procesa un DATA_ACK del cliente.
+	 *
+	 * @param seq
+	 *            Numero de secuencia del DATA al que responde
+	 * @param now
+	 *            Instante de llegada (ns)
+	 * @return True-Respuesta valida / False-Duplicada o desconocida
+	 */
+	public boolean onAck(int seq, long now) {
+		if (!heartbeat.onAck(seq, now)) {
+			return false;
+		}
+		// Responde al ultimo DATA (o a uno anterior que llego tarde): el
+		// cliente sigue conectado.
+		if (seq == dataSequence) {
+			acked = true;
+		}
+		retries = 0;
+		return true;
+	}
+
+	/**
+	 * Anota que ha vencido la espera del DATA_ACK.
+	 *
+	 * @param now
+	 *            Instante actual (ns)
+	 * @return Nivel de sospecha phi sobre el cliente
+	 */
+	public double onTimeout(long now) {
+		double phi = heartbeat.phi(now);
+		retries++;
+		heartbeat.onTimeout();
+		return phi;
+	}
+
+} // Fin clase 'StreamSession'
@@ -1,29 +1,43 @@
 package com.tfm.soas.view_controller;
 
+import java.util.ArrayList;
+
 import com.tfm.soas.R;
+import com.tfm.soas.logic.SessionLogWriter;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.graphics.Color;
 import android.graphics.Typeface;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.Gravity;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.ViewGroup.LayoutParams;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TabHost;
-import android.widget.TableLayout;
-import android.widget.TableRow;
 import android.widget.TextView;
 import android.widget.TabHost.OnTabChangeListener;
 import android.widget.TabHost.TabSpec;
 
 /**
  * Actividad que permite visualizar los logs Cliente/Servidor que contienen los
- * eventos ocurridos durante una sesion SOAS.
+ * eventos ocurridos durante una sesion SOAS. Los logs se cargan por paginas en
+ * segundo plano, a medida que se desplaza la lista, y las nuevas lineas que
+ * genera la sesion en curso se añaden al final sin recargar el log.
  * 
  * @author Javier Herrero Arnanz
  * @version 1.0
@@ -36,6 +50,8 @@ public class LogsActivity extends Activity {
 	/*--------------------------------------------------------*/
 	public static final int CLIENT_LOG = 1;
 	public static final int SERVER_LOG = 2;
+	private static final int PAGE_SIZE = 200; // Lineas por pagina.
+	private static final String TAG = "LogsActivity";
 
 	/*--------------------------------------------------------*/
 	/* ///////////////////// ATRIBUTOS ////////////////////// */
@@ -43,7 +59,9 @@ public class LogsActivity extends Activity {
 	private TextView labelC = null; // Etiqueta pestaña Cliente.
 	private TextView labelS = null; // Etiqueta pestaña Servidor.
 	private int logSelected = CLIENT_LOG; // Pestaña seleccionada.
-	private SQLiteDatabase db = null; // Acceso a BD.
+	private LogAdapter clientAdapter = null; // Lineas log cliente.
+	private LogAdapter serverAdapter = null; // Lineas log servidor.
+	private LogUpdateReceiver updateReceiver = null; // Nuevas lineas.
 
 	/*--------------------------------------------------------*/
 	/* /////////////////////// METODOS ////////////////////// */
@@ -62,10 +80,45 @@ public class LogsActivity extends Activity {
 		// Se carga la interfaz de la actividad.
 		setContentView(R.layout.activity_logs);
 
+		// Se asocia a cada lista su adaptador, que carga las lineas del log
+		// por paginas.
+		clientAdapter = new LogAdapter("clientLog");
+		serverAdapter = new LogAdapter("serverLog");
+		initList(R.id.listClientTab, R.id.emptyClientTab, clientAdapter);
+		initList(R.id.listServerTab, R.id.emptyServerTab, serverAdapter);
+		updateReceiver = new LogUpdateReceiver();
+
 		// Se inicializan las pestañas para cambiar entre logs.
 		customizeTabs();
 	}
 
+	/**
+	 * Registra el BroadcastReceiver que avisa de las nuevas lineas del log
+	 * antes de que la actividad pase a primer plano.
+	 */
+	@Override
+	protected void onResume() {
+		super.onResume();
+		registerReceiver(updateReceiver, new IntentFilter(
+				SessionLogWriter.ACTION_LOG_UPDATE));
+
+		// Se cargan las lineas escritas mientras estaba en segundo plano en
+		// ambos logs. El aviso de una nueva sesion se pierde si llega en
+		// segundo plano, por lo que se comprueba si el log se ha vaciado.
+		clientAdapter.refresh();
+		serverAdapter.refresh();
+	}
+
+	/**
+	 * Elimina el BroadcastReceiver antes de que la actividad pase a segundo
+	 * plano.
+	 */
+	@Override
+	protected void onPause() {
+		super.onPause();
+		unregisterReceiver(updateReceiver);
+	}
+
 	/**
 	 * Permite inicializar el menu de la actividad, el cual permite borrar los
 	 * logs.
@@ -87,12 +140,12 @@ public class LogsActivity extends Activity {
 		// Se evalua que elemento del menu fue seleccionado.
 		switch (item.getItemId()) {
 		case R.id.menu_logs: { // DELETE LOGS.
-			// Se eliminan los logs de cliente y servidor.
-			db = this.openOrCreateDatabase("sessionLogs", MODE_PRIVATE, null);
-			db.execSQL("DROP TABLE IF EXISTS serverLog");
-			db.execSQL("DROP TABLE IF EXISTS clientLog");
-			db.close();
-			showLogs(logSelected);
+			// Se vacian las listas y se eliminan los logs de cliente y
+			// servidor en segundo plano, ya que el escritor del log puede
+			// tener la BD bloqueada.
+			clientAdapter.reset();
+			serverAdapter.reset();
+			new DeleteLogsTask().execute();
 			return true;
 		}
 		}
@@ -145,85 +198,61 @@ public class LogsActivity extends Activity {
 	}
 
 	/**
-	 * Permite cargar el log indicado.
+	 * Asocia un adaptador a la lista de un log y le indica la vista que se
+	 * muestra cuando el log esta vacio.
 	 * 
-	 * @param type
-	 *            1-Log cliente / 2-Log servidor
+	 * @param listId
+	 *            Identificador de la lista
+	 * @param emptyId
+	 *            Identificador de la vista de log vacio
+	 * @param adapter
+	 *            Adaptador del log
 	 */
-	@SuppressLint("RtlHardcoded")
-	private void showLogs(int type) {
-		// Se recupera la referencia a la tabla donde se mostrara el log.
-		TableLayout table = null;
-		String tableBD = "";
-		if (type == CLIENT_LOG) { // CLIENTE.
-			table = (TableLayout) findViewById(R.id.tableClientTab);
-			tableBD = "clientLog";
-		} else if (type == SERVER_LOG) { // SERVIDOR.
-			table = (TableLayout) findViewById(R.id.tableServerTab);
-			tableBD = "serverLog";
-		}
-		table.removeAllViews();
-
-		// Se recupera la informacion del log solicitado de la BD.
-		Cursor cursor = null;
-		db = this.openOrCreateDatabase("sessionLogs", MODE_PRIVATE, null);
-		db.execSQL("CREATE TABLE IF NOT EXISTS "
-				+ tableBD
-				+ " (id INTEGER PRIMARY KEY autoincrement, time TEXT NOT NULL, info TEXT NOT NULL)");
-		cursor = db.rawQuery("SELECT * FROM " + tableBD + " ORDER BY time ASC",
-				new String[] {});
-
-		// Se añaden las lineas del log a la tabla.
-		if (!cursor.moveToNext()) { // NO HAY INFORMACION.
-			// Se añaden 6 lineas vacias.
-			for (int i = 0; i < 6; i++) {
-				TableRow row = new TableRow(this);
-				TextView row_content = new TextView(this);
-				row_content.setText("");
-				row.addView(row_content);
-				table.addView(row);
-			}
+	private void initList(int listId, int emptyId, final LogAdapter adapter) {
+		ListView list = (ListView) findViewById(listId);
+		list.setEmptyView(findViewById(emptyId));
+		list.setAdapter(adapter);
 
-			// Se indica que no hay informacion.
-			TableRow row = new TableRow(this);
-			TextView row_content = new TextView(this);
-			row_content.setText("The log is empty");
-			row_content.setTextColor(Color.rgb(0, 0, 0));
-			row_content.setTextSize(18);
-			row_content.setGravity(Gravity.CENTER);
-			row.addView(row_content);
-			table.addView(row);
-
-		} else { // HAY INFORMACION.
-			do {
-				TableRow row = new TableRow(this);
-
-				// Informacion.
-				TextView row_content = new TextView(this);
-				row_content.setText(cursor.getString(1) + " - "
-						+ cursor.getString(2));
-				row_content.setTextColor(Color.rgb(0, 67, 124));
-				row_content.setTextSize(17);
-				row_content.setGravity(Gravity.LEFT);
-				row.addView(row_content);
+		// Se carga la siguiente pagina al acercarse al final de la lista.
+		list.setOnScrollListener(new OnScrollListener() {
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
 
-				// Separador.
-				View line = new View(this);
-				line.setPadding(0, 5, 0, 5);
-				line.setLayoutParams(new LayoutParams(
-						LayoutParams.WRAP_CONTENT, 1));
-				line.setBackgroundColor(Color.BLACK);
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem,
+					int visibleItemCount, int totalItemCount) {
+				if (firstVisibleItem + visibleItemCount >= totalItemCount
+						- (PAGE_SIZE / 4)) {
+					adapter.loadNextPage();
+				}
+			}
+		});
+	}
 
-				// Se incorpora a la tabla.
-				table.addView(row);
-				table.addView(line);
-			} while (cursor.moveToNext());
+	/**
+	 * Devuelve el adaptador de un log.
+	 * 
+	 * @param type
+	 *            1-Log cliente / 2-Log servidor
+	 * @return Adaptador del log
+	 */
+	private LogAdapter getAdapter(int type) {
+		return (type == SERVER_LOG) ? serverAdapter : clientAdapter;
+	}
 
+	/**
+	 * Permite cargar el log indicado. Solo se consulta la BD si el log aun no
+	 * se ha cargado.
+	 * 
+	 * @param type
+	 *            1-Log cliente / 2-Log servidor
+	 */
+	private void showLogs(int type) {
+		LogAdapter adapter = getAdapter(type);
+		if (adapter.getCount() == 0) {
+			adapter.loadNextPage();
 		}
-
-		// Se cierra la BD y el Cursor.
-		cursor.close();
-		db.close();
 	}
 
 	/*--------------------------------------------------------*/
@@ -266,4 +295,349 @@ public class LogsActivity extends Activity {
 
 	} // Fin clase interna 'TabClickListener'
 
+	/**
+	 * Adaptador que muestra las lineas de un log. Las lineas se consultan por
+	 * paginas ordenadas por su clave primaria, de modo que cada pagina
+	 * continua donde termino la anterior, y las vistas de las filas se
+	 * reutilizan al desplazar la lista.
+	 */
+	private class LogAdapter extends BaseAdapter {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private final String table; // Tabla del log.
+		private final ArrayList<String> lines = new ArrayList<String>(); // Lineas.
+		private long lastId = 0; // Clave de la ultima linea cargada.
+		private boolean verify = false; // Comprobar si el log se ha vaciado.
+		private boolean loading = false; // Carga en curso.
+		private boolean endReached = false; // No hay mas lineas en la BD.
+		private boolean refreshPending = false; // Nuevas lineas durante carga.
+		private int generation = 0; // Se incrementa al vaciar el log.
+
+		/*---------*/
+		/* METODOS */
+		/*---------*/
+		/**
+		 * Constructor para instancias de la clase LogAdapter.
+		 * 
+		 * @param table
+		 *            Tabla del log
+		 */
+		public LogAdapter(String table) {
+			this.table = table;
+		}
+
+		/**
+		 * Carga en segundo plano la siguiente pagina del log, si no hay otra
+		 * carga en curso y quedan lineas por cargar.
+		 */
+		public void loadNextPage() {
+			if (!loading && !endReached) {
+				loading = true;
+				// Solo se comprueba la ultima linea si ya hay lineas cargadas.
+				String last = (verify && (lastId > 0)) ? lines.get(lines
+						.size() - 1) : null;
+				verify = false;
+				new LoadLogTask(this, generation, last).execute(lastId);
+			}
+		}
+
+		/**
+		 * Carga las lineas añadidas al log desde la ultima pagina cargada.
+		 */
+		public void loadNewLines() {
+			if (loading) {
+				// La carga en curso puede no incluirlas.
+				refreshPending = true;
+				return;
+			}
+			endReached = false;
+			loadNextPage();
+		}
+
+		/**
+		 * Carga las lineas añadidas al log mientras la actividad estaba en
+		 * segundo plano. Si el escritor ha iniciado una nueva sesion entre
+		 * tanto, el log se carga desde el principio.
+		 */
+		public void refresh() {
+			verify = true;
+			loadNewLines();
+		}
+
+		/**
+		 * Vacia el adaptador. Se ignoran las cargas en curso.
+		 */
+		public void reset() {
+			generation++;
+			lines.clear();
+			lastId = 0;
+			verify = false;
+			loading = false;
+			endReached = false;
+			refreshPending = false;
+			notifyDataSetChanged();
+		}
+
+		/**
+		 * Añade una pagina cargada al final del log.
+		 * 
+		 * @param page
+		 *            Pagina cargada
+		 */
+		public void append(LogPage page) {
+			if (page.generation != generation) { // Log vaciado.
+				return;
+			}
+			loading = false;
+			endReached = (page.lines.size() < PAGE_SIZE);
+			if (page.restarted) { // Nueva sesion: la pagina es la primera.
+				lines.clear();
+				lastId = 0;
+				notifyDataSetChanged();
+			}
+			if (!page.lines.isEmpty()) {
+				lines.addAll(page.lines);
+				lastId = page.lastId;
+				notifyDataSetChanged();
+			}
+			if (refreshPending) {
+				refreshPending = false;
+				loadNewLines();
+			}
+		}
+
+		@Override
+		public int getCount() {
+			return lines.size();
+		}
+
+		@Override
+		public Object getItem(int position) {
+			return lines.get(position);
+		}
+
+		@Override
+		public long getItemId(int position) {
+			return position;
+		}
+
+		/**
+		 * Devuelve la vista de una linea del log, reutilizando la vista de
+		 * una fila que ya no es visible si se dispone de ella.
+		 */
+		@SuppressLint("RtlHardcoded")
+		@Override
+		public View getView(int position, View convertView, ViewGroup parent) {
+			TextView row_content = (TextView) convertView;
+			if (row_content == null) {
+				row_content = new TextView(LogsActivity.this);
+				row_content.setTextColor(Color.rgb(0, 67, 124));
+				row_content.setTextSize(17);
+				row_content.setGravity(Gravity.LEFT);
+				row_content.setPadding(0, 5, 0, 5);
+			}
+			row_content.setText(lines.get(position));
+			return row_content;
+		}
+
+	} // Fin clase interna 'LogAdapter'
+
+	/**
+	 * Pagina de lineas de un log cargada de la BD.
+	 */
+	private static class LogPage {
+		final ArrayList<String> lines = new ArrayList<String>(); // Lineas.
+		final int generation; // Generacion del adaptador al solicitarla.
+		long lastId = 0; // Clave de la ultima linea.
+		boolean restarted = false; // El log se vacio: se cargo desde el principio.
+
+		LogPage(int generation) {
+			this.generation = generation;
+		}
+	} // Fin clase interna 'LogPage'
+
+	/**
+	 * Tarea que consulta en segundo plano una pagina de un log.
+	 */
+	private class LoadLogTask extends AsyncTask<Long, Void, LogPage> {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private final LogAdapter adapter; // Adaptador destino.
+		private final String table; // Tabla del log.
+		private final int generation; // Generacion del adaptador.
+		private final String last; // Ultima linea cargada a comprobar.
+
+		/*---------*/
+		/* METODOS */
+		/*---------*/
+		/**
+		 * Constructor para instancias de la clase LoadLogTask.
+		 * 
+		 * @param adapter
+		 *            Adaptador destino
+		 * @param generation
+		 *            Generacion del adaptador
+		 * @param last
+		 *            Ultima linea cargada, para comprobar que el log no se ha
+		 *            vaciado desde entonces (null-Sin comprobar)
+		 */
+		public LoadLogTask(LogAdapter adapter, int generation, String last) {
+			this.adapter = adapter;
+			this.table = adapter.table;
+			this.generation = generation;
+			this.last = last;
+		}
+
+		/**
+		 * Consulta las lineas posteriores a la clave indicada, empleando el
+		 * indice de la clave primaria. Si la BD esta bloqueada por el escritor
+		 * del log o la tabla acaba de eliminarse, se devuelve una pagina vacia
+		 * y las lineas se cargaran con el siguiente aviso del escritor.
+		 * 
+		 * Si se indica la ultima linea cargada y la linea con esa clave ya no
+		 * existe o es otra, el escritor ha vaciado el log al iniciar una nueva
+		 * sesion y las claves vuelven a empezar: se carga desde el principio.
+		 */
+		@Override
+		protected LogPage doInBackground(Long... params) {
+			LogPage page = new LogPage(generation);
+			SQLiteDatabase logDb = null;
+			Cursor cursor = null;
+			long from = params[0];
+			try {
+				logDb = openOrCreateDatabase(SessionLogWriter.DATABASE,
+						MODE_PRIVATE, null);
+				logDb.execSQL("CREATE TABLE IF NOT EXISTS "
+						+ table
+						+ " (id INTEGER PRIMARY KEY autoincrement, time TEXT NOT NULL, info TEXT NOT NULL)");
+				if (last != null) {
+					cursor = logDb.rawQuery("SELECT time, info FROM " + table
+							+ " WHERE id = ?",
+							new String[] { String.valueOf(from) });
+					if (!cursor.moveToFirst()
+							|| !last.equals(cursor.getString(0) + " - "
+									+ cursor.getString(1))) {
+						page.restarted = true;
+						from = 0;
+					}
+					cursor.close();
+					cursor = null;
+				}
+				cursor = logDb.rawQuery("SELECT id, time, info FROM " + table
+						+ " WHERE id > ? ORDER BY id ASC LIMIT " + PAGE_SIZE,
+						new String[] { String.valueOf(from) });
+				while (cursor.moveToNext()) {
+					page.lastId = cursor.getLong(0);
+					page.lines.add(cursor.getString(1) + " - "
+							+ cursor.getString(2));
+				}
+			} catch (SQLiteException e) {
+				Log.d(TAG, "Error loading the log " + table + ": "
+						+ e.getMessage());
+				page = new LogPage(generation);
+			} finally {
+				// Se cierra la BD y el Cursor.
+				if (cursor != null) {
+					cursor.close();
+				}
+				if (logDb != null) {
+					logDb.close();
+				}
+			}
+			return page;
+		}
+
+		/**
+		 * Añade la pagina cargada al adaptador en el hilo principal.
+		 */
+		@Override
+		protected void onPostExecute(LogPage page) {
+			adapter.append(page);
+		}
+
+	} // Fin clase interna 'LoadLogTask'
+
+	/**
+	 * Tarea que elimina en segundo plano los logs de cliente y servidor y
+	 * despues vuelve a cargar el log seleccionado.
+	 */
+	private class DeleteLogsTask extends AsyncTask<Void, Void, Void> {
+
+		/*---------*/
+		/* METODOS */
+		/*---------*/
+		/**
+		 * Elimina las tablas de los logs.
+		 */
+		@Override
+		protected Void doInBackground(Void... params) {
+			SQLiteDatabase logDb = null;
+			try {
+				logDb = openOrCreateDatabase(SessionLogWriter.DATABASE,
+						MODE_PRIVATE, null);
+				logDb.execSQL("DROP TABLE IF EXISTS serverLog");
+				logDb.execSQL("DROP TABLE IF EXISTS clientLog");
+			} catch (SQLiteException e) {
+				Log.d(TAG, "Error deleting the logs: " + e.getMessage());
+			} finally {
+				// Se cierra la BD.
+				if (logDb != null) {
+					logDb.close();
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Carga de nuevo el log seleccionado en el hilo principal.
+		 */
+		@Override
+		protected void onPostExecute(Void result) {
+			showLogs(logSelected);
+		}
+
+	} // Fin clase interna 'DeleteLogsTask'
+
+	/**
+	 * BroadcastReceiver que es avisado cuando el escritor del log de una
+	 * sesion en curso vuelca nuevas lineas.
+	 */
+	private class LogUpdateReceiver extends BroadcastReceiver {
+
+		/*---------*/
+		/* METODOS */
+		/*---------*/
+		/**
+		 * Se ejecuta cuando el BroadcastReceiver recibe un Intent broadcast.
+		 * 
+		 * @param context
+		 *            Contexto en el que se esta ejecutando el Receiver
+		 * @param intent
+		 *            Intent que se ha recibido
+		 */
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			// Se recupera el log actualizado. Si se ha iniciado una nueva
+			// sesion el log se ha vaciado y se carga desde el principio.
+			String table = intent.getStringExtra("table");
+			LogAdapter adapter = null;
+			if (clientAdapter.table.equals(table)) {
+				adapter = clientAdapter;
+			} else if (serverAdapter.table.equals(table)) {
+				adapter = serverAdapter;
+			}
+			if (adapter != null) {
+				if (intent.getBooleanExtra("reset", false)) {
+					adapter.reset();
+				}
+				adapter.loadNewLines();
+			}
+		}
+
+	} // Fin clase interna 'LogUpdateReceiver'
+
 } // Fin clase 'LogsActivity'
@@ -7,6 +7,7 @@ import org.videolan.libvlc.IVideoPlayer;
 import org.videolan.libvlc.LibVLC;
 
 import com.tfm.soas.R;
+import com.tfm.soas.logic.MetricsRegistry;
 
 import android.app.Activity;
 import android.content.BroadcastReceiver;
@@ -46,6 +47,7 @@ public class RTSPPlayerActivity extends Activity implements SurfaceHolder.Callba
 	/* ///////////////////// ATRIBUTOS ////////////////////// */
 	/*--------------------------------------------------------*/
 	private String streamingPath = null; // Ruta Servidor RTSP.
+	private long readyNanos = 0; // Llegada de READY al cliente (ns).
 	private LibVLC libvlc = null; // Reproductor de streaming RTSP.
 	private SurfaceView surface = null; // Area de visualizacion.
 	private SurfaceHolder holder = null; // Contenedor del area.
@@ -77,6 +79,7 @@ public class RTSPPlayerActivity extends Activity implements SurfaceHolder.Callba
 		// Se obtiene la ruta al servidor RTSP.
 		Intent intent = getIntent();
 		streamingPath = intent.getExtras().getString("rtsp_server_url");
+		readyNanos = intent.getExtras().getLong("ready_nanos");
 		Log.d(TAG, "(P) Server URL: " + streamingPath);
 
 		// Se obtienen las referencias a la superficie de visualizacion y a su
@@ -307,7 +310,10 @@ public class RTSPPlayerActivity extends Activity implements SurfaceHolder.Callba
 			libvlc.setTimeStretching(true);
 			libvlc.setChroma("RV32");
 			libvlc.setVerboseMode(true);
-			libvlc.setNetworkCaching(400);
+			// Todos los paquetes de un fotograma llevan la misma marca de
+			// tiempo, tomada de un reloj monotono, por lo que basta un buffer
+			// de red reducido.
+			libvlc.setNetworkCaching(200);
 			LibVLC.restart(this);
 			EventHandler.getInstance().addHandler(handler);
 			holder.setFormat(PixelFormat.RGBX_8888);
@@ -435,6 +441,15 @@ public class RTSPPlayerActivity extends Activity implements SurfaceHolder.Callba
 				// Conexion establecida correctamente con el servidor RTSP.
 				Log.d(TAG, "(P) Connected to RTSP server");
 				connectionAttempts = 1;
+
+				// Se anota el tiempo transcurrido desde la llegada de READY
+				// hasta el inicio de la reproduccion.
+				if (readyNanos != 0) {
+					MetricsRegistry.getInstance()
+							.histogram("client.ready_playing")
+							.recordSince(readyNanos);
+					readyNanos = 0;
+				}
 				break;
 			case EventHandler.MediaPlayerPaused:
 				break;
@@ -20,6 +20,7 @@
 
 package net.majorkernelpanic.streaming;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Random;
@@ -111,6 +112,31 @@ public abstract class MediaStream implements Stream {
 		mRtcpPort = rtcpPort;
 	}	
 
+	/**
+	 * Adds a destination to the running stream.
+	 * The RTP packets built for the other destinations are sent to this one too.
+	 * @param dest The destination address
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 * @throws IllegalStateException if the stream is not running
+	 */
+	public void addDestination(InetAddress dest, int rtpPort, int rtcpPort) throws IllegalStateException {
+		if (!mStreaming || mode!=MODE_STREAMING) {
+			throw new IllegalStateException("The stream must be running to add a destination !");
+		}
+		mPacketizer.addDestination(dest, rtpPort, rtcpPort);
+	}
+
+	/**
+	 * Removes a destination of the running stream.
+	 * @param dest The destination address
+	 */
+	public void removeDestination(InetAddress dest) {
+		if (mStreaming && mode==MODE_STREAMING) {
+			mPacketizer.removeDestination(dest);
+		}
+	}
+
 	/**
 	 * Sets the Time To Live of packets sent over the network.
 	 * @param ttl The time to live
@@ -201,13 +227,43 @@ public abstract class MediaStream implements Stream {
 				throw new IllegalStateException("No destination ports set for the stream !");
 		}
 
+		if (mode==MODE_STREAMING) {
+			mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
+		}
+		startRecording();
+	}
+
+	/** 
+	 * Stops the MediaRecorder and the packetizer of a running stream, so that it can be 
+	 * prepared again with another configuration and restarted with {@link #resume()}.
+	 * The packetizer keeps its RTP socket and its destinations.
+	 */
+	protected void suspend() {
+		stopRecording();
+	}
+
+	/** 
+	 * Restarts a stream stopped with {@link #suspend()} and prepared again.
+	 * The packets are sent to the destinations the stream already had.
+	 */
+	protected void resume() throws IllegalStateException {
+		startRecording();
+	}
+
+	/** 
+	 * Starts the encoder and the packetizer. 
+	 * Streams that don't use the MediaRecorder override this and {@link #stopRecording()}.
+	 */
+	protected void startRecording() throws IllegalStateException {
 		mMediaRecorder.start();
 		try {
 			if (mode==MODE_STREAMING) {
-				// mReceiver.getInputStream contains the data from the camera
+				// mReceiver contains the data from the camera
 				// the mPacketizer encapsulates this stream in an RTP stream and send it over the network
-				mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
-				mPacketizer.setInputStream(mReceiver.getInputStream());
+				// The packetizer reads the file descriptor of mReceiver, so that it can use a FileChannel
+				// and read big chunks directly in a native buffer. The FileInputStream shares the 
+				// FileDescriptor of mReceiver, so closing one of them also invalidates the other.
+				mPacketizer.setInputStream(new FileInputStream(mReceiver.getFileDescriptor()));
 				mPacketizer.start();
 			}
 			mStreaming = true;
@@ -217,8 +273,8 @@ public abstract class MediaStream implements Stream {
 		}
 	}
 
-	/** Stops the stream. */
-	public void stop() {
+	/** Stops the encoder and the packetizer. */
+	protected void stopRecording() {
 		if (mStreaming) {
 			try {
 				mMediaRecorder.stop();
@@ -230,6 +286,11 @@ public abstract class MediaStream implements Stream {
 				mStreaming = false;
 			}
 		}
+	}
+
+	/** Stops the stream. */
+	public void stop() {
+		stopRecording();
 		try {
 			mMediaRecorder.reset();
 		}
@@ -24,6 +24,9 @@ import java.io.IOException;
 import java.net.InetAddress;
 
 import net.majorkernelpanic.streaming.audio.AudioStream;
+import net.majorkernelpanic.streaming.rtcp.LinkStatistics;
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
 import android.content.Context;
 import android.net.wifi.WifiManager;
@@ -33,10 +36,18 @@ import android.net.wifi.WifiManager;
  * It represents a streaming session between a client and the phone.
  * A stream is designated by the word "track" in this class.
  * To add tracks to the session you need to call addVideoTrack() or addAudioTrack().
+ * Once started, a session can be shared by several clients: each of them is
+ * added as a destination of the running streams (see acquire() and release()).
  */
 public class Session {
 
 	public final static String TAG = "Session";
+
+	/** Receives the RTCP reports of the clients of a session. */
+	public interface LinkListener {
+		/** Called by the RTCP thread of a track each time a client sends a report about it. */
+		void onLinkStatistics(Session session, LinkStatistics statistics);
+	}
 	
 	// Prevents threads from modifying two sessions simultaneously
 	private static Object sLock = new Object();
@@ -51,6 +62,10 @@ public class Session {
 	private AudioStream mAudioStream = null;
 	private VideoStream mVideoStream = null;
 
+	private int mClients = 0;
+	private String mTracksDescription = null;
+	private LinkListener mLinkListener = null;
+
 	/** 
 	 * Creates a streaming session that can be customized by adding tracks.
 	 */
@@ -135,6 +150,11 @@ public class Session {
 		mTimeToLive = ttl;
 	}
 
+	/** Returns the TTL of the packets sent during the session. */
+	public int getTimeToLive() {
+		return mTimeToLive;
+	}
+
 	/** 
 	 * Returns a Session Description that can be stored in a file or sent to a client with RTSP.
 	 * @return The Session Description
@@ -142,7 +162,20 @@ public class Session {
 	 * @throws IOException
 	 */
 	public String getSessionDescription() throws IllegalStateException, IOException {
-		if (mDestination==null) {
+		return getSessionDescription(mDestination);
+	}
+
+	/** 
+	 * Returns a Session Description for the given destination.
+	 * While the session is streaming, the description of the tracks generated
+	 * for the first client is reused (the streams can't be tested again).
+	 * @param destination The destination address that will appear in the description
+	 * @return The Session Description
+	 * @throws IllegalStateException
+	 * @throws IOException
+	 */
+	public String getSessionDescription(InetAddress destination) throws IllegalStateException, IOException {
+		if (destination==null) {
 			throw new IllegalStateException("setDestination() has not been called !");
 		}
 		synchronized (sLock) {
@@ -152,19 +185,26 @@ public class Session {
 			sessionDescription.append("o=- "+mTimestamp+" "+mTimestamp+" IN IP4 "+(mOrigin==null?"127.0.0.1":mOrigin.getHostAddress())+"\r\n");
 			sessionDescription.append("s=Unnamed\r\n");
 			sessionDescription.append("i=N/A\r\n");
-			sessionDescription.append("c=IN IP4 "+mDestination.getHostAddress()+"\r\n");
+			// A multicast address must be followed by the TTL (RFC 4566)
+			sessionDescription.append("c=IN IP4 "+destination.getHostAddress()
+					+(destination.isMulticastAddress() ? "/"+mTimeToLive : "")+"\r\n");
 			// t=0 0 means the session is permanent (we don't know when it will stop)
 			sessionDescription.append("t=0 0\r\n");
 			sessionDescription.append("a=recvonly\r\n");
 			// Prevents two different sessions from using the same peripheral at the same time
-			if (mAudioStream != null) {
-				sessionDescription.append(mAudioStream.generateSessionDescription());
-				sessionDescription.append("a=control:trackID="+0+"\r\n");
+			if (mTracksDescription == null || !isStreaming()) {
+				StringBuilder tracks = new StringBuilder();
+				if (mAudioStream != null) {
+					tracks.append(mAudioStream.generateSessionDescription());
+					tracks.append("a=control:trackID="+0+"\r\n");
+				}
+				if (mVideoStream != null) {
+					tracks.append(mVideoStream.generateSessionDescription());
+					tracks.append("a=control:trackID="+1+"\r\n");
+				}
+				mTracksDescription = tracks.toString();
 			}
-			if (mVideoStream != null) {
-				sessionDescription.append(mVideoStream.generateSessionDescription());
-				sessionDescription.append("a=control:trackID="+1+"\r\n");
-			}			
+			sessionDescription.append(mTracksDescription);
 			return sessionDescription.toString();
 		}
 	}
@@ -255,6 +295,107 @@ public class Session {
 		stop(1);
 	}
 
+	/** 
+	 * Registers a new client of the session.
+	 * @return The number of clients of the session
+	 */
+	public int acquire() {
+		synchronized (sLock) {
+			return ++mClients;
+		}
+	}
+
+	/** 
+	 * Unregisters a client of the session. When the last client leaves, 
+	 * the session should be stopped and flushed.
+	 * @return The number of clients left
+	 */
+	public int release() {
+		synchronized (sLock) {
+			if (mClients > 0) mClients--;
+			return mClients;
+		}
+	}
+
+	/** 
+	 * Adds a destination to a running track, so that a new client 
+	 * receives the packets already sent to the other clients.
+	 * @param id The id of the track
+	 * @param destination The destination address
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 * @throws IllegalStateException if the track is not running
+	 */
+	public void addDestination(int id, InetAddress destination, int rtpPort, int rtcpPort) throws IllegalStateException {
+		synchronized (sLock) {
+			Stream stream = id==0 ? mAudioStream : mVideoStream;
+			if (stream==null || !stream.isStreaming()) {
+				throw new IllegalStateException("Track "+id+" is not running !");
+			}
+			stream.addDestination(destination, rtpPort, rtcpPort);
+			// The new client can't decode anything before the next key frame
+			if (stream==mVideoStream) mVideoStream.requestKeyFrame();
+		}
+	}
+
+	/** 
+	 * Removes a destination from all the tracks of the session.
+	 * @param destination The destination address
+	 */
+	public void removeDestination(InetAddress destination) {
+		synchronized (sLock) {
+			if (mAudioStream!=null) mAudioStream.removeDestination(destination);
+			if (mVideoStream!=null) mVideoStream.removeDestination(destination);
+		}
+	}
+
+	/** 
+	 * Returns the state of the link with a client, as told by the last RTCP report 
+	 * it sent about the video track (or about the audio track if there is no video track).
+	 * @param destination The address of the client
+	 * @return The statistics or null if the client has not sent any report yet
+	 */
+	public LinkStatistics getLinkStatistics(InetAddress destination) {
+		synchronized (sLock) {
+			MediaStream stream = mVideoStream!=null ? mVideoStream : mAudioStream;
+			if (stream==null) return null;
+			return stream.getPacketizer().getRtcpSocket().getLinkStatistics(destination);
+		}
+	}
+
+	/** 
+	 * Sets the listener that receives the RTCP reports of the clients, for every track of the session.
+	 * @param listener The listener or null
+	 */
+	public void setLinkStatisticsListener(LinkListener listener) {
+		synchronized (sLock) {
+			mLinkListener = listener;
+			LinkStatistics.Listener forward = listener==null ? null : new LinkStatistics.Listener() {
+				public void onLinkStatistics(SenderReport report, LinkStatistics statistics) {
+					LinkListener listener = mLinkListener;
+					if (listener != null) listener.onLinkStatistics(Session.this, statistics);
+				}
+			};
+			if (mAudioStream!=null) mAudioStream.getPacketizer().getRtcpSocket().setLinkStatisticsListener(forward);
+			if (mVideoStream!=null) mVideoStream.getPacketizer().getRtcpSocket().setLinkStatisticsListener(forward);
+		}
+	}
+
+	/** 
+	 * Changes the quality of the video track. If the track is running, only its encoder is 
+	 * restarted and the clients keep receiving the same RTP stream, with the new parameter sets.
+	 * @param quality The new quality
+	 * @see VideoStream#reconfigure(VideoQuality)
+	 */
+	public void setVideoQuality(VideoQuality quality) throws IllegalStateException, IOException {
+		synchronized (sLock) {
+			if (mVideoStream==null) return;
+			mVideoStream.reconfigure(quality);
+			// The next clients get the description of the new quality
+			mTracksDescription = null;
+		}
+	}
+
 	/** Deletes all existing tracks & release associated resources. */
 	public void flush() {
 		synchronized (sLock) {
@@ -68,6 +68,9 @@ public class SessionBuilder {
 	private int mCamera = CameraInfo.CAMERA_FACING_BACK;
 	private int mTimeToLive = 64;
 	private boolean mFlash = false;
+	private boolean mPacing = false;
+	private boolean mMediaCodec = false;
+	private Session.LinkListener mLinkListener = null;
 	private SurfaceHolder mSurfaceHolder = null;
 	private InetAddress mOrigin = null;
 	private InetAddress mDestination = null;
@@ -127,6 +130,8 @@ public class SessionBuilder {
 			H264Stream stream = new H264Stream(mCamera);
 			if (mContext!=null) 
 				stream.setPreferences(PreferenceManager.getDefaultSharedPreferences(mContext));
+			stream.setPacingEnabled(mPacing);
+			stream.setMediaCodecEnabled(mMediaCodec);
 			session.addVideoTrack(stream);
 			break;
 		}
@@ -144,6 +149,8 @@ public class SessionBuilder {
 			audio.setDestinationPorts(5004);
 		}
 
+		session.setLinkStatisticsListener(mLinkListener);
+
 		return session;
 
 	}
@@ -202,6 +209,33 @@ public class SessionBuilder {
 		return this;
 	}
 
+	/** 
+	 * Enables or disables the pacing of the H.264 stream: the RTP packets of a
+	 * frame are spread in time instead of being sent in a single burst.
+	 **/
+	public SessionBuilder setPacingEnabled(boolean enabled) {
+		mPacing = enabled;
+		return this;
+	}
+
+	/** 
+	 * Enables or disables MediaCodec for the H.264 stream. If the phone can't encode H.264 
+	 * with MediaCodec (it needs Android 4.1), the MediaRecorder is used.
+	 **/
+	public SessionBuilder setMediaCodecEnabled(boolean enabled) {
+		mMediaCodec = enabled;
+		return this;
+	}
+
+	/** 
+	 * Sets the listener that will receive the RTCP reports of the clients of the sessions.
+	 * @param listener The listener or null
+	 **/
+	public SessionBuilder setLinkStatisticsListener(Session.LinkListener listener) {
+		mLinkListener = listener;
+		return this;
+	}
+
 	/** 
 	 * Sets the Surface required by MediaRecorder to record video. 
 	 * @param surfaceHolder A SurfaceHolder wrapping a valid surface
@@ -261,6 +295,16 @@ public class SessionBuilder {
 		return mTimeToLive;
 	}
 
+	/** Returns true if pacing was enabled with {@link #setPacingEnabled(boolean)}. */
+	public boolean isPacingEnabled() {
+		return mPacing;
+	}
+
+	/** Returns true if MediaCodec was enabled with {@link #setMediaCodecEnabled(boolean)}. */
+	public boolean isMediaCodecEnabled() {
+		return mMediaCodec;
+	}
+
 	/** Returns a new {@link SessionBuilder} with the same configuration. */
 	public SessionBuilder clone() {
 		return new SessionBuilder()
@@ -272,6 +316,9 @@ public class SessionBuilder {
 		.setFlashEnabled(mFlash)
 		.setCamera(mCamera)
 		.setTimeToLive(mTimeToLive)
+		.setPacingEnabled(mPacing)
+		.setMediaCodecEnabled(mMediaCodec)
+		.setLinkStatisticsListener(mLinkListener)
 		.setAudioEncoder(mAudioEncoder)
 		.setContext(mContext);
 	}
@@ -62,6 +62,22 @@ public interface Stream {
 	 * @param rtcpPort Destination port that will be used for RTCP
 	 */
 	public void setDestinationPorts(int rtpPort, int rtcpPort);
+
+	/**
+	 * Adds a destination to a running stream, so that several clients 
+	 * receive the same RTP packets.
+	 * @param dest The destination address
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 * @throws IllegalStateException if the stream is not running
+	 */
+	public void addDestination(InetAddress dest, int rtpPort, int rtcpPort) throws IllegalStateException;
+
+	/**
+	 * Removes a destination of a running stream.
+	 * @param dest The destination address
+	 */
+	public void removeDestination(InetAddress dest);
 	
 	/** 
 	 * Returns a pair of source ports, the first one is the 
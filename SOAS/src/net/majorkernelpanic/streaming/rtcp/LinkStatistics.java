@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2011-2013 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of Spydroid (http://code.google.com/p/spydroid-ipcamera/)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.net.InetAddress;
+
+/**
+ * The state of the link with one receiver of the stream, as told by the last
+ * report block about the stream that the receiver sent in an RTCP receiver
+ * (or sender) report (RFC 3550 section 6.4).
+ */
+public class LinkStatistics {
+
+	/** Called each time a receiver report about the stream is received. */
+	public interface Listener {
+		void onLinkStatistics(SenderReport report, LinkStatistics statistics);
+	}
+
+	/**
+	 * Represents the state of the link with a receiver.
+	 * @param address The address of the receiver
+	 * @param fractionLost The fraction of packets lost since the previous report, between 0 and 1
+	 * @param cumulativeLost The number of packets lost since the beginning of the reception
+	 * @param highestSequence The extended highest sequence number received
+	 * @param jitter The interarrival jitter in ms
+	 * @param rtt The round trip time in ms, or -1 if the receiver has not received a sender report yet
+	 * @param time The instant the report was received, given by System.nanoTime()
+	 */
+	public LinkStatistics(InetAddress address, float fractionLost, int cumulativeLost, 
+			long highestSequence, float jitter, float rtt, long time) {
+		this.address = address;
+		this.fractionLost = fractionLost;
+		this.cumulativeLost = cumulativeLost;
+		this.highestSequence = highestSequence;
+		this.jitter = jitter;
+		this.rtt = rtt;
+		this.time = time;
+	}
+
+	public final InetAddress address;
+	public final float fractionLost;
+	public final int cumulativeLost;
+	public final long highestSequence;
+	public final float jitter;
+	public final float rtt;
+	public final long time;
+
+	public String toString() {
+		return address.getHostAddress()+": lost "+Math.round(fractionLost*100)+"% ("+cumulativeLost+
+				"), jitter "+jitter+" ms, rtt "+(rtt<0 ? "?" : rtt+" ms");
+	}
+
+}
@@ -24,20 +24,83 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.util.Log;
 
 /**
- * Implementation of Sender Report RTCP packets.
+ * Implementation of Sender Report RTCP packets (RFC 3550).
+ * As with {@link net.majorkernelpanic.streaming.rtp.RtpSocket}, reports can be 
+ * sent to several destinations.
+ * 
+ * Once {@link #start()} is called, reports are sent by a thread of their own, 
+ * independently of the packetizer, at the randomized interval of RFC 3550 
+ * (section 6.3), scaled to the bandwidth measured on the stream.
+ * The packetizer only counts packets with {@link #update(int)} and tells which 
+ * RTP timestamp matches which instant with {@link #setRtpTimestamp(long, long)}; 
+ * the report is encoded when it is sent, with the wallclock time in NTP format 
+ * and the RTP timestamp of that same instant.
+ * 
+ * Between two reports, the same thread reads the RTCP packets that the receivers
+ * send back to the socket. The report blocks about the stream give the loss, the 
+ * jitter and, with the LSR and DLSR fields, the round trip time of the link with 
+ * each receiver. They can be read with {@link #getLinkStatistics(InetAddress)} or
+ * received with a {@link LinkStatistics.Listener}.
  */
-public class SenderReport {
+public class SenderReport implements Runnable {
+
+	public final static String TAG = "SenderReport";
 
 	public static final int MTU = 1500;
 
+	/** Length of a sender report without report blocks. */
+	public static final int PACKET_LENGTH = 28;
+
+	/** Minimum interval between two reports recommended by RFC 3550 (ms). */
+	public static final long MIN_INTERVAL = 5000;
+
+	/** Can be used with {@link #setMinimumInterval(long)}: minimum interval of 360 s / session bandwidth in kbps. */
+	public static final long REDUCED_MIN_INTERVAL = 0;
+
+	/** Seconds between 1900 (NTP epoch) and 1970 (Unix epoch). */
+	private static final long NTP_OFFSET = 2208988800L;
+
+	/** Length of the IP and UDP headers. */
+	private static final int UDP_OVERHEAD = 28;
+
+	/** Fraction of the session bandwidth used by RTCP, and share of the senders. */
+	private static final double RTCP_FRACTION = 0.05, SENDER_FRACTION = 0.25;
+
+	/** Packet types of sender and receiver reports. */
+	private static final int PT_SR = 200, PT_RR = 201;
+
+	/** Maximum time spent waiting for RTCP packets before checking if the thread was stopped (ms). */
+	private static final int RECEIVE_TIMEOUT = 1000;
+
+	/** Compensation of the randomization of the interval, e-3/2 (RFC 3550 section 6.3.1). */
+	private static final double COMPENSATION = 1.21828;
+
 	private MulticastSocket usock;
 	private DatagramPacket upack;
+	private volatile DatagramPacket[] upacks;
 
 	private byte[] buffer = new byte[MTU];
 	private int ssrc, port = -1;
-	private int octetCount = 0, packetCount = 0;
+	private volatile int octetCount = 0, packetCount = 0;
+
+	private Thread t = null;
+	private Random random = new Random();
+	private volatile long minInterval = MIN_INTERVAL;
+	private int clockRate = 90000;
+	private long rtpTimestamp = 0;
+	private volatile long rtpTime = 0;
+	private long wallclock = System.currentTimeMillis(), monotonic = System.nanoTime();
+	private double averageSize = PACKET_LENGTH+UDP_OVERHEAD;
+	private ConcurrentHashMap<InetAddress, LinkStatistics> statistics = new ConcurrentHashMap<InetAddress, LinkStatistics>();
+	private volatile LinkStatistics.Listener listener = null;
 
 	public SenderReport() throws IOException {
 
@@ -65,41 +128,149 @@ public class SenderReport {
 
 		usock = new MulticastSocket();
 		upack = new DatagramPacket(buffer, 1);
+		upacks = new DatagramPacket[] {upack};
 
 	}
 
 	public void close() {
+		stop();
 		usock.close();
 	}
 
-	/** Sends the RTCP packet over the network. */
-	public void send() throws IOException {
-		upack.setLength(28);
-		usock.send(upack);
+	/** Starts sending reports. The first one is sent after half of the minimum interval. */
+	public synchronized void start() {
+		if (t == null) {
+			// The wallclock is read once, and then follows the monotonic clock
+			wallclock = System.currentTimeMillis();
+			monotonic = System.nanoTime();
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	/** Stops sending reports. */
+	public synchronized void stop() {
+		if (t != null) {
+			t.interrupt();
+			t = null;
+		}
+	}
+
+	public void run() {
+		long lastTime = System.nanoTime(), next = lastTime + interval(0, true)*1000000L;
+		int lastOctets = octetCount;
+		DatagramPacket rpack = new DatagramPacket(new byte[MTU], MTU);
+
+		while (!Thread.interrupted()) {
+			long now = System.nanoTime();
+
+			// Until the next report, we read what the receivers send
+			if (next-now>0) {
+				try {
+					usock.setSoTimeout((int) Math.min(RECEIVE_TIMEOUT, Math.max(1, (next-now)/1000000)));
+					rpack.setLength(MTU);
+					usock.receive(rpack);
+					parse(rpack.getData(), rpack.getLength(), rpack.getAddress(), System.nanoTime());
+				} catch (SocketTimeoutException ignore) {
+				} catch (IOException e) {
+					// The socket was closed
+					break;
+				}
+				continue;
+			}
+
+			// Nothing to report until the packetizer has sent something
+			if (packetCount>0 && rtpTime!=0) {
+				send();
+			}
+
+			// Session bandwidth measured since the last report (bytes/s)
+			double bandwidth = (now>lastTime) ? (octetCount-lastOctets)*1e9/(now-lastTime) : 0;
+			lastTime = now;
+			lastOctets = octetCount;
+			next = now + interval(bandwidth, false)*1000000L;
+		}
+	}
+
+	/** 
+	 * Sends the RTCP packet over the network to every destination, encoding it for the current time.
+	 * If sending to one destination fails, the error is logged and the report is still sent to the others.
+	 */
+	public synchronized void send() {
+		long now = System.nanoTime();
+
+		// NTP timestamp: seconds since 1900 and fraction of second
+		long ntp = ntpTime(now);
+		setLong(ntp>>>32, 8, 12);
+		setLong(ntp&0xFFFFFFFFL, 12, 16);
+
+		// RTP timestamp of the same instant
+		setLong(rtpTimestamp + (now-rtpTime)*clockRate/1000000000L, 16, 20);
+
+		setLong(packetCount, 20, 24);
+		setLong(octetCount, 24, 28);
+
+		for (DatagramPacket packet : upacks) {
+			try {
+				packet.setLength(PACKET_LENGTH);
+				usock.send(packet);
+			} catch (IOException e) {
+				Log.e(TAG,"Couldn't send a sender report to "+packet.getAddress()+": "+e.getMessage());
+			}
+		}
+		averageSize += (PACKET_LENGTH+UDP_OVERHEAD-averageSize)/16;
 	}
 
 	/** 
 	 * Updates the number of packets sent, and the total amount of data sent.
+	 * The counters are only encoded when a report is sent.
 	 * @param length The length of the packet 
 	 **/
 	public void update(int length) {
 		packetCount += 1;
 		octetCount += length;
-		setLong(packetCount, 20, 24);
-		setLong(octetCount, 24, 28);
 	}
 
-	/** Sets the RTP timestamp of the sender report. */
-	public void setRtpTimestamp(long ts) {
-		setLong(ts, 16, 20);
+	/** 
+	 * Tells which RTP timestamp matches an instant.
+	 * @param ts The RTP timestamp
+	 * @param nanos The instant, given by System.nanoTime()
+	 */
+	public synchronized void setRtpTimestamp(long ts, long nanos) {
+		rtpTimestamp = ts;
+		rtpTime = nanos;
 	}
 
-	/** Sets the NTP timestamp of the sender report. */
-	public void setNtpTimestamp(long ts) {
-		long hb = ts/1000;
-		long lb = ( ( ts - hb*1000 ) * 4294967296L )/1000;
-		setLong(hb, 8, 12);
-		setLong(lb, 12, 16);
+	/** Sets the clock rate of the RTP timestamps, 90000 Hz by default. */
+	public synchronized void setClockRate(int clockRate) {
+		this.clockRate = clockRate;
+	}
+
+	/** 
+	 * Sets the minimum interval between two reports. 
+	 * @param interval The interval in ms, {@link #MIN_INTERVAL} by default, or {@link #REDUCED_MIN_INTERVAL} 
+	 */
+	public void setMinimumInterval(long interval) {
+		minInterval = interval;
+	}
+
+	/** Sets the listener that receives the statistics of the links with the receivers. */
+	public void setLinkStatisticsListener(LinkStatistics.Listener listener) {
+		this.listener = listener;
+	}
+
+	/** 
+	 * Returns the state of the link with a receiver.
+	 * @param address The address of the receiver
+	 * @return The statistics given by its last report, or null if it has not sent any
+	 */
+	public LinkStatistics getLinkStatistics(InetAddress address) {
+		return statistics.get(address);
+	}
+
+	/** Returns the state of the links with all the receivers that sent a report. */
+	public Collection<LinkStatistics> getLinkStatistics() {
+		return statistics.values();
 	}
 
 	public void setSSRC(int ssrc) {
@@ -107,14 +278,50 @@ public class SenderReport {
 		setLong(ssrc,4,8);
 		packetCount = 0;
 		octetCount = 0;
-		setLong(packetCount, 20, 24);
-		setLong(octetCount, 24, 28);
 	}
 
-	public void setDestination(InetAddress dest, int dport) {
+	/** Sets the destination of the reports, removing any other destination. */
+	public synchronized void setDestination(InetAddress dest, int dport) {
 		port = dport;
 		upack.setPort(dport);
 		upack.setAddress(dest);
+		upacks = new DatagramPacket[] {upack};
+		statistics.clear();
+	}
+
+	/** 
+	 * Adds a destination for the reports.
+	 * @param dest The destination address
+	 * @param dport The destination port
+	 */
+	public synchronized void addDestination(InetAddress dest, int dport) {
+		DatagramPacket[] packets = upacks;
+		for (DatagramPacket packet : packets) {
+			if (dest.equals(packet.getAddress()) && packet.getPort()==dport) return;
+		}
+		DatagramPacket[] added = new DatagramPacket[packets.length+1];
+		System.arraycopy(packets, 0, added, 0, packets.length);
+		added[packets.length] = new DatagramPacket(buffer, 1, dest, dport);
+		upacks = added;
+	}
+
+	/** 
+	 * Removes all the destinations with the given address.
+	 * @param dest The destination address
+	 */
+	public synchronized void removeDestination(InetAddress dest) {
+		DatagramPacket[] packets = upacks;
+		int count = 0;
+		for (DatagramPacket packet : packets) {
+			if (!dest.equals(packet.getAddress())) count++;
+		}
+		DatagramPacket[] kept = new DatagramPacket[count];
+		count = 0;
+		for (DatagramPacket packet : packets) {
+			if (!dest.equals(packet.getAddress())) kept[count++] = packet;
+		}
+		upacks = kept;
+		statistics.remove(dest);
 	}
 
 	public int getPort() {
@@ -129,6 +336,91 @@ public class SenderReport {
 		return ssrc;
 	}
 
+	/** 
+	 * Parses a compound RTCP packet sent by a receiver, and keeps the report blocks about the stream.
+	 * @param data The packet
+	 * @param length The length of the packet
+	 * @param from The address of the receiver
+	 * @param now The instant the packet was received, given by System.nanoTime()
+	 */
+	private void parse(byte[] data, int length, InetAddress from, long now) {
+		int offset = 0;
+		while (offset+8<=length) {
+			if ((data[offset]&0xC0) != 0x80) return; // Version 2
+			int count = data[offset]&0x1F, type = data[offset+1]&0xFF;
+			int end = offset + (int) ((getLong(data, offset+2, offset+4)+1)*4);
+			if (end>length) return;
+
+			// Report blocks follow the sender info in a SR, the SSRC of the sender in a RR
+			int block = type==PT_SR ? offset+28 : type==PT_RR ? offset+8 : end;
+			for (int i=0;i<count && block+24<=end;i++,block+=24) {
+				if ((int) getLong(data, block, block+4) != ssrc) continue;
+				int lost = (int) getLong(data, block+5, block+8);
+				if ((lost&0x800000) != 0) lost |= 0xFF000000; // Signed 24 bits
+				long jitter = getLong(data, block+12, block+16);
+				long lsr = getLong(data, block+16, block+20), dlsr = getLong(data, block+20, block+24);
+
+				// RTT = A - LSR - DLSR, in 1/65536 s, A being the middle 32 bits of the current NTP time
+				float rtt = -1;
+				if (lsr != 0) {
+					long a = (ntpTime(now)>>>16)&0xFFFFFFFFL;
+					long delay = (a-lsr-dlsr)&0xFFFFFFFFL;
+					if (delay < 0x80000000L) rtt = delay*1000f/65536;
+				}
+
+				LinkStatistics link = new LinkStatistics(from, (data[block+4]&0xFF)/256f, lost, 
+						getLong(data, block+8, block+12), jitter*1000f/clockRate, rtt, now);
+				statistics.put(from, link);
+				LinkStatistics.Listener l = listener;
+				if (l != null) l.onLinkStatistics(this, link);
+			}
+			offset = end;
+		}
+	}
+
+	/** 
+	 * Converts an instant to the NTP format.
+	 * @param nanos The instant, given by System.nanoTime()
+	 * @return Seconds since 1900 in the 32 high bits, fraction of second in the 32 low bits
+	 */
+	private long ntpTime(long nanos) {
+		long unix = wallclock*1000000L + (nanos-monotonic);
+		return ((unix/1000000000L + NTP_OFFSET)<<32) | (((unix%1000000000L)<<32)/1000000000L);
+	}
+
+	private static long getLong(byte[] data, int begin, int end) {
+		long n = 0;
+		for (int i=begin;i<end;i++) n = (n<<8) | (data[i]&0xFF);
+		return n;
+	}
+
+	/** 
+	 * Computes the interval before the next report (RFC 3550 section 6.3.1). 
+	 * We are the only sender, the other members are the destinations.
+	 * @param bandwidth The session bandwidth in bytes/s
+	 * @param initial True for the first report
+	 * @return The interval in ms
+	 */
+	private long interval(double bandwidth, boolean initial) {
+		int members = upacks.length+1;
+		double min = minInterval;
+		if (min == REDUCED_MIN_INTERVAL) {
+			min = bandwidth>0 ? 360000/(bandwidth*8/1000) : MIN_INTERVAL;
+		}
+		if (initial) min /= 2;
+
+		double rtcpBandwidth = bandwidth*RTCP_FRACTION, n = members, td = min;
+		if (rtcpBandwidth>0) {
+			// The senders share SENDER_FRACTION of the RTCP bandwidth if they are few
+			if (1 <= members*SENDER_FRACTION) {
+				rtcpBandwidth *= SENDER_FRACTION;
+				n = 1;
+			}
+			td = Math.max(min, n*averageSize*1000/rtcpBandwidth);
+		}
+		return (long) (td*(random.nextDouble()+0.5)/COMPENSATION);
+	}
+
 	private void setLong(long n, int begin, int end) {
 		for (end--; end >= begin; end--) {
 			buffer[end] = (byte) (n % 256);
@@ -47,12 +47,14 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 	public AACADTSPacketizer() throws IOException {
 		super();
+		report.setClockRate(samplingRate);
 	}
 
 	public void start() {
 		if (t==null) {
 			t = new Thread(this);
 			t.start();
+			report.start();
 		}
 	}
 
@@ -62,10 +64,12 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 		} catch (IOException ignore) {}
 		t.interrupt();
 		t = null;
+		report.stop();
 	}
 
 	public void setSamplingRate(int samplingRate) {
 		this.samplingRate = samplingRate;
+		report.setClockRate(samplingRate);
 	}
 	
 	public void run() {
@@ -79,7 +83,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 		// Adts header fields that we need to parse
 		boolean protection;
 		int frameLength, sum, length, nbau, nbpk;
-		long oldtime = SystemClock.elapsedRealtime(), now = oldtime, delta = 5000, measured, lastmeasured = 5000, expected;
+		long oldtime = SystemClock.elapsedRealtime(), now = oldtime, measured, lastmeasured = 5000, expected;
 
 		try {
 			while (!Thread.interrupted()) {
@@ -114,14 +118,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 				// We update the RTP timestamp
 				ts +=  1024; // FIXME: 1024 seems to work better on certain players...
 				socket.updateTimestamp(ts);
-				
-				// We send one RTCP Sender Report every 5 secs
-				if (delta>5000) {
-					delta = 0;
-					report.setRtpTimestamp(ts);
-					report.setNtpTimestamp(SystemClock.elapsedRealtime());
-					report.send();
-				}
+				report.setRtpTimestamp(ts, System.nanoTime());
 				
 				sum = 0;
 				while (sum<frameLength) {
@@ -160,7 +157,6 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 				// We wait a little to avoid sending to many packets too quickly
 				now = SystemClock.elapsedRealtime();
 				measured = now-oldtime;
-				delta += measured;
 				oldtime = now;
 				expected = nbau*1024*1000 / (nbpk*samplingRate);
 				//Log.d(TAG,"expected: "+ expected + " measured: "+measured);
@@ -48,12 +48,14 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 	public AMRNBPacketizer() throws IOException {
 		super();
+		report.setClockRate(8000);
 	}
 
 	public void start() {
 		if (t==null) {
 			t = new Thread(this);
 			t.start();
+			report.start();
 		}
 	}
 
@@ -63,11 +65,12 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 		} catch (IOException ignore) {}
 		t.interrupt();
 		t = null;
+		report.stop();
 	}
 
 	public void run() {
 
-		int frameLength, frameType, delta = 10000;
+		int frameLength, frameType;
 		long now = SystemClock.elapsedRealtime(), oldtime = now, measured;
 		long expected = 20, lastmeasured = 10000;
 
@@ -102,11 +105,11 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 				ts += 160; 
 				socket.updateTimestamp(ts);
 				socket.markNextPacket();
+				report.setRtpTimestamp(ts, System.nanoTime());
 
 				// We wait a little to avoid sending to many packets too quickly
 				now = SystemClock.elapsedRealtime();
 				measured = now-oldtime;
-				delta += measured;
 				oldtime = now;
 				//Log.d(TAG,"expected: "+ expected + " measured: "+measured);
 				measured -= lastmeasured<2*expected/3 ? 2*expected/3-lastmeasured : 0;
@@ -115,13 +118,6 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 					Thread.sleep( 2*expected/3-measured );
 				}
 				
-				if (delta>5000) {
-					delta = 0;
-					report.setNtpTimestamp(now);
-					report.setRtpTimestamp(ts);
-					report.send();
-				}
-				
 				send(rtphl+1+AMR_FRAME_HEADER_LENGTH+frameLength);
 				
 			}
@@ -23,6 +23,7 @@ package net.majorkernelpanic.streaming.rtp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
@@ -89,6 +90,32 @@ abstract public class AbstractPacketizer {
 		report.setDestination(dest, rtcpPort);		
 	}
 
+	/**
+	 * Adds a destination to the stream. The packets already built for the
+	 * other destinations are also sent to this one, nothing is encoded again.
+	 * @param dest The destination address of the stream
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 */
+	public void addDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+		socket.addDestination(dest, rtpPort);
+		report.addDestination(dest, rtcpPort);
+	}
+
+	/**
+	 * Removes a destination of the stream.
+	 * @param dest The destination address to remove
+	 */
+	public void removeDestination(InetAddress dest) {
+		socket.removeDestination(dest);
+		report.removeDestination(dest);
+	}
+
+	/** Returns the number of destinations of the stream. */
+	public int getDestinationCount() {
+		return socket.getDestinationCount();
+	}
+
 	public abstract void start() throws IOException;
 
 	public abstract void stop();
@@ -98,6 +125,34 @@ abstract public class AbstractPacketizer {
 		report.update(length);
 	}
 
+	/**
+	 * Sends a packet whose header is in the buffer and whose payload is left in payload.
+	 * @see RtpSocket#send(int, ByteBuffer)
+	 */
+	protected void send(int headerLength, ByteBuffer payload) {
+		int length = headerLength + payload.remaining();
+		socket.send(headerLength, payload);
+		report.update(length);
+	}
+
+	/**
+	 * Queues a packet whose header is in the buffer and whose payload is left in payload.
+	 * @see RtpSocket#queue(int, ByteBuffer)
+	 */
+	protected void queue(int headerLength, ByteBuffer payload) {
+		int length = headerLength + payload.remaining();
+		socket.queue(headerLength, payload);
+		report.update(length);
+	}
+
+	/**
+	 * Sends the queued packets.
+	 * @see RtpSocket#flush(long)
+	 */
+	protected void flush(long spread) {
+		socket.flush(spread);
+	}
+
 	// Useful for debug
 	protected static String printBuffer(byte[] buffer, int start,int end) {
 		String str = "";
@@ -50,6 +50,7 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 		if (t==null) {
 			t = new Thread(this);
 			t.start();
+			report.start();
 		}
 	}
 
@@ -59,13 +60,14 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 		} catch (IOException ignore) {}
 		t.interrupt();
 		t = null;
+		report.stop();
 
 	}
 
 	@SuppressWarnings("unused")
 	public void run() {
 		long time, duration = 0;
-		int i = 0, j = 0, tr, delta = 10000;
+		int i = 0, j = 0, tr;
 		boolean firstFragment = true;
 
 		// This will skip the MPEG4 header if this step fails we can't stream anything :(
@@ -105,14 +107,6 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 					buffer[rtphl] = 0;
 				}
 				if (j>0) {
-					// We send one RTCP Sender Report every 5 secs
-					delta += duration;
-					if (delta>5000 && duration>10) {
-						delta = 0;
-						report.setRtpTimestamp(ts*90);
-						report.setNtpTimestamp(SystemClock.elapsedRealtime());
-						report.send();
-					}
 					// We have found the end of the frame
 					stats.push(duration);
 					ts+= stats.average(); duration = 0;
@@ -121,6 +115,7 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 					socket.markNextPacket();
 					send(j);
 					socket.updateTimestamp(ts*90);
+					report.setRtpTimestamp(ts*90, System.nanoTime());
 					System.arraycopy(buffer,j+2,buffer,rtphl+2,MAXPACKETSIZE-j-2);
 					j = MAXPACKETSIZE-j-2;
 					firstFragment = true;
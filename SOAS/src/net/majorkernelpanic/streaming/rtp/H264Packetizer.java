@@ -20,9 +20,12 @@
 
 package net.majorkernelpanic.streaming.rtp;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
-import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -34,49 +37,220 @@ import android.util.Log;
  *   Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
  *   
+ *   The stream is read in big chunks in a direct buffer (through a FileChannel when the 
+ *   InputStream is a FileInputStream), the NAL units are parsed where they were read, and 
+ *   the payload of each RTP packet is sent straight from that buffer.
+ *   
+ *   The NAL units are grouped in access units (the NAL units of one frame). Every NAL unit 
+ *   of an access unit gets the same timestamp, taken from a monotonic clock (System.nanoTime) 
+ *   when the first byte of the access unit is read, and the marker bit is only set on the 
+ *   last packet of the access unit.
+ *   MediaRecorder writes a whole frame at once, so a VCL NAL unit ends the access unit unless 
+ *   the data already read starts with another slice of the same picture (first_mb_in_slice != 0). 
+ *   Any other NAL unit (AUD, SEI, SPS, PPS...) after a VCL NAL unit starts a new access unit.
+ *   
+ *   Without an InputStream, the packetizer does not read anything: the access units are 
+ *   given by an encoder (MediaCodec) with {@link #sendAccessUnit(ByteBuffer, long)}, in 
+ *   Annex B format and with the time at which the frame was captured.
+ *   
+ *   With {@link #setPacingEnabled(boolean)}, the packets of an access unit are queued in the 
+ *   RtpSocket and sent when the access unit ends, spread over half the average interval between 
+ *   two frames, so a big frame (an IDR picture) does not overflow the buffers of the access point 
+ *   or of a client in a single burst. Without pacing, each packet is sent as soon as it is built.
+ *   
  */
 public class H264Packetizer extends AbstractPacketizer implements Runnable{
 
 	public final static String TAG = "H264Packetizer";
 
 	private final static int MAXPACKETSIZE = 1400;
+	
+	/** Size of the buffer in which the stream is read. */
+	private final static int CHUNKSIZE = 65536;
+
+	/** NAL unit types of the slices of a picture. */
+	private final static int NAL_SLICE = 1, NAL_IDR_SLICE = 5;
+
+	/** NAL unit type of a sequence parameter set. */
+	private final static int NAL_SPS = 7;
 
 	private Thread t = null;
 	private int naluLength = 0;
-	private long delay = 0;
-	private Statistics stats = new Statistics();
+	private ReadableByteChannel channel = null;
+	private ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNKSIZE);
+
+	private boolean auOpen = false;
+	private long clockBase = 0, rtpts = 0;
+	private long auTime = 0, auInterval = 0;
+	private volatile boolean pacing = false;
+	private byte[] sps = null, pps = null, lastSps = null, lastPps = null;
 
 	public H264Packetizer() throws IOException {
 		super();
 	}
 
+	/** 
+	 * Sets the SPS and PPS sent before the first access unit after the next start.
+	 * They are needed when the encoder was reconfigured while streaming, as the clients 
+	 * only know the parameter sets of the session description.
+	 * @param sps The sequence parameter set (NAL unit without start code)
+	 * @param pps The picture parameter set (NAL unit without start code)
+	 */
+	public synchronized void setStreamParameters(byte[] sps, byte[] pps) {
+		this.sps = lastSps = sps;
+		this.pps = lastPps = pps;
+	}
+
+	/** 
+	 * Enables or disables the pacing of the RTP packets of each access unit.
+	 * @param pacing True to spread the packets of a frame over half a frame interval
+	 */
+	public void setPacingEnabled(boolean pacing) {
+		this.pacing = pacing;
+	}
+
 	public void start() throws IOException {
-		if (t == null) {
+		auTime = auInterval = 0;
+		if (is == null) {
+			// The access units will be given by sendAccessUnit
+			auOpen = false;
+			report.start();
+		}
+		else if (t == null) {
+			if (is instanceof FileInputStream) channel = ((FileInputStream) is).getChannel();
+			else channel = Channels.newChannel(is);
+			chunk.clear();
+			chunk.limit(0);
+			auOpen = false;
 			t = new Thread(this);
 			t.start();
+			report.start();
 		}
 	}
 
 	public void stop() {
-		try {
-			is.close();
-		} catch (IOException ignore) {}
-		t.interrupt();
-		t = null;
+		if (t != null) {
+			try {
+				is.close();
+			} catch (IOException ignore) {}
+			t.interrupt();
+			// The packetizer can be started again right away, when the encoder is reconfigured
+			try {
+				t.join(1000);
+			} catch (InterruptedException ignore) {}
+			t = null;
+		}
+		report.stop();
 	}
 
-	public void run() {
+	/** 
+	 * Sends an access unit given by an encoder, when the packetizer has no InputStream.
+	 * The NAL units are in Annex B format (each one preceded by a start code) between the 
+	 * position and the limit of accessUnit. They all get the timestamp of presentationTimeUs,
+	 * which must be a time of System.nanoTime in microseconds.
+	 * The payload of the packets is sent from accessUnit, all of them are sent when this 
+	 * method returns (with pacing, this takes about half a frame interval). An IDR picture without parameter sets is preceded by the last ones 
+	 * given with {@link #setStreamParameters(byte[], byte[])}, so that a client that has 
+	 * just joined the stream can decode it.
+	 * @param accessUnit The NAL units of a frame
+	 * @param presentationTimeUs The time at which the frame was captured
+	 */
+	public void sendAccessUnit(ByteBuffer accessUnit, long presentationTimeUs) {
+		int end = accessUnit.limit(), first = findStartCode(accessUnit, accessUnit.position(), end);
+		boolean idr = false, parameters = false;
+		if (first == end) return;
+
+		for (int p = first; p < end; p = findStartCode(accessUnit, p+3, end)) {
+			int type = accessUnit.get(p+3)&0x1F;
+			if (type == NAL_IDR_SLICE) idr = true;
+			else if (type == NAL_SPS) parameters = true;
+		}
 
-		long duration = 0, oldtime = 0, delta = 10000;
+		openAccessUnit(presentationTimeUs*1000);
+		if (!sendStreamParameters() && idr && !parameters) {
+			byte[] sps, pps;
+			synchronized (this) {
+				sps = lastSps;
+				pps = lastPps;
+			}
+			if (sps != null) packet(rtphl, ByteBuffer.wrap(sps));
+			if (pps != null) packet(rtphl, ByteBuffer.wrap(pps));
+		}
+
+		for (int p = first; p < end; ) {
+			int next = findStartCode(accessUnit, p+3, end);
+			// The start code may be 4 bytes long
+			int nalEnd = next < end && accessUnit.get(next-1) == 0 ? next-1 : next;
+			accessUnit.limit(nalEnd);
+			accessUnit.position(p+3);
+			sendNalUnit(accessUnit, next >= end);
+			accessUnit.limit(end);
+			p = next;
+		}
+
+		auOpen = false;
+		closeAccessUnit();
+	}
+
+	// Sends the NAL unit left in nal, in a single NAL unit packet or in FU-A packets (RFC 3984)
+	private void sendNalUnit(ByteBuffer nal, boolean last) {
+		int header = nal.get(nal.position()), end = nal.limit(), len;
+
+		// Small NAL unit => Single NAL unit 
+		if (nal.remaining()<=MAXPACKETSIZE-rtphl-2) {
+			if (last) socket.markNextPacket();
+			packet(rtphl, nal);
+			return;
+		}
+
+		// Large NAL unit => Split nal unit 
+		buffer[rtphl+1] = (byte) ((header & 0x1F) | 0x80); // FU header type and start bit
+		buffer[rtphl] = (byte) ((header & 0x60) | 28); // FU indicator NRI
+		nal.position(nal.position()+1);
+		while (nal.position() < end) {
+			len = Math.min(end-nal.position(), MAXPACKETSIZE-rtphl-2);
+			if (nal.position()+len >= end) {
+				// End bit on
+				buffer[rtphl+1] |= 0x40;
+				if (last) socket.markNextPacket();
+			}
+			nal.limit(nal.position()+len);
+			packet(rtphl+2, nal);
+			nal.limit(end);
+			// Switch start bit
+			buffer[rtphl+1] &= 0x7F;
+		}
+	}
+
+	/** 
+	 * Finds the next start code (0x000001) of NAL units in Annex B format.
+	 * @param buffer The NAL units
+	 * @param from The position where the search starts
+	 * @param end The position where the search ends
+	 * @return The position of the start code, or end if there is none before the last NAL unit header
+	 */
+	public static int findStartCode(ByteBuffer buffer, int from, int end) {
+		// A start code is followed by at least the header of its NAL unit
+		for (int i = from; i+3 < end; i++) {
+			if ((buffer.get(i+2)&0xFF) > 1) i += 2;
+			else if (buffer.get(i) == 0 && buffer.get(i+1) == 0 && buffer.get(i+2) == 1) return i;
+		}
+		return end;
+	}
+
+	public void run() {
 
 		// This will skip the MPEG4 header if this step fails we can't stream anything :(
 		try {
-			byte buffer[] = new byte[4];
 			// Skip all atoms preceding mdat atom
 			while (true) {
-				while (is.read() != 'm');
-				is.read(buffer,0,3);
-				if (buffer[0] == 'd' && buffer[1] == 'a' && buffer[2] == 't') break;
+				fill(4);
+				int p = chunk.position();
+				chunk.position(p+1);
+				if (chunk.get(p) == 'm' && chunk.get(p+1) == 'd' && chunk.get(p+2) == 'a' && chunk.get(p+3) == 't') {
+					chunk.position(p+4);
+					break;
+				}
 			}
 		} catch (IOException e) {
 			Log.e(TAG,"Couldn't skip mp4 header :/");
@@ -84,31 +258,14 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable{
 		}
 
 		// We read a NAL units from the input stream and we send them
+		// Errors sending to a client are handled by the RtpSocket, only the input stream can stop this loop
 		try {
 			while (!Thread.interrupted()) {
 
-				// We measure how long it takes to receive the NAL unit from the phone
-				oldtime = SystemClock.elapsedRealtime();
 				send();
-				duration = SystemClock.elapsedRealtime() - oldtime;
-
-				// We send one RTCP Sender Report every 5 secs
-				delta += duration;
-				if (delta>5000) {
-					delta = 0;
-					report.setNtpTimestamp(SystemClock.elapsedRealtime());
-					report.setRtpTimestamp(ts*90);
-					report.send();
-				}
-				
-				// Calculates the average duration of a NAL unit
-				stats.push(duration);
-				delay = stats.average();
-
 			}
 		} catch (IOException e) {
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			// The input stream was closed by stop() or the encoder stopped writing
 		}
 
 		Log.d(TAG,"H264 packetizer stopped !");
@@ -117,70 +274,151 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable{
 
 	// Reads a NAL unit in the FIFO and sends it
 	// If it is too big, we split it in FU-A units (RFC 3984)
-	@SuppressWarnings("unused")
-	private void send() throws IOException, InterruptedException {
-		int sum = 1, len = 0, type;
-
-		// Read NAL unit length (4 bytes)
-		fill(rtphl,4);
-		naluLength = buffer[rtphl+3]&0xFF | (buffer[rtphl+2]&0xFF)<<8 | (buffer[rtphl+1]&0xFF)<<16 | (buffer[rtphl]&0xFF)<<24;
-
-		// Read NAL unit header (1 byte)
-		fill(rtphl, 1);
-		// NAL unit type
-		type = buffer[rtphl]&0x1F;
-
-		ts += delay;
-		socket.updateTimestamp(ts*90);
-
-		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay+" type: "+type);
+	private void send() throws IOException {
+		int sum = 1, len = 0, header, type;
+		boolean last;
+
+		// Read NAL unit length (4 bytes) and NAL unit header (1 byte)
+		fill(5);
+		naluLength = chunk.getInt();
+		header = chunk.get(chunk.position());
+		type = header&0x1F;
+
+		// First NAL unit of an access unit: every NAL unit of the frame gets the same timestamp
+		if (!auOpen) {
+			openAccessUnit(System.nanoTime());
+			sendStreamParameters();
+		}
 
 		// Small NAL unit => Single NAL unit 
 		if (naluLength<=MAXPACKETSIZE-rtphl-2) {
-			len = fill(rtphl+1,  naluLength-1  );
-			socket.markNextPacket();
-			super.send(naluLength+rtphl);
-			//Log.d(TAG,"----- Single NAL unit - len:"+len+" header:"+printBuffer(rtphl,rtphl+3)+" delay: "+delay+" newDelay: "+newDelay);
+			fill(naluLength);
+			last = endsAccessUnit(type, naluLength);
+			if (last) socket.markNextPacket();
+			send(rtphl, naluLength);
 		}
 		// Large NAL unit => Split nal unit 
 		else {
 
 			// Set FU-A header
-			buffer[rtphl+1] = (byte) (buffer[rtphl] & 0x1F);  // FU header type
+			buffer[rtphl+1] = (byte) (header & 0x1F);  // FU header type
 			buffer[rtphl+1] += 0x80; // Start bit
 			// Set FU-A indicator
-			buffer[rtphl] = (byte) ((buffer[rtphl] & 0x60) & 0xFF); // FU indicator NRI
+			buffer[rtphl] = (byte) ((header & 0x60) & 0xFF); // FU indicator NRI
 			buffer[rtphl] += 28;
 
+			// The NAL unit header is replaced by the FU indicator and the FU header
+			chunk.position(chunk.position()+1);
+
+			last = false;
 			while (sum < naluLength) {
-				if ((len = fill(rtphl+2,  naluLength-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : naluLength-sum  ))<0) return; sum += len;
+				len = naluLength-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : naluLength-sum;
+				fill(len);
+				sum += len;
 				// Last packet before next NAL
 				if (sum >= naluLength) {
 					// End bit on
 					buffer[rtphl+1] += 0x40;
-					socket.markNextPacket();
+					last = endsAccessUnit(type, len);
+					if (last) socket.markNextPacket();
 				}
-				super.send(len+rtphl+2);
+				send(rtphl+2, len);
 				// Switch start bit
 				buffer[rtphl+1] = (byte) (buffer[rtphl+1] & 0x7F); 
-				//Log.d(TAG,"----- FU-A unit, sum:"+sum);
 			}
 		}
+
+		if (last) {
+			auOpen = false;
+			closeAccessUnit();
+		}
+	}
+
+	// Stamps a new access unit with the time now (System.nanoTime) of the 90 kHz clock
+	private void openAccessUnit(long now) {
+		if (clockBase == 0) {
+			// The 90 kHz clock starts at the random timestamp chosen by AbstractPacketizer
+			// It goes on if the packetizer is restarted, so the clients see the same stream
+			clockBase = now;
+			rtpts = ts*90-1;
+		}
+		// Average interval between two frames, the packets of a frame are spread over half of it
+		if (auTime != 0) auInterval += ((now-auTime)-auInterval)/8;
+		auTime = now;
+		long timestamp = timestamp(now);
+		// The timestamps of two frames must differ even if they were read together
+		if (timestamp<=rtpts) timestamp = rtpts+1;
+		rtpts = timestamp;
+		auOpen = true;
+		socket.updateTimestamp(rtpts);
+		report.setRtpTimestamp(rtpts, now);
+	}
+
+	// Sends the parameter sets given with setStreamParameters as single NAL units of the access unit
+	// Returns false if there were none to send
+	private boolean sendStreamParameters() {
+		byte[] sps, pps;
+		synchronized (this) {
+			sps = this.sps;
+			pps = this.pps;
+			this.sps = this.pps = null;
+		}
+		if (sps != null) packet(rtphl, ByteBuffer.wrap(sps));
+		if (pps != null) packet(rtphl, ByteBuffer.wrap(pps));
+		return sps != null || pps != null;
+	}
+
+	// Sends the packets of the access unit queued with pacing
+	// They are also flushed if pacing was disabled while the access unit was sent
+	private void closeAccessUnit() {
+		if (socket.getQueuedCount()>0) super.flush(pacing ? auInterval/2 : 0);
+	}
+
+	// Queues the packet with pacing, sends it right away otherwise
+	private void packet(int headerLength, ByteBuffer payload) {
+		if (pacing) super.queue(headerLength, payload);
+		else super.send(headerLength, payload);
+	}
+
+	// Converts a time of System.nanoTime to the 90 kHz clock of the stream
+	private long timestamp(long nanos) {
+		return ts*90 + (nanos-clockBase)*9/100000;
+	}
+
+	// Tells if the NAL unit whose last length bytes are next in the chunk ends the access unit
+	// Only the bytes already read are looked at, so this never waits for the next frame
+	private boolean endsAccessUnit(int type, int length) {
+		if (type != NAL_SLICE && type != NAL_IDR_SLICE) return false;
+		int p = chunk.position()+length;
+		// Nothing else was written by the encoder: the frame is complete
+		if (chunk.limit()-p < 6) return true;
+		int next = chunk.get(p+4)&0x1F;
+		if (next != NAL_SLICE && next != NAL_IDR_SLICE) return true;
+		// The first bit of the slice header is set if first_mb_in_slice is 0 (exp-Golomb), i.e. a new picture
+		return chunk.getInt(p) < 2 || (chunk.get(p+5)&0x80) != 0;
 	}
 
-	private int fill(int offset,int length) throws IOException {
-		int sum = 0, len;
+	// Sends the next length bytes of the chunk after the headerLength bytes of header in the buffer
+	private void send(int headerLength, int length) {
+		int end = chunk.limit();
+		chunk.limit(chunk.position()+length);
+		packet(headerLength, chunk);
+		chunk.limit(end);
+	}
 
-		while (sum<length) {
-			len = is.read(buffer, offset+sum, length-sum);
-			if (len<0) {
+	// Makes sure that at least length bytes can be read in the chunk
+	// Each read gets as many bytes as the channel can give, up to the size of the chunk
+	private void fill(int length) throws IOException {
+		if (chunk.remaining()>=length) return;
+		// The queued packets point into the chunk, they must leave before it is compacted
+		if (socket.getQueuedCount()>0) super.flush(0);
+		chunk.compact();
+		while (chunk.position()<length) {
+			if (channel.read(chunk)<0) {
 				throw new IOException("End of stream");
 			}
-			else sum+=len;
 		}
-
-		return sum;
-
+		chunk.flip();
 	}
 
-}
\ No newline at end of file
+}
@@ -23,20 +23,68 @@ package net.majorkernelpanic.streaming.rtp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+
+import android.util.Log;
 
 /**
  * A basic implementation of an RTP socket.
+ * Each packet can be sent to several destinations: the same bytes (same
+ * sequence number, timestamp and SSRC) are sent to every destination, so that
+ * one encoded stream can be fanned out to several clients.
+ * 
+ * A packet can either be built entirely in the buffer returned by {@link #getBuffer()}
+ * and sent with {@link #send(int)}, or the payload can be left where it was read
+ * and sent with {@link #send(int, ByteBuffer)}. In that case, the header and the
+ * payload are sent to unicast destinations with a gathering write on a connected
+ * DatagramChannel, so the payload is never copied in the Java heap.
+ * 
+ * Packets can also be queued with {@link #queue(int, ByteBuffer)} and sent as a train
+ * with {@link #flush(long)}: the headers are copied in a pool of packets allocated once, 
+ * so the buffer can be reused for the next packet right away, and the train (e.g. all
+ * the packets of a frame) can be spread over some time instead of leaving in a burst.
+ * 
+ * A destination that can't be reached doesn't stop the stream of the others: the errors
+ * are logged, and a destination that keeps failing for {@link #DROP_DELAY} ms is removed.
+ * The channels of the removed destinations are closed by the thread that sends the 
+ * packets, at its next send, so a channel is never closed while it is being written.
  */
 public class RtpSocket {
 
+	public static final String TAG = "RtpSocket";
+
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1500;
-	
+
+	/** A destination that fails at least MAX_FAILURES times in DROP_DELAY ms is removed. */
+	public static final int MAX_FAILURES = 5;
+	public static final long DROP_DELAY = 10000;
+
+	/** Errors separated by more than SERIES_GAP ms belong to different series. */
+	private static final long SERIES_GAP = 3000;
+
+	/** Maximum number of packets queued with {@link #queue(int, ByteBuffer)}. */
+	public static final int TRAIN_LENGTH = 64;
+
+	/** Maximum length of the header of a queued packet (RTP header and payload header). */
+	public static final int MAX_HEADER_LENGTH = 16;
+
 	private MulticastSocket usock;
 	private DatagramPacket upack;
+	private volatile Destination[] destinations;
+	private ArrayList<Destination> released = new ArrayList<Destination>();
+	private volatile boolean release = false;
 
 	private byte[] buffer = new byte[MTU];
+	private ByteBuffer header = ByteBuffer.wrap(buffer);
+	private ByteBuffer[] gather = new ByteBuffer[2];
+	private Packet[] train = new Packet[TRAIN_LENGTH];
+	private int queued = 0;
+	private DatagramPacket tpack = new DatagramPacket(new byte[MTU], MTU);
 	private int seq = 0;
 	private boolean upts = false;
 	private int ssrc;
@@ -62,11 +110,17 @@ public class RtpSocket {
 
 		usock = new MulticastSocket();
 		upack = new DatagramPacket(buffer, 1);
+		destinations = new Destination[] {new Destination(upack, null)};
+		gather[0] = header;
+		for (int i=0;i<TRAIN_LENGTH;i++) train[i] = new Packet();
 
 	}
 
-	public void close() {
+	public synchronized void close() {
 		usock.close();
+		for (Destination destination : destinations) destination.close();
+		for (Destination destination : released) destination.close();
+		released.clear();
 	}
 
 	public void setSSRC(int ssrc) {
@@ -82,10 +136,83 @@ public class RtpSocket {
 		usock.setTimeToLive(ttl);
 	}
 
-	public void setDestination(InetAddress dest, int dport) {
+	/** Sets the destination of the stream, removing any other destination. */
+	public synchronized void setDestination(InetAddress dest, int dport) {
+		for (Destination destination : destinations) release(destination);
 		port = dport;
 		upack.setPort(dport);
 		upack.setAddress(dest);
+		destinations = new Destination[] {new Destination(upack, openChannel(dest, dport))};
+	}
+
+	/** 
+	 * Adds a destination to the stream. Packets will be sent to every destination.
+	 * @param dest The destination address
+	 * @param dport The destination port
+	 */
+	public synchronized void addDestination(InetAddress dest, int dport) {
+		Destination[] current = destinations;
+		for (Destination destination : current) {
+			if (dest.equals(destination.packet.getAddress()) && destination.packet.getPort()==dport) return;
+		}
+		Destination[] added = new Destination[current.length+1];
+		System.arraycopy(current, 0, added, 0, current.length);
+		added[current.length] = new Destination(new DatagramPacket(buffer, 1, dest, dport), openChannel(dest, dport));
+		destinations = added;
+	}
+
+	/** 
+	 * Removes all the destinations with the given address.
+	 * @param dest The destination address
+	 */
+	public synchronized void removeDestination(InetAddress dest) {
+		Destination[] current = destinations;
+		int count = 0;
+		for (Destination destination : current) {
+			if (!dest.equals(destination.packet.getAddress())) count++;
+		}
+		Destination[] kept = new Destination[count];
+		count = 0;
+		for (Destination destination : current) {
+			if (!dest.equals(destination.packet.getAddress())) kept[count++] = destination;
+			else release(destination);
+		}
+		destinations = kept;
+	}
+
+	/** Removes a destination that keeps failing. Called by the thread that sends the packets. */
+	private synchronized void drop(Destination dropped) {
+		Destination[] current = destinations;
+		int count = 0;
+		for (Destination destination : current) {
+			if (destination != dropped) count++;
+		}
+		if (count == current.length) return;
+		Destination[] kept = new Destination[count];
+		count = 0;
+		for (Destination destination : current) {
+			if (destination != dropped) kept[count++] = destination;
+		}
+		destinations = kept;
+		dropped.close();
+	}
+
+	/** The channel of a removed destination may be in use: it will be closed at the next send. */
+	private void release(Destination destination) {
+		released.add(destination);
+		release = true;
+	}
+
+	/** Closes the channels of the removed destinations. Called by the thread that sends the packets. */
+	private synchronized void closeReleased() {
+		for (Destination destination : released) destination.close();
+		released.clear();
+		release = false;
+	}
+
+	/** Returns the number of destinations of the stream. */
+	public int getDestinationCount() {
+		return destinations.length;
 	}
 
 	/** Returns the buffer that you can directly modify before calling send. */
@@ -101,16 +228,144 @@ public class RtpSocket {
 		return usock.getLocalPort();
 	}
 
-	/** Sends the RTP packet over the network. */
+	/** 
+	 * Sends the RTP packet over the network to every destination.
+	 * If sending to one destination fails, the error is logged and the packet is still 
+	 * sent to the others: a client that went away must not stop the stream of the others.
+	 */
 	public void send(int length) throws IOException {
 
+		if (release) closeReleased();
 		updateSequence();
-		upack.setLength(length);
-		usock.send(upack);
+		for (Destination destination : destinations) {
+			try {
+				destination.packet.setLength(length);
+				usock.send(destination.packet);
+			} catch (IOException e) {
+				failed(destination, e);
+			}
+		}
 
-		if (upts) {
-			upts = false;
-			buffer[1] -= 0x80;
+		resetMarker();
+
+	}
+
+	/** 
+	 * Sends an RTP packet whose header is in the buffer returned by {@link #getBuffer()} 
+	 * and whose payload is the content of payload between its position and its limit.
+	 * The payload is not copied for unicast destinations: the header and the payload are
+	 * sent with one gathering write. Multicast destinations need the TTL of the 
+	 * MulticastSocket, so for them the payload is copied once after the header.
+	 * When this method returns, the position of payload is its limit.
+	 * As with {@link #send(int)}, errors are logged and the packet is still sent to the other destinations.
+	 * @param headerLength The length of the header in the buffer (RTP header and payload header)
+	 * @param payload The payload, preferably a direct buffer
+	 */
+	public void send(int headerLength, ByteBuffer payload) {
+
+		int start = payload.position(), length = payload.remaining();
+		boolean copied = false;
+
+		if (release) closeReleased();
+		updateSequence();
+		header.limit(headerLength);
+		gather[1] = payload;
+		for (Destination destination : destinations) {
+			try {
+				if (destination.channel != null) {
+					header.position(0);
+					payload.position(start);
+					destination.channel.write(gather);
+				} else {
+					if (!copied) {
+						payload.position(start);
+						payload.get(buffer, headerLength, length);
+						copied = true;
+					}
+					destination.packet.setLength(headerLength+length);
+					usock.send(destination.packet);
+				}
+			} catch (IOException e) {
+				failed(destination, e);
+			}
+		}
+		payload.position(start+length);
+		gather[1] = null;
+
+		resetMarker();
+
+	}
+
+	/** 
+	 * Queues an RTP packet whose header is in the buffer returned by {@link #getBuffer()} 
+	 * and whose payload is the content of payload between its position and its limit.
+	 * The header is copied, so the buffer can be modified right away, but the payload is not: 
+	 * it must not be modified until {@link #flush(long)} is called. If the train is full, 
+	 * it is flushed first. When this method returns, the position of payload is its limit.
+	 * @param headerLength The length of the header in the buffer, at most MAX_HEADER_LENGTH
+	 * @param payload The payload, preferably a direct buffer
+	 */
+	public void queue(int headerLength, ByteBuffer payload) {
+
+		if (queued == TRAIN_LENGTH) flush(0);
+
+		updateSequence();
+		train[queued++].set(buffer, headerLength, payload);
+		payload.position(payload.limit());
+
+		resetMarker();
+
+	}
+
+	/** Returns the number of packets waiting to be sent with {@link #flush(long)}. */
+	public int getQueuedCount() {
+		return queued;
+	}
+
+	/** 
+	 * Sends the queued packets to every destination, in the order they were queued.
+	 * As with {@link #send(int)}, errors are logged and the train is still sent to the other destinations.
+	 * If the thread is interrupted while it waits, the rest of the train is sent at once 
+	 * and the thread stays interrupted.
+	 * @param spread The time over which the packets are spread in ns, 0 to send them at once
+	 */
+	public void flush(long spread) {
+
+		int count = queued;
+		long start = System.nanoTime();
+
+		queued = 0;
+		if (release) closeReleased();
+		for (int i=0;i<count;i++) {
+			Packet packet = train[i];
+
+			// Packet i leaves at start + i*spread/count
+			if (spread>0 && i>0) {
+				long wait = start + spread*i/count - System.nanoTime();
+				try {
+					if (wait>0) Thread.sleep(wait/1000000, (int) (wait%1000000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					spread = 0;
+				}
+			}
+
+			for (Destination destination : destinations) {
+				try {
+					if (destination.channel != null) {
+						packet.rewind();
+						destination.channel.write(packet.gather);
+					} else {
+						packet.copy(tpack.getData());
+						tpack.setLength(packet.length());
+						tpack.setAddress(destination.packet.getAddress());
+						tpack.setPort(destination.packet.getPort());
+						usock.send(tpack);
+					}
+				} catch (IOException e) {
+					failed(destination, e);
+				}
+			}
 		}
 
 	}
@@ -133,11 +388,125 @@ public class RtpSocket {
 		buffer[1] += 0x80; // Mark next packet
 	}
 
+	private void resetMarker() {
+		if (upts) {
+			upts = false;
+			buffer[1] -= 0x80;
+		}
+	}
+
+	/**
+	 * Opens a DatagramChannel connected to a unicast destination.
+	 * The channel is bound to the local port of the MulticastSocket, so the 
+	 * destination sees the packets coming from the port announced in the SETUP reply.
+	 * @return The channel or null if the destination must be reached with the MulticastSocket
+	 */
+	private DatagramChannel openChannel(InetAddress dest, int dport) {
+		if (dest.isMulticastAddress()) return null;
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			channel.socket().setReuseAddress(true);
+			channel.socket().bind(new InetSocketAddress(usock.getLocalPort()));
+			channel.connect(new InetSocketAddress(dest, dport));
+			return channel;
+		} catch (IOException e) {
+			Log.e(TAG,"Couldn't open a channel to "+dest.getHostAddress()+": "+e.getMessage());
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ignore) {}
+			}
+			return null;
+		}
+	}
+
+	/** 
+	 * Counts an error sending to a destination, and removes the destination if it keeps failing.
+	 * Only the first error of a series is logged. A client whose port was closed makes one write 
+	 * out of a few fail (each ICMP port unreachable is reported once), so a success doesn't end a series.
+	 */
+	private void failed(Destination destination, IOException e) {
+		long now = System.nanoTime()/1000000;
+		String name = destination.packet.getAddress().getHostAddress()+":"+destination.packet.getPort();
+		if (destination.failures == 0 || now-destination.lastFailure > SERIES_GAP) {
+			Log.e(TAG,"Couldn't send to "+name+": "+e.getMessage());
+			destination.failures = 0;
+			destination.firstFailure = now;
+		}
+		destination.failures++;
+		destination.lastFailure = now;
+		if (destination.failures >= MAX_FAILURES && now-destination.firstFailure >= DROP_DELAY) {
+			Log.e(TAG,"Destination "+name+" removed after "+destination.failures+" errors");
+			drop(destination);
+		}
+	}
+
 	private void setLong(long n, int begin, int end) {
 		for (end--; end >= begin; end--) {
 			buffer[end] = (byte) (n % 256);
 			n >>= 8;
 		}
-	}	
+	}
+
+	/** A queued packet: a copy of its header and a view on its payload. */
+	private static class Packet {
+
+		private final byte[] header = new byte[MAX_HEADER_LENGTH];
+		private final ByteBuffer[] gather = new ByteBuffer[] {ByteBuffer.wrap(header), null};
+		private ByteBuffer source = null;
+		private int headerLength, start, end;
+
+		public void set(byte[] buffer, int headerLength, ByteBuffer payload) {
+			System.arraycopy(buffer, 0, header, 0, headerLength);
+			this.headerLength = headerLength;
+			// The view is only created when the packetizer hands a new buffer
+			if (source != payload) {
+				source = payload;
+				gather[1] = payload.duplicate();
+			}
+			start = payload.position();
+			end = payload.limit();
+		}
+
+		public void rewind() {
+			gather[0].limit(headerLength).position(0);
+			gather[1].limit(end).position(start);
+		}
+
+		public void copy(byte[] data) {
+			System.arraycopy(header, 0, data, 0, headerLength);
+			gather[1].limit(end).position(start);
+			gather[1].get(data, headerLength, end-start);
+		}
+
+		public int length() {
+			return headerLength+end-start;
+		}
+
+	}
+
+	/** A destination of the stream: its packet and, for unicast destinations, a connected channel. */
+	private static class Destination {
+
+		private final DatagramPacket packet;
+		private final DatagramChannel channel;
+		private int failures = 0;
+		private long firstFailure = 0, lastFailure = 0;
+
+		public Destination(DatagramPacket packet, DatagramChannel channel) {
+			this.packet = packet;
+			this.channel = channel;
+		}
+
+		public void close() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ignore) {}
+			}
+		}
+
+	}
 
 }
@@ -55,6 +55,12 @@ import android.util.Log;
  * connected client, a Session is instantiated. The Session will start or stop
  * streams according to what the client wants.
  * 
+ * As the camera can only be used by one Session at a time, a client that
+ * connects while a Session is already streaming joins that Session: it is
+ * added as a new destination of the running streams and receives the same
+ * RTP packets, without encoding the video again. The streams are stopped when
+ * the last client of the Session disconnects.
+ * 
  */
 public class RtspServer extends Service {
 
@@ -299,6 +305,21 @@ public class RtspServer extends Service {
 		return session;
 	}
 
+	/**
+	 * Returns a Session that is already streaming, so that a new client can
+	 * join it. Must be called while holding the lock on mSessions.
+	 * 
+	 * @return A streaming session or null if there is none
+	 */
+	protected Session getStreamingSession() {
+		for (Session session : mSessions.keySet()) {
+			if (session != null && session.isStreaming()) {
+				return session;
+			}
+		}
+		return null;
+	}
+
 	class RequestListener extends Thread implements Runnable {
 
 		private final ServerSocket mServer;
@@ -353,6 +374,15 @@ public class RtspServer extends Service {
 		// Each client has an associated session
 		private Session mSession;
 
+		// True if the client joined a session started by another client
+		private boolean mShared = false;
+
+		// True if the client is registered as a client of mSession
+		private boolean mAcquired = false;
+
+		// Destination of the streams for this client
+		private InetAddress mDestination = null;
+
 		public WorkerThread(final Socket client) throws IOException {
 			mInput = new BufferedReader(new InputStreamReader(
 					client.getInputStream()));
@@ -413,13 +443,8 @@ public class RtspServer extends Service {
 
 			}
 
-			// Streaming stops when client disconnects
-			boolean streaming = isStreaming();
-			mSession.stop();
-			if (streaming && !isStreaming()) {
-				postMessage(MESSAGE_STREAMING_STOPPED);
-			}
-			mSession.flush();
+			// Streaming stops when the last client of the session disconnects
+			leaveSession();
 
 			try {
 				mClient.close();
@@ -430,6 +455,31 @@ public class RtspServer extends Service {
 
 		}
 
+		/**
+		 * Unregisters the client from its session. If it was the last client
+		 * the streams are stopped, otherwise the client is just removed from
+		 * the destinations of the streams.
+		 */
+		private void leaveSession() {
+			synchronized (mSessions) {
+				if (mAcquired && mSession.release() > 0) {
+					if (!mDestination.isMulticastAddress()) {
+						mSession.removeDestination(mDestination);
+					}
+					Log.i(TAG, "Client left a shared session");
+				} else {
+					boolean streaming = isStreaming();
+					mSession.stop();
+					if (streaming && !isStreaming()) {
+						postMessage(MESSAGE_STREAMING_STOPPED);
+					}
+					mSession.flush();
+				}
+				mAcquired = false;
+				mShared = false;
+			}
+		}
+
 		public Response processRequest(Request request)
 				throws IllegalStateException, IOException {
 			Response response = new Response(request);
@@ -442,11 +492,34 @@ public class RtspServer extends Service {
 			/* ********************************************************************************** */
 			if (request.method.equalsIgnoreCase("DESCRIBE")) {
 
-				// Parse the requested URI and configure the session
-				mSession = handleRequest(request.uri, mClient);
-				mSessions.put(mSession, null);
+				// A new description replaces the previous session of the
+				// client
+				if (mAcquired) {
+					leaveSession();
+				}
+
+				synchronized (mSessions) {
+					Session shared = getStreamingSession();
+					if (shared != null) {
+						// The client joins the running session
+						mSession = shared;
+						mShared = true;
+						mDestination = shared.getDestination()
+								.isMulticastAddress() ? shared.getDestination()
+								: mClient.getInetAddress();
+						Log.i(TAG, "Client joins a running session");
+					} else {
+						// Parse the requested URI and configure the session
+						mSession = handleRequest(request.uri, mClient);
+						mSessions.put(mSession, null);
+						mDestination = mSession.getDestination();
+					}
+					mSession.acquire();
+					mAcquired = true;
+				}
 
-				String requestContent = mSession.getSessionDescription();
+				String requestContent = mSession
+						.getSessionDescription(mDestination);
 				String requestAttributes = "Content-Base: "
 						+ mClient.getLocalAddress().getHostAddress() + ":"
 						+ mClient.getLocalPort() + "/\r\n"
@@ -515,20 +588,39 @@ public class RtspServer extends Service {
 
 				ssrc = mSession.getTrack(trackId).getSSRC();
 				src = mSession.getTrack(trackId).getLocalPorts();
-				destination = mSession.getDestination();
-
-				mSession.getTrack(trackId).setDestinationPorts(p1, p2);
+				destination = (mDestination != null) ? mDestination : mSession
+						.getDestination();
+
+				if (mShared) {
+					// The stream is already running: the same packets are
+					// also sent to this client. If they are sent to a
+					// multicast group, the client just has to join it on the
+					// ports already in use
+					if (destination.isMulticastAddress()) {
+						int[] ports = mSession.getTrack(trackId)
+								.getDestinationPorts();
+						p1 = ports[0];
+						p2 = ports[1];
+					} else {
+						mSession.addDestination(trackId, destination, p1, p2);
+					}
+				} else {
+					mSession.getTrack(trackId).setDestinationPorts(p1, p2);
 
-				boolean streaming = isStreaming();
-				mSession.start(trackId);
-				if (!streaming && isStreaming()) {
-					postMessage(MESSAGE_STREAMING_STARTED);
+					boolean streaming = isStreaming();
+					mSession.start(trackId);
+					if (!streaming && isStreaming()) {
+						postMessage(MESSAGE_STREAMING_STARTED);
+					}
 				}
 
 				response.attributes = "Transport: RTP/AVP/UDP;"
 						+ (destination.isMulticastAddress() ? "multicast"
 								: "unicast") + ";destination="
-						+ mSession.getDestination().getHostAddress()
+						+ destination.getHostAddress()
+						+ (destination.isMulticastAddress() ? ";port=" + p1
+								+ "-" + p2 + ";ttl=" + mSession.getTimeToLive()
+								: "")
 						+ ";client_port=" + p1 + "-" + p2 + ";server_port="
 						+ src[0] + "-" + src[1] + ";ssrc="
 						+ Integer.toHexString(ssrc) + ";mode=play\r\n"
@@ -0,0 +1,567 @@
+/*
+ * Copyright (C) 2011-2013 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of Spydroid (http://code.google.com/p/spydroid-ipcamera/)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import net.majorkernelpanic.streaming.rtp.H264Packetizer;
+import android.annotation.SuppressLint;
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+/**
+ * Encodes the preview of the camera in H.264 with MediaCodec and gives the access units
+ * straight to an {@link H264Packetizer}, instead of the MP4 file written by the MediaRecorder.
+ *
+ * On Android 4.3 (API 18) and later, the preview is drawn with OpenGL ES in the input surface 
+ * of the encoder by a {@link SurfaceInput}, and shown from there. Otherwise, or if the encoder 
+ * has no input surface, the preview frames are received in NV21 with a preview callback, converted 
+ * to the color format of the encoder and written in the layout of its input buffers, whose rows 
+ * and planes may be padded. Either way, each frame is given to the encoder with the time at which 
+ * it was received (System.nanoTime), which becomes the RTP timestamp of its access unit. 
+ * A thread of its own waits for the output of the encoder and sends each access unit as soon as it is encoded.
+ *
+ * Requires Android 4.1 (API 16), see {@link #isSupported()}. On Android 4.4 (API 19) and later,
+ * the bitrate can be changed and a key frame can be requested while encoding.
+ * 
+ * If the encoder fails or its output can't be sent, it stops by itself with the preview 
+ * and tells its {@link Listener}.
+ */
+@SuppressLint("NewApi")
+public class H264Encoder implements Runnable, Camera.PreviewCallback {
+
+	public final static String TAG = "H264Encoder";
+
+	/** Told when the encoder stops by itself. */
+	public interface Listener {
+		/** 
+		 * Called by the thread of the encoder when the encoder failed or an access unit couldn't be sent.
+		 * The encoder and the preview are already stopped.
+		 */
+		void onEncoderError(H264Encoder encoder, Exception error);
+	}
+
+	private final static String MIME_TYPE = "video/avc";
+
+	/** Number of preview buffers given to the camera. */
+	private final static int PREVIEW_BUFFERS = 3;
+
+	/** Time waited for a buffer of the encoder in us. */
+	private final static long TIMEOUT = 500000;
+
+	/** Keys of the layout of the input buffers in the input format (Android 5.0 and later). */
+	private final static String KEY_STRIDE = "stride", KEY_SLICE_HEIGHT = "slice-height";
+
+	/** NAL unit types of the parameter sets. */
+	private final static int NAL_SPS = 7, NAL_PPS = 8;
+
+	private final H264Packetizer mPacketizer;
+	private String mCodecName;
+	private int mColorFormat;
+	private MediaCodec mCodec = null;
+	private ByteBuffer[] mInputBuffers = null;
+	private Surface mSurface = null;
+	private SurfaceInput mInput = null;
+	private Camera mCamera = null;
+	private SurfaceHolder mHolder = null;
+	private int mWidth = 0, mHeight = 0;
+	private int mStride = 0, mSliceHeight = 0, mChromaOffset = 0, mFrameSize = 0;
+	private byte[] mChroma = null;
+	private long mFrameInterval = 0, mNextFrame = 0;
+	private Thread t = null;
+	private volatile byte[][] mParameterSets = null;
+	private volatile Listener mListener = null;
+
+	/**
+	 * Creates an encoder that gives its output to a packetizer.
+	 * @param packetizer The packetizer, without InputStream
+	 * @throws IllegalStateException if the phone has no H.264 encoder that MediaCodec can use
+	 */
+	public H264Encoder(H264Packetizer packetizer) throws IllegalStateException {
+		MediaCodecInfo info = findCodec();
+		if (info == null) throw new IllegalStateException("No H.264 encoder available !");
+		mPacketizer = packetizer;
+		mCodecName = info.getName();
+		mColorFormat = colorFormat(info);
+		Log.d(TAG,"Encoder "+mCodecName+", color format "+mColorFormat);
+	}
+
+	/** Sets the listener told when the encoder stops by itself. */
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/** Tells if H.264 can be encoded with MediaCodec on this phone. */
+	public static boolean isSupported() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return false;
+		try {
+			return findCodec() != null;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Configures the preview of the camera and the encoder for a quality.
+	 * @param camera The camera, open and locked
+	 * @param holder The surface where the preview is shown
+	 * @param quality The quality of the stream
+	 */
+	public void prepare(Camera camera, SurfaceHolder holder, VideoQuality quality) throws IOException {
+		// The encoder of a previous call may not have been started
+		stop();
+
+		Parameters parameters = camera.getParameters();
+		parameters.setPreviewFormat(ImageFormat.NV21);
+		parameters.setPreviewSize(quality.resX, quality.resY);
+		int[] range = findFpsRange(parameters, quality.framerate);
+		if (range != null) parameters.setPreviewFpsRange(range[0], range[1]);
+		camera.setParameters(parameters);
+
+		mCamera = camera;
+		mHolder = holder;
+		mWidth = quality.resX;
+		mHeight = quality.resY;
+		mFrameInterval = 1000000000L/quality.framerate;
+		mParameterSets = null;
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			// The preview will be drawn in the input surface of the encoder
+			MediaCodec codec = null;
+			try {
+				codec = createCodec(quality, CodecCapabilities.COLOR_FormatSurface);
+				mSurface = codec.createInputSurface();
+				mCodec = codec;
+				return;
+			} catch (RuntimeException e) {
+				Log.e(TAG,"The encoder has no input surface, the preview frames will be converted: "+e.getMessage());
+				if (codec != null) codec.release();
+			}
+		}
+
+		camera.setPreviewDisplay(holder);
+		mChroma = new byte[mWidth*mHeight/2];
+		mCodec = createCodec(quality, mColorFormat);
+		layout(mCodec);
+	}
+
+	/** Starts the encoder and the preview of the camera. */
+	public synchronized void start() {
+		if (mCodec == null) throw new IllegalStateException("prepare() should be called before start().");
+		mCodec.start();
+		mNextFrame = 0;
+		if (mSurface != null) {
+			mInput = new SurfaceInput(this, mSurface, mHolder.getSurface(), mWidth, mHeight);
+			try {
+				mCamera.setPreviewTexture(mInput.start());
+			} catch (IOException e) {
+				throw new IllegalStateException("The preview couldn't be given to the encoder: "+e.getMessage());
+			}
+		} else {
+			mInputBuffers = mCodec.getInputBuffers();
+			if (mFrameSize > mInputBuffers[0].capacity()) {
+				Log.e(TAG,"Frames of "+mFrameSize+" bytes don't fit in the input buffers, the planes are not padded");
+				packedLayout();
+			}
+			for (int i=0;i<PREVIEW_BUFFERS;i++) mCamera.addCallbackBuffer(new byte[mWidth*mHeight*3/2]);
+			mCamera.setPreviewCallbackWithBuffer(this);
+		}
+		mCamera.startPreview();
+		t = new Thread(this);
+		t.start();
+	}
+
+	/** Stops the preview of the camera and releases the encoder. */
+	public void stop() {
+		stop(null);
+	}
+
+	/** Tells if the encoder was started and has not stopped since. */
+	public synchronized boolean isRunning() {
+		return t != null;
+	}
+
+	/**
+	 * Returns the SPS and the PPS given by the encoder since it was started.
+	 * @return The SPS and the PPS (NAL units without start code), or null if it gave none yet
+	 */
+	public byte[][] getParameterSets() {
+		return mParameterSets;
+	}
+
+	/**
+	 * Changes the bitrate of the encoder while it is encoding (Android 4.4 and later).
+	 * @param bitrate The bitrate in bit per second
+	 * @return False if the bitrate can't be changed: the encoder must then be configured again
+	 */
+	public synchronized boolean setBitrate(int bitrate) {
+		if (t == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return false;
+		Bundle parameters = new Bundle();
+		parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+		mCodec.setParameters(parameters);
+		return true;
+	}
+
+	/** Asks the encoder for a key frame as soon as possible (Android 4.4 and later). */
+	public synchronized void requestKeyFrame() {
+		if (t == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+		Bundle parameters = new Bundle();
+		parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+		mCodec.setParameters(parameters);
+	}
+
+	/**
+	 * Returns the SPS and the PPS that the encoder uses for a quality. The encoder is started
+	 * alone and given blank frames until it gives its parameter sets.
+	 * @param quality The quality of the stream
+	 * @return The SPS and the PPS (NAL units without start code)
+	 */
+	public byte[][] probe(VideoQuality quality) throws IOException {
+		MediaCodec codec = createCodec(quality, mColorFormat);
+		MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		int length = quality.resX*quality.resY*3/2;
+		byte[] blank = new byte[length];
+		long pts = 0, deadline = System.nanoTime()+3000000000L;
+
+		// Black picture: Y = 16, U = V = 128
+		Arrays.fill(blank, 0, quality.resX*quality.resY, (byte) 16);
+		Arrays.fill(blank, quality.resX*quality.resY, length, (byte) 128);
+
+		try {
+			codec.start();
+			ByteBuffer[] inputs = codec.getInputBuffers(), outputs = codec.getOutputBuffers();
+			while (System.nanoTime() < deadline) {
+				int index = codec.dequeueInputBuffer(TIMEOUT/10);
+				if (index >= 0) {
+					inputs[index].clear();
+					inputs[index].put(blank, 0, Math.min(length, inputs[index].capacity()));
+					codec.queueInputBuffer(index, 0, inputs[index].position(), pts, 0);
+					pts += 1000000/quality.framerate;
+				}
+				index = codec.dequeueOutputBuffer(info, TIMEOUT/10);
+				if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+					outputs = codec.getOutputBuffers();
+				} else if (index >= 0) {
+					byte[][] sets = findParameterSets(select(outputs[index], info));
+					codec.releaseOutputBuffer(index, false);
+					if (sets[0] != null && sets[1] != null) return sets;
+				}
+			}
+		} finally {
+			try {
+				codec.stop();
+			} catch (Exception ignore) {}
+			codec.release();
+		}
+
+		throw new IOException("The encoder gave no SPS and PPS !");
+	}
+
+	/** Converts a preview frame and queues it in the encoder. */
+	public void onPreviewFrame(byte[] data, Camera camera) {
+		long now = System.nanoTime();
+		try {
+			synchronized (this) {
+				if (!acceptFrame(now)) return;
+
+				// The encoder is late: the frame is dropped
+				int index = mCodec.dequeueInputBuffer(0);
+				if (index < 0) return;
+
+				ByteBuffer input = mInputBuffers[index];
+				input.clear();
+				convert(data, input);
+				mCodec.queueInputBuffer(index, 0, mFrameSize, now/1000, 0);
+			}
+		} catch (IllegalStateException e) {
+			Log.e(TAG,"Frame dropped: "+e.getMessage());
+		} finally {
+			camera.addCallbackBuffer(data);
+		}
+	}
+
+	/**
+	 * Tells if a frame received at a time should be encoded, the camera may give more frames 
+	 * than the framerate of the stream.
+	 * @param now The time at which the frame was received (System.nanoTime)
+	 */
+	synchronized boolean acceptFrame(long now) {
+		if (t == null || now < mNextFrame-mFrameInterval/4) return false;
+		mNextFrame = now-mNextFrame > mFrameInterval ? now+mFrameInterval : mNextFrame+mFrameInterval;
+		return true;
+	}
+
+	/**
+	 * Stops the encoder when one of its threads failed, and tells the listener.
+	 * Does nothing if the encoder was stopped in the meantime.
+	 */
+	void fail(Exception e) {
+		// Nothing will be encoded or sent anymore: the encoder is stopped 
+		// so that the preview frames are not received for nothing
+		if (stop(Thread.currentThread())) {
+			Log.e(TAG,"H264 encoder failed: "+e.getMessage());
+			Listener listener = mListener;
+			if (listener != null) listener.onEncoderError(this, e);
+		}
+	}
+
+	/** Sends the access units given by the encoder. Stops the encoder if it fails. */
+	public void run() {
+		MediaCodec codec;
+		synchronized (this) {
+			codec = mCodec;
+		}
+		MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+		try {
+			ByteBuffer[] outputs = codec.getOutputBuffers();
+			while (!Thread.interrupted()) {
+				int index = codec.dequeueOutputBuffer(info, TIMEOUT);
+				if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+					outputs = codec.getOutputBuffers();
+				} else if (index >= 0) {
+					ByteBuffer output = select(outputs[index], info);
+					if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+						// The parameter sets are sent with the next access unit
+						byte[][] sets = findParameterSets(output);
+						mPacketizer.setStreamParameters(sets[0], sets[1]);
+						if (sets[0] != null && sets[1] != null) mParameterSets = sets;
+					} else if (info.size > 0) {
+						mPacketizer.sendAccessUnit(output, info.presentationTimeUs);
+					}
+					codec.releaseOutputBuffer(index, false);
+				}
+			}
+		} catch (RuntimeException e) {
+			fail(e);
+		}
+
+		Log.d(TAG,"H264 encoder stopped !");
+	}
+
+	/**
+	 * Stops the preview of the camera and releases the encoder.
+	 * @param owner Only stops the encoder if this thread sends its output or draws its input, or null to stop it anyway
+	 * @return False if the encoder was already stopped
+	 */
+	private boolean stop(Thread owner) {
+		MediaCodec codec;
+		Thread thread;
+		SurfaceInput input;
+		Surface surface;
+		synchronized (this) {
+			if (mCodec == null || (owner != null && t != owner && (mInput == null || !mInput.isThread(owner)))) return false;
+			codec = mCodec;
+			thread = t;
+			input = mInput;
+			surface = mSurface;
+			mCodec = null;
+			t = null;
+			mInput = null;
+			mSurface = null;
+		}
+		try {
+			mCamera.setPreviewCallbackWithBuffer(null);
+			mCamera.stopPreview();
+			if (input != null) mCamera.setPreviewTexture(null);
+		} catch (Exception ignore) {}
+		mCamera = null;
+		mHolder = null;
+		// The input surface is not drawn anymore before the encoder is released
+		if (input != null) input.stop();
+		// The thread that sends the output may be the one stopping the encoder
+		if (thread != null && thread != Thread.currentThread()) {
+			thread.interrupt();
+			try {
+				thread.join(1000);
+			} catch (InterruptedException ignore) {}
+		}
+		try {
+			codec.stop();
+		} catch (Exception ignore) {}
+		codec.release();
+		if (surface != null) surface.release();
+		return true;
+	}
+
+	private MediaCodec createCodec(VideoQuality quality, int colorFormat) throws IOException {
+		MediaCodec codec = MediaCodec.createByCodecName(mCodecName);
+		MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, quality.resX, quality.resY);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, quality.bitrate);
+		format.setInteger(MediaFormat.KEY_FRAME_RATE, quality.framerate);
+		format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+		format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		try {
+			codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		} catch (RuntimeException e) {
+			codec.release();
+			throw e;
+		}
+		return codec;
+	}
+
+	// Finds the layout of the planes of a frame in the input buffers of the encoder
+	private void layout(MediaCodec codec) {
+		packedLayout();
+		if (Build.VERSION.SDK_INT >= 21) {
+			// The project is built against API 20, where getInputFormat() doesn't exist yet
+			try {
+				MediaFormat format = (MediaFormat) MediaCodec.class.getMethod("getInputFormat").invoke(codec);
+				if (format.containsKey(KEY_STRIDE)) mStride = Math.max(mWidth, format.getInteger(KEY_STRIDE));
+				if (format.containsKey(KEY_SLICE_HEIGHT)) mSliceHeight = Math.max(mHeight, format.getInteger(KEY_SLICE_HEIGHT));
+			} catch (Exception e) {
+				Log.e(TAG,"Couldn't get the input format of the encoder: "+e.getMessage());
+			}
+			mChromaOffset = mStride*mSliceHeight;
+		} else if (mColorFormat == CodecCapabilities.COLOR_FormatYUV420SemiPlanar && mCodecName.startsWith("OMX.qcom.")) {
+			// The encoders of Qualcomm want the chroma plane at an offset aligned on 2048 bytes
+			mChromaOffset = (mChromaOffset+2047) & ~2047;
+		}
+		if (mColorFormat == CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+			mFrameSize = mChromaOffset+mStride*(mHeight/2);
+		} else {
+			mFrameSize = mChromaOffset+mStride/2*(mSliceHeight/2)+mStride/2*(mHeight/2);
+		}
+		if (mStride != mWidth || mChromaOffset != mWidth*mHeight) {
+			Log.d(TAG,"Input buffers: stride "+mStride+", slice height "+mSliceHeight+", chroma at "+mChromaOffset);
+		}
+	}
+
+	// Planes without padding, one after the other
+	private void packedLayout() {
+		mStride = mWidth;
+		mSliceHeight = mHeight;
+		mChromaOffset = mWidth*mHeight;
+		mFrameSize = mWidth*mHeight*3/2;
+	}
+
+	// Writes a NV21 frame in the color format and the layout of the encoder
+	private void convert(byte[] data, ByteBuffer input) {
+		int size = mWidth*mHeight;
+		putPlane(input, 0, mStride, data, 0, mWidth, mHeight);
+		if (mColorFormat == CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+			// NV12: the chroma samples are interleaved in the other order
+			for (int i=0;i<size/2;i+=2) {
+				mChroma[i] = data[size+i+1];
+				mChroma[i+1] = data[size+i];
+			}
+			putPlane(input, mChromaOffset, mStride, mChroma, 0, mWidth, mHeight/2);
+		} else {
+			// I420: a plane for U and then a plane for V, whose rows are half as long
+			for (int i=0;i<size/4;i++) {
+				mChroma[i] = data[size+2*i+1];
+				mChroma[size/4+i] = data[size+2*i];
+			}
+			putPlane(input, mChromaOffset, mStride/2, mChroma, 0, mWidth/2, mHeight/2);
+			putPlane(input, mChromaOffset+mStride/2*(mSliceHeight/2), mStride/2, mChroma, size/4, mWidth/2, mHeight/2);
+		}
+	}
+
+	// Writes the rows of a plane in the buffer from an offset, with stride bytes from a row to the next
+	private static void putPlane(ByteBuffer input, int offset, int stride, byte[] plane, int start, int width, int rows) {
+		if (stride == width) {
+			input.position(offset);
+			input.put(plane, start, width*rows);
+			return;
+		}
+		for (int row=0;row<rows;row++) {
+			input.position(offset+row*stride);
+			input.put(plane, start+row*width, width);
+		}
+	}
+
+	// Limits the buffer to the data written by the encoder
+	private static ByteBuffer select(ByteBuffer output, MediaCodec.BufferInfo info) {
+		output.clear();
+		output.limit(info.offset+info.size);
+		output.position(info.offset);
+		return output;
+	}
+
+	// Finds the SPS and the PPS in NAL units in Annex B format
+	private static byte[][] findParameterSets(ByteBuffer buffer) {
+		byte[][] sets = new byte[2][];
+		int end = buffer.limit();
+		for (int p = H264Packetizer.findStartCode(buffer, buffer.position(), end); p < end; ) {
+			int next = H264Packetizer.findStartCode(buffer, p+3, end);
+			int nalEnd = next < end && buffer.get(next-1) == 0 ? next-1 : next;
+			int type = buffer.get(p+3)&0x1F;
+			if (type == NAL_SPS || type == NAL_PPS) {
+				byte[] nal = new byte[nalEnd-p-3];
+				for (int i=0;i<nal.length;i++) nal[i] = buffer.get(p+3+i);
+				sets[type-NAL_SPS] = nal;
+			}
+			p = next;
+		}
+		return sets;
+	}
+
+	// Finds the smallest preview fps range of the camera that contains the framerate
+	private static int[] findFpsRange(Parameters parameters, int framerate) {
+		List<int[]> ranges = parameters.getSupportedPreviewFpsRange();
+		int[] best = null;
+		if (ranges == null) return null;
+		for (int[] range : ranges) {
+			if (range[0] > framerate*1000 || range[1] < framerate*1000) continue;
+			if (best == null || range[1] < best[1] || (range[1] == best[1] && range[0] > best[0])) best = range;
+		}
+		return best;
+	}
+
+	// Finds an H.264 encoder that takes YUV 420 frames, a hardware encoder if there is one
+	private static MediaCodecInfo findCodec() {
+		MediaCodecInfo found = null;
+		for (int i=0;i<MediaCodecList.getCodecCount();i++) {
+			MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+			if (!info.isEncoder() || colorFormat(info) == 0) continue;
+			if (found == null || found.getName().startsWith("OMX.google.")) found = info;
+		}
+		return found;
+	}
+
+	// Returns the YUV 420 color format taken by an H.264 encoder, or 0 if it takes none or is not an H.264 encoder
+	private static int colorFormat(MediaCodecInfo info) {
+		int found = 0;
+		for (String type : info.getSupportedTypes()) {
+			if (!type.equalsIgnoreCase(MIME_TYPE)) continue;
+			for (int format : info.getCapabilitiesForType(MIME_TYPE).colorFormats) {
+				if (format == CodecCapabilities.COLOR_FormatYUV420SemiPlanar) return format;
+				if (format == CodecCapabilities.COLOR_FormatYUV420Planar) found = format;
+			}
+		}
+		return found;
+	}
+
+}
@@ -32,6 +32,7 @@ import android.content.SharedPreferences.Editor;
 import android.hardware.Camera.CameraInfo;
 import android.media.MediaRecorder;
 import android.os.Environment;
+import android.util.Base64;
 import android.util.Log;
 
 /**
@@ -41,12 +42,17 @@ import android.util.Log;
  * You can then call {@link #prepare()} & {@link #start()}.
  * Call {@link #stop()} to stop the stream.
  * Finally, do not forget to call {@link #release()} when you're done.
+ * With {@link #setMediaCodecEnabled(boolean)}, the stream is encoded with MediaCodec instead
+ * of the MediaRecorder when the phone allows it (see {@link H264Encoder}).
  */
 public class H264Stream extends VideoStream {
 
 	private SharedPreferences mSettings = null;
 
 	private Semaphore mLock = new Semaphore(0);
+	private MP4Config mConfig = null;
+	private VideoQuality mConfigQuality = null;
+	private H264Encoder mEncoder = null;
 
 	/**
 	 * Constructs the H.264 stream.
@@ -76,6 +82,126 @@ public class H264Stream extends VideoStream {
 		mSettings = prefs;
 	}
 
+	/**
+	 * Enables or disables the pacing of the RTP packets of each access unit.
+	 * @param enabled True to spread the packets of big frames instead of sending them in a burst
+	 */
+	public void setPacingEnabled(boolean enabled) {
+		((H264Packetizer) mPacketizer).setPacingEnabled(enabled);
+	}
+
+	/**
+	 * Encodes the stream with MediaCodec instead of the MediaRecorder, if the phone allows it.
+	 * Otherwise the MediaRecorder is still used. Changes will take effect next time you call {@link #prepare()}.
+	 * @param enabled True to use MediaCodec
+	 * @see H264Encoder#isSupported()
+	 */
+	public void setMediaCodecEnabled(boolean enabled) {
+		if (mStreaming) {
+			throw new IllegalStateException("You can't call setMediaCodecEnabled() while streaming !");
+		}
+		if (!enabled) {
+			mEncoder = null;
+		} else if (mEncoder == null && H264Encoder.isSupported()) {
+			mEncoder = new H264Encoder((H264Packetizer) mPacketizer);
+			mEncoder.setListener(new H264Encoder.Listener() {
+				public void onEncoderError(H264Encoder encoder, Exception error) {
+					// The clients receive nothing anymore: the stream is stopped, unless
+					// it was restarted in the meantime (by reconfigure for instance)
+					synchronized (H264Stream.this) {
+						if (mStreaming && !encoder.isRunning()) stop();
+					}
+				}
+			});
+		}
+		// MediaCodec and the MediaRecorder don't give the same parameter sets
+		mConfig = null;
+	}
+
+	/**
+	 * Prepares the stream. With MediaCodec, the camera is not given to the MediaRecorder:
+	 * its preview frames are given to the encoder.
+	 */
+	public void prepare() throws IllegalStateException, IOException {
+		if (mEncoder == null || mode != MODE_STREAMING) {
+			super.prepare();
+			return;
+		}
+
+		if (mSurfaceHolder == null) 
+			throw new IllegalStateException("Invalid surface holder !");
+
+		openCamera();
+
+		// If an exception is thrown after the camera was open, we must absolutly release it !
+		try {
+			mEncoder.prepare(mCamera, mSurfaceHolder, mQuality);
+			mQualityHasChanged = false;
+		} catch (RuntimeException e) {
+			mCamera.release();
+			mCamera = null;
+			throw e;
+		} catch (IOException e) {
+			mCamera.release();
+			mCamera = null;
+			throw e;
+		}
+	}
+
+	protected void startRecording() throws IllegalStateException {
+		if (mEncoder == null || mode != MODE_STREAMING) {
+			super.startRecording();
+			return;
+		}
+		try {
+			// The packetizer reads nothing: the encoder gives it the access units
+			mPacketizer.setInputStream(null);
+			mPacketizer.start();
+		} catch (IOException e) {
+			throw new IllegalStateException("Something happened with the packetizer :/ Start failed !");
+		}
+		try {
+			mEncoder.start();
+		} catch (RuntimeException e) {
+			// OpenGL ES or the encoder couldn't be started
+			mEncoder.stop();
+			mPacketizer.stop();
+			throw e;
+		}
+		mStreaming = true;
+	}
+
+	protected void stopRecording() {
+		if (mEncoder == null || mode != MODE_STREAMING) {
+			super.stopRecording();
+			return;
+		}
+		// The encoder is released even if the stream was prepared but never started
+		mEncoder.stop();
+		if (mStreaming) {
+			mPacketizer.stop();
+			mStreaming = false;
+		}
+	}
+
+	/** 
+	 * With MediaCodec, on Android 4.4 and later, a change of the bitrate alone is made 
+	 * without stopping the encoder.
+	 */
+	public synchronized void reconfigure(VideoQuality videoQuality) throws IllegalStateException, IOException {
+		if (mEncoder != null && mStreaming && videoQuality.resX == mQuality.resX && videoQuality.resY == mQuality.resY
+				&& videoQuality.framerate == mQuality.framerate && mEncoder.setBitrate(videoQuality.bitrate)) {
+			mQuality = videoQuality;
+			return;
+		}
+		super.reconfigure(videoQuality);
+	}
+
+	/** With MediaCodec, a key frame is requested from the encoder (Android 4.4 and later). */
+	public void requestKeyFrame() {
+		if (mEncoder != null) mEncoder.requestKeyFrame();
+	}
+
 	/**
 	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
 	 * Will fail if called when streaming.
@@ -88,13 +214,37 @@ public class H264Stream extends VideoStream {
 		"a=fmtp:96 packetization-mode=1;profile-level-id="+config.getProfileLevel()+";sprop-parameter-sets="+config.getB64SPS()+","+config.getB64PPS()+";\r\n";
 	}	
 
+	/** 
+	 * The SPS and PPS of the new quality are not in the stream written by the MediaRecorder
+	 * and the clients only know those of the session description, so the packetizer sends
+	 * them with the first frame after the restart.
+	 */
+	protected void onReconfigure() throws IllegalStateException, IOException {
+		// MediaCodec gives its new parameter sets to the packetizer itself
+		if (mEncoder != null) return;
+		MP4Config config = testH264();
+		((H264Packetizer) mPacketizer).setStreamParameters(
+				Base64.decode(config.getB64SPS(), Base64.NO_WRAP),
+				Base64.decode(config.getB64PPS(), Base64.NO_WRAP));
+	}
+
 	// Should not be called by the UI thread
 	private MP4Config testH264() throws IllegalStateException, IOException {
 
+		// The parameters of the current quality were already found
+		if (mConfig != null && mConfigQuality.resX == mQuality.resX && mConfigQuality.resY == mQuality.resY 
+				&& mConfigQuality.framerate == mQuality.framerate) {
+			return mConfig;
+		}
+
+		if (mEncoder != null) {
+			return remember(testMediaCodec());
+		}
+
 		if (mSettings != null) {
 			if (mSettings.contains("h264"+mQuality.framerate+","+mQuality.resX+","+mQuality.resY)) {
 				String[] s = mSettings.getString("h264"+mQuality.framerate+","+mQuality.resX+","+mQuality.resY, "").split(",");
-				return new MP4Config(s[0],s[1],s[2]);
+				return remember(new MP4Config(s[0],s[1],s[2]));
 			}
 		}
 
@@ -175,8 +325,44 @@ public class H264Stream extends VideoStream {
 			editor.commit();
 		}
 		
+		return remember(config);
+
+	}
+
+	// Finds the SPS and PPS that MediaCodec uses for the current quality
+	// While streaming, they are those given by the encoder, otherwise the encoder is probed
+	private MP4Config testMediaCodec() throws IOException {
+		String key = "h264mc"+mQuality.framerate+","+mQuality.resX+","+mQuality.resY;
+		byte[][] sets = mStreaming ? mEncoder.getParameterSets() : null;
+
+		if (sets == null && mSettings != null && mSettings.contains(key)) {
+			String[] s = mSettings.getString(key, "").split(",");
+			return new MP4Config(s[0],s[1],s[2]);
+		}
+
+		if (sets == null) {
+			sets = mEncoder.probe(mQuality);
+		}
+
+		String profile = String.format("%02x%02x%02x", sets[0][1]&0xFF, sets[0][2]&0xFF, sets[0][3]&0xFF);
+		MP4Config config = new MP4Config(profile, 
+				Base64.encodeToString(sets[0], Base64.NO_WRAP), 
+				Base64.encodeToString(sets[1], Base64.NO_WRAP));
+
+		if (mSettings != null) {
+			Editor editor = mSettings.edit();
+			editor.putString(key, config.getProfileLevel()+","+config.getB64SPS()+","+config.getB64PPS());
+			editor.commit();
+		}
+
 		return config;
+	}
 
+	// Keeps the parameters of the current quality, they can then be used while streaming
+	private MP4Config remember(MP4Config config) {
+		mConfig = config;
+		mConfigQuality = mQuality.clone();
+		return config;
 	}
 
 }
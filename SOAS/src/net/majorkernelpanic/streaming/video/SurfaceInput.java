@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2011-2013 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of Spydroid (http://code.google.com/p/spydroid-ipcamera/)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.annotation.SuppressLint;
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * Draws the preview of the camera in the input surface of an {@link H264Encoder} (Android 4.3 and later).
+ *
+ * The camera gives its preview to a SurfaceTexture bound to an external OpenGL ES texture.
+ * A thread of its own draws each new frame in the input surface of the encoder, with the time at which
+ * it was received as presentation time, and then in the surface where the preview is shown.
+ * The frames are neither copied nor converted by the CPU.
+ *
+ * If drawing in the encoder fails, the encoder is stopped, see {@link H264Encoder#fail(Exception)}.
+ * If drawing in the preview fails, the preview is not drawn anymore but the encoding goes on.
+ */
+@SuppressLint("NewApi")
+class SurfaceInput implements Runnable, SurfaceTexture.OnFrameAvailableListener {
+
+	public final static String TAG = "SurfaceInput";
+
+	private final static String VERTEX_SHADER =
+			"uniform mat4 uTexMatrix;\n" +
+			"attribute vec4 aPosition;\n" +
+			"attribute vec4 aTexCoord;\n" +
+			"varying vec2 vTexCoord;\n" +
+			"void main() {\n" +
+			"  gl_Position = aPosition;\n" +
+			"  vTexCoord = (uTexMatrix * aTexCoord).xy;\n" +
+			"}\n";
+
+	private final static String FRAGMENT_SHADER =
+			"#extension GL_OES_EGL_image_external : require\n" +
+			"precision mediump float;\n" +
+			"varying vec2 vTexCoord;\n" +
+			"uniform samplerExternalOES sTexture;\n" +
+			"void main() {\n" +
+			"  gl_FragColor = texture2D(sTexture, vTexCoord);\n" +
+			"}\n";
+
+	/** A quad that covers the whole surface: x, y, s, t of each vertex of a triangle strip. */
+	private final static float[] QUAD = {
+		-1, -1, 0, 0,
+		1, -1, 1, 0,
+		-1, 1, 0, 1,
+		1, 1, 1, 1
+	};
+
+	/** Attribute of the EGL configs whose surfaces can be given to a MediaCodec. */
+	private final static int EGL_RECORDABLE_ANDROID = 0x3142;
+
+	private final H264Encoder mEncoder;
+	private final Surface mInput, mPreview;
+	private final int mWidth, mHeight;
+	private final float[] mMatrix = new float[16];
+	private FloatBuffer mQuad;
+
+	private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+	private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+	private EGLSurface mInputSurface = EGL14.EGL_NO_SURFACE, mPreviewSurface = EGL14.EGL_NO_SURFACE;
+	private int mProgram = 0, mTextureId = 0;
+	private int mPositionLocation, mTexCoordLocation, mMatrixLocation;
+
+	private Thread t = null;
+	private SurfaceTexture mTexture = null;
+	private RuntimeException mError = null;
+	private boolean mFrameAvailable = false;
+	private long mFrameTime = 0;
+
+	/**
+	 * @param encoder The encoder told when a frame is received and when drawing fails
+	 * @param input The input surface of the encoder
+	 * @param preview The surface where the preview is shown
+	 * @param width The width of the frames of the encoder
+	 * @param height The height of the frames of the encoder
+	 */
+	public SurfaceInput(H264Encoder encoder, Surface input, Surface preview, int width, int height) {
+		mEncoder = encoder;
+		mInput = input;
+		mPreview = preview;
+		mWidth = width;
+		mHeight = height;
+	}
+
+	/**
+	 * Starts the thread that draws the frames.
+	 * @return The SurfaceTexture that should be given to the camera
+	 * @throws RuntimeException if OpenGL ES couldn't be set up
+	 */
+	public synchronized SurfaceTexture start() {
+		t = new Thread(this);
+		t.start();
+		try {
+			while (mTexture == null && mError == null) wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while OpenGL ES was set up !");
+		}
+		if (mError != null) throw mError;
+		return mTexture;
+	}
+
+	/** Stops the thread that draws the frames and releases OpenGL ES. */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			thread = t;
+		}
+		// The thread that draws the frames may be the one stopping the encoder
+		if (thread != null && thread != Thread.currentThread()) {
+			thread.interrupt();
+			try {
+				thread.join(1000);
+			} catch (InterruptedException ignore) {}
+		}
+	}
+
+	/** Tells if a thread is the one that draws the frames. */
+	public synchronized boolean isThread(Thread thread) {
+		return t == thread;
+	}
+
+	public synchronized void onFrameAvailable(SurfaceTexture texture) {
+		if (!mFrameAvailable) mFrameTime = System.nanoTime();
+		mFrameAvailable = true;
+		notifyAll();
+	}
+
+	/** Draws the frames until the thread is interrupted. */
+	public void run() {
+		try {
+			setup();
+		} catch (RuntimeException e) {
+			release();
+			synchronized (this) {
+				mError = e;
+				notifyAll();
+			}
+			return;
+		}
+
+		try {
+			while (!Thread.interrupted()) {
+				long time;
+				synchronized (this) {
+					while (!mFrameAvailable) wait();
+					mFrameAvailable = false;
+					time = mFrameTime;
+				}
+				mTexture.updateTexImage();
+				mTexture.getTransformMatrix(mMatrix);
+
+				// The camera may give more frames than the framerate of the stream
+				if (mEncoder.acceptFrame(time)) {
+					makeCurrent(mInputSurface);
+					draw(mWidth, mHeight);
+					EGLExt.eglPresentationTimeANDROID(mDisplay, mInputSurface, time);
+					if (!EGL14.eglSwapBuffers(mDisplay, mInputSurface)) checkEgl("eglSwapBuffers");
+				}
+
+				if (mPreviewSurface != EGL14.EGL_NO_SURFACE) drawPreview();
+			}
+		} catch (InterruptedException ignore) {
+		} catch (RuntimeException e) {
+			mEncoder.fail(e);
+		} finally {
+			release();
+		}
+
+		Log.d(TAG,"Surface input stopped !");
+	}
+
+	// Draws the frame in the preview, which is dropped if it was destroyed
+	private void drawPreview() {
+		int[] size = new int[2];
+		if (EGL14.eglMakeCurrent(mDisplay, mPreviewSurface, mPreviewSurface, mContext)
+				&& EGL14.eglQuerySurface(mDisplay, mPreviewSurface, EGL14.EGL_WIDTH, size, 0)
+				&& EGL14.eglQuerySurface(mDisplay, mPreviewSurface, EGL14.EGL_HEIGHT, size, 1)) {
+			draw(size[0], size[1]);
+			if (EGL14.eglSwapBuffers(mDisplay, mPreviewSurface)) return;
+		}
+		Log.e(TAG,"The preview is not shown anymore: EGL error 0x"+Integer.toHexString(EGL14.eglGetError()));
+		makeCurrent(mInputSurface);
+		EGL14.eglDestroySurface(mDisplay, mPreviewSurface);
+		mPreviewSurface = EGL14.EGL_NO_SURFACE;
+	}
+
+	// Draws the texture on the whole current surface
+	private void draw(int width, int height) {
+		GLES20.glViewport(0, 0, width, height);
+		GLES20.glUseProgram(mProgram);
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureId);
+		GLES20.glUniformMatrix4fv(mMatrixLocation, 1, false, mMatrix, 0);
+		mQuad.position(0);
+		GLES20.glVertexAttribPointer(mPositionLocation, 2, GLES20.GL_FLOAT, false, 16, mQuad);
+		GLES20.glEnableVertexAttribArray(mPositionLocation);
+		mQuad.position(2);
+		GLES20.glVertexAttribPointer(mTexCoordLocation, 2, GLES20.GL_FLOAT, false, 16, mQuad);
+		GLES20.glEnableVertexAttribArray(mTexCoordLocation);
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+		GLES20.glDisableVertexAttribArray(mPositionLocation);
+		GLES20.glDisableVertexAttribArray(mTexCoordLocation);
+	}
+
+	// Creates the EGL context, the surfaces, the program and the texture given to the camera
+	private void setup() {
+		mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+		if (mDisplay == EGL14.EGL_NO_DISPLAY) throw new RuntimeException("No EGL display !");
+		int[] version = new int[2];
+		if (!EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+			mDisplay = EGL14.EGL_NO_DISPLAY;
+			throw new RuntimeException("EGL couldn't be initialized !");
+		}
+
+		int[] attributes = {
+				EGL14.EGL_RED_SIZE, 8,
+				EGL14.EGL_GREEN_SIZE, 8,
+				EGL14.EGL_BLUE_SIZE, 8,
+				EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+				EGL_RECORDABLE_ANDROID, 1,
+				EGL14.EGL_NONE
+		};
+		EGLConfig[] configs = new EGLConfig[1];
+		int[] count = new int[1];
+		if (!EGL14.eglChooseConfig(mDisplay, attributes, 0, configs, 0, 1, count, 0) || count[0] == 0) {
+			throw new RuntimeException("No recordable EGL config !");
+		}
+
+		int[] contextAttributes = { EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE };
+		mContext = EGL14.eglCreateContext(mDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+		checkEgl("eglCreateContext");
+
+		int[] surfaceAttributes = { EGL14.EGL_NONE };
+		mInputSurface = EGL14.eglCreateWindowSurface(mDisplay, configs[0], mInput, surfaceAttributes, 0);
+		checkEgl("eglCreateWindowSurface");
+		mPreviewSurface = EGL14.eglCreateWindowSurface(mDisplay, configs[0], mPreview, surfaceAttributes, 0);
+		if (EGL14.eglGetError() != EGL14.EGL_SUCCESS || mPreviewSurface == null) {
+			Log.e(TAG,"The preview won't be shown !");
+			mPreviewSurface = EGL14.EGL_NO_SURFACE;
+		}
+		makeCurrent(mInputSurface);
+
+		mProgram = createProgram();
+		mPositionLocation = GLES20.glGetAttribLocation(mProgram, "aPosition");
+		mTexCoordLocation = GLES20.glGetAttribLocation(mProgram, "aTexCoord");
+		mMatrixLocation = GLES20.glGetUniformLocation(mProgram, "uTexMatrix");
+		mQuad = ByteBuffer.allocateDirect(QUAD.length*4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		mQuad.put(QUAD);
+
+		int[] textures = new int[1];
+		GLES20.glGenTextures(1, textures, 0);
+		mTextureId = textures[0];
+		GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureId);
+		GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+		GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+		GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+		GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+		int error = GLES20.glGetError();
+		if (error != GLES20.GL_NO_ERROR) throw new RuntimeException("OpenGL ES error 0x"+Integer.toHexString(error));
+
+		// The texture must be created by the thread that updates it
+		SurfaceTexture texture = new SurfaceTexture(mTextureId);
+		texture.setOnFrameAvailableListener(this);
+		synchronized (this) {
+			mTexture = texture;
+			notifyAll();
+		}
+	}
+
+	private int createProgram() {
+		int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+		int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+		int program = GLES20.glCreateProgram();
+		GLES20.glAttachShader(program, vertexShader);
+		GLES20.glAttachShader(program, fragmentShader);
+		GLES20.glLinkProgram(program);
+		int[] status = new int[1];
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+		if (status[0] == 0) {
+			String log = GLES20.glGetProgramInfoLog(program);
+			GLES20.glDeleteProgram(program);
+			throw new RuntimeException("The program couldn't be linked: "+log);
+		}
+		return program;
+	}
+
+	private static int loadShader(int type, String source) {
+		int shader = GLES20.glCreateShader(type);
+		GLES20.glShaderSource(shader, source);
+		GLES20.glCompileShader(shader);
+		int[] status = new int[1];
+		GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+		if (status[0] == 0) {
+			String log = GLES20.glGetShaderInfoLog(shader);
+			GLES20.glDeleteShader(shader);
+			throw new RuntimeException("The shader couldn't be compiled: "+log);
+		}
+		return shader;
+	}
+
+	private void makeCurrent(EGLSurface surface) {
+		if (!EGL14.eglMakeCurrent(mDisplay, surface, surface, mContext)) checkEgl("eglMakeCurrent");
+	}
+
+	private static void checkEgl(String call) {
+		int error = EGL14.eglGetError();
+		if (error != EGL14.EGL_SUCCESS) throw new RuntimeException(call+" failed: EGL error 0x"+Integer.toHexString(error));
+	}
+
+	// Releases the texture and OpenGL ES, the surfaces given to the constructor are not released
+	private void release() {
+		if (mTexture != null) mTexture.release();
+		if (mDisplay != EGL14.EGL_NO_DISPLAY) {
+			EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+			if (mPreviewSurface != EGL14.EGL_NO_SURFACE) EGL14.eglDestroySurface(mDisplay, mPreviewSurface);
+			if (mInputSurface != EGL14.EGL_NO_SURFACE) EGL14.eglDestroySurface(mDisplay, mInputSurface);
+			if (mContext != EGL14.EGL_NO_CONTEXT) EGL14.eglDestroyContext(mDisplay, mContext);
+			EGL14.eglReleaseThread();
+			EGL14.eglTerminate(mDisplay);
+		}
+		mDisplay = EGL14.EGL_NO_DISPLAY;
+		mContext = EGL14.EGL_NO_CONTEXT;
+		mInputSurface = mPreviewSurface = EGL14.EGL_NO_SURFACE;
+	}
+
+}
@@ -166,6 +166,54 @@ public abstract class VideoStream extends MediaStream {
 		}
 	}
 
+	/** 
+	 * Modifies the quality of the stream while it is streaming.
+	 * Only the MediaRecorder is stopped and prepared again: the camera stays open and the 
+	 * packetizer keeps its RTP socket, its destinations, its SSRC and its clock, so the clients 
+	 * keep receiving the same RTP stream after a short interruption.
+	 * If the stream is not streaming, this is the same as {@link #setVideoQuality(VideoQuality)}.
+	 * @param videoQuality Quality of the stream
+	 */
+	public synchronized void reconfigure(VideoQuality videoQuality) throws IllegalStateException, IOException {
+		if (!mStreaming || mode!=MODE_STREAMING) {
+			setVideoQuality(videoQuality);
+			return;
+		}
+		suspend();
+		// The MediaRecorder gives the camera back
+		if (mCamera != null) {
+			try {
+				mCamera.reconnect();
+			} catch (Exception e) {
+				Log.e(TAG,e.getMessage()!=null?e.getMessage():"unknown error");
+			}
+		}
+		setVideoQuality(videoQuality);
+		try {
+			onReconfigure();
+			prepare();
+		} catch (IOException e) {
+			stop();
+			throw e;
+		} catch (RuntimeException e) {
+			stop();
+			throw e;
+		}
+		resume();
+	}
+
+	/** 
+	 * Called by {@link #reconfigure(VideoQuality)} once the MediaRecorder is stopped, 
+	 * before it is prepared with the new quality.
+	 */
+	protected void onReconfigure() throws IllegalStateException, IOException {}
+
+	/** 
+	 * Asks the encoder for a key frame as soon as possible, for instance when a client joins 
+	 * the stream. The MediaRecorder can't be asked, its key frames come at its own interval.
+	 */
+	public void requestKeyFrame() {}
+
 	/** 
 	 * Modifies the videoEncoder of the stream. You can call this method at any time 
 	 * and changes will take effect next time you call {@link #prepare()}.
@@ -207,39 +255,11 @@ public abstract class VideoStream extends MediaStream {
 		if (mSurfaceHolder == null) 
 			throw new IllegalStateException("Invalid surface holder !");
 		
-		if (mCamera == null) {
-			mCamera = Camera.open(mCameraId);
-			mCamera.setErrorCallback(new Camera.ErrorCallback() {
-				@Override
-				public void onError(int error, Camera camera) {
-					// On some phones when trying to use the camera facing front the media server will die
-					// Whether or not this callback may be called really depends on the phone
-					if (error == Camera.CAMERA_ERROR_SERVER_DIED) {
-						// In this case the application must release the camera and instantiate a new one
-						Log.e(TAG,"Media server died !");
-						// We don't know in what thread we are so stop needs to be synchronized
-						stop();
-					} else {
-						Log.e(TAG,"Error unknown with the camera: "+error);
-					}	
-				}
-			});
-		}
+		openCamera();
 
 		// If an exception is thrown after the camera was open, we must absolutly release it !
 		try {
 
-			Parameters parameters = mCamera.getParameters();
-			if (mFlashState) {
-				if (parameters.getFlashMode()==null) {
-					// The phone has no flash or the choosen camera can not toggle the flash
-					throw new IllegalStateException("Can't turn the flash on !");
-				} else {
-					parameters.setFlashMode(mFlashState?Parameters.FLASH_MODE_TORCH:Parameters.FLASH_MODE_OFF);
-					mCamera.setParameters(parameters);
-				}
-			}
-			mCamera.setDisplayOrientation(mQuality.orientation);
 			mCamera.unlock();
 			
 			mMediaRecorder.setCamera(mCamera);
@@ -282,6 +302,51 @@ public abstract class VideoStream extends MediaStream {
 
 	}
 
+	/**
+	 * Opens the camera if it is not open yet, and sets its flash and its orientation.
+	 * If the camera can't be configured, it is released.
+	 */
+	protected void openCamera() throws RuntimeException {
+
+		if (mCamera == null) {
+			mCamera = Camera.open(mCameraId);
+			mCamera.setErrorCallback(new Camera.ErrorCallback() {
+				@Override
+				public void onError(int error, Camera camera) {
+					// On some phones when trying to use the camera facing front the media server will die
+					// Whether or not this callback may be called really depends on the phone
+					if (error == Camera.CAMERA_ERROR_SERVER_DIED) {
+						// In this case the application must release the camera and instantiate a new one
+						Log.e(TAG,"Media server died !");
+						// We don't know in what thread we are so stop needs to be synchronized
+						stop();
+					} else {
+						Log.e(TAG,"Error unknown with the camera: "+error);
+					}	
+				}
+			});
+		}
+
+		try {
+			Parameters parameters = mCamera.getParameters();
+			if (mFlashState) {
+				if (parameters.getFlashMode()==null) {
+					// The phone has no flash or the choosen camera can not toggle the flash
+					throw new IllegalStateException("Can't turn the flash on !");
+				} else {
+					parameters.setFlashMode(mFlashState?Parameters.FLASH_MODE_TORCH:Parameters.FLASH_MODE_OFF);
+					mCamera.setParameters(parameters);
+				}
+			}
+			mCamera.setDisplayOrientation(mQuality.orientation);
+		} catch (RuntimeException e) {
+			mCamera.release();
+			mCamera = null;
+			throw e;
+		}
+
+	}
+
 	public abstract String generateSessionDescription() throws IllegalStateException, IOException;
 
 	/** 
@@ -0,0 +1,155 @@
+package com.tfm.soas.context;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Microbenchmark de las validaciones de direccion. Sobre los pares de vectores
+ * de las trazas de GeoKernelTest mide el coste de las tres validaciones
+ * (direccion, detras y delante) con el calculo anterior (moveVector +
+ * getDegrees, que reserva cuatro vectores por validacion) y con GeoKernel
+ * (cosBetween + isWithin con el coseno umbral precalculado).
+ *
+ * Cada medida se repite ROUNDS veces tras WARMUP rondas de calentamiento y se
+ * muestra la mejor, en ns por validacion.
+ *
+ * Ejecucion (desde SOAS/tests):
+ *
+ * javac -encoding UTF-8 -d bin -sourcepath ../src:src src/com/tfm/soas/context/GeoKernelBenchmark.java
+ *
+ * java -cp bin com.tfm.soas.context.GeoKernelBenchmark traces
+ */
+public class GeoKernelBenchmark {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	private static final int WARMUP = 10; // Rondas de calentamiento.
+	private static final int ROUNDS = 10; // Rondas medidas.
+	private static final int PASSES = 200; // Pasadas por ronda.
+	private static final int[] VAL_PARAMS = { 20, 5, 90 }; // Umbrales (grados).
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private static double[][] servers; // Vectores del servidor.
+	private static double[][] clients; // Vectores del cliente.
+	private static int sink = 0; // Evita que se descarten los calculos.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Punto de entrada del benchmark.
+	 *
+	 * @param args
+	 *            Ficheros de trazas o directorios que los contienen
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			args = new String[] { "traces" };
+		}
+		ArrayList<double[][]> pairs = new ArrayList<double[][]>();
+		for (File file : GeoKernelTest.listTraces(args)) {
+			pairs.addAll(GeoKernelTest.readPairs(file));
+		}
+		servers = new double[pairs.size()][];
+		clients = new double[pairs.size()][];
+		for (int i = 0; i < pairs.size(); i++) {
+			servers[i] = pairs.get(i)[0];
+			clients[i] = pairs.get(i)[1];
+		}
+		long operations = 3L * PASSES * servers.length;
+		System.out.println(servers.length + " pares de vectores, "
+				+ operations + " validaciones por ronda");
+
+		double degrees = Double.MAX_VALUE;
+		double kernel = Double.MAX_VALUE;
+		for (int round = 0; round < (WARMUP + ROUNDS); round++) {
+			long start = System.nanoTime();
+			sink += runDegrees();
+			long middle = System.nanoTime();
+			sink += runKernel();
+			long end = System.nanoTime();
+			if (round >= WARMUP) {
+				degrees = Math.min(degrees, (double) (middle - start)
+						/ operations);
+				kernel = Math.min(kernel, (double) (end - middle) / operations);
+			}
+		}
+
+		System.out.println(String.format("getDegrees: %.2f ns/validacion",
+				degrees));
+		System.out.println(String.format("GeoKernel:  %.2f ns/validacion",
+				kernel));
+		System.out.println(String.format("Mejora:     x%.1f (%d)", degrees
+				/ kernel, sink));
+	}
+
+	/**
+	 * Ejecuta las validaciones con el calculo anterior en grados.
+	 *
+	 * @return Numero de validaciones aceptadas
+	 */
+	private static int runDegrees() {
+		int accepted = 0;
+		for (int pass = 0; pass < PASSES; pass++) {
+			for (int i = 0; i < servers.length; i++) {
+				double[] server = servers[i];
+				double[] client = clients[i];
+				if (GeoKernelTest.getDegrees(server, client) <= VAL_PARAMS[0]) {
+					accepted++;
+				}
+				double[] reversed = { server[2], server[3], server[0],
+						server[1] };
+				double[] serverToClient = { server[2], server[3], client[2],
+						client[3] };
+				if (GeoKernelTest.getDegrees(reversed, serverToClient) <= VAL_PARAMS[1]) {
+					accepted++;
+				}
+				double[] clientToServer = { client[2], client[3], server[2],
+						server[3] };
+				if (GeoKernelTest.getDegrees(client, clientToServer) <= VAL_PARAMS[2]) {
+					accepted++;
+				}
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Ejecuta las validaciones con GeoKernel, con los cosenos umbral
+	 * calculados una vez, igual que al cargar la configuracion.
+	 *
+	 * @return Numero de validaciones aceptadas
+	 */
+	private static int runKernel() {
+		double cosDirection = GeoKernel.cosThreshold(VAL_PARAMS[0]);
+		double cosBehind = GeoKernel.cosThreshold(VAL_PARAMS[1]);
+		double cosAhead = GeoKernel.cosThreshold(VAL_PARAMS[2]);
+		int accepted = 0;
+		for (int pass = 0; pass < PASSES; pass++) {
+			for (int i = 0; i < servers.length; i++) {
+				double[] server = servers[i];
+				double[] client = clients[i];
+				if (GeoKernel.isWithin(GeoKernel.cosBetween(server, client),
+						cosDirection)) {
+					accepted++;
+				}
+				if (GeoKernel.isWithin(GeoKernel.cosBetween(server[0]
+						- server[2], server[1] - server[3], client[2]
+						- server[2], client[3] - server[3]), cosBehind)) {
+					accepted++;
+				}
+				if (GeoKernel.isWithin(GeoKernel.cosBetween(client[2]
+						- client[0], client[3] - client[1], server[2]
+						- client[2], server[3] - client[3]), cosAhead)) {
+					accepted++;
+				}
+			}
+		}
+		return accepted;
+	}
+
+} // Fin clase 'GeoKernelBenchmark'
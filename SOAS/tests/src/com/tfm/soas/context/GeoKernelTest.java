@@ -0,0 +1,324 @@
+package com.tfm.soas.context;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Prueba de equivalencia de GeoKernel. Reproduce trazas de localizacion del
+ * servidor y del cliente, construye los vectores de direccion igual que
+ * getLocation() de SOASServer y SOASClient, y comprueba que cada validacion
+ * acepta o rechaza exactamente lo mismo que el calculo anterior en grados
+ * (getDegrees), para todos los umbrales enteros de 0 a 180 grados:
+ *
+ * 1- Servidor, misma direccion-sentido: angulo(servidor, cliente).
+ *
+ * 2- Servidor, cliente detras: angulo(servidor invertido, servidor-cliente).
+ *
+ * 3- Cliente, servidor delante y adelantamiento: angulo(cliente,
+ * cliente-servidor).
+ *
+ * Ademas se comprueban casos limite (vectores de un punto, perpendiculares y
+ * opuestos). Las trazas son ficheros CSV con lineas 'S|C,instante
+ * (ms),longitud,latitud'; las lineas que empiezan por '#' son comentarios.
+ *
+ * Ejecucion (desde SOAS/tests):
+ *
+ * javac -encoding UTF-8 -d bin -sourcepath ../src:src src/com/tfm/soas/context/GeoKernelTest.java
+ *
+ * java -cp bin com.tfm.soas.context.GeoKernelTest traces [traza.csv ...]
+ *
+ * Termina con codigo 1 si alguna decision difiere.
+ */
+public class GeoKernelTest {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	private static final int MAX_THRESHOLD = 180; // Umbral maximo (grados).
+	private static final int MAX_REPORTED = 20; // Diferencias mostradas.
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private static final double[] cosThresholds = new double[MAX_THRESHOLD + 1]; // Cosenos umbral.
+	private static long decisions = 0; // Decisiones comparadas.
+	private static long accepted = 0; // Decisiones aceptadas.
+	private static long mismatches = 0; // Decisiones diferentes.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Punto de entrada de la prueba.
+	 *
+	 * @param args
+	 *            Ficheros de trazas o directorios que los contienen
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			args = new String[] { "traces" };
+		}
+		for (int t = 0; t <= MAX_THRESHOLD; t++) {
+			cosThresholds[t] = GeoKernel.cosThreshold(t);
+		}
+
+		checkEdgeCases();
+		int traces = 0;
+		for (File file : listTraces(args)) {
+			ArrayList<double[][]> pairs = readPairs(file);
+			for (int i = 0; i < pairs.size(); i++) {
+				compare(pairs.get(i)[0], pairs.get(i)[1], file.getName()
+						+ ": par " + i);
+			}
+			System.out.println(file.getName() + ": " + pairs.size()
+					+ " pares de vectores");
+			traces++;
+		}
+		if (traces == 0) {
+			System.out.println("No se han encontrado trazas");
+			System.exit(1);
+		}
+
+		System.out.println(decisions + " decisiones comparadas (" + accepted
+				+ " aceptadas), " + mismatches + " diferencias");
+		System.exit((mismatches == 0) ? 0 : 1);
+	}
+
+	/**
+	 * Lee una traza y devuelve los pares de vectores (servidor, cliente) que
+	 * se tienen tras cada posicion, en cuanto ambos dispositivos tienen
+	 * vector.
+	 *
+	 * @param file
+	 *            Fichero de la traza
+	 * @return Pares de vectores. Servidor: Elemento 0 / Cliente: Elemento 1
+	 */
+	static ArrayList<double[][]> readPairs(File file) throws IOException {
+		ArrayList<double[][]> pairs = new ArrayList<double[][]>();
+		double[] server = null;
+		double[] client = null;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if ((line.length() == 0) || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split(",");
+				if (fields.length != 4) {
+					throw new IOException(file.getName() + ":" + number
+							+ ": Linea no valida");
+				}
+				double lon = Double.parseDouble(fields[2]);
+				double lat = Double.parseDouble(fields[3]);
+				if (fields[0].equals("S")) {
+					server = update(server, lon, lat);
+				} else if (fields[0].equals("C")) {
+					client = update(client, lon, lat);
+				} else {
+					throw new IOException(file.getName() + ":" + number
+							+ ": Dispositivo no valido");
+				}
+				if ((server != null) && (client != null)) {
+					pairs.add(new double[][] { server, client });
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return pairs;
+	}
+
+	/**
+	 * Actualiza un vector de direccion con una nueva posicion, igual que
+	 * getLocation(): el primer punto es origen y extremo, un punto repetido
+	 * solo renueva el extremo y cualquier otro desplaza el vector.
+	 *
+	 * @param vector
+	 *            Vector actual o null si no hay posiciones
+	 * @param lon
+	 *            Longitud
+	 * @param lat
+	 *            Latitud
+	 * @return Vector actualizado
+	 */
+	private static double[] update(double[] vector, double lon, double lat) {
+		if (vector == null) { // PRIMER-PUNTO.
+			return new double[] { lon, lat, lon, lat };
+		} else if ((lat == vector[3]) && (lon == vector[2])) { // MISMO-ULTIMO-PUNTO.
+			return vector;
+		}
+		// ACTUALIZAR-VECTOR.
+		return new double[] { vector[2], vector[3], lon, lat };
+	}
+
+	/**
+	 * Compara las validaciones de un par de vectores para todos los umbrales.
+	 *
+	 * @param server
+	 *            Vector del servidor
+	 * @param client
+	 *            Vector del cliente
+	 * @param where
+	 *            Origen del par, para informar de las diferencias
+	 */
+	private static void compare(double[] server, double[] client, String where) {
+		// 1- Servidor: misma direccion-sentido.
+		double degrees = getDegrees(server, client);
+		double cos = GeoKernel.cosBetween(server, client);
+		check("direccion", degrees, cos, where);
+
+		// 2- Servidor: cliente detras.
+		double[] reversed = { server[2], server[3], server[0], server[1] };
+		double[] serverToClient = { reversed[0], reversed[1], client[2],
+				client[3] };
+		degrees = getDegrees(reversed, serverToClient);
+		cos = GeoKernel.cosBetween(server[0] - server[2],
+				server[1] - server[3], client[2] - server[2], client[3]
+						- server[3]);
+		check("detras", degrees, cos, where);
+
+		// 3- Cliente: servidor delante / adelantamiento.
+		double[] clientToServer = { client[2], client[3], server[2], server[3] };
+		degrees = getDegrees(client, clientToServer);
+		cos = GeoKernel.cosBetween(client[2] - client[0],
+				client[3] - client[1], server[2] - client[2], server[3]
+						- client[3]);
+		check("delante", degrees, cos, where);
+	}
+
+	/**
+	 * Compara la decision en grados con la decision por coseno para todos los
+	 * umbrales enteros.
+	 *
+	 * @param name
+	 *            Nombre de la validacion
+	 * @param degrees
+	 *            Angulo calculado con getDegrees
+	 * @param cos
+	 *            Coseno calculado con GeoKernel
+	 * @param where
+	 *            Origen del par, para informar de las diferencias
+	 */
+	private static void check(String name, double degrees, double cos,
+			String where) {
+		for (int t = 0; t <= MAX_THRESHOLD; t++) {
+			boolean expected = degrees <= t;
+			boolean actual = GeoKernel.isWithin(cos, cosThresholds[t]);
+			decisions++;
+			if (expected) {
+				accepted++;
+			}
+			if (expected != actual) {
+				mismatches++;
+				if (mismatches <= MAX_REPORTED) {
+					System.out.println(where + ": " + name + " umbral " + t
+							+ " - " + degrees + " grados, coseno " + cos
+							+ ": " + expected + " != " + actual);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Comprueba los casos limite: vectores de un punto, perpendiculares,
+	 * opuestos y paralelos.
+	 */
+	private static void checkEdgeCases() {
+		double[][] vectors = { { 0, 0, 0, 0 }, { 0, 0, 1, 0 },
+				{ 0, 0, 0, 1 }, { 0, 0, -1, 0 }, { 0, 0, 2, 0 },
+				{ 1, 1, 2, 2 }, { -3.6885, 40.453, -3.6885, 40.4531 },
+				{ -3.6885, 40.453, -3.6884, 40.453 },
+				{ -3.6885, 40.4531, -3.6885, 40.453 } };
+		for (double[] u : vectors) {
+			for (double[] v : vectors) {
+				check("limite", getDegrees(u, v), GeoKernel.cosBetween(u, v),
+						Arrays.toString(u) + " " + Arrays.toString(v));
+			}
+		}
+	}
+
+	/**
+	 * Devuelve los ficheros de trazas indicados, recorriendo los directorios.
+	 *
+	 * @param paths
+	 *            Ficheros o directorios
+	 * @return Ficheros de trazas, ordenados por nombre en cada directorio
+	 */
+	static ArrayList<File> listTraces(String[] paths) {
+		ArrayList<File> files = new ArrayList<File>();
+		for (String path : paths) {
+			File file = new File(path);
+			if (file.isDirectory()) {
+				File[] children = file.listFiles();
+				Arrays.sort(children);
+				for (File child : children) {
+					if (child.getName().endsWith(".csv")) {
+						files.add(child);
+					}
+				}
+			} else {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Calculo de referencia: AppContext.moveVector tal como estaba antes de
+	 * GeoKernel.
+	 *
+	 * @param vector
+	 *            Vector a trasladar
+	 * @param position
+	 *            Nuevo origen del vector
+	 * @return Vector trasladado
+	 */
+	static double[] moveVector(double[] vector, double[] position) {
+		double xMovement = position[0] - vector[0];
+		double yMovement = position[1] - vector[1];
+		double[] vd = { 0, 0, 0, 0 };
+		vd[0] = vector[0] + xMovement;
+		vd[1] = vector[1] + yMovement;
+		vd[2] = vector[2] + xMovement;
+		vd[3] = vector[3] + yMovement;
+		return vd;
+	}
+
+	/**
+	 * Calculo de referencia: AppContext.getDegrees tal como estaba antes de
+	 * GeoKernel.
+	 *
+	 * @param u
+	 *            Vector u
+	 * @param v
+	 *            Vector v
+	 * @return Angulo entre los vectores (grados) o NaN
+	 */
+	static double getDegrees(double[] u, double[] v) {
+		double[] origin = { 0, 0 };
+		u = moveVector(u, origin);
+		v = moveVector(v, origin);
+		double numerator = (u[2] * v[2]) + (u[3] * v[3]);
+		double denominator = Math.hypot(u[2], u[3]) * Math.hypot(v[2], v[3]);
+		double quotient = (numerator / denominator);
+		if (quotient > 1) {
+			quotient = 1;
+		} else if (quotient < -1) {
+			quotient = -1;
+		}
+		double degrees = Math.toDegrees(Math.acos(quotient));
+		if (degrees < 0) {
+			degrees *= -1;
+		}
+		return degrees;
+	}
+
+} // Fin clase 'GeoKernelTest'
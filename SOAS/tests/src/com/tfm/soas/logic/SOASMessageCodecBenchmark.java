@@ -0,0 +1,295 @@
+package com.tfm.soas.logic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import com.tfm.soas.logic.SOASMessage.MessageType;
+
+/**
+ * Microbenchmark del codificador de mensajes SOAS. Compara la codificacion y
+ * decodificacion con SOASMessageCodec (buffer reutilizado y mensajes del
+ * pool, como en los hilos de envio y recepcion) con la serializacion Java que
+ * empleaban antes AppContext.serializeMessage / deserializeMessage, con un
+ * ObjectOutputStream y un ObjectInputStream por mensaje.
+ *
+ * El camino anterior se mide con LegacyMessage, copia de los atributos que
+ * tenia el mensaje antes del codec, para que la medida no dependa de los
+ * cambios posteriores de SOASMessage.
+ *
+ * Para cada camino se muestran la longitud del datagrama, el tiempo por mensaje
+ * (mejor de ROUNDS rondas tras WARMUP rondas de calentamiento) y, si la JVM
+ * lo permite, los bytes reservados por mensaje.
+ *
+ * Ejecucion (desde SOAS/tests):
+ *
+ * javac -encoding UTF-8 -d bin -sourcepath ../src:src src/com/tfm/soas/logic/SOASMessageCodecBenchmark.java
+ *
+ * java -cp bin com.tfm.soas.logic.SOASMessageCodecBenchmark
+ */
+public class SOASMessageCodecBenchmark {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	private static final int WARMUP = 10; // Rondas de calentamiento.
+	private static final int ROUNDS = 10; // Rondas medidas.
+	private static final int MESSAGES = 20000; // Mensajes por ronda.
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private static long sink = 0; // Evita que se descarten los calculos.
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Punto de entrada del benchmark.
+	 *
+	 * @param args
+	 *            No se emplean
+	 */
+	public static void main(String[] args) throws Exception {
+		double[] location = { -3.6885259, 40.4535118, -3.6885850, 40.4536300 };
+		int[] resolution = { 640, 480 };
+
+		SOASMessage message = new SOASMessage();
+		message.setType(MessageType.DATA);
+		message.setIp("192.168.43.1");
+		message.setLocation(location);
+		message.setSpeed(22.5f);
+		message.setMaxResolution(resolution);
+		message.setRTSPPort(8086);
+
+		LegacyMessage legacy = new LegacyMessage();
+		legacy.type = MessageType.DATA;
+		legacy.ip = "192.168.43.1";
+		legacy.location = location.clone();
+		legacy.speed = 22.5f;
+		legacy.maxResolution = resolution.clone();
+		legacy.rtspPort = 8086;
+
+		System.out.println("Datagrama: serializacion " + serialize(legacy).length
+				+ " bytes, codec " + SOASMessageCodec.MESSAGE_SIZE + " bytes");
+
+		byte[] data = new byte[SOASMessageCodec.MESSAGE_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		byte[] serialized = serialize(legacy);
+
+		double[] encodeLegacy = measure(new Encode(legacy));
+		double[] encodeCodec = measure(new Encode(message, buffer));
+		double[] decodeLegacy = measure(new Decode(serialized));
+		buffer.clear();
+		SOASMessageCodec.encode(message, buffer);
+		double[] decodeCodec = measure(new Decode(buffer));
+
+		print("Codificar, serializacion", encodeLegacy);
+		print("Codificar, codec        ", encodeCodec);
+		print("Decodificar, serializacion", decodeLegacy);
+		print("Decodificar, codec        ", decodeCodec);
+		System.out.println(String.format(
+				"Mejora: codificar x%.1f, decodificar x%.1f (%d)",
+				encodeLegacy[0] / encodeCodec[0], decodeLegacy[0]
+						/ decodeCodec[0], sink));
+	}
+
+	/**
+	 * Mide una operacion.
+	 *
+	 * @param operation
+	 *            Operacion a medir
+	 * @return Tiempo por mensaje (ns) y bytes reservados por mensaje (-1 si la
+	 *         JVM no lo permite)
+	 */
+	private static double[] measure(Operation operation) throws Exception {
+		double best = Double.MAX_VALUE;
+		double allocated = -1;
+		for (int round = 0; round < (WARMUP + ROUNDS); round++) {
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < MESSAGES; i++) {
+				sink += operation.run();
+			}
+			long end = System.nanoTime();
+			if (round >= WARMUP) {
+				best = Math.min(best, (double) (end - start) / MESSAGES);
+				if (bytes >= 0) {
+					allocated = (double) (allocatedBytes() - bytes) / MESSAGES;
+				}
+			}
+		}
+		return new double[] { best, allocated };
+	}
+
+	/**
+	 * Muestra el resultado de una medida.
+	 *
+	 * @param name
+	 *            Nombre de la medida
+	 * @param result
+	 *            Resultado de measure()
+	 */
+	private static void print(String name, double[] result) {
+		String allocated = (result[1] < 0) ? "" : String.format(
+				", %.0f bytes/mensaje", result[1]);
+		System.out.println(String.format("%s: %8.1f ns/mensaje%s", name,
+				result[0], allocated));
+	}
+
+	/**
+	 * Devuelve los bytes reservados por el hilo actual.
+	 *
+	 * @return Bytes reservados o -1 si la JVM no lo permite
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Camino anterior: AppContext.serializeMessage.
+	 *
+	 * @param message
+	 *            Mensaje a serializar
+	 * @return Mensaje serializado
+	 */
+	private static byte[] serialize(LegacyMessage message) throws IOException {
+		ByteArrayOutputStream bs = new ByteArrayOutputStream();
+		ObjectOutputStream os = new ObjectOutputStream(bs);
+		os.writeObject(message);
+		os.close();
+		return bs.toByteArray();
+	}
+
+	/**
+	 * Camino anterior: AppContext.deserializeMessage.
+	 *
+	 * @param bytes
+	 *            Mensaje serializado
+	 * @return Mensaje reconstruido
+	 */
+	private static LegacyMessage deserialize(byte[] bytes) throws Exception {
+		ByteArrayInputStream bs = new ByteArrayInputStream(bytes);
+		ObjectInputStream is = new ObjectInputStream(bs);
+		LegacyMessage message = (LegacyMessage) is.readObject();
+		is.close();
+		return message;
+	}
+
+	/*--------------------------------------------------------*/
+	/* /////////////////// CLASES INTERNAS ////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Operacion medida. Devuelve un valor dependiente del resultado para que
+	 * no se descarte.
+	 */
+	private static interface Operation {
+		long run() throws Exception;
+	}
+
+	/**
+	 * Codificacion de un mensaje, como en los hilos de envio.
+	 */
+	private static class Encode implements Operation {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private final LegacyMessage legacy; // Mensaje serializable.
+		private final SOASMessage message; // Mensaje del codec.
+		private final ByteBuffer buffer; // Buffer de envio reutilizado.
+
+		public Encode(LegacyMessage legacy) {
+			this.legacy = legacy;
+			this.message = null;
+			this.buffer = null;
+		}
+
+		public Encode(SOASMessage message, ByteBuffer buffer) {
+			this.legacy = null;
+			this.message = message;
+			this.buffer = buffer;
+		}
+
+		@Override
+		public long run() throws Exception {
+			if (legacy != null) {
+				return serialize(legacy).length;
+			}
+			buffer.clear();
+			SOASMessageCodec.encode(message, buffer);
+			return buffer.position();
+		}
+
+	} // Fin clase 'Encode'
+
+	/**
+	 * Decodificacion de un datagrama, como en los hilos de recepcion.
+	 */
+	private static class Decode implements Operation {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private final byte[] serialized; // Mensaje serializado.
+		private final ByteBuffer buffer; // Buffer de recepcion.
+
+		public Decode(byte[] serialized) {
+			this.serialized = serialized;
+			this.buffer = null;
+		}
+
+		public Decode(ByteBuffer buffer) {
+			this.serialized = null;
+			this.buffer = buffer;
+		}
+
+		@Override
+		public long run() throws Exception {
+			if (serialized != null) {
+				return deserialize(serialized).rtspPort;
+			}
+			SOASMessage message = SOASMessage.obtain();
+			buffer.position(0);
+			SOASMessageCodec.decode(buffer, message);
+			long port = message.getRTSPPort();
+			message.recycle();
+			return port;
+		}
+
+	} // Fin clase 'Decode'
+
+	/**
+	 * Mensaje SOAS tal como se serializaba antes del codec.
+	 */
+	private static class LegacyMessage implements Serializable {
+
+		/*------------*/
+		/* CONSTANTES */
+		/*------------*/
+		private static final long serialVersionUID = 1L;
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private MessageType type = null; // Tipo mensaje.
+		private String ip = ""; // Direccion IP del emisor.
+		private double location[] = new double[4]; // Ubicacion-Direccion-Sentido.
+		private float speed = 0; // Velocidad.
+		private int maxResolution[] = new int[2]; // Resolucion max soportada.
+		private int rtspPort = 0; // Puerto de escucha servidor RTSP.
+
+	} // Fin clase 'LegacyMessage'
+
+} // Fin clase 'SOASMessageCodecBenchmark'
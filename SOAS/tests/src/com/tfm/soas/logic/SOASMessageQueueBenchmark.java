@@ -0,0 +1,415 @@
+package com.tfm.soas.logic;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.locks.LockSupport;
+
+import com.tfm.soas.logic.SOASMessage.MessageType;
+import com.tfm.soas.logic.SOASMessageQueue.Lane;
+
+/**
+ * Microbenchmark productor / consumidor de la cola de mensajes SOAS. Compara
+ * SOASMessageQueue (carriles sin bloqueos) con la cola anterior (LinkedList
+ * con synchronized y wait / notify, MAX_SIZE 30), copiada en LegacyQueue. Un
+ * hilo productor hace de hilo receptor y un hilo consumidor de hilo del
+ * diagrama de estados; ambos usan el pool de mensajes como la aplicacion.
+ *
+ * 1- Rendimiento: El productor inserta MESSAGES mensajes y el consumidor los
+ * extrae sin trabajo adicional. Se muestran los mensajes entregados por
+ * segundo, el coste de cada insercion para el productor y los mensajes
+ * descartados. La cola anterior bloquea al productor cuando esta llena; con
+ * SOASMessageQueue se mide el paso de mensajes sin perdidas (el productor
+ * espera si el carril esta lleno) y la inundacion (el productor inserta sin
+ * pausa y se descartan los mensajes mas antiguos).
+ *
+ * 2- Latencia: El productor envia rafagas de BURST mensajes (anuncios HELLO,
+ * algun DATA y un REQUEST al final) separadas por BURST_GAP us, y el
+ * consumidor dedica WORK us a cada mensaje. Se muestran los percentiles de
+ * la espera en la cola de los REQUEST y de todos los mensajes. El instante de
+ * insercion de cada mensaje se guarda en sent, con el indice del mensaje en
+ * el puerto RTSP, que la cola no consulta.
+ *
+ * Ejecucion (desde SOAS/tests). SOASMessageQueue solo usa android.util.Log
+ * si se interrumpe al consumidor, lo que no ocurre en el benchmark:
+ *
+ * javac -encoding UTF-8 -cp android.jar -d bin -sourcepath ../src:src src/com/tfm/soas/logic/SOASMessageQueueBenchmark.java
+ *
+ * java -cp bin com.tfm.soas.logic.SOASMessageQueueBenchmark
+ */
+public class SOASMessageQueueBenchmark {
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// CONSTANTES ///////////////////// */
+	/*--------------------------------------------------------*/
+	private static final int WARMUP = 3; // Rondas de calentamiento.
+	private static final int ROUNDS = 5; // Rondas medidas.
+	private static final int MESSAGES = 1000000; // Mensajes (rendimiento).
+	private static final int BURSTS = 2000; // Rafagas (latencia).
+	private static final int BURST = 40; // Mensajes por rafaga.
+	private static final long BURST_GAP = 1000; // Pausa entre rafagas (us).
+	private static final long WORK = 5; // Trabajo por mensaje (us).
+	private static final long TIMEOUT = 100; // Espera del consumidor (ms).
+
+	/*--------------------------------------------------------*/
+	/* ///////////////////// ATRIBUTOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	private static final long[] sent = new long[BURSTS * BURST]; // Insercion (ns).
+
+	/*--------------------------------------------------------*/
+	/* /////////////////////// METODOS ////////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Punto de entrada del benchmark.
+	 *
+	 * @param args
+	 *            No se emplean
+	 */
+	public static void main(String[] args) throws Exception {
+		// 1- Rendimiento.
+		double[][] best = new double[3][];
+		for (int round = 0; round < (WARMUP + ROUNDS); round++) {
+			double[][] results = { throughput(new LegacyQueue(), false),
+					throughput(new LaneQueue(), true),
+					throughput(new LaneQueue(), false) };
+			for (int i = 0; (round >= WARMUP) && (i < results.length); i++) {
+				if ((best[i] == null) || (results[i][0] > best[i][0])) {
+					best[i] = results[i];
+				}
+			}
+		}
+		System.out.println("Rendimiento (" + MESSAGES + " mensajes, mejor de "
+				+ ROUNDS + " rondas):");
+		printThroughput("Cola anterior                ", best[0]);
+		printThroughput("SOASMessageQueue, sin perdidas", best[1]);
+		printThroughput("SOASMessageQueue, inundacion  ", best[2]);
+
+		// 2- Latencia.
+		System.out.println("Latencia (" + BURSTS + " rafagas de " + BURST
+				+ " mensajes, " + WORK + " us por mensaje):");
+		latency(new LegacyQueue(), false);
+		latency(new LaneQueue(), false);
+		latency(new LegacyQueue(), true);
+		latency(new LaneQueue(), true);
+	}
+
+	/**
+	 * Mide el rendimiento de una cola.
+	 *
+	 * @param queue
+	 *            Cola a medir
+	 * @param wait
+	 *            True-El productor espera si el carril esta lleno /
+	 *            False-Inserta sin pausa
+	 * @return Mensajes entregados por segundo, ns por insercion y mensajes
+	 *         descartados
+	 */
+	private static double[] throughput(final Queue queue, final boolean wait)
+			throws Exception {
+		final MessageType[] types = { MessageType.HELLO, MessageType.DATA,
+				MessageType.HELLO, MessageType.DATA_ACK };
+		final long[] producerTime = new long[1];
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				for (int i = 0; i < MESSAGES; i++) {
+					SOASMessage message = SOASMessage.obtain();
+					message.setType(types[i & 3]);
+					while (wait && queue.isFull(types[i & 3])) {
+						Thread.yield();
+					}
+					queue.insert(message);
+				}
+				producerTime[0] = System.nanoTime() - start;
+			}
+		});
+		Consumer consumer = new Consumer(queue, 0, false);
+		Thread thread = new Thread(consumer);
+		long start = System.nanoTime();
+		thread.start();
+		producer.start();
+		producer.join();
+		consumer.done = true;
+		thread.join();
+		long elapsed = consumer.end - start;
+		return new double[] { consumer.count * 1e9 / elapsed,
+				(double) producerTime[0] / MESSAGES, queue.dropped() };
+	}
+
+	/**
+	 * Mide la latencia de una cola con rafagas de mensajes y muestra el
+	 * resultado.
+	 *
+	 * @param queue
+	 *            Cola a medir
+	 * @param show
+	 *            True-Se muestra el resultado / False-Ronda de calentamiento
+	 */
+	private static void latency(final Queue queue, boolean show)
+			throws Exception {
+		final Consumer consumer = new Consumer(queue, WORK * 1000, true);
+		Thread thread = new Thread(consumer);
+		thread.start();
+		for (int burst = 0; burst < BURSTS; burst++) {
+			for (int i = 0; i < BURST; i++) {
+				SOASMessage message = SOASMessage.obtain();
+				if (i == (BURST - 1)) {
+					message.setType(MessageType.REQUEST);
+				} else if ((i % 10) == 9) {
+					message.setType(MessageType.DATA);
+				} else {
+					message.setType(MessageType.HELLO);
+				}
+				int index = (burst * BURST) + i;
+				message.setRTSPPort(index);
+				sent[index] = System.nanoTime();
+				queue.insert(message);
+			}
+			LockSupport.parkNanos(BURST_GAP * 1000);
+		}
+		consumer.done = true;
+		thread.join();
+		if (show) {
+			System.out.println(queue.name() + ":");
+			printLatency("  REQUEST", consumer.requests, consumer.requestCount);
+			printLatency("  Todos  ", consumer.latencies, consumer.count);
+			System.out.println("  Descartados: " + queue.dropped());
+		}
+	}
+
+	/**
+	 * Muestra el resultado de una medida de rendimiento.
+	 *
+	 * @param name
+	 *            Nombre de la cola
+	 * @param result
+	 *            Resultado de throughput()
+	 */
+	private static void printThroughput(String name, double[] result) {
+		System.out.println(String.format(
+				"  %s: %10.0f mensajes/s, %6.1f ns/insercion, %d descartados",
+				name, result[0], result[1], (long) result[2]));
+	}
+
+	/**
+	 * Muestra los percentiles de latencia.
+	 *
+	 * @param name
+	 *            Nombre de la medida
+	 * @param latencies
+	 *            Latencias (ns)
+	 * @param count
+	 *            Numero de latencias validas
+	 */
+	private static void printLatency(String name, long[] latencies, int count) {
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		System.out.println(String.format(
+				"%s: p50 %7.1f us, p99 %7.1f us, max %8.1f us (%d)", name,
+				percentile(sorted, 0.50), percentile(sorted, 0.99),
+				percentile(sorted, 1), count));
+	}
+
+	/**
+	 * Devuelve un percentil de latencias ordenadas.
+	 *
+	 * @param sorted
+	 *            Latencias ordenadas (ns)
+	 * @param fraction
+	 *            Percentil (0-1)
+	 * @return Latencia (us)
+	 */
+	private static double percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(index, 0)] / 1000.0;
+	}
+
+	/*--------------------------------------------------------*/
+	/* /////////////////// CLASES INTERNAS ////////////////// */
+	/*--------------------------------------------------------*/
+	/**
+	 * Cola medida.
+	 */
+	private static interface Queue {
+		String name();
+
+		void insert(SOASMessage message);
+
+		boolean isFull(MessageType type);
+
+		SOASMessage take(long timeout);
+
+		long dropped();
+	}
+
+	/**
+	 * Adaptador de SOASMessageQueue.
+	 */
+	private static class LaneQueue implements Queue {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private final SOASMessageQueue queue = new SOASMessageQueue(); // Cola medida.
+
+		@Override
+		public String name() {
+			return "SOASMessageQueue";
+		}
+
+		@Override
+		public void insert(SOASMessage message) {
+			queue.insertMessage(message);
+		}
+
+		@Override
+		public boolean isFull(MessageType type) {
+			Lane lane = Lane.of(type);
+			return queue.size(lane) >= queue.capacity(lane);
+		}
+
+		@Override
+		public SOASMessage take(long timeout) {
+			return queue.takeMessage(timeout);
+		}
+
+		@Override
+		public long dropped() {
+			return queue.getDroppedCount();
+		}
+
+	} // Fin clase 'LaneQueue'
+
+	/**
+	 * Hilo consumidor: extrae mensajes hasta que el productor termina y la
+	 * cola queda vacia.
+	 */
+	private static class Consumer implements Runnable {
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private final Queue queue; // Cola de la que se consume.
+		private final long work; // Trabajo por mensaje (ns).
+		private final long[] latencies; // Espera de cada mensaje (ns).
+		private final long[] requests; // Espera de cada REQUEST (ns).
+		private volatile boolean done = false; // El productor ha terminado.
+		private int count = 0; // Mensajes consumidos.
+		private int requestCount = 0; // REQUEST consumidos.
+		private long end = 0; // Instante del ultimo mensaje (ns).
+
+		public Consumer(Queue queue, long work, boolean measure) {
+			this.queue = queue;
+			this.work = work;
+			this.latencies = measure ? new long[BURSTS * BURST] : null;
+			this.requests = measure ? new long[BURSTS] : null;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				SOASMessage message = queue.take(done ? 1 : TIMEOUT);
+				if (message == null) {
+					if (done) {
+						break;
+					}
+					continue;
+				}
+				long now = System.nanoTime();
+				if (latencies != null) {
+					long latency = now - sent[message.getRTSPPort()];
+					latencies[count] = latency;
+					if (message.getType() == MessageType.REQUEST) {
+						requests[requestCount++] = latency;
+					}
+				}
+				count++;
+				end = now;
+				message.recycle();
+				if (work > 0) {
+					long until = now + work;
+					while (System.nanoTime() < until) {
+						// Trabajo del diagrama de estados.
+					}
+				}
+			}
+		}
+
+	} // Fin clase 'Consumer'
+
+	/**
+	 * Cola de mensajes original, sin los mensajes de log.
+	 */
+	private static class LegacyQueue implements Queue {
+
+		/*------------*/
+		/* CONSTANTES */
+		/*------------*/
+		private static final int MAX_SIZE = 30; // Tamanyo maximo.
+
+		/*-----------*/
+		/* ATRIBUTOS */
+		/*-----------*/
+		private LinkedList<SOASMessage> messageQueue = new LinkedList<SOASMessage>(); // Buffer de mensajes.
+		private boolean isEmpty = true; // Esta vacia.
+		private boolean isFull = false; // Esta llena.
+
+		@Override
+		public String name() {
+			return "Cola anterior";
+		}
+
+		@Override
+		public long dropped() {
+			return 0;
+		}
+
+		@Override
+		public boolean isFull(MessageType type) {
+			return false; // insert() bloquea al productor.
+		}
+
+		@Override
+		public synchronized SOASMessage take(long timeout) {
+			while (isEmpty) {
+				try {
+					wait(timeout);
+					if ((isEmpty) && (timeout > 0)) { // Vencio el timeout.
+						return null;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return new SOASMessage();
+				}
+			}
+			SOASMessage message = messageQueue.poll();
+			isEmpty = messageQueue.isEmpty();
+			isFull = false;
+			notify();
+			return (message);
+		}
+
+		@Override
+		public synchronized void insert(SOASMessage message) {
+			while (isFull) {
+				try {
+					wait(0);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			messageQueue.addLast(message);
+			isEmpty = false;
+			if (messageQueue.size() == MAX_SIZE) {
+				isFull = true;
+			}
+			notify();
+		}
+
+	} // Fin clase 'LegacyQueue'
+
+} // Fin clase 'SOASMessageQueueBenchmark'
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2011-2013 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of Spydroid (http://code.google.com/p/spydroid-ipcamera/)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Loopback benchmark of the RtpSocket, with the packets of a frame sent in three ways:
+ * DIRECT (send(int, ByteBuffer) for each packet), TRAIN (queue(int, ByteBuffer) then flush(0))
+ * and PACED (queue then flush over half a frame interval, as H264Packetizer does with pacing).
+ * A frame has FRAME_PACKETS packets of PAYLOAD bytes, like an IDR picture, sent from a direct buffer.
+ *
+ * 1- Throughput: the frames are sent back to back, without pacing, to a receiver with a big buffer.
+ * Shows the packets sent per second and the CPU time of the sending thread per frame.
+ *
+ * 2- Frame rate: FPS frames per second are sent to a receiver with a small buffer (RCVBUF),
+ * like a phone on the other side of the access point. Shows the CPU time per frame, the time
+ * taken to send a frame and the packets lost by the receiver.
+ *
+ * Run from SOAS/tests (the RtpSocket only uses android.util.Log when a send fails):
+ *
+ * javac -cp android.jar -d bin -sourcepath ../src:src src/net/majorkernelpanic/streaming/rtp/RtpSocketBenchmark.java
+ *
+ * java -cp bin:android.jar net.majorkernelpanic.streaming.rtp.RtpSocketBenchmark
+ */
+public class RtpSocketBenchmark {
+
+	private static final int WARMUP = 1, ROUNDS = 3;
+	private static final int FRAME_PACKETS = 40;
+	private static final int PAYLOAD = 1386;
+	private static final int FRAMES = 5000;
+	private static final int FPS = 30, RATE_FRAMES = 90;
+	private static final int RCVBUF = 32768;
+
+	private static final int DIRECT = 0, TRAIN = 1, PACED = 2;
+	private static final String[] NAMES = {"DIRECT", "TRAIN", "PACED"};
+
+	private static final ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+	private static final ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_PACKETS*PAYLOAD);
+
+	public static void main(String[] args) throws Exception {
+
+		// 1- Throughput
+		double[][] best = new double[2][];
+		for (int round=0;round<WARMUP+ROUNDS;round++) {
+			for (int mode=DIRECT;mode<=TRAIN;mode++) {
+				double[] result = run(mode, FRAMES, 0, 1<<22);
+				if (round>=WARMUP && (best[mode]==null || result[0]>best[mode][0])) best[mode] = result;
+			}
+		}
+		System.out.println("Throughput, "+FRAMES+" frames of "+FRAME_PACKETS+" packets back to back");
+		for (int mode=DIRECT;mode<=TRAIN;mode++) {
+			System.out.printf("  %-6s %9.0f packets/s  %7.1f us CPU/frame  %6.0f lost%n",
+					NAMES[mode], best[mode][0], best[mode][1], best[mode][3]);
+		}
+
+		// 2- Frame rate
+		long interval = 1000000000L/FPS;
+		double[][] sum = new double[3][4];
+		for (int round=0;round<WARMUP+ROUNDS;round++) {
+			for (int mode=DIRECT;mode<=PACED;mode++) {
+				double[] result = run(mode, RATE_FRAMES, interval, RCVBUF);
+				for (int i=0;round>=WARMUP && i<4;i++) sum[mode][i] += result[i]/ROUNDS;
+			}
+		}
+		System.out.println(FPS+" frames/s, "+RATE_FRAMES+" frames of "+FRAME_PACKETS+" packets, receive buffer of "+RCVBUF+" bytes (average)");
+		for (int mode=DIRECT;mode<=PACED;mode++) {
+			System.out.printf("  %-6s %7.1f us CPU/frame  %8.1f us/frame  %6.1f lost of %d%n",
+					NAMES[mode], sum[mode][1], sum[mode][2], sum[mode][3], RATE_FRAMES*FRAME_PACKETS);
+		}
+
+	}
+
+	/**
+	 * Sends frames to a receiver on the loopback interface.
+	 * @param mode DIRECT, TRAIN or PACED
+	 * @param frames Number of frames
+	 * @param interval Interval between two frames in ns, 0 to send them back to back
+	 * @param rcvbuf Receive buffer of the receiver
+	 * @return Packets sent per second, CPU time per frame (us), time per frame (us), packets lost
+	 */
+	private static double[] run(int mode, int frames, long interval, int rcvbuf) throws Exception {
+		Receiver receiver = new Receiver(rcvbuf);
+		RtpSocket socket = new RtpSocket();
+		socket.setDestination(InetAddress.getByName("127.0.0.1"), receiver.getPort());
+		receiver.start();
+
+		long cpuTime = 0, sendTime = 0, start = System.nanoTime(), next = start;
+		for (int f=0;f<frames;f++) {
+			if (interval>0) {
+				long wait = next-System.nanoTime();
+				if (wait>0) Thread.sleep(wait/1000000, (int) (wait%1000000));
+				next += interval;
+			}
+			long c = cpu.getCurrentThreadCpuTime(), t = System.nanoTime();
+			socket.updateTimestamp(f*3000L);
+			for (int p=0;p<FRAME_PACKETS;p++) {
+				frame.limit((p+1)*PAYLOAD).position(p*PAYLOAD);
+				if (p==FRAME_PACKETS-1) socket.markNextPacket();
+				if (mode==DIRECT) socket.send(RtpSocket.RTP_HEADER_LENGTH, frame);
+				else socket.queue(RtpSocket.RTP_HEADER_LENGTH, frame);
+			}
+			if (mode!=DIRECT) socket.flush(mode==PACED ? interval/2 : 0);
+			sendTime += System.nanoTime()-t;
+			cpuTime += cpu.getCurrentThreadCpuTime()-c;
+		}
+		long duration = System.nanoTime()-start;
+
+		int received = receiver.finish();
+		socket.close();
+		long packets = (long) frames*FRAME_PACKETS;
+		return new double[] {packets*1e9/duration, cpuTime/1e3/frames, sendTime/1e3/frames, packets-received};
+	}
+
+	/** Counts the packets received on a port of the loopback interface. */
+	private static class Receiver extends Thread {
+
+		private final DatagramSocket socket;
+		private volatile boolean done = false;
+		private int received = 0;
+
+		public Receiver(int rcvbuf) throws Exception {
+			socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+			socket.setReceiveBufferSize(rcvbuf);
+			socket.setSoTimeout(200);
+		}
+
+		public int getPort() {
+			return socket.getLocalPort();
+		}
+
+		public void run() {
+			DatagramPacket packet = new DatagramPacket(new byte[RtpSocket.MTU], RtpSocket.MTU);
+			while (true) {
+				try {
+					socket.receive(packet);
+					received++;
+				} catch (SocketTimeoutException e) {
+					// Nothing left in the buffer once the sender is done
+					if (done) break;
+				} catch (Exception e) {
+					break;
+				}
+			}
+			socket.close();
+		}
+
+		public int finish() throws InterruptedException {
+			done = true;
+			join();
+			return received;
+		}
+
+	}
+
+}